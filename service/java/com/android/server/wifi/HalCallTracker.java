@@ -0,0 +1,349 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.hardware.wifi.V1_0.WifiStatus;
+import android.hardware.wifi.V1_0.WifiStatusCode;
+import android.hardware.wifi.hostapd.V1_0.HostapdStatus;
+import android.hardware.wifi.hostapd.V1_0.HostapdStatusCode;
+import android.hardware.wifi.supplicant.V1_0.SupplicantStatus;
+import android.hardware.wifi.supplicant.V1_0.SupplicantStatusCode;
+import android.os.IHwInterface;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.server.wifi.util.LatencyStats;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Opt-in recorder of the latency, failures and remote exceptions of the synchronous HIDL calls
+ * made by the HAL wrappers (supplicant, hostapd and vendor HAL).
+ *
+ * When enabled, HAL interface objects are wrapped with
+ * {@link #track(String, Class, IHwInterface)} when they are retrieved, so every method invoked on
+ * them is timed without changes at the call sites. Interface objects retrieved while disabled are
+ * not wrapped and cost nothing, so enabling takes effect once the HALs are started again.
+ * Calls slower than the slow call threshold are logged along with the calling thread, and
+ * calls which have not returned yet are listed in the dump to help attribute stalls of the
+ * calling state machine to a specific HAL method.
+ */
+public class HalCallTracker {
+    private static final String TAG = "HalCallTracker";
+
+    public static final long DEFAULT_SLOW_CALL_THRESHOLD_MS = 100;
+    @VisibleForTesting
+    static final int MAX_SLOW_CALLS = 32;
+
+    private final Object mLock = new Object();
+    private final Clock mClock;
+    private volatile boolean mEnabled = false;
+    @GuardedBy("mLock")
+    private final Map<String, CallStats> mCallStats = new TreeMap<>();
+    @GuardedBy("mLock")
+    private final Map<Long, CallRecord> mInFlightCalls = new HashMap<>();
+    @GuardedBy("mLock")
+    private final LatencyStats.SlowLog<CallRecord> mSlowCalls =
+            new LatencyStats.SlowLog<>(MAX_SLOW_CALLS);
+    @GuardedBy("mLock")
+    private long mSlowCallThresholdMs = DEFAULT_SLOW_CALL_THRESHOLD_MS;
+
+    public HalCallTracker(Clock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * Statistics of a single HAL method.
+     */
+    public static class CallStats {
+        public int failureCount;
+        public int remoteExceptionCount;
+        public int slowCallCount;
+        public LatencyStats latency = new LatencyStats();
+
+        CallStats copy() {
+            CallStats copy = new CallStats();
+            copy.failureCount = failureCount;
+            copy.remoteExceptionCount = remoteExceptionCount;
+            copy.slowCallCount = slowCallCount;
+            copy.latency = latency.copy();
+            return copy;
+        }
+    }
+
+    /**
+     * A single call, either in flight or completed slower than the threshold.
+     */
+    private static class CallRecord {
+        public final String name;
+        public final String threadName;
+        public final long startTimeMs;
+        public final long startWallClockMs;
+        public long latencyMs;
+
+        CallRecord(String name, String threadName, long startTimeMs, long startWallClockMs) {
+            this.name = name;
+            this.threadName = threadName;
+            this.startTimeMs = startTimeMs;
+            this.startWallClockMs = startWallClockMs;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%tm-%<td %<tH:%<tM:%<tS.%<tL", startWallClockMs)
+                    + " " + name + " thread=" + threadName + " latencyMs=" + latencyMs;
+        }
+    }
+
+    /**
+     * Enable or disable the tracking. Disabling keeps the statistics recorded so far and stops
+     * recording the calls made through the objects already wrapped.
+     */
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Set the latency above which a HAL call is logged and recorded as slow.
+     */
+    public void setSlowCallThresholdMs(long thresholdMs) {
+        synchronized (mLock) {
+            mSlowCallThresholdMs = thresholdMs;
+        }
+    }
+
+    /**
+     * Wrap a HAL interface object so that every call made through it is recorded.
+     *
+     * @param halName Name used to group the methods of |target| in the stats.
+     * @param halInterface HIDL interface implemented by |target| which is being called.
+     * @param target HAL interface object to wrap.
+     * @return an object implementing |halInterface| which forwards all calls to |target|, or
+     * |target| itself if it is null, already tracked or if tracking is disabled.
+     */
+    public <T extends IHwInterface> T track(String halName, Class<T> halInterface, T target) {
+        if (!mEnabled || target == null || Proxy.isProxyClass(target.getClass())) return target;
+        return halInterface.cast(Proxy.newProxyInstance(halInterface.getClassLoader(),
+                new Class<?>[] {halInterface}, new TrackingHandler(halName, target)));
+    }
+
+    /**
+     * Wrap |target| with |tracker| if tracking is enabled, see
+     * {@link #track(String, Class, IHwInterface)}.
+     */
+    public static <T extends IHwInterface> T track(
+            HalCallTracker tracker, String halName, Class<T> halInterface, T target) {
+        if (tracker == null) return target;
+        return tracker.track(halName, halInterface, target);
+    }
+
+    /**
+     * Get the statistics recorded for a HAL method.
+     *
+     * @return a copy of the statistics or null if the method was never called.
+     */
+    @VisibleForTesting
+    public CallStats getCallStats(String halName, String methodName) {
+        synchronized (mLock) {
+            CallStats stats = mCallStats.get(halName + "." + methodName);
+            return stats == null ? null : stats.copy();
+        }
+    }
+
+    /**
+     * Clear all the recorded statistics.
+     */
+    public void clear() {
+        synchronized (mLock) {
+            mCallStats.clear();
+            mSlowCalls.clear();
+        }
+    }
+
+    private CallStats getOrCreateCallStats(String name) {
+        CallStats stats = mCallStats.get(name);
+        if (stats == null) {
+            stats = new CallStats();
+            mCallStats.put(name, stats);
+        }
+        return stats;
+    }
+
+    private CallRecord onCallStarted(String name) {
+        Thread thread = Thread.currentThread();
+        CallRecord call = new CallRecord(name, thread.getName(),
+                mClock.getElapsedSinceBootMillis(), mClock.getWallClockMillis());
+        synchronized (mLock) {
+            mInFlightCalls.put(thread.getId(), call);
+        }
+        return call;
+    }
+
+    private void onCallCompleted(CallRecord call, boolean remoteException) {
+        call.latencyMs = mClock.getElapsedSinceBootMillis() - call.startTimeMs;
+        synchronized (mLock) {
+            mInFlightCalls.remove(Thread.currentThread().getId());
+            CallStats stats = getOrCreateCallStats(call.name);
+            stats.latency.add(call.latencyMs);
+            if (remoteException) stats.remoteExceptionCount++;
+            if (call.latencyMs >= mSlowCallThresholdMs) {
+                stats.slowCallCount++;
+                mSlowCalls.add(call);
+                Log.w(TAG, "Slow HAL call: " + call);
+            }
+        }
+    }
+
+    private void onCallFailed(String name) {
+        synchronized (mLock) {
+            getOrCreateCallStats(name).failureCount++;
+        }
+    }
+
+    /**
+     * Returns true if |value| is a HAL status object with a failure code.
+     */
+    private static boolean isFailureStatus(Object value) {
+        if (value instanceof SupplicantStatus) {
+            return ((SupplicantStatus) value).code != SupplicantStatusCode.SUCCESS;
+        }
+        if (value instanceof HostapdStatus) {
+            return ((HostapdStatus) value).code != HostapdStatusCode.SUCCESS;
+        }
+        if (value instanceof WifiStatus) {
+            return ((WifiStatus) value).code != WifiStatusCode.SUCCESS;
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if |type| is a result callback declared by a HIDL interface, for methods which
+     * return their status through a callback instead of a return value.
+     */
+    private static boolean isHalResultCallback(Class<?> type) {
+        Class<?> declaringClass = type.getDeclaringClass();
+        return type.isInterface() && declaringClass != null
+                && IHwInterface.class.isAssignableFrom(declaringClass);
+    }
+
+    private static Object invokeTarget(Method method, Object target, Object[] args)
+            throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private class TrackingHandler implements InvocationHandler {
+        private final String mHalName;
+        private final Object mTarget;
+
+        TrackingHandler(String halName, Object target) {
+            mHalName = halName;
+            mTarget = target;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                if (method.getName().equals("equals")) {
+                    Object other = args[0];
+                    if (other != null && Proxy.isProxyClass(other.getClass())
+                            && Proxy.getInvocationHandler(other) instanceof TrackingHandler) {
+                        other = ((TrackingHandler) Proxy.getInvocationHandler(other)).mTarget;
+                    }
+                    return mTarget.equals(other);
+                }
+                return invokeTarget(method, mTarget, args);
+            }
+            if (!mEnabled) return invokeTarget(method, mTarget, args);
+            final String name = mHalName + "." + method.getName();
+            if (args != null) {
+                Class<?>[] parameterTypes = method.getParameterTypes();
+                for (int i = 0; i < args.length; i++) {
+                    if (args[i] != null && isHalResultCallback(parameterTypes[i])) {
+                        args[i] = wrapResultCallback(name, parameterTypes[i], args[i]);
+                    }
+                }
+            }
+            CallRecord call = onCallStarted(name);
+            boolean remoteException = false;
+            try {
+                Object result = invokeTarget(method, mTarget, args);
+                if (isFailureStatus(result)) onCallFailed(name);
+                return result;
+            } catch (RemoteException e) {
+                remoteException = true;
+                throw e;
+            } finally {
+                onCallCompleted(call, remoteException);
+            }
+        }
+    }
+
+    private Object wrapResultCallback(String name, Class<?> callbackInterface, Object callback) {
+        return Proxy.newProxyInstance(callbackInterface.getClassLoader(),
+                new Class<?>[] {callbackInterface}, (proxy, method, args) -> {
+                    if (method.getDeclaringClass() != Object.class && args != null
+                            && args.length > 0 && isFailureStatus(args[0])) {
+                        onCallFailed(name);
+                    }
+                    return invokeTarget(method, callback, args);
+                });
+    }
+
+    /**
+     * Dump the recorded statistics, the calls currently in flight and the recent slow calls.
+     */
+    public void dump(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("Dump of HalCallTracker");
+            pw.println("mEnabled=" + mEnabled);
+            pw.println("mSlowCallThresholdMs=" + mSlowCallThresholdMs);
+            LatencyStats.dumpBucketBounds(pw);
+            for (Map.Entry<String, CallStats> entry : mCallStats.entrySet()) {
+                CallStats stats = entry.getValue();
+                pw.println("  " + entry.getKey() + ": " + stats.latency
+                        + " failures=" + stats.failureCount
+                        + " remoteExceptions=" + stats.remoteExceptionCount
+                        + " slow=" + stats.slowCallCount);
+            }
+            long now = mClock.getElapsedSinceBootMillis();
+            pw.println("Calls in flight: " + mInFlightCalls.size());
+            for (CallRecord call : mInFlightCalls.values()) {
+                pw.println("  " + call.name + " thread=" + call.threadName
+                        + " elapsedMs=" + (now - call.startTimeMs));
+            }
+            pw.println("Recent slow calls: " + mSlowCalls.size());
+            mSlowCalls.dump(pw, "  ");
+        }
+    }
+}
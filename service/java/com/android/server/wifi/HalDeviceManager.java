@@ -53,6 +53,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -500,12 +501,23 @@ public class HalDeviceManager {
     private final Set<ManagerStatusListenerProxy> mManagerStatusListeners = new HashSet<>();
     private final SparseArray<Map<InterfaceAvailableForRequestListenerProxy, Boolean>>
             mInterfaceAvailableForRequestListeners = new SparseArray<>();
-    private final SparseArray<IWifiChipEventCallback.Stub> mDebugCallbacks = new SparseArray<>();
+    private final SparseArray<IWifiChipEventCallback.Stub> mChipEventCallbacks =
+            new SparseArray<>();
 
     /*
-     * This is the only place where we cache HIDL information in this manager. Necessary since
-     * we need to keep a list of registered destroyed listeners. Will be validated regularly
-     * in getAllChipInfoAndValidateCache().
+     * Cached model of the chips - see getAllChipInfo(). The capabilities are dropped when Wi-Fi
+     * is started or torn down, the current state whenever the chip is (or may have been)
+     * reconfigured. Expanded combinations are keyed by identity of the cached
+     * ChipIfaceCombination objects.
+     */
+    private WifiChipInfo[] mCachedChipCapabilities;
+    private WifiChipInfo[] mCachedChipInfos;
+    private final Map<IWifiChip.ChipIfaceCombination, int[][]> mExpandedIfaceCombosCache =
+            new IdentityHashMap<>();
+
+    /*
+     * Cache of the interfaces we created. Necessary since we need to keep a list of registered
+     * destroyed listeners. Will be validated against the chip state in createIface().
      */
     private final Map<Pair<String, Integer>, InterfaceCacheEntry> mInterfaceInfoCache =
             new HashMap<>();
@@ -550,7 +562,9 @@ public class HalDeviceManager {
                     .append(", currentModeIdValid=").append(currentModeIdValid)
                     .append(", currentModeId=").append(currentModeId);
             for (int type: IFACE_TYPES_BY_PRIORITY) {
-                sb.append(", ifaces[" + type + "].length=").append(ifaces[type].length);
+                if (ifaces[type] != null) {
+                    sb.append(", ifaces[" + type + "].length=").append(ifaces[type].length);
+                }
             }
             sb.append(")");
             return sb.toString();
@@ -588,6 +602,8 @@ public class HalDeviceManager {
     }
 
     private void teardownInternal() {
+        invalidateChipInfo();
+        mChipEventCallbacks.clear();
         managerStatusListenerDispatch();
         dispatchAllDestroyedListeners();
         mInterfaceAvailableForRequestListeners.get(IfaceType.STA).clear();
@@ -733,64 +749,33 @@ public class HalDeviceManager {
     }
 
     /**
-     * Registers event listeners on all IWifiChips after a successful start: DEBUG only!
+     * Registers event listeners on all IWifiChips after a successful start.
      *
-     * We don't need the listeners since any callbacks are just confirmation of status codes we
-     * obtain directly from mode changes or interface creation/deletion.
+     * The listeners keep the cached chip model (see getAllChipInfo()) in sync: any chip
+     * reconfiguration or interface change invalidates the cached chip state. Most callbacks are
+     * just confirmation of changes we made ourselves - which have already invalidated the state.
      *
      * Relies (to the degree we care) on the service removing all listeners when Wi-Fi is stopped.
      */
-    private void initIWifiChipDebugListeners() {
-        if (VDBG) Log.d(TAG, "initIWifiChipDebugListeners");
-
-        if (!VDBG) {
-            return;
-        }
+    private void initIWifiChipListeners() {
+        if (VDBG) Log.d(TAG, "initIWifiChipListeners");
 
         synchronized (mLock) {
-            try {
-                MutableBoolean statusOk = new MutableBoolean(false);
-                Mutable<ArrayList<Integer>> chipIdsResp = new Mutable<>();
-
-                // get all chip IDs
-                mWifi.getChipIds((WifiStatus status, ArrayList<Integer> chipIds) -> {
-                    statusOk.value = status.code == WifiStatusCode.SUCCESS;
-                    if (statusOk.value) {
-                        chipIdsResp.value = chipIds;
-                    } else {
-                        Log.e(TAG, "getChipIds failed: " + statusString(status));
-                    }
-                });
-                if (!statusOk.value) {
-                    return;
-                }
-
-                Log.d(TAG, "getChipIds=" + chipIdsResp.value);
-                if (chipIdsResp.value.size() == 0) {
-                    Log.e(TAG, "Should have at least 1 chip!");
-                    return;
-                }
+            WifiChipInfo[] chipInfos = getAllChipInfo();
+            if (chipInfos == null) {
+                Log.e(TAG, "initIWifiChipListeners: no chip info found");
+                return;
+            }
 
+            try {
                 // register a callback for each chip
-                Mutable<IWifiChip> chipResp = new Mutable<>();
-                for (Integer chipId: chipIdsResp.value) {
-                    mWifi.getChip(chipId, (WifiStatus status, IWifiChip chip) -> {
-                        statusOk.value = status.code == WifiStatusCode.SUCCESS;
-                        if (statusOk.value) {
-                            chipResp.value = chip;
-                        } else {
-                            Log.e(TAG, "getChip failed: " + statusString(status));
-                        }
-                    });
-                    if (!statusOk.value) {
-                        continue; // still try next one?
-                    }
-
+                for (WifiChipInfo chipInfo: chipInfos) {
                     IWifiChipEventCallback.Stub callback =
                             new IWifiChipEventCallback.Stub() {
                                 @Override
                                 public void onChipReconfigured(int modeId) throws RemoteException {
-                                    Log.d(TAG, "onChipReconfigured: modeId=" + modeId);
+                                    if (VDBG) Log.d(TAG, "onChipReconfigured: modeId=" + modeId);
+                                    invalidateChipState();
                                 }
 
                                 @Override
@@ -798,43 +783,53 @@ public class HalDeviceManager {
                                         throws RemoteException {
                                     Log.d(TAG, "onChipReconfigureFailure: status=" + statusString(
                                             status));
+                                    invalidateChipState();
                                 }
 
                                 @Override
                                 public void onIfaceAdded(int type, String name)
                                         throws RemoteException {
-                                    Log.d(TAG, "onIfaceAdded: type=" + type + ", name=" + name);
+                                    if (VDBG) {
+                                        Log.d(TAG, "onIfaceAdded: type=" + type + ", name="
+                                                + name);
+                                    }
+                                    invalidateChipState();
                                 }
 
                                 @Override
                                 public void onIfaceRemoved(int type, String name)
                                         throws RemoteException {
-                                    Log.d(TAG, "onIfaceRemoved: type=" + type + ", name=" + name);
+                                    if (VDBG) {
+                                        Log.d(TAG, "onIfaceRemoved: type=" + type + ", name="
+                                                + name);
+                                    }
+                                    invalidateChipState();
                                 }
 
                                 @Override
                                 public void onDebugRingBufferDataAvailable(
                                         WifiDebugRingBufferStatus status,
                                         ArrayList<Byte> data) throws RemoteException {
-                                    Log.d(TAG, "onDebugRingBufferDataAvailable");
+                                    if (VDBG) Log.d(TAG, "onDebugRingBufferDataAvailable");
                                 }
 
                                 @Override
                                 public void onDebugErrorAlert(int errorCode,
                                         ArrayList<Byte> debugData)
                                         throws RemoteException {
-                                    Log.d(TAG, "onDebugErrorAlert");
+                                    if (VDBG) Log.d(TAG, "onDebugErrorAlert");
                                 }
                             };
-                    mDebugCallbacks.put(chipId, callback); // store to prevent GC: needed by HIDL
-                    WifiStatus status = chipResp.value.registerEventCallback(callback);
+                    // store to prevent GC: needed by HIDL
+                    mChipEventCallbacks.put(chipInfo.chipId, callback);
+                    WifiStatus status = chipInfo.chip.registerEventCallback(callback);
                     if (status.code != WifiStatusCode.SUCCESS) {
                         Log.e(TAG, "registerEventCallback failed: " + statusString(status));
                         continue; // still try next one?
                     }
                 }
             } catch (RemoteException e) {
-                Log.e(TAG, "initIWifiChipDebugListeners: exception: " + e);
+                Log.e(TAG, "initIWifiChipListeners: exception: " + e);
                 return;
             }
         }
@@ -844,11 +839,22 @@ public class HalDeviceManager {
      * Get current information about all the chips in the system: modes, current mode (if any), and
      * any existing interfaces.
      *
-     * Intended to be called whenever we need to configure the chips - information is NOT cached (to
-     * reduce the likelihood that we get out-of-sync).
+     * Served from a cached model of the chips: the chip capabilities (chip IDs, available modes and
+     * their expanded interface combinations) are read once while Wi-Fi is started, the current
+     * chip state (mode and interfaces) is only re-read after it has been invalidated by a chip
+     * reconfiguration, an interface removal or a chip event.
      */
     private WifiChipInfo[] getAllChipInfo() {
-        if (VDBG) Log.d(TAG, "getAllChipInfo");
+        return getAllChipInfo(false);
+    }
+
+    /**
+     * Same as getAllChipInfo() - but if 'refreshState' is true the current chip state is always
+     * re-read from the HAL. Intended to be called whenever we need to configure the chips (to
+     * reduce the likelihood that we get out-of-sync).
+     */
+    private WifiChipInfo[] getAllChipInfo(boolean refreshState) {
+        if (VDBG) Log.d(TAG, "getAllChipInfo: refreshState=" + refreshState);
 
         synchronized (mLock) {
             if (mWifi == null) {
@@ -856,6 +862,41 @@ public class HalDeviceManager {
                 return null;
             }
 
+            if (mCachedChipCapabilities == null) {
+                mCachedChipCapabilities = getAllChipCapabilities();
+                if (mCachedChipCapabilities == null) {
+                    return null;
+                }
+            }
+
+            if (!refreshState && mCachedChipInfos != null) {
+                return mCachedChipInfos;
+            }
+
+            WifiChipInfo[] chipsInfo = new WifiChipInfo[mCachedChipCapabilities.length];
+            for (int i = 0; i < mCachedChipCapabilities.length; ++i) {
+                chipsInfo[i] = getChipState(mCachedChipCapabilities[i]);
+                if (chipsInfo[i] == null) {
+                    invalidateChipInfo();
+                    return null;
+                }
+            }
+            mCachedChipInfos = chipsInfo;
+            return chipsInfo;
+        }
+    }
+
+    /**
+     * Read the static information of all the chips in the system: chip IDs and available modes.
+     * The interface combinations of all modes are expanded once here (see
+     * getExpandedIfaceCombos()).
+     *
+     * The returned objects do not contain any current mode or interface information.
+     */
+    private WifiChipInfo[] getAllChipCapabilities() {
+        if (VDBG) Log.d(TAG, "getAllChipCapabilities");
+
+        synchronized (mLock) {
             try {
                 MutableBoolean statusOk = new MutableBoolean(false);
                 Mutable<ArrayList<Integer>> chipIdsResp = new Mutable<>();
@@ -910,180 +951,232 @@ public class HalDeviceManager {
                         return null;
                     }
 
-                    MutableBoolean currentModeValidResp = new MutableBoolean(false);
-                    MutableInt currentModeResp = new MutableInt(0);
-                    chipResp.value.getMode((WifiStatus status, int modeId) -> {
-                        statusOk.value = status.code == WifiStatusCode.SUCCESS;
-                        if (statusOk.value) {
-                            currentModeValidResp.value = true;
-                            currentModeResp.value = modeId;
-                        } else if (status.code == WifiStatusCode.ERROR_NOT_AVAILABLE) {
-                            statusOk.value = true; // valid response
-                        } else {
-                            Log.e(TAG, "getMode failed: " + statusString(status));
+                    for (IWifiChip.ChipMode chipMode: availableModesResp.value) {
+                        for (IWifiChip.ChipIfaceCombination chipIfaceCombo : chipMode
+                                .availableCombinations) {
+                            getExpandedIfaceCombos(chipIfaceCombo);
                         }
-                    });
-                    if (!statusOk.value) {
-                        return null;
                     }
 
-                    Mutable<ArrayList<String>> ifaceNamesResp = new Mutable<>();
-                    MutableInt ifaceIndex = new MutableInt(0);
+                    WifiChipInfo chipInfo = new WifiChipInfo();
+                    chipsInfo[chipInfoIndex++] = chipInfo;
 
-                    chipResp.value.getStaIfaceNames(
-                            (WifiStatus status, ArrayList<String> ifnames) -> {
+                    chipInfo.chip = chipResp.value;
+                    chipInfo.chipId = chipId;
+                    chipInfo.availableModes = availableModesResp.value;
+                }
+
+                return chipsInfo;
+            } catch (RemoteException e) {
+                Log.e(TAG, "getAllChipCapabilities exception: " + e);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Read the current state of the chip - current mode (if any) and any existing interfaces - and
+     * return it combined with the (cached) chip capabilities.
+     */
+    private WifiChipInfo getChipState(WifiChipInfo chipCapabilities) {
+        if (VDBG) Log.d(TAG, "getChipState: chipId=" + chipCapabilities.chipId);
+
+        IWifiChip chip = chipCapabilities.chip;
+        synchronized (mLock) {
+            try {
+                MutableBoolean statusOk = new MutableBoolean(false);
+                MutableBoolean currentModeValidResp = new MutableBoolean(false);
+                MutableInt currentModeResp = new MutableInt(0);
+                chip.getMode((WifiStatus status, int modeId) -> {
+                    statusOk.value = status.code == WifiStatusCode.SUCCESS;
+                    if (statusOk.value) {
+                        currentModeValidResp.value = true;
+                        currentModeResp.value = modeId;
+                    } else if (status.code == WifiStatusCode.ERROR_NOT_AVAILABLE) {
+                        statusOk.value = true; // valid response
+                    } else {
+                        Log.e(TAG, "getMode failed: " + statusString(status));
+                    }
+                });
+                if (!statusOk.value) {
+                    return null;
+                }
+
+                Mutable<ArrayList<String>> ifaceNamesResp = new Mutable<>();
+                MutableInt ifaceIndex = new MutableInt(0);
+
+                chip.getStaIfaceNames(
+                        (WifiStatus status, ArrayList<String> ifnames) -> {
+                            statusOk.value = status.code == WifiStatusCode.SUCCESS;
+                            if (statusOk.value) {
+                                ifaceNamesResp.value = ifnames;
+                            } else {
+                                Log.e(TAG, "getStaIfaceNames failed: " + statusString(status));
+                            }
+                        });
+                if (!statusOk.value) {
+                    return null;
+                }
+
+                WifiIfaceInfo[] staIfaces = new WifiIfaceInfo[ifaceNamesResp.value.size()];
+                for (String ifaceName: ifaceNamesResp.value) {
+                    chip.getStaIface(ifaceName,
+                            (WifiStatus status, IWifiStaIface iface) -> {
                                 statusOk.value = status.code == WifiStatusCode.SUCCESS;
                                 if (statusOk.value) {
-                                    ifaceNamesResp.value = ifnames;
+                                    WifiIfaceInfo ifaceInfo = new WifiIfaceInfo();
+                                    ifaceInfo.name = ifaceName;
+                                    ifaceInfo.iface = iface;
+                                    staIfaces[ifaceIndex.value++] = ifaceInfo;
                                 } else {
-                                    Log.e(TAG, "getStaIfaceNames failed: " + statusString(status));
+                                    Log.e(TAG, "getStaIface failed: " + statusString(status));
                                 }
                             });
                     if (!statusOk.value) {
                         return null;
                     }
+                }
 
-                    WifiIfaceInfo[] staIfaces = new WifiIfaceInfo[ifaceNamesResp.value.size()];
-                    for (String ifaceName: ifaceNamesResp.value) {
-                        chipResp.value.getStaIface(ifaceName,
-                                (WifiStatus status, IWifiStaIface iface) -> {
-                                    statusOk.value = status.code == WifiStatusCode.SUCCESS;
-                                    if (statusOk.value) {
-                                        WifiIfaceInfo ifaceInfo = new WifiIfaceInfo();
-                                        ifaceInfo.name = ifaceName;
-                                        ifaceInfo.iface = iface;
-                                        staIfaces[ifaceIndex.value++] = ifaceInfo;
-                                    } else {
-                                        Log.e(TAG, "getStaIface failed: " + statusString(status));
-                                    }
-                                });
-                        if (!statusOk.value) {
-                            return null;
-                        }
-                    }
+                ifaceIndex.value = 0;
+                chip.getApIfaceNames(
+                        (WifiStatus status, ArrayList<String> ifnames) -> {
+                            statusOk.value = status.code == WifiStatusCode.SUCCESS;
+                            if (statusOk.value) {
+                                ifaceNamesResp.value = ifnames;
+                            } else {
+                                Log.e(TAG, "getApIfaceNames failed: " + statusString(status));
+                            }
+                        });
+                if (!statusOk.value) {
+                    return null;
+                }
 
-                    ifaceIndex.value = 0;
-                    chipResp.value.getApIfaceNames(
-                            (WifiStatus status, ArrayList<String> ifnames) -> {
+                WifiIfaceInfo[] apIfaces = new WifiIfaceInfo[ifaceNamesResp.value.size()];
+                for (String ifaceName: ifaceNamesResp.value) {
+                    chip.getApIface(ifaceName,
+                            (WifiStatus status, IWifiApIface iface) -> {
                                 statusOk.value = status.code == WifiStatusCode.SUCCESS;
                                 if (statusOk.value) {
-                                    ifaceNamesResp.value = ifnames;
+                                    WifiIfaceInfo ifaceInfo = new WifiIfaceInfo();
+                                    ifaceInfo.name = ifaceName;
+                                    ifaceInfo.iface = iface;
+                                    apIfaces[ifaceIndex.value++] = ifaceInfo;
                                 } else {
-                                    Log.e(TAG, "getApIfaceNames failed: " + statusString(status));
+                                    Log.e(TAG, "getApIface failed: " + statusString(status));
                                 }
                             });
                     if (!statusOk.value) {
                         return null;
                     }
+                }
 
-                    WifiIfaceInfo[] apIfaces = new WifiIfaceInfo[ifaceNamesResp.value.size()];
-                    for (String ifaceName: ifaceNamesResp.value) {
-                        chipResp.value.getApIface(ifaceName,
-                                (WifiStatus status, IWifiApIface iface) -> {
-                                    statusOk.value = status.code == WifiStatusCode.SUCCESS;
-                                    if (statusOk.value) {
-                                        WifiIfaceInfo ifaceInfo = new WifiIfaceInfo();
-                                        ifaceInfo.name = ifaceName;
-                                        ifaceInfo.iface = iface;
-                                        apIfaces[ifaceIndex.value++] = ifaceInfo;
-                                    } else {
-                                        Log.e(TAG, "getApIface failed: " + statusString(status));
-                                    }
-                                });
-                        if (!statusOk.value) {
-                            return null;
-                        }
-                    }
+                ifaceIndex.value = 0;
+                chip.getP2pIfaceNames(
+                        (WifiStatus status, ArrayList<String> ifnames) -> {
+                            statusOk.value = status.code == WifiStatusCode.SUCCESS;
+                            if (statusOk.value) {
+                                ifaceNamesResp.value = ifnames;
+                            } else {
+                                Log.e(TAG, "getP2pIfaceNames failed: " + statusString(status));
+                            }
+                        });
+                if (!statusOk.value) {
+                    return null;
+                }
 
-                    ifaceIndex.value = 0;
-                    chipResp.value.getP2pIfaceNames(
-                            (WifiStatus status, ArrayList<String> ifnames) -> {
+                WifiIfaceInfo[] p2pIfaces = new WifiIfaceInfo[ifaceNamesResp.value.size()];
+                for (String ifaceName: ifaceNamesResp.value) {
+                    chip.getP2pIface(ifaceName,
+                            (WifiStatus status, IWifiP2pIface iface) -> {
                                 statusOk.value = status.code == WifiStatusCode.SUCCESS;
                                 if (statusOk.value) {
-                                    ifaceNamesResp.value = ifnames;
+                                    WifiIfaceInfo ifaceInfo = new WifiIfaceInfo();
+                                    ifaceInfo.name = ifaceName;
+                                    ifaceInfo.iface = iface;
+                                    p2pIfaces[ifaceIndex.value++] = ifaceInfo;
                                 } else {
-                                    Log.e(TAG, "getP2pIfaceNames failed: " + statusString(status));
+                                    Log.e(TAG, "getP2pIface failed: " + statusString(status));
                                 }
                             });
                     if (!statusOk.value) {
                         return null;
                     }
+                }
 
-                    WifiIfaceInfo[] p2pIfaces = new WifiIfaceInfo[ifaceNamesResp.value.size()];
-                    for (String ifaceName: ifaceNamesResp.value) {
-                        chipResp.value.getP2pIface(ifaceName,
-                                (WifiStatus status, IWifiP2pIface iface) -> {
-                                    statusOk.value = status.code == WifiStatusCode.SUCCESS;
-                                    if (statusOk.value) {
-                                        WifiIfaceInfo ifaceInfo = new WifiIfaceInfo();
-                                        ifaceInfo.name = ifaceName;
-                                        ifaceInfo.iface = iface;
-                                        p2pIfaces[ifaceIndex.value++] = ifaceInfo;
-                                    } else {
-                                        Log.e(TAG, "getP2pIface failed: " + statusString(status));
-                                    }
-                                });
-                        if (!statusOk.value) {
-                            return null;
-                        }
-                    }
+                ifaceIndex.value = 0;
+                chip.getNanIfaceNames(
+                        (WifiStatus status, ArrayList<String> ifnames) -> {
+                            statusOk.value = status.code == WifiStatusCode.SUCCESS;
+                            if (statusOk.value) {
+                                ifaceNamesResp.value = ifnames;
+                            } else {
+                                Log.e(TAG, "getNanIfaceNames failed: " + statusString(status));
+                            }
+                        });
+                if (!statusOk.value) {
+                    return null;
+                }
 
-                    ifaceIndex.value = 0;
-                    chipResp.value.getNanIfaceNames(
-                            (WifiStatus status, ArrayList<String> ifnames) -> {
+                WifiIfaceInfo[] nanIfaces = new WifiIfaceInfo[ifaceNamesResp.value.size()];
+                for (String ifaceName: ifaceNamesResp.value) {
+                    chip.getNanIface(ifaceName,
+                            (WifiStatus status, IWifiNanIface iface) -> {
                                 statusOk.value = status.code == WifiStatusCode.SUCCESS;
                                 if (statusOk.value) {
-                                    ifaceNamesResp.value = ifnames;
+                                    WifiIfaceInfo ifaceInfo = new WifiIfaceInfo();
+                                    ifaceInfo.name = ifaceName;
+                                    ifaceInfo.iface = iface;
+                                    nanIfaces[ifaceIndex.value++] = ifaceInfo;
                                 } else {
-                                    Log.e(TAG, "getNanIfaceNames failed: " + statusString(status));
+                                    Log.e(TAG, "getNanIface failed: " + statusString(status));
                                 }
                             });
                     if (!statusOk.value) {
                         return null;
                     }
-
-                    WifiIfaceInfo[] nanIfaces = new WifiIfaceInfo[ifaceNamesResp.value.size()];
-                    for (String ifaceName: ifaceNamesResp.value) {
-                        chipResp.value.getNanIface(ifaceName,
-                                (WifiStatus status, IWifiNanIface iface) -> {
-                                    statusOk.value = status.code == WifiStatusCode.SUCCESS;
-                                    if (statusOk.value) {
-                                        WifiIfaceInfo ifaceInfo = new WifiIfaceInfo();
-                                        ifaceInfo.name = ifaceName;
-                                        ifaceInfo.iface = iface;
-                                        nanIfaces[ifaceIndex.value++] = ifaceInfo;
-                                    } else {
-                                        Log.e(TAG, "getNanIface failed: " + statusString(status));
-                                    }
-                                });
-                        if (!statusOk.value) {
-                            return null;
-                        }
-                    }
-
-                    WifiChipInfo chipInfo = new WifiChipInfo();
-                    chipsInfo[chipInfoIndex++] = chipInfo;
-
-                    chipInfo.chip = chipResp.value;
-                    chipInfo.chipId = chipId;
-                    chipInfo.availableModes = availableModesResp.value;
-                    chipInfo.currentModeIdValid = currentModeValidResp.value;
-                    chipInfo.currentModeId = currentModeResp.value;
-                    chipInfo.ifaces[IfaceType.STA] = staIfaces;
-                    chipInfo.ifaces[IfaceType.AP] = apIfaces;
-                    chipInfo.ifaces[IfaceType.P2P] = p2pIfaces;
-                    chipInfo.ifaces[IfaceType.NAN] = nanIfaces;
                 }
 
-                return chipsInfo;
+                WifiChipInfo chipInfo = new WifiChipInfo();
+                chipInfo.chip = chip;
+                chipInfo.chipId = chipCapabilities.chipId;
+                chipInfo.availableModes = chipCapabilities.availableModes;
+                chipInfo.currentModeIdValid = currentModeValidResp.value;
+                chipInfo.currentModeId = currentModeResp.value;
+                chipInfo.ifaces[IfaceType.STA] = staIfaces;
+                chipInfo.ifaces[IfaceType.AP] = apIfaces;
+                chipInfo.ifaces[IfaceType.P2P] = p2pIfaces;
+                chipInfo.ifaces[IfaceType.NAN] = nanIfaces;
+                return chipInfo;
             } catch (RemoteException e) {
-                Log.e(TAG, "getAllChipInfoAndValidateCache exception: " + e);
+                Log.e(TAG, "getChipState exception: " + e);
             }
         }
 
         return null;
     }
 
+    /**
+     * Drops the cached current chip state (mode and interfaces): it will be re-read from the HAL
+     * on the next query. The chip capabilities remain cached.
+     */
+    private void invalidateChipState() {
+        synchronized (mLock) {
+            mCachedChipInfos = null;
+        }
+    }
+
+    /**
+     * Drops the whole cached chip model: capabilities and current state.
+     */
+    private void invalidateChipInfo() {
+        synchronized (mLock) {
+            mCachedChipCapabilities = null;
+            mCachedChipInfos = null;
+            mExpandedIfaceCombosCache.clear();
+        }
+    }
+
     /**
      * Checks the local state of this object (the cached state) against the input 'chipInfos'
      * state (which is a live representation of the Wi-Fi firmware status - read through the HAL).
@@ -1165,7 +1258,8 @@ public class HalDeviceManager {
                     while (triedCount <= START_HAL_RETRY_TIMES) {
                         WifiStatus status = mWifi.start();
                         if (status.code == WifiStatusCode.SUCCESS) {
-                            initIWifiChipDebugListeners();
+                            invalidateChipInfo();
+                            initIWifiChipListeners();
                             managerStatusListenerDispatch();
                             if (triedCount != 0) {
                                 Log.d(TAG, "start IWifi succeeded after trying "
@@ -1320,7 +1414,7 @@ public class HalDeviceManager {
         }
 
         synchronized (mLock) {
-            WifiChipInfo[] chipInfos = getAllChipInfo();
+            WifiChipInfo[] chipInfos = getAllChipInfo(true);
             if (chipInfos == null) {
                 Log.e(TAG, "createIface: no chip info found");
                 stopWifi(); // major error: shutting down
@@ -1357,7 +1451,7 @@ public class HalDeviceManager {
                 for (IWifiChip.ChipMode chipMode: chipInfo.availableModes) {
                     for (IWifiChip.ChipIfaceCombination chipIfaceCombo : chipMode
                             .availableCombinations) {
-                        int[][] expandedIfaceCombos = expandIfaceCombos(chipIfaceCombo);
+                        int[][] expandedIfaceCombos = getExpandedIfaceCombos(chipIfaceCombo);
                         if (VDBG) {
                             Log.d(TAG, chipIfaceCombo + " expands to "
                                     + Arrays.deepToString(expandedIfaceCombos));
@@ -1416,7 +1510,7 @@ public class HalDeviceManager {
             for (IWifiChip.ChipMode chipMode: chipInfo.availableModes) {
                 for (IWifiChip.ChipIfaceCombination chipIfaceCombo : chipMode
                         .availableCombinations) {
-                    int[][] expandedIfaceCombos = expandIfaceCombos(chipIfaceCombo);
+                    int[][] expandedIfaceCombos = getExpandedIfaceCombos(chipIfaceCombo);
                     if (VDBG) {
                         Log.d(TAG, chipIfaceCombo + " expands to "
                                 + Arrays.deepToString(expandedIfaceCombos));
@@ -1435,6 +1529,21 @@ public class HalDeviceManager {
         return false;
     }
 
+    /**
+     * Returns the expanded representation of the ChipIfaceCombination (see expandIfaceCombos()).
+     * Expansions are computed once per combination and cached with the chip capabilities.
+     */
+    private int[][] getExpandedIfaceCombos(IWifiChip.ChipIfaceCombination chipIfaceCombo) {
+        synchronized (mLock) {
+            int[][] expandedIfaceCombos = mExpandedIfaceCombosCache.get(chipIfaceCombo);
+            if (expandedIfaceCombos == null) {
+                expandedIfaceCombos = expandIfaceCombos(chipIfaceCombo);
+                mExpandedIfaceCombosCache.put(chipIfaceCombo, expandedIfaceCombos);
+            }
+            return expandedIfaceCombos;
+        }
+    }
+
     /**
      * Expands (or provides an alternative representation) of the ChipIfaceCombination as all
      * possible combinations of interface.
@@ -1767,6 +1876,7 @@ public class HalDeviceManager {
                     + ", ifaceType=" + ifaceType);
         }
         synchronized (mLock) {
+            invalidateChipState(); // whatever the outcome the chip state is about to change
             try {
                 // is this a mode change?
                 boolean isModeConfigNeeded = !ifaceCreationData.chipInfo.currentModeIdValid
@@ -1898,6 +2008,7 @@ public class HalDeviceManager {
             }
 
             // dispatch listeners no matter what status
+            invalidateChipState();
             dispatchDestroyedListeners(name, type);
 
             if (status != null && status.code == WifiStatusCode.SUCCESS) {
@@ -2117,5 +2228,8 @@ public class HalDeviceManager {
         pw.println("  mInterfaceAvailableForRequestListeners: "
                 + mInterfaceAvailableForRequestListeners);
         pw.println("  mInterfaceInfoCache: " + mInterfaceInfoCache);
+        pw.println("  mCachedChipCapabilities: " + Arrays.toString(mCachedChipCapabilities));
+        pw.println("  mCachedChipInfos: " + Arrays.toString(mCachedChipInfos));
+        pw.println("  mExpandedIfaceCombosCache.size(): " + mExpandedIfaceCombosCache.size());
     }
 }
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.net.wifi.WifiConfiguration;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Chooses the hidden networks probed by a scan.
+ *
+ * Every hidden network adds directed probe requests on every channel of the scan, so scans grow
+ * much longer with many saved hidden networks. At most {@link #MAX_HIDDEN_NETWORKS_PER_SCAN}
+ * networks are thus probed per scan:
+ * - the {@link #NUM_PINNED_NETWORKS} highest priority networks are probed by every scan,
+ * - the other slots rotate through the remaining networks, least recently probed first.
+ * When the scan covers only some channels, the networks whose {@link NetworkChannelHistory}
+ * doesn't include any of them are skipped. Networks without any history are always candidates,
+ * since where they are is unknown.
+ *
+ * The fine grained "only probe a network on its channels" isn't possible: the scan request
+ * carries a single list of SSIDs, probed on all the channels of the scan.
+ *
+ * Only used on the wifi state machine thread.
+ */
+public class HiddenNetworkProbePlanner {
+    /** Maximum number of hidden networks probed by a scan */
+    @VisibleForTesting
+    static final int MAX_HIDDEN_NETWORKS_PER_SCAN = 4;
+    /** Number of highest priority hidden networks probed by every scan */
+    @VisibleForTesting
+    static final int NUM_PINNED_NETWORKS = 2;
+
+    private final NetworkChannelHistory mChannelHistory;
+
+    // Number of the last planned scan which probed the network, per config key
+    private final Map<String, Long> mLastProbedScans = new HashMap<>();
+    private long mNumPlannedScans;
+    private long mNumCandidateNetworks;
+    private long mNumProbedNetworks;
+    private long mNumSkippedForChannels;
+
+    HiddenNetworkProbePlanner(NetworkChannelHistory channelHistory) {
+        mChannelHistory = channelHistory;
+    }
+
+    /**
+     * Choose the hidden networks to probe.
+     *
+     * @param networks the saved hidden networks, in priority order.
+     * @param scanFreqs the frequencies scanned, null if all the channels are scanned.
+     * @param nowMs current wall clock time.
+     * @return the networks to probe, in priority order.
+     */
+    public List<WifiConfiguration> plan(List<WifiConfiguration> networks, Set<Integer> scanFreqs,
+            long nowMs) {
+        long scanNumber = ++mNumPlannedScans;
+        List<WifiConfiguration> candidates = new ArrayList<>();
+        Set<String> configKeys = new HashSet<>();
+        for (WifiConfiguration config : networks) {
+            String configKey = config.configKey();
+            configKeys.add(configKey);
+            if (scanFreqs == null || wasSeenOnChannels(configKey, scanFreqs, nowMs)) {
+                candidates.add(config);
+            } else {
+                mNumSkippedForChannels++;
+            }
+        }
+        // Forget the networks which were removed or are not hidden anymore.
+        mLastProbedScans.keySet().retainAll(configKeys);
+        mNumCandidateNetworks += candidates.size();
+
+        List<WifiConfiguration> probed;
+        if (candidates.size() <= MAX_HIDDEN_NETWORKS_PER_SCAN) {
+            probed = candidates;
+        } else {
+            probed = new ArrayList<>(candidates.subList(0, NUM_PINNED_NETWORKS));
+            List<WifiConfiguration> rotated = new ArrayList<>(
+                    candidates.subList(NUM_PINNED_NETWORKS, candidates.size()));
+            // stable: ties keep the priority order
+            Collections.sort(rotated, (a, b) -> Long.compare(
+                    getLastProbedScan(a), getLastProbedScan(b)));
+            probed.addAll(rotated.subList(0, MAX_HIDDEN_NETWORKS_PER_SCAN - NUM_PINNED_NETWORKS));
+            // back to priority order
+            probed.sort((a, b) -> Integer.compare(candidates.indexOf(a), candidates.indexOf(b)));
+        }
+        for (WifiConfiguration config : probed) {
+            mLastProbedScans.put(config.configKey(), scanNumber);
+        }
+        mNumProbedNetworks += probed.size();
+        return probed;
+    }
+
+    private long getLastProbedScan(WifiConfiguration config) {
+        Long scanNumber = mLastProbedScans.get(config.configKey());
+        return scanNumber == null ? 0 : scanNumber;
+    }
+
+    /**
+     * Returns true if the network was seen on one of the frequencies, or if it has no channel
+     * history at all.
+     */
+    private boolean wasSeenOnChannels(String configKey, Set<Integer> freqs, long nowMs) {
+        List<Integer> channels = mChannelHistory.getChannelsByLikelihood(configKey, nowMs);
+        if (channels.isEmpty()) {
+            return true;
+        }
+        for (int freq : channels) {
+            if (freqs.contains(freq)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Dump the number of planned scans and probed networks.
+     */
+    public void dump(PrintWriter pw) {
+        pw.println("HiddenNetworkProbePlanner: scans=" + mNumPlannedScans
+                + " candidates=" + mNumCandidateNetworks
+                + " probed=" + mNumProbedNetworks
+                + " skippedForChannels=" + mNumSkippedForChannels);
+    }
+}
@@ -52,6 +52,7 @@ public class HostapdHal {
     private IServiceManager mIServiceManager = null;
     private IHostapd mIHostapd;
     private HostapdDeathEventHandler mDeathEventHandler;
+    private HalCallTracker mHalCallTracker;
 
     private final IServiceNotification mServiceNotificationCallback =
             new IServiceNotification.Stub() {
@@ -93,6 +94,17 @@ public class HostapdHal {
                 context.getResources().getBoolean(R.bool.config_wifi_softap_ieee80211ac_supported);
     }
 
+    /**
+     * Set the tracker used to record the latency of the HIDL calls made by this object.
+     *
+     * @param halCallTracker tracker to use, or null to disable tracking.
+     */
+    void setHalCallTracker(HalCallTracker halCallTracker) {
+        synchronized (mLock) {
+            mHalCallTracker = halCallTracker;
+        }
+    }
+
     /**
      * Enable/Disable verbose logging.
      *
@@ -200,7 +212,8 @@ public class HostapdHal {
     private boolean initHostapdService() {
         synchronized (mLock) {
             try {
-                mIHostapd = getHostapdMockable();
+                mIHostapd = HalCallTracker.track(
+                        mHalCallTracker, "IHostapd", IHostapd.class, getHostapdMockable());
             } catch (RemoteException e) {
                 Log.e(TAG, "IHostapd.getService exception: " + e);
                 return false;
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.net.wifi.ScanResult;
+import android.net.wifi.WifiScanner;
+import android.util.ArraySet;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The latest scan result of each BSSID, merged from all the single scans - full and partial.
+ *
+ * The cached results of WifiScanningServiceImpl are replaced by full scans only, so the results
+ * of the partial scans are otherwise lost to the consumers which don't request them. Each scan
+ * result is applied here as an upsert keyed by BSSID, unless the table already holds a newer
+ * result of the BSSID. Results older than {@link #MAX_AGE_MS} are evicted, and at most
+ * {@link #MAX_SIZE} results are kept, the least recently updated ones being evicted first.
+ *
+ * Times are those of {@link ScanResult#timestamp}: microseconds since boot.
+ *
+ * The bands are those of {@link WifiScanner}: the DFS channels, which depend on the country code,
+ * are set by the scanning service from its channel helper. While they are unknown, all the 5 GHz
+ * results are classified in {@link WifiScanner#WIFI_BAND_5_GHZ}.
+ *
+ * Thread-safe: updated on the scanning service thread, queried from any thread.
+ */
+public class MergedScanResultTable {
+    /** Results older than this are evicted. Same as the cached results of the scanning service */
+    @VisibleForTesting
+    static final long MAX_AGE_MS = 180 * 1000;
+    /** Maximum number of results kept */
+    @VisibleForTesting
+    static final int MAX_SIZE = 512;
+
+    private final Clock mClock;
+
+    // Frequencies of the DFS channels, replaced (never modified) on update
+    private Set<Integer> mDfsFrequencies = Collections.emptySet();
+
+    // Results per BSSID, least recently updated first
+    private final LinkedHashMap<String, ScanResult> mResults = new LinkedHashMap<>();
+    private long mNumUpdates;
+
+    MergedScanResultTable(Clock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * Apply the results of a scan.
+     *
+     * @param results Results of the scan, full or partial. Not modified afterwards.
+     */
+    public synchronized void update(ScanResult[] results) {
+        if (results == null) {
+            return;
+        }
+        for (ScanResult result : results) {
+            if (result.BSSID == null) {
+                continue;
+            }
+            ScanResult existing = mResults.remove(result.BSSID);
+            mResults.put(result.BSSID,
+                    existing != null && existing.timestamp > result.timestamp ? existing : result);
+        }
+        mNumUpdates++;
+        evict();
+    }
+
+    /**
+     * Set the frequencies of the DFS channels, used to classify the results in bands.
+     */
+    public synchronized void setDfsFrequencies(Set<Integer> dfsFrequencies) {
+        mDfsFrequencies = Collections.unmodifiableSet(new ArraySet<>(dfsFrequencies));
+    }
+
+    /**
+     * Returns the results newer than the given time, on the given band.
+     *
+     * @param timeMillis Time since boot in milliseconds.
+     * @param band Band of the results, one of WifiScanner.WIFI_BAND_* except
+     *             WIFI_BAND_UNSPECIFIED.
+     */
+    public synchronized List<ScanResult> getResultsNewerThan(long timeMillis, int band) {
+        evict();
+        List<ScanResult> results = new ArrayList<>();
+        for (ScanResult result : mResults.values()) {
+            if (result.timestamp / 1000 > timeMillis && isFrequencyInBand(result.frequency, band)) {
+                results.add(result);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Returns the results no older than the given age, on the given band.
+     *
+     * @param maxAgeMillis Maximum age of the results in milliseconds.
+     * @param band Band of the results, one of WifiScanner.WIFI_BAND_* except
+     *             WIFI_BAND_UNSPECIFIED.
+     */
+    public List<ScanResult> getRecentResults(long maxAgeMillis, int band) {
+        return getResultsNewerThan(mClock.getElapsedSinceBootMillis() - maxAgeMillis, band);
+    }
+
+    /**
+     * Returns all the results kept, i.e. no older than {@link #MAX_AGE_MS}, on the given band.
+     *
+     * @param band Band of the results, one of WifiScanner.WIFI_BAND_* except
+     *             WIFI_BAND_UNSPECIFIED.
+     */
+    public List<ScanResult> getResults(int band) {
+        return getResultsNewerThan(Long.MIN_VALUE, band);
+    }
+
+    /**
+     * Drop all the results, e.g. when scanning stops.
+     */
+    public synchronized void clear() {
+        mResults.clear();
+    }
+
+    /**
+     * Returns the number of results.
+     */
+    public synchronized int size() {
+        return mResults.size();
+    }
+
+    private void evict() {
+        long oldestTimeMillis = mClock.getElapsedSinceBootMillis() - MAX_AGE_MS;
+        int numOverMax = mResults.size() - MAX_SIZE;
+        Iterator<Map.Entry<String, ScanResult>> iter = mResults.entrySet().iterator();
+        while (iter.hasNext()) {
+            ScanResult result = iter.next().getValue();
+            if (numOverMax > 0 || result.timestamp / 1000 <= oldestTimeMillis) {
+                iter.remove();
+                numOverMax--;
+            }
+        }
+    }
+
+    /**
+     * Returns true if the frequency is on the given band, the DFS channels being those set with
+     * {@link #setDfsFrequencies(Set)}.
+     *
+     * @param band One of WifiScanner.WIFI_BAND_* except WIFI_BAND_UNSPECIFIED.
+     */
+    public synchronized boolean isFrequencyInBand(int frequency, int band) {
+        int frequencyBand;
+        if (ScanResult.is24GHz(frequency)) {
+            frequencyBand = WifiScanner.WIFI_BAND_24_GHZ;
+        } else if (mDfsFrequencies.contains(frequency)) {
+            frequencyBand = WifiScanner.WIFI_BAND_5_GHZ_DFS_ONLY;
+        } else if (ScanResult.is5GHz(frequency)) {
+            frequencyBand = WifiScanner.WIFI_BAND_5_GHZ;
+        } else {
+            return false;
+        }
+        return (band & frequencyBand) != 0;
+    }
+
+    /**
+     * Dump the number of results and updates.
+     */
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("MergedScanResultTable: results=" + mResults.size()
+                + " updates=" + mNumUpdates);
+    }
+}
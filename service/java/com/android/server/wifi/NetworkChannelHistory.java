@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Per-network history of the channels on which the APs of the saved networks were seen. Used to
+ * pick the channels of the partial scans of the connected network.
+ *
+ * Each channel of a network has a weight: every sighting adds 1, and the weight halves every
+ * {@link #WEIGHT_HALF_LIFE_MS}, so channels on which the network is seen often and recently are
+ * the most likely. Channels whose weight decayed below {@link #MIN_WEIGHT} are forgotten, and at
+ * most {@link #MAX_CHANNELS_PER_NETWORK} channels are kept per network.
+ *
+ * Unlike the scan detail caches the history is persisted (see
+ * {@link NetworkChannelHistoryStoreData}), so it survives reboots and wifi toggles. Times are
+ * wall clock times for the same reason.
+ *
+ * Not thread-safe: only used on the wifi state machine thread.
+ */
+public class NetworkChannelHistory {
+    /** Period over which the weight of a channel halves */
+    @VisibleForTesting
+    static final long WEIGHT_HALF_LIFE_MS = 7 * 24 * 60 * 60 * 1000L;
+    /** Weight below which a channel is forgotten: ~1 month after a single sighting */
+    @VisibleForTesting
+    static final double MIN_WEIGHT = 0.05;
+    /** Maximum number of channels kept per network */
+    @VisibleForTesting
+    static final int MAX_CHANNELS_PER_NETWORK = 16;
+    /**
+     * Sightings of a channel closer than this to the previous one are counted once, so that a
+     * scan counts once per channel however many APs of the network it finds there.
+     */
+    @VisibleForTesting
+    static final long SIGHTING_MERGE_WINDOW_MS = 10 * 1000L;
+
+    /**
+     * The channels of a network. Kept in parallel arrays: each network holds a handful of
+     * channels at most.
+     */
+    static class Channels {
+        final int[] frequencies = new int[MAX_CHANNELS_PER_NETWORK];
+        // weight as of the last sighting
+        final double[] weights = new double[MAX_CHANNELS_PER_NETWORK];
+        final long[] lastSeenTimesMs = new long[MAX_CHANNELS_PER_NETWORK];
+        int size;
+
+        private int indexOf(int frequency) {
+            for (int i = 0; i < size; i++) {
+                if (frequencies[i] == frequency) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        double getWeight(int index, long nowMs) {
+            long ageMs = nowMs - lastSeenTimesMs[index];
+            if (ageMs <= 0) {
+                // the wall clock may go backward
+                return weights[index];
+            }
+            return weights[index] * Math.pow(0.5, (double) ageMs / WEIGHT_HALF_LIFE_MS);
+        }
+
+        /**
+         * Add a channel, replacing the least likely channel if full.
+         */
+        void add(int frequency, double weight, long lastSeenTimeMs, long nowMs) {
+            int index = size;
+            if (size == MAX_CHANNELS_PER_NETWORK) {
+                index = 0;
+                for (int i = 1; i < size; i++) {
+                    if (getWeight(i, nowMs) < getWeight(index, nowMs)) {
+                        index = i;
+                    }
+                }
+            } else {
+                size++;
+            }
+            frequencies[index] = frequency;
+            weights[index] = weight;
+            lastSeenTimesMs[index] = lastSeenTimeMs;
+        }
+
+        /**
+         * Drop the channels whose weight decayed below {@link #MIN_WEIGHT}.
+         */
+        void prune(long nowMs) {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                if (getWeight(i, nowMs) >= MIN_WEIGHT) {
+                    frequencies[kept] = frequencies[i];
+                    weights[kept] = weights[i];
+                    lastSeenTimesMs[kept] = lastSeenTimesMs[i];
+                    kept++;
+                }
+            }
+            size = kept;
+        }
+    }
+
+    // Channels per network config key
+    private final Map<String, Channels> mNetworks = new HashMap<>();
+
+    /**
+     * Record that an AP of the network was seen on the channel.
+     *
+     * @param configKey config key of the network.
+     * @param frequency frequency of the channel in MHz.
+     * @param nowMs current wall clock time.
+     */
+    public void recordSighting(String configKey, int frequency, long nowMs) {
+        Channels channels = mNetworks.get(configKey);
+        if (channels == null) {
+            channels = new Channels();
+            mNetworks.put(configKey, channels);
+        }
+        int index = channels.indexOf(frequency);
+        if (index < 0) {
+            channels.add(frequency, 1.0, nowMs, nowMs);
+        } else if (nowMs - channels.lastSeenTimesMs[index] >= SIGHTING_MERGE_WINDOW_MS
+                || nowMs < channels.lastSeenTimesMs[index]) {
+            channels.weights[index] = channels.getWeight(index, nowMs) + 1.0;
+            channels.lastSeenTimesMs[index] = nowMs;
+        }
+    }
+
+    /**
+     * Returns the weight of the channel for the network, 0 if the network wasn't seen on it.
+     */
+    public double getWeight(String configKey, int frequency, long nowMs) {
+        Channels channels = mNetworks.get(configKey);
+        if (channels == null) {
+            return 0.0;
+        }
+        int index = channels.indexOf(frequency);
+        return index < 0 ? 0.0 : channels.getWeight(index, nowMs);
+    }
+
+    /**
+     * Returns the sum of the weights of the channels of the network: how often and how recently
+     * the network was seen at all. 0 if the network was never seen.
+     */
+    public double getTotalWeight(String configKey, long nowMs) {
+        Channels channels = mNetworks.get(configKey);
+        if (channels == null) {
+            return 0.0;
+        }
+        double totalWeight = 0.0;
+        for (int i = 0; i < channels.size; i++) {
+            totalWeight += channels.getWeight(i, nowMs);
+        }
+        return totalWeight;
+    }
+
+    /**
+     * Returns the frequencies of the channels on which the network was seen, most likely first.
+     * Empty if there is no history for the network.
+     */
+    public List<Integer> getChannelsByLikelihood(String configKey, long nowMs) {
+        List<Integer> frequencies = new ArrayList<>();
+        Channels channels = mNetworks.get(configKey);
+        if (channels == null) {
+            return frequencies;
+        }
+        channels.prune(nowMs);
+        // insertion sort by decreasing weight: a handful of channels at most
+        double[] weights = new double[channels.size];
+        for (int i = 0; i < channels.size; i++) {
+            double weight = channels.getWeight(i, nowMs);
+            int j = i;
+            while (j > 0 && weights[j - 1] < weight) {
+                weights[j] = weights[j - 1];
+                j--;
+            }
+            weights[j] = weight;
+            frequencies.add(j, channels.frequencies[i]);
+        }
+        return frequencies;
+    }
+
+    /**
+     * Forget the history of the network, e.g. when it is removed.
+     */
+    public void removeNetwork(String configKey) {
+        mNetworks.remove(configKey);
+    }
+
+    /**
+     * Forget the history of all the networks.
+     */
+    public void clear() {
+        mNetworks.clear();
+    }
+
+    /**
+     * Returns the config keys of the networks with a history.
+     */
+    Set<String> getConfigKeys() {
+        return mNetworks.keySet();
+    }
+
+    /**
+     * Returns the channels of the network, null if none. Used for persisting the history.
+     */
+    Channels getChannels(String configKey) {
+        return mNetworks.get(configKey);
+    }
+
+    /**
+     * Restore a channel of a network from the store. Duplicate channels and channels beyond
+     * {@link #MAX_CHANNELS_PER_NETWORK} are ignored.
+     */
+    void restoreChannel(String configKey, int frequency, double weight, long lastSeenTimeMs) {
+        Channels channels = mNetworks.get(configKey);
+        if (channels == null) {
+            channels = new Channels();
+            mNetworks.put(configKey, channels);
+        }
+        if (channels.size == MAX_CHANNELS_PER_NETWORK || channels.indexOf(frequency) >= 0) {
+            return;
+        }
+        channels.add(frequency, weight, lastSeenTimeMs, lastSeenTimeMs);
+    }
+
+    /**
+     * Dump the number of networks and channels in the history.
+     */
+    public void dump(PrintWriter pw) {
+        int numChannels = 0;
+        for (Channels channels : mNetworks.values()) {
+            numChannels += channels.size;
+        }
+        pw.println("NetworkChannelHistory: networks=" + mNetworks.size()
+                + " channels=" + numChannels);
+    }
+}
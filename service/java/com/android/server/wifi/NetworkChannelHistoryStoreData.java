@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import com.android.server.wifi.util.XmlUtil;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * This class performs serialization and parsing of XML data block that contain the per-network
+ * channel history {@link NetworkChannelHistory} (XML block data inside <NetworkChannelHistory>
+ * tag). The history is stored in the user store only.
+ */
+public class NetworkChannelHistoryStoreData implements WifiConfigStore.StoreData {
+    private static final String XML_TAG_SECTION_HEADER_NETWORK_CHANNEL_HISTORY =
+            "NetworkChannelHistory";
+    private static final String XML_TAG_SECTION_HEADER_NETWORK = "Network";
+    private static final String XML_TAG_CONFIG_KEY = "ConfigKey";
+    private static final String XML_TAG_FREQUENCIES = "Frequencies";
+    private static final String XML_TAG_WEIGHTS = "Weights";
+    private static final String XML_TAG_LAST_SEEN_TIMES = "LastSeenTimes";
+
+    private NetworkChannelHistory mHistory;
+
+    NetworkChannelHistoryStoreData() {}
+
+    @Override
+    public void serializeData(XmlSerializer out, boolean shared)
+            throws XmlPullParserException, IOException {
+        if (shared) {
+            throw new XmlPullParserException("Share data not supported");
+        }
+        for (String configKey : mHistory.getConfigKeys()) {
+            NetworkChannelHistory.Channels channels = mHistory.getChannels(configKey);
+            if (channels.size == 0) {
+                continue;
+            }
+            XmlUtil.writeNextSectionStart(out, XML_TAG_SECTION_HEADER_NETWORK);
+            XmlUtil.writeNextValue(out, XML_TAG_CONFIG_KEY, configKey);
+            XmlUtil.writeNextValue(out, XML_TAG_FREQUENCIES,
+                    Arrays.copyOf(channels.frequencies, channels.size));
+            XmlUtil.writeNextValue(out, XML_TAG_WEIGHTS,
+                    Arrays.copyOf(channels.weights, channels.size));
+            XmlUtil.writeNextValue(out, XML_TAG_LAST_SEEN_TIMES,
+                    Arrays.copyOf(channels.lastSeenTimesMs, channels.size));
+            XmlUtil.writeNextSectionEnd(out, XML_TAG_SECTION_HEADER_NETWORK);
+        }
+    }
+
+    @Override
+    public void deserializeData(XmlPullParser in, int outerTagDepth, boolean shared)
+            throws XmlPullParserException, IOException {
+        // Ignore empty reads.
+        if (in == null) {
+            return;
+        }
+        if (shared) {
+            throw new XmlPullParserException("Share data not supported");
+        }
+
+        while (XmlUtil.gotoNextSectionWithNameOrEnd(
+                in, XML_TAG_SECTION_HEADER_NETWORK, outerTagDepth)) {
+            parseNetwork(in, outerTagDepth + 1);
+        }
+    }
+
+    /**
+     * Parses the channels of a network and restores them into the history.
+     *
+     * @param in XML input stream
+     * @param outerTagDepth XML tag depth of the containing section
+     */
+    private void parseNetwork(XmlPullParser in, int outerTagDepth)
+            throws XmlPullParserException, IOException {
+        String configKey = null;
+        int[] frequencies = null;
+        double[] weights = null;
+        long[] lastSeenTimes = null;
+
+        while (!XmlUtil.isNextSectionEnd(in, outerTagDepth)) {
+            String[] valueName = new String[1];
+            Object value = XmlUtil.readCurrentValue(in, valueName);
+            if (valueName[0] == null) {
+                throw new XmlPullParserException("Missing value name");
+            }
+            switch (valueName[0]) {
+                case XML_TAG_CONFIG_KEY:
+                    configKey = (String) value;
+                    break;
+                case XML_TAG_FREQUENCIES:
+                    frequencies = (int[]) value;
+                    break;
+                case XML_TAG_WEIGHTS:
+                    weights = (double[]) value;
+                    break;
+                case XML_TAG_LAST_SEEN_TIMES:
+                    lastSeenTimes = (long[]) value;
+                    break;
+                default:
+                    throw new XmlPullParserException("Unknown tag under "
+                            + XML_TAG_SECTION_HEADER_NETWORK + ": " + valueName[0]);
+            }
+        }
+        if (configKey == null || frequencies == null || weights == null
+                || lastSeenTimes == null || frequencies.length != weights.length
+                || frequencies.length != lastSeenTimes.length) {
+            throw new XmlPullParserException("Incomplete channel history of a network");
+        }
+        for (int i = 0; i < frequencies.length; i++) {
+            mHistory.restoreChannel(configKey, frequencies[i], weights[i], lastSeenTimes[i]);
+        }
+    }
+
+    /**
+     * Set the history serialized to and restored from the store. Must be set before the store
+     * data is read or written.
+     */
+    public void setHistory(NetworkChannelHistory history) {
+        mHistory = history;
+    }
+
+    @Override
+    public void resetData(boolean shared) {
+        if (!shared) {
+            mHistory.clear();
+        }
+    }
+
+    @Override
+    public String getName() {
+        return XML_TAG_SECTION_HEADER_NETWORK_CHANNEL_HISTORY;
+    }
+
+    @Override
+    public boolean supportShareData() {
+        return false;
+    }
+}
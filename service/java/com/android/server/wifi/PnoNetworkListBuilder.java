@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.net.wifi.WifiConfiguration;
+import android.net.wifi.WifiScanner;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds the list of networks sent to the firmware for PNO scans.
+ *
+ * The firmware only matches a limited number of networks, and silently ignores the ones beyond
+ * its limit. The networks are ranked by how likely they are to be found and connected to:
+ * - how recently the device connected to the network, and how often,
+ * - how often and how recently the network was seen, from its {@link NetworkChannelHistory},
+ * - whether it was seen in the last network selection,
+ * - whether it is secure: open networks are often one-off hotspots.
+ * Networks sharing an SSID take a single entry, since the firmware matches SSIDs only. Networks
+ * which don't fit the list are reported as dropped.
+ */
+public class PnoNetworkListBuilder {
+    /** Weight of a connection to the network that just happened */
+    @VisibleForTesting
+    static final double RECENCY_WEIGHT = 4.0;
+    /** Period over which the weight of the last connection halves */
+    @VisibleForTesting
+    static final long RECENCY_HALF_LIFE_MS = 7 * 24 * 60 * 60 * 1000L;
+    /** Weight of log2(1 + number of associations) */
+    @VisibleForTesting
+    static final double ASSOCIATION_WEIGHT = 1.0;
+    /** Weight of a network seen at least {@link #CHANNEL_HISTORY_SATURATION} times lately */
+    @VisibleForTesting
+    static final double CHANNEL_HISTORY_WEIGHT = 2.0;
+    @VisibleForTesting
+    static final double CHANNEL_HISTORY_SATURATION = 8.0;
+    @VisibleForTesting
+    static final double SEEN_IN_LAST_SELECTION_BONUS = 1.0;
+    @VisibleForTesting
+    static final double SECURE_BONUS = 0.5;
+
+    /**
+     * The PNO network list and the networks which didn't fit in it.
+     */
+    public static class Result {
+        public final List<WifiScanner.PnoSettings.PnoNetwork> pnoNetworks;
+        public final List<String> droppedConfigKeys;
+
+        Result(List<WifiScanner.PnoSettings.PnoNetwork> pnoNetworks,
+                List<String> droppedConfigKeys) {
+            this.pnoNetworks = pnoNetworks;
+            this.droppedConfigKeys = droppedConfigKeys;
+        }
+    }
+
+    private final NetworkChannelHistory mChannelHistory;
+
+    PnoNetworkListBuilder(NetworkChannelHistory channelHistory) {
+        mChannelHistory = channelHistory;
+    }
+
+    /**
+     * Build the PNO network list, highest ranked networks first.
+     *
+     * @param networks the networks eligible for PNO. Their order breaks ties between networks
+     *                 ranked the same.
+     * @param maxNetworks maximum number of entries of the list.
+     * @param nowMs current wall clock time.
+     */
+    public Result build(List<WifiConfiguration> networks, int maxNetworks, long nowMs) {
+        int numNetworks = networks.size();
+        double[] scores = new double[numNetworks];
+        Integer[] order = new Integer[numNetworks];
+        for (int i = 0; i < numNetworks; i++) {
+            scores[i] = scoreNetwork(networks.get(i), nowMs);
+            order[i] = i;
+        }
+        // stable: ties keep the order of |networks|
+        Arrays.sort(order, (a, b) -> Double.compare(scores[b], scores[a]));
+
+        Map<String, WifiScanner.PnoSettings.PnoNetwork> pnoNetworksBySsid = new LinkedHashMap<>();
+        List<String> droppedConfigKeys = new ArrayList<>();
+        for (int index : order) {
+            WifiConfiguration config = networks.get(index);
+            WifiScanner.PnoSettings.PnoNetwork pnoNetwork = pnoNetworksBySsid.get(config.SSID);
+            if (pnoNetwork != null) {
+                // Same SSID as a higher ranked network: match either.
+                WifiScanner.PnoSettings.PnoNetwork other =
+                        WifiConfigurationUtil.createPnoNetwork(config);
+                pnoNetwork.flags |= other.flags;
+                pnoNetwork.authBitField |= other.authBitField;
+            } else if (pnoNetworksBySsid.size() < maxNetworks) {
+                pnoNetworksBySsid.put(config.SSID, WifiConfigurationUtil.createPnoNetwork(config));
+            } else {
+                droppedConfigKeys.add(config.configKey());
+            }
+        }
+        return new Result(new ArrayList<>(pnoNetworksBySsid.values()), droppedConfigKeys);
+    }
+
+    /**
+     * Returns the rank of the network, the higher the better.
+     */
+    @VisibleForTesting
+    double scoreNetwork(WifiConfiguration config, long nowMs) {
+        double score = ASSOCIATION_WEIGHT * Math.log1p(config.numAssociation) / Math.log(2);
+        if (config.lastConnected > 0) {
+            long ageMs = Math.max(0, nowMs - config.lastConnected);
+            score += RECENCY_WEIGHT * Math.pow(0.5, (double) ageMs / RECENCY_HALF_LIFE_MS);
+        }
+        score += CHANNEL_HISTORY_WEIGHT * Math.min(1.0,
+                mChannelHistory.getTotalWeight(config.configKey(), nowMs)
+                        / CHANNEL_HISTORY_SATURATION);
+        if (config.getNetworkSelectionStatus().getSeenInLastQualifiedNetworkSelection()) {
+            score += SEEN_IN_LAST_SELECTION_BONUS;
+        }
+        if (!WifiConfigurationUtil.isConfigForOpenNetwork(config)) {
+            score += SECURE_BONUS;
+        }
+        return score;
+    }
+}
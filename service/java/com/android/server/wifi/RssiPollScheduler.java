@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.net.wifi.WifiInfo;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+
+/**
+ * Chooses the delay until the next RSSI poll of the connected network.
+ *
+ * Polling runs at the base (configured) interval whenever the link needs watching: the RSSI is
+ * below the sufficient level of {@link ScoringParams} - i.e. nearing the roaming and exit
+ * thresholds - there is traffic, or the RSSI fluctuates. Once the link has been stable and idle
+ * for {@link #STABLE_POLLS_PER_TIER} polls the interval is doubled, up to {@link #MAX_TIER}
+ * times. Any of the above drops it back to the base interval at once, as does a firmware RSSI
+ * threshold breach.
+ *
+ * Also counts the polls and the firmware RSSI wakeups, reported per hour in the dump.
+ */
+public class RssiPollScheduler {
+    /** Maximum tier: the interval is at most the base interval * 2^MAX_TIER */
+    @VisibleForTesting
+    static final int MAX_TIER = 2;
+    /** Number of consecutive stable & idle polls before moving to the next (slower) tier */
+    @VisibleForTesting
+    static final int STABLE_POLLS_PER_TIER = 4;
+    /** Maximum spread of the recent RSSI samples for the link to be considered stable */
+    @VisibleForTesting
+    static final int STABLE_RSSI_SPREAD_DB = 3;
+    /** Packet rate (tx + rx) above which the link is considered in use */
+    @VisibleForTesting
+    static final double ACTIVE_TRAFFIC_PACKETS_PER_SECOND = 8.0;
+
+    private static final int RSSI_HISTORY_SIZE = 4;
+    private static final double MILLIS_PER_HOUR = 3600.0 * 1000.0;
+
+    private final ScoringParams mScoringParams;
+    private final Clock mClock;
+
+    // Circular buffer of the most recent RSSI samples
+    private final int[] mRssiHistory = new int[RSSI_HISTORY_SIZE];
+    private int mRssiHistoryCount;
+    private int mRssiHistoryNext;
+    private int mStablePolls;
+    private int mTier;
+
+    private final long mStatsStartTimeMillis;
+    private long mNumPolls;
+    private long mNumFirmwareRssiWakeups;
+    private final long[] mNumPollsPerTier = new long[MAX_TIER + 1];
+
+    RssiPollScheduler(ScoringParams scoringParams, Clock clock) {
+        mScoringParams = scoringParams;
+        mClock = clock;
+        mStatsStartTimeMillis = clock.getElapsedSinceBootMillis();
+    }
+
+    /**
+     * Restart polling at the base interval and forget the RSSI history. Called whenever polling
+     * (re)starts, e.g. on connection or when the screen turns on.
+     */
+    public void reset() {
+        mRssiHistoryCount = 0;
+        mRssiHistoryNext = 0;
+        mStablePolls = 0;
+        mTier = 0;
+    }
+
+    /**
+     * Record the results of a poll and return the delay until the next poll.
+     *
+     * @param baseIntervalMillis The configured poll interval.
+     * @param rssi The RSSI returned by the poll, {@link WifiInfo#INVALID_RSSI} if unknown.
+     * @param frequency The frequency of the connection in MHz.
+     * @param txPacketsPerSecond Rate of transmitted packets.
+     * @param rxPacketsPerSecond Rate of received packets.
+     * @return the delay until the next poll in milliseconds.
+     */
+    public int onPoll(int baseIntervalMillis, int rssi, int frequency,
+            double txPacketsPerSecond, double rxPacketsPerSecond) {
+        mNumPolls++;
+        mNumPollsPerTier[mTier]++;
+
+        boolean needsWatching = rssi == WifiInfo.INVALID_RSSI
+                || rssi < mScoringParams.getSufficientRssi(frequency)
+                || txPacketsPerSecond + rxPacketsPerSecond > ACTIVE_TRAFFIC_PACKETS_PER_SECOND;
+        if (rssi != WifiInfo.INVALID_RSSI) {
+            addRssiSample(rssi);
+        }
+        if (needsWatching || !isRssiStable()) {
+            mStablePolls = 0;
+            mTier = 0;
+        } else if (++mStablePolls >= STABLE_POLLS_PER_TIER && mTier < MAX_TIER) {
+            mStablePolls = 0;
+            mTier++;
+        }
+        return baseIntervalMillis << mTier;
+    }
+
+    /**
+     * Record a firmware RSSI threshold breach: polling returns to the base interval.
+     *
+     * @return true if polling was slowed down, i.e. the caller should poll right away rather
+     * than wait for the next (slow) poll.
+     */
+    public boolean onFirmwareRssiEvent() {
+        mNumFirmwareRssiWakeups++;
+        boolean wasSlowedDown = mTier > 0;
+        reset();
+        return wasSlowedDown;
+    }
+
+    /**
+     * Returns the current tier: the poll interval is the base interval * 2^tier.
+     */
+    public int getTier() {
+        return mTier;
+    }
+
+    private void addRssiSample(int rssi) {
+        mRssiHistory[mRssiHistoryNext] = rssi;
+        mRssiHistoryNext = (mRssiHistoryNext + 1) % RSSI_HISTORY_SIZE;
+        if (mRssiHistoryCount < RSSI_HISTORY_SIZE) {
+            mRssiHistoryCount++;
+        }
+    }
+
+    private boolean isRssiStable() {
+        if (mRssiHistoryCount < RSSI_HISTORY_SIZE) {
+            return false;
+        }
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (int rssi : mRssiHistory) {
+            min = Math.min(min, rssi);
+            max = Math.max(max, rssi);
+        }
+        return max - min <= STABLE_RSSI_SPREAD_DB;
+    }
+
+    /**
+     * Dump the poll statistics.
+     */
+    public void dump(PrintWriter pw) {
+        double hours = (mClock.getElapsedSinceBootMillis() - mStatsStartTimeMillis)
+                / MILLIS_PER_HOUR;
+        pw.println("RssiPollScheduler: tier=" + mTier);
+        pw.println("  polls=" + mNumPolls + " firmwareRssiWakeups=" + mNumFirmwareRssiWakeups);
+        if (hours > 0) {
+            pw.println(String.format(Locale.US,
+                    "  polls/hour=%.1f firmwareRssiWakeups/hour=%.1f",
+                    mNumPolls / hours, mNumFirmwareRssiWakeups / hours));
+        }
+        for (int tier = 0; tier <= MAX_TIER; tier++) {
+            pw.println("  polls at tier " + tier + ": " + mNumPollsPerTier[tier]);
+        }
+    }
+}
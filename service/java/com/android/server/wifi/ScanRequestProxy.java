@@ -25,6 +25,7 @@ import android.net.wifi.ScanResult;
 import android.net.wifi.WifiManager;
 import android.net.wifi.WifiScanner;
 import android.os.Binder;
+import android.os.RemoteException;
 import android.os.UserHandle;
 import android.os.WorkSource;
 import android.util.ArrayMap;
@@ -32,10 +33,12 @@ import android.util.Log;
 import android.util.Pair;
 
 import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.app.IBatteryStats;
 import com.android.server.wifi.util.WifiPermissionsUtil;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -59,8 +62,14 @@ import javax.annotation.concurrent.NotThreadSafe;
  *   {@link #SCAN_REQUEST_THROTTLE_MAX_IN_TIME_WINDOW_FG_APPS} scan every
  *   {@link #SCAN_REQUEST_THROTTLE_TIME_WINDOW_FG_APPS_MS}.
  *  b) Background apps combined can request 1 scan every
- *   {@link #SCAN_REQUEST_THROTTLE_INTERVAL_BG_APPS_MS}.
+ *   {@link #SCAN_REQUEST_THROTTLE_INTERVAL_BG_APPS_MS} (token bucket of a single request).
+ * e) Coalesce the scan requests which are not throttled: a request joins the scan in flight (if
+ * any, the scan being then also blamed on the joining app) or, for non-setting apps, is served
+ * the results of a scan completed less than {@link #SCAN_RESULTS_REUSE_WINDOW_MS} ago instead of
+ * starting a new scan.
  * Note: This class is not thread-safe. It needs to be invoked from WifiStateMachine thread only.
+ * The exception is {@link #getScanResults()} which reads an immutable snapshot of the scan
+ * results and can be invoked from any thread.
  */
 @NotThreadSafe
 public class ScanRequestProxy {
@@ -72,6 +81,11 @@ public class ScanRequestProxy {
     public static final int SCAN_REQUEST_THROTTLE_MAX_IN_TIME_WINDOW_FG_APPS = 4;
     @VisibleForTesting
     public static final int SCAN_REQUEST_THROTTLE_INTERVAL_BG_APPS_MS = 30 * 60 * 1000;
+    // A scan in flight for longer than this is assumed lost: new requests don't join it.
+    @VisibleForTesting
+    public static final int SCAN_REQUEST_COALESCE_MAX_SCAN_AGE_MS = 20 * 1000;
+    @VisibleForTesting
+    public static final int SCAN_RESULTS_REUSE_WINDOW_MS = 5 * 1000;
 
     private final Context mContext;
     private final AppOpsManager mAppOps;
@@ -80,6 +94,7 @@ public class ScanRequestProxy {
     private final WifiConfigManager mWifiConfigManager;
     private final WifiPermissionsUtil mWifiPermissionsUtil;
     private final WifiMetrics mWifiMetrics;
+    private final IBatteryStats mBatteryStats;
     private final Clock mClock;
     private WifiScanner mWifiScanner;
 
@@ -89,17 +104,102 @@ public class ScanRequestProxy {
     private boolean mScanningForHiddenNetworksEnabled = false;
     // Flag to indicate that we're waiting for scan results from an existing request.
     private boolean mIsScanProcessingComplete = true;
-    // Timestamps for the last scan requested by any background app.
-    private long mLastScanTimestampForBgApps = 0;
+    // Scan request budget shared by all the background apps.
+    private TokenBucket mScanRequestTokenBucketForBgApps = null;
     // Timestamps for the list of last few scan requests by each foreground app.
     // Keys in the map = Pair<Uid, PackageName> of the app.
     // Values in the map = List of the last few scan request timestamps from the app.
     private final ArrayMap<Pair<Integer, String>, LinkedList<Long>> mLastScanTimestampsForFgApps =
             new ArrayMap();
-    // Scan results cached from the last full single scan request.
-    private final List<ScanResult> mLastScanResults = new ArrayList<>();
+    // The most recently started scan, while it is in flight.
+    private ScanRequestProxyScanListener mScanInFlight = null;
+    // Time at which the last scan results were received, -1 if none since the last clear.
+    private long mLastScanResultsTimeMillis = -1;
+    // Scan results cached from the last full single scan request. Replaced (never modified) on
+    // each update so that it can be read from binder threads without synchronization.
+    private volatile List<ScanResult> mLastScanResults = Collections.emptyList();
+
+    /**
+     * Token bucket: allows a burst of |capacity| requests, the budget being replenished by one
+     * request every |refillIntervalMillis|. The budget is tracked in milliseconds of refill time.
+     */
+    private static class TokenBucket {
+        private final long mCapacityMillis;
+        private final long mRefillIntervalMillis;
+        private long mAvailableMillis;
+        private long mLastUpdateMillis;
+
+        TokenBucket(int capacity, long refillIntervalMillis, long currentTimeMillis) {
+            mCapacityMillis = capacity * refillIntervalMillis;
+            mRefillIntervalMillis = refillIntervalMillis;
+            mAvailableMillis = mCapacityMillis;
+            mLastUpdateMillis = currentTimeMillis;
+        }
+
+        /**
+         * Take a token from the bucket if one is available.
+         * @return true if a token was taken, false if the bucket is empty.
+         */
+        boolean tryAcquire(long currentTimeMillis) {
+            mAvailableMillis = Math.min(mCapacityMillis,
+                    mAvailableMillis + (currentTimeMillis - mLastUpdateMillis));
+            mLastUpdateMillis = currentTimeMillis;
+            if (mAvailableMillis < mRefillIntervalMillis) {
+                return false;
+            }
+            mAvailableMillis -= mRefillIntervalMillis;
+            return true;
+        }
+    }
+
     // Common scan listener for scan requests.
     private class ScanRequestProxyScanListener implements WifiScanner.ScanListener {
+        private final long mStartTimeMillis;
+        private final boolean mIsHighAccuracy;
+        // Uid which started the scan, blamed by the scanner.
+        private final int mUid;
+        // Uids of the requests which joined the scan, blamed here until the scan completes.
+        private final WorkSource mJoinedWorkSource = new WorkSource();
+
+        ScanRequestProxyScanListener(long startTimeMillis, boolean isHighAccuracy, int uid) {
+            mStartTimeMillis = startTimeMillis;
+            mIsHighAccuracy = isHighAccuracy;
+            mUid = uid;
+        }
+
+        /**
+         * Blame the scan on the uid of a request which joined it (if not already blamed).
+         */
+        private void join(int uid) {
+            if (uid == mUid) {
+                return;
+            }
+            WorkSource workSource = new WorkSource(uid);
+            if (!mJoinedWorkSource.add(workSource)) {
+                return;
+            }
+            try {
+                mBatteryStats.noteWifiScanStartedFromSource(workSource);
+            } catch (RemoteException e) {
+                Log.e(TAG, "Failed to note scan start: " + e);
+            }
+        }
+
+        private void clearScanInFlight() {
+            if (mScanInFlight == this) {
+                mScanInFlight = null;
+            }
+            if (mJoinedWorkSource.size() == 0) {
+                return;
+            }
+            try {
+                mBatteryStats.noteWifiScanStoppedFromSource(new WorkSource(mJoinedWorkSource));
+            } catch (RemoteException e) {
+                Log.e(TAG, "Failed to note scan stop: " + e);
+            }
+            mJoinedWorkSource.clear();
+        }
+
         @Override
         public void onSuccess() {
             // Scan request succeeded, wait for results to report to external clients.
@@ -111,6 +211,7 @@ public class ScanRequestProxy {
         @Override
         public void onFailure(int reason, String description) {
             Log.e(TAG, "Scan failure received. reason: " + reason + ",description: " + description);
+            clearScanInFlight();
             sendScanResultBroadcastIfScanProcessingNotComplete(false);
         }
 
@@ -119,6 +220,7 @@ public class ScanRequestProxy {
             if (mVerboseLoggingEnabled) {
                 Log.d(TAG, "Scan results received");
             }
+            clearScanInFlight();
             // For single scans, the array size should always be 1.
             if (scanDatas.length != 1) {
                 Log.wtf(TAG, "Found more than 1 batch of scan results, Failing...");
@@ -131,8 +233,10 @@ public class ScanRequestProxy {
                 Log.d(TAG, "Received " + scanResults.length + " scan results");
             }
             // Store the last scan results & send out the scan completion broadcast.
-            mLastScanResults.clear();
-            mLastScanResults.addAll(Arrays.asList(scanResults));
+            publishScanResults(new ArrayList<>(Arrays.asList(scanResults)));
+            mLastScanResultsTimeMillis = mClock.getElapsedSinceBootMillis();
+            // Kept by the soft AP channel selection past the clearing of the scan results.
+            mWifiInjector.getSoftApChannelSelector().updateScanResults(mLastScanResults);
             sendScanResultBroadcastIfScanProcessingNotComplete(true);
         }
 
@@ -149,7 +253,8 @@ public class ScanRequestProxy {
 
     ScanRequestProxy(Context context, AppOpsManager appOpsManager, ActivityManager activityManager,
                      WifiInjector wifiInjector, WifiConfigManager configManager,
-                     WifiPermissionsUtil wifiPermissionUtil, WifiMetrics wifiMetrics, Clock clock) {
+                     WifiPermissionsUtil wifiPermissionUtil, WifiMetrics wifiMetrics,
+                     IBatteryStats batteryStats, Clock clock) {
         mContext = context;
         mAppOps = appOpsManager;
         mActivityManager = activityManager;
@@ -157,6 +262,7 @@ public class ScanRequestProxy {
         mWifiConfigManager = configManager;
         mWifiPermissionsUtil = wifiPermissionUtil;
         mWifiMetrics = wifiMetrics;
+        mBatteryStats = batteryStats;
         mClock = clock;
     }
 
@@ -222,12 +328,19 @@ public class ScanRequestProxy {
      * Helper method to send the scan request failure broadcast to specified package.
      */
     private void sendScanResultFailureBroadcastToPackage(String packageName) {
+        sendScanResultBroadcastToPackage(packageName, false);
+    }
+
+    /**
+     * Helper method to send the scan request status broadcast to specified package.
+     */
+    private void sendScanResultBroadcastToPackage(String packageName, boolean scanSucceeded) {
         // clear calling identity to send broadcast
         long callingIdentity = Binder.clearCallingIdentity();
         try {
             Intent intent = new Intent(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION);
             intent.addFlags(Intent.FLAG_RECEIVER_REGISTERED_ONLY_BEFORE_BOOT);
-            intent.putExtra(WifiManager.EXTRA_RESULTS_UPDATED, false);
+            intent.putExtra(WifiManager.EXTRA_RESULTS_UPDATED, scanSucceeded);
             intent.setPackage(packageName);
             mContext.sendBroadcastAsUser(intent, UserHandle.ALL);
         } finally {
@@ -288,15 +401,12 @@ public class ScanRequestProxy {
      * Checks if the scan request from a background app needs to be throttled.
      */
     private boolean shouldScanRequestBeThrottledForBackgroundApp() {
-        long lastScanMs = mLastScanTimestampForBgApps;
-        long elapsedRealtime = mClock.getElapsedSinceBootMillis();
-        if (lastScanMs != 0
-                && (elapsedRealtime - lastScanMs) < SCAN_REQUEST_THROTTLE_INTERVAL_BG_APPS_MS) {
-            return true;
+        long currentTimeMillis = mClock.getElapsedSinceBootMillis();
+        if (mScanRequestTokenBucketForBgApps == null) {
+            mScanRequestTokenBucketForBgApps = new TokenBucket(1,
+                    SCAN_REQUEST_THROTTLE_INTERVAL_BG_APPS_MS, currentTimeMillis);
         }
-        // Proceed with the scan request and record the time.
-        mLastScanTimestampForBgApps = elapsedRealtime;
-        return false;
+        return !mScanRequestTokenBucketForBgApps.tryAcquire(currentTimeMillis);
     }
 
     /**
@@ -346,9 +456,31 @@ public class ScanRequestProxy {
         return isThrottled;
     }
 
+    /**
+     * Checks if the scan request can join the scan in flight: the scan is not assumed lost and is
+     * at least as accurate as the request.
+     */
+    private boolean canJoinScanInFlight(boolean isHighAccuracy, long currentTimeMillis) {
+        return mScanInFlight != null
+                && (currentTimeMillis - mScanInFlight.mStartTimeMillis)
+                        < SCAN_REQUEST_COALESCE_MAX_SCAN_AGE_MS
+                && (mScanInFlight.mIsHighAccuracy || !isHighAccuracy);
+    }
+
+    /**
+     * Checks if the last scan results are recent enough to serve a scan request.
+     */
+    private boolean hasRecentScanResults(long currentTimeMillis) {
+        return mLastScanResultsTimeMillis >= 0
+                && (currentTimeMillis - mLastScanResultsTimeMillis) < SCAN_RESULTS_REUSE_WINDOW_MS;
+    }
+
     /**
      * Initiate a wifi scan.
      *
+     * A request which isn't throttled joins the scan in flight (if compatible) or, for non-setting
+     * apps, is served the results of a just completed scan, instead of starting a new scan.
+     *
      * @param callingUid The uid initiating the wifi scan. Blame will be given to this uid.
      * @return true if the scan request was placed or a scan is already ongoing, false otherwise.
      */
@@ -368,6 +500,25 @@ public class ScanRequestProxy {
             sendScanResultFailureBroadcastToPackage(packageName);
             return false;
         }
+        long currentTimeMillis = mClock.getElapsedSinceBootMillis();
+        if (canJoinScanInFlight(fromSettingsOrSetupWizard, currentTimeMillis)) {
+            if (mVerboseLoggingEnabled) {
+                Log.v(TAG, "Scan request from " + packageName + " joined the scan in flight");
+            }
+            mWifiMetrics.incrementExternalAppOneshotScanRequestsCoalescedCount();
+            mScanInFlight.join(callingUid);
+            // results of the scan in flight are broadcast even if an older scan already reported
+            mIsScanProcessingComplete = false;
+            return true;
+        }
+        if (!fromSettingsOrSetupWizard && hasRecentScanResults(currentTimeMillis)) {
+            if (mVerboseLoggingEnabled) {
+                Log.v(TAG, "Scan request from " + packageName + " served from recent results");
+            }
+            mWifiMetrics.incrementExternalAppOneshotScanRequestsServedFromRecentScanCount();
+            sendScanResultBroadcastToPackage(packageName, true);
+            return true;
+        }
         // Create a worksource using the caller's UID.
         WorkSource workSource = new WorkSource(callingUid);
 
@@ -384,19 +535,29 @@ public class ScanRequestProxy {
         if (mScanningForHiddenNetworksEnabled) {
             // retrieve the list of hidden network SSIDs to scan for, if enabled.
             List<WifiScanner.ScanSettings.HiddenNetwork> hiddenNetworkList =
-                    mWifiConfigManager.retrieveHiddenNetworkList();
+                    mWifiConfigManager.planHiddenNetworksForScan();
             settings.hiddenNetworks = hiddenNetworkList.toArray(
                     new WifiScanner.ScanSettings.HiddenNetwork[hiddenNetworkList.size()]);
         }
-        mWifiScanner.startScan(settings, new ScanRequestProxyScanListener(), workSource);
+        mScanInFlight = new ScanRequestProxyScanListener(
+                currentTimeMillis, fromSettingsOrSetupWizard, callingUid);
+        mWifiScanner.startScan(settings, mScanInFlight, workSource);
         mIsScanProcessingComplete = false;
         return true;
     }
 
+    /**
+     * Replace the cached scan results with a new snapshot.
+     */
+    private void publishScanResults(List<ScanResult> scanResults) {
+        mLastScanResults = Collections.unmodifiableList(scanResults);
+    }
+
     /**
      * Return the results of the most recent access point scan, in the form of
      * a list of {@link ScanResult} objects.
-     * @return the list of results
+     * Note: Can be invoked from any thread.
+     * @return the (unmodifiable) list of results
      */
     public List<ScanResult> getScanResults() {
         return mLastScanResults;
@@ -406,8 +567,10 @@ public class ScanRequestProxy {
      * Clear the stored scan results.
      */
     public void clearScanResults() {
-        mLastScanResults.clear();
-        mLastScanTimestampForBgApps = 0;
+        publishScanResults(Collections.emptyList());
+        mLastScanResultsTimeMillis = -1;
+        mScanInFlight = null;
+        mScanRequestTokenBucketForBgApps = null;
         mLastScanTimestampsForFgApps.clear();
     }
 
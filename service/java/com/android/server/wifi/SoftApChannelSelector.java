@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.net.wifi.ScanResult;
+import android.net.wifi.ScanResult.InformationElement;
+import android.net.wifi.WifiConfiguration;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.server.wifi.util.ApConfigUtil;
+import com.android.server.wifi.util.InformationElementUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Automatic channel selection (ACS) for the soft AP, based on the most recent scan results.
+ *
+ * Each candidate channel is scored by the load the scanned BSSs put on it: every BSS overlapping
+ * the (20 MHz) candidate channel adds the fraction of the channel it overlaps - which accounts
+ * for the adjacent 2.4 GHz channels and the wide 5 GHz BSSs - weighted by its RSSI. The highest
+ * channel utilization advertised in the BSS Load IE of an overlapping BSS is added on top. The
+ * least loaded channel is chosen, at random between equally loaded channels.
+ *
+ * The scan results are kept when client mode is stopped, since the soft AP is typically started
+ * right after that (e.g. tethering). No channel is chosen if the results are older than
+ * {@link #MAX_SCAN_RESULTS_AGE_MS}: the caller then falls back to a random channel.
+ *
+ * Only used on the wifi state machine thread.
+ */
+public class SoftApChannelSelector {
+    private static final String TAG = "SoftApChannelSelector";
+
+    /** Scan results older than this are not used to select a channel */
+    @VisibleForTesting
+    static final long MAX_SCAN_RESULTS_AGE_MS = 10 * 60 * 1000;
+    /** RSSI at and above which a BSS counts fully */
+    @VisibleForTesting
+    static final int FULL_WEIGHT_RSSI = -50;
+    /** RSSI at and below which a BSS doesn't count */
+    @VisibleForTesting
+    static final int ZERO_WEIGHT_RSSI = -100;
+    /** Weight of a fully utilized channel, compared to a strong co-channel BSS counting 1 */
+    @VisibleForTesting
+    static final double CHANNEL_UTILIZATION_WEIGHT = 4.0;
+
+    private static final int CHANNEL_WIDTH_MHZ = 20;
+    private static final int MAX_CHANNEL_UTILIZATION = 255;
+    // Scores within this distance of each other are considered equal
+    private static final double SCORE_EPSILON = 0.01;
+
+    private final Clock mClock;
+    private final Random mRandom;
+
+    private List<ScanResult> mScanResults;
+    private long mScanResultsTimeMillis;
+
+    SoftApChannelSelector(Clock clock) {
+        this(clock, new Random());
+    }
+
+    @VisibleForTesting
+    SoftApChannelSelector(Clock clock, Random random) {
+        mClock = clock;
+        mRandom = random;
+    }
+
+    /**
+     * Provide the results of the latest scan. Empty results are ignored, so that the results of
+     * the last scan are kept when they are cleared.
+     *
+     * @param scanResults Results of the scan, not modified afterwards.
+     */
+    public void updateScanResults(List<ScanResult> scanResults) {
+        if (scanResults.isEmpty()) {
+            return;
+        }
+        mScanResults = scanResults;
+        mScanResultsTimeMillis = mClock.getElapsedSinceBootMillis();
+    }
+
+    /**
+     * Choose the least loaded channel for the AP.
+     *
+     * @param apBand one of the value of WifiConfiguration.AP_BAND_*.
+     * @param allowed2GChannels list of allowed 2GHz channels
+     * @param allowed5GFreqList list of allowed 5GHz frequencies
+     * @return a channel number, -1 if there are no recent scan results or no allowed channels.
+     */
+    public int chooseChannel(int apBand, List<Integer> allowed2GChannels,
+            int[] allowed5GFreqList) {
+        if (mScanResults == null || mClock.getElapsedSinceBootMillis() - mScanResultsTimeMillis
+                > MAX_SCAN_RESULTS_AGE_MS) {
+            return -1;
+        }
+        List<Integer> candidateFreqs = new ArrayList<>();
+        // Same bands as ApConfigUtil#chooseApChannel: AP_BAND_ANY is served on 2.4 GHz.
+        if (apBand == WifiConfiguration.AP_BAND_2GHZ || apBand == WifiConfiguration.AP_BAND_ANY) {
+            if (allowed2GChannels != null) {
+                for (int channel : allowed2GChannels) {
+                    candidateFreqs.add(convert2GChannelToFrequency(channel));
+                }
+            }
+        } else if (apBand == WifiConfiguration.AP_BAND_5GHZ && allowed5GFreqList != null) {
+            for (int freq : allowed5GFreqList) {
+                candidateFreqs.add(freq);
+            }
+        }
+        if (candidateFreqs.isEmpty()) {
+            return -1;
+        }
+
+        int chosenFreq = -1;
+        double chosenScore = Double.MAX_VALUE;
+        int numTies = 0;
+        for (int freq : candidateFreqs) {
+            double score = scoreChannel(freq, mScanResults);
+            if (score < chosenScore - SCORE_EPSILON) {
+                chosenFreq = freq;
+                chosenScore = score;
+                numTies = 1;
+            } else if (score <= chosenScore + SCORE_EPSILON && mRandom.nextInt(++numTies) == 0) {
+                // reservoir sampling: each of the equally loaded channels is equally likely
+                chosenFreq = freq;
+            }
+        }
+        Log.d(TAG, "Chose " + chosenFreq + " MHz with load " + chosenScore + " among "
+                + candidateFreqs.size() + " channels and " + mScanResults.size() + " BSSs");
+        return ApConfigUtil.convertFrequencyToChannel(chosenFreq);
+    }
+
+    /**
+     * Returns the load the scanned BSSs put on the 20 MHz channel, the lower the better.
+     */
+    @VisibleForTesting
+    static double scoreChannel(int freq, List<ScanResult> scanResults) {
+        int low = freq - CHANNEL_WIDTH_MHZ / 2;
+        int high = freq + CHANNEL_WIDTH_MHZ / 2;
+        double bssLoad = 0;
+        double utilization = 0;
+        for (ScanResult result : scanResults) {
+            int halfWidth = getChannelWidthMhz(result) / 2;
+            int center = halfWidth > CHANNEL_WIDTH_MHZ / 2 && result.centerFreq0 > 0
+                    ? result.centerFreq0 : result.frequency;
+            int overlapMhz = Math.min(high, center + halfWidth)
+                    - Math.max(low, center - halfWidth);
+            if (overlapMhz <= 0) {
+                continue;
+            }
+            double overlap = (double) overlapMhz / CHANNEL_WIDTH_MHZ;
+            bssLoad += overlap * getRssiWeight(result.level);
+            int channelUtilization = getChannelUtilization(result);
+            if (channelUtilization > 0) {
+                utilization = Math.max(utilization,
+                        overlap * channelUtilization / MAX_CHANNEL_UTILIZATION);
+            }
+        }
+        return bssLoad + CHANNEL_UTILIZATION_WEIGHT * utilization;
+    }
+
+    private static double getRssiWeight(int rssi) {
+        if (rssi >= FULL_WEIGHT_RSSI) {
+            return 1.0;
+        }
+        if (rssi <= ZERO_WEIGHT_RSSI) {
+            return 0.0;
+        }
+        return (double) (rssi - ZERO_WEIGHT_RSSI) / (FULL_WEIGHT_RSSI - ZERO_WEIGHT_RSSI);
+    }
+
+    private static int getChannelWidthMhz(ScanResult result) {
+        switch (result.channelWidth) {
+            case ScanResult.CHANNEL_WIDTH_40MHZ:
+                return 40;
+            case ScanResult.CHANNEL_WIDTH_80MHZ:
+            case ScanResult.CHANNEL_WIDTH_80MHZ_PLUS_MHZ:
+                return 80;
+            case ScanResult.CHANNEL_WIDTH_160MHZ:
+                return 160;
+            default:
+                return CHANNEL_WIDTH_MHZ;
+        }
+    }
+
+    /**
+     * Returns the channel utilization advertised in the BSS Load IE of the BSS, 0 if none.
+     */
+    private static int getChannelUtilization(ScanResult result) {
+        if (result.informationElements == null) {
+            return 0;
+        }
+        for (InformationElement ie : result.informationElements) {
+            if (ie.id == InformationElement.EID_BSS_LOAD) {
+                InformationElementUtil.BssLoad bssLoad = new InformationElementUtil.BssLoad();
+                try {
+                    bssLoad.from(ie);
+                } catch (IllegalArgumentException e) {
+                    return 0;
+                }
+                return bssLoad.channelUtilization;
+            }
+        }
+        return 0;
+    }
+
+    private static int convert2GChannelToFrequency(int channel) {
+        return channel == 14 ? 2484 : 2407 + 5 * channel;
+    }
+}
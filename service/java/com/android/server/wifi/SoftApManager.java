@@ -95,6 +95,8 @@ public class SoftApManager implements ActiveModeManager {
 
     private final SarManager mSarManager;
 
+    private final SoftApChannelSelector mSoftApChannelSelector;
+
     /**
      * Listener for soft AP events.
      */
@@ -121,7 +123,8 @@ public class SoftApManager implements ActiveModeManager {
                          @NonNull WifiApConfigStore wifiApConfigStore,
                          @NonNull SoftApModeConfiguration apConfig,
                          @NonNull WifiMetrics wifiMetrics,
-                         @NonNull SarManager sarManager) {
+                         @NonNull SarManager sarManager,
+                         @NonNull SoftApChannelSelector softApChannelSelector) {
         mContext = context;
         mFrameworkFacade = framework;
         mWifiNative = wifiNative;
@@ -137,6 +140,7 @@ public class SoftApManager implements ActiveModeManager {
         }
         mWifiMetrics = wifiMetrics;
         mSarManager = sarManager;
+        mSoftApChannelSelector = softApChannelSelector;
         mStateMachine = new SoftApStateMachine(looper);
     }
 
@@ -258,7 +262,7 @@ public class SoftApManager implements ActiveModeManager {
 
         int result = ApConfigUtil.updateApChannelConfig(
                 mWifiNative, mCountryCode,
-                mWifiApConfigStore.getAllowed2GChannel(), localConfig);
+                mWifiApConfigStore.getAllowed2GChannel(), mSoftApChannelSelector, localConfig);
 
         if (result != SUCCESS) {
             Log.e(TAG, "Failed to update AP band and channel");
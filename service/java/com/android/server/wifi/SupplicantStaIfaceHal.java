@@ -54,6 +54,7 @@ import android.util.Log;
 import android.util.Pair;
 import android.util.SparseArray;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.server.wifi.WifiNative.SupplicantDeathEventHandler;
 import com.android.server.wifi.hotspot2.AnqpEvent;
 import com.android.server.wifi.hotspot2.IconEvent;
@@ -69,6 +70,8 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
@@ -94,6 +97,13 @@ public class SupplicantStaIfaceHal {
     private static final Pattern WPS_DEVICE_TYPE_PATTERN =
             Pattern.compile("^(\\d{1,2})-([0-9a-fA-F]{8})-(\\d{1,2})$");
 
+    /**
+     * Maximum number of networks kept in supplicant per iface, so that switching back to a
+     * recently used network can reuse its supplicant network instead of saving it again.
+     */
+    @VisibleForTesting
+    static final int MAX_RETAINED_NETWORKS = 3;
+
     private final Object mLock = new Object();
     private boolean mVerboseLoggingEnabled = false;
 
@@ -105,7 +115,12 @@ public class SupplicantStaIfaceHal {
             new HashMap<>();
     private HashMap<String, SupplicantStaNetworkHal> mCurrentNetworkRemoteHandles = new HashMap<>();
     private HashMap<String, WifiConfiguration> mCurrentNetworkLocalConfigs = new HashMap<>();
+    // Networks kept in supplicant for each iface, keyed by config key in least recently used
+    // order, along with the configuration last saved to each of them.
+    private HashMap<String, LinkedHashMap<String, Pair<SupplicantStaNetworkHal, WifiConfiguration>>>
+            mRetainedNetworks = new HashMap<>();
     private SupplicantDeathEventHandler mDeathEventHandler;
+    private HalCallTracker mHalCallTracker;
     private final Context mContext;
     private final WifiMonitor mWifiMonitor;
 
@@ -148,6 +163,17 @@ public class SupplicantStaIfaceHal {
         mWifiMonitor = monitor;
     }
 
+    /**
+     * Set the tracker used to record the latency of the HIDL calls made by this object.
+     *
+     * @param halCallTracker tracker to use, or null to disable tracking.
+     */
+    void setHalCallTracker(HalCallTracker halCallTracker) {
+        synchronized (mLock) {
+            mHalCallTracker = halCallTracker;
+        }
+    }
+
     /**
      * Enable/Disable verbose logging.
      *
@@ -241,7 +267,9 @@ public class SupplicantStaIfaceHal {
     private boolean initSupplicantService() {
         synchronized (mLock) {
             try {
-                mISupplicant = getSupplicantMockable();
+                mISupplicant = HalCallTracker.track(
+                        mHalCallTracker, "ISupplicant", ISupplicant.class,
+                        getSupplicantMockable());
             } catch (RemoteException e) {
                 Log.e(TAG, "ISupplicant.getService exception: " + e);
                 return false;
@@ -290,7 +318,9 @@ public class SupplicantStaIfaceHal {
 
         if (isV1_1()) {
             android.hardware.wifi.supplicant.V1_1.ISupplicantStaIface iface =
-                getStaIfaceMockableV1_1(ifaceHwBinder);
+                HalCallTracker.track(mHalCallTracker, "ISupplicantStaIface",
+                        android.hardware.wifi.supplicant.V1_1.ISupplicantStaIface.class,
+                        getStaIfaceMockableV1_1(ifaceHwBinder));
             SupplicantStaIfaceHalCallbackV1_1 callbackV1_1 =
                 new SupplicantStaIfaceHalCallbackV1_1(ifaceName, callback);
 
@@ -300,7 +330,9 @@ public class SupplicantStaIfaceHal {
             mISupplicantStaIfaces.put(ifaceName, iface);
             mISupplicantStaIfaceCallbacks.put(ifaceName, callbackV1_1);
         } else {
-            ISupplicantStaIface iface = getStaIfaceMockable(ifaceHwBinder);
+            ISupplicantStaIface iface = HalCallTracker.track(mHalCallTracker,
+                    "ISupplicantStaIface", ISupplicantStaIface.class,
+                    getStaIfaceMockable(ifaceHwBinder));
 
             if (!registerCallback(iface, callback)) {
                 return false;
@@ -415,6 +447,7 @@ public class SupplicantStaIfaceHal {
                 return false;
             }
             mISupplicantStaIfaceCallbacks.remove(ifaceName);
+            mRetainedNetworks.remove(ifaceName);
             return true;
         }
     }
@@ -476,6 +509,7 @@ public class SupplicantStaIfaceHal {
             mISupplicantStaIfaces.clear();
             mCurrentNetworkLocalConfigs.clear();
             mCurrentNetworkRemoteHandles.clear();
+            mRetainedNetworks.clear();
         }
     }
 
@@ -647,11 +681,111 @@ public class SupplicantStaIfaceHal {
         }
     }
 
+    /**
+     * Helper method to look up the networks retained in supplicant for the specified iface.
+     */
+    private LinkedHashMap<String, Pair<SupplicantStaNetworkHal, WifiConfiguration>>
+            getRetainedNetworks(@NonNull String ifaceName) {
+        LinkedHashMap<String, Pair<SupplicantStaNetworkHal, WifiConfiguration>> networks =
+                mRetainedNetworks.get(ifaceName);
+        if (networks == null) {
+            // Access ordered, so that the eldest entry is the least recently connected network.
+            networks = new LinkedHashMap<>(MAX_RETAINED_NETWORKS, 0.75f, true);
+            mRetainedNetworks.put(ifaceName, networks);
+        }
+        return networks;
+    }
+
+    /**
+     * Remove a retained network from supplicant.
+     */
+    private void removeRetainedNetwork(
+            @NonNull String ifaceName, @NonNull SupplicantStaNetworkHal network) {
+        synchronized (mLock) {
+            int supplicantNetworkId = network.getNetworkId();
+            if (supplicantNetworkId < 0 || !removeNetwork(ifaceName, supplicantNetworkId)) {
+                loge("Failed to remove retained network: " + supplicantNetworkId);
+            }
+        }
+    }
+
+    /**
+     * Look for |config| among the networks retained in supplicant and update the fields which
+     * changed since it was last saved.
+     *
+     * @return a Pair object including SupplicantStaNetworkHal and WifiConfiguration objects
+     * for the retained network, or null if it must be added again.
+     */
+    private Pair<SupplicantStaNetworkHal, WifiConfiguration>
+            updateRetainedNetwork(@NonNull String ifaceName, WifiConfiguration config) {
+        synchronized (mLock) {
+            LinkedHashMap<String, Pair<SupplicantStaNetworkHal, WifiConfiguration>> networks =
+                    getRetainedNetworks(ifaceName);
+            Pair<SupplicantStaNetworkHal, WifiConfiguration> retained =
+                    networks.remove(config.configKey());
+            if (retained == null) return null;
+            boolean updateSuccess = false;
+            try {
+                updateSuccess = retained.first.updateWifiConfiguration(retained.second, config);
+            } catch (IllegalArgumentException e) {
+                Log.e(TAG, "Exception while updating config params: " + config, e);
+            }
+            if (!updateSuccess) {
+                logd("Retained network cannot be updated, will remove and add it again: "
+                        + config.configKey());
+                removeRetainedNetwork(ifaceName, retained.first);
+                return null;
+            }
+            Pair<SupplicantStaNetworkHal, WifiConfiguration> pair =
+                    new Pair(retained.first, new WifiConfiguration(config));
+            networks.put(config.configKey(), pair);
+            return pair;
+        }
+    }
+
+    /**
+     * Add |config| to supplicant, evicting the least recently used retained networks to stay
+     * within {@link #MAX_RETAINED_NETWORKS}.
+     *
+     * @return a Pair object including SupplicantStaNetworkHal and WifiConfiguration objects
+     * for the new network, or null on failure.
+     */
+    private Pair<SupplicantStaNetworkHal, WifiConfiguration>
+            addRetainedNetwork(@NonNull String ifaceName, WifiConfiguration config) {
+        synchronized (mLock) {
+            LinkedHashMap<String, Pair<SupplicantStaNetworkHal, WifiConfiguration>> networks =
+                    getRetainedNetworks(ifaceName);
+            if (networks.isEmpty()) {
+                // No networks known to be retained, clear out anything else left in supplicant.
+                if (!removeAllNetworks(ifaceName)) {
+                    loge("Failed to remove existing networks");
+                    return null;
+                }
+            } else {
+                Iterator<Pair<SupplicantStaNetworkHal, WifiConfiguration>> iter =
+                        networks.values().iterator();
+                while (networks.size() >= MAX_RETAINED_NETWORKS && iter.hasNext()) {
+                    removeRetainedNetwork(ifaceName, iter.next().first);
+                    iter.remove();
+                }
+            }
+            Pair<SupplicantStaNetworkHal, WifiConfiguration> pair =
+                    addNetworkAndSaveConfig(ifaceName, config);
+            if (pair == null) {
+                loge("Failed to add/save network configuration: " + config.configKey());
+                return null;
+            }
+            getRetainedNetworks(ifaceName).put(config.configKey(), pair);
+            return pair;
+        }
+    }
+
     /**
      * Add the provided network configuration to wpa_supplicant and initiate connection to it.
      * This method does the following:
-     * 1. If |config| is different to the current supplicant network, removes all supplicant
-     * networks and saves |config|.
+     * 1. If |config| is different to the current supplicant network, either updates the changed
+     * fields of a network retained in supplicant for |config|, or saves |config| to a new
+     * supplicant network (evicting the least recently used retained network if needed).
      * 2. Select the new network in wpa_supplicant.
      *
      * @param ifaceName Name of the interface.
@@ -677,20 +811,21 @@ public class SupplicantStaIfaceHal {
                         loge("Failed to set current network BSSID.");
                         return false;
                     }
-                    mCurrentNetworkLocalConfigs.put(ifaceName, new WifiConfiguration(config));
+                    WifiConfiguration localConfig = new WifiConfiguration(config);
+                    mCurrentNetworkLocalConfigs.put(ifaceName, localConfig);
+                    getRetainedNetworks(ifaceName).put(config.configKey(), new Pair(
+                            getCurrentNetworkRemoteHandle(ifaceName), localConfig));
                 }
             } else {
                 mCurrentNetworkRemoteHandles.remove(ifaceName);
                 mCurrentNetworkLocalConfigs.remove(ifaceName);
-                if (!removeAllNetworks(ifaceName)) {
-                    loge("Failed to remove existing networks");
-                    return false;
-                }
                 Pair<SupplicantStaNetworkHal, WifiConfiguration> pair =
-                        addNetworkAndSaveConfig(ifaceName, config);
-                if (pair == null) {
-                    loge("Failed to add/save network configuration: " + config.configKey());
-                    return false;
+                        updateRetainedNetwork(ifaceName, config);
+                if (pair != null) {
+                    logd("Reusing network retained in supplicant.");
+                } else {
+                    pair = addRetainedNetwork(ifaceName, config);
+                    if (pair == null) return false;
                 }
                 mCurrentNetworkRemoteHandles.put(ifaceName, pair.first);
                 mCurrentNetworkLocalConfigs.put(ifaceName, pair.second);
@@ -799,7 +934,8 @@ public class SupplicantStaIfaceHal {
 
     /**
      * Remove the request |networkId| from supplicant if it's the current network,
-     * if the current configured network matches |networkId|.
+     * if the current configured network matches |networkId|. Otherwise only the network retained
+     * in supplicant for |networkId| (if any) is removed.
      *
      * @param ifaceName Name of the interface.
      * @param networkId network id of the network to be removed from supplicant.
@@ -807,8 +943,18 @@ public class SupplicantStaIfaceHal {
     public void removeNetworkIfCurrent(@NonNull String ifaceName, int networkId) {
         synchronized (mLock) {
             if (getCurrentNetworkId(ifaceName) == networkId) {
-                // Currently we only save 1 network in supplicant.
+                // Drop the retained networks along with the current one.
                 removeAllNetworks(ifaceName);
+                return;
+            }
+            Iterator<Pair<SupplicantStaNetworkHal, WifiConfiguration>> iter =
+                    getRetainedNetworks(ifaceName).values().iterator();
+            while (iter.hasNext()) {
+                Pair<SupplicantStaNetworkHal, WifiConfiguration> retained = iter.next();
+                if (retained.second.networkId == networkId) {
+                    removeRetainedNetwork(ifaceName, retained.first);
+                    iter.remove();
+                }
             }
         }
     }
@@ -835,6 +981,7 @@ public class SupplicantStaIfaceHal {
             // current network on receiving disconnection event from supplicant (b/32898136).
             mCurrentNetworkRemoteHandles.remove(ifaceName);
             mCurrentNetworkLocalConfigs.remove(ifaceName);
+            mRetainedNetworks.remove(ifaceName);
             return true;
         }
     }
@@ -1055,8 +1202,9 @@ public class SupplicantStaIfaceHal {
             @NonNull String ifaceName, ISupplicantStaNetwork iSupplicantStaNetwork) {
         synchronized (mLock) {
             SupplicantStaNetworkHal network =
-                    new SupplicantStaNetworkHal(iSupplicantStaNetwork, ifaceName, mContext,
-                            mWifiMonitor);
+                    new SupplicantStaNetworkHal(HalCallTracker.track(mHalCallTracker,
+                            "ISupplicantStaNetwork", ISupplicantStaNetwork.class,
+                            iSupplicantStaNetwork), ifaceName, mContext, mWifiMonitor);
             if (network != null) {
                 network.enableVerboseLogging(mVerboseLoggingEnabled);
             }
@@ -87,6 +87,26 @@ public class SupplicantStaNetworkHal {
     private static final Pattern UMTS_AUTS_RESPONSE_PARAMS_PATTERN =
             Pattern.compile("^:([0-9a-fA-F]+)$");
 
+    /**
+     * Enterprise fields which are saved only when non-empty, in the order they are written by
+     * {@link #saveWifiEnterpriseConfig(String, WifiEnterpriseConfig)}.
+     */
+    private static final String[] UPDATABLE_EAP_FIELD_KEYS = {
+            WifiEnterpriseConfig.IDENTITY_KEY,
+            WifiEnterpriseConfig.ANON_IDENTITY_KEY,
+            WifiEnterpriseConfig.PASSWORD_KEY,
+            WifiEnterpriseConfig.CLIENT_CERT_KEY,
+            WifiEnterpriseConfig.CA_CERT_KEY,
+            WifiEnterpriseConfig.SUBJECT_MATCH_KEY,
+            WifiEnterpriseConfig.ENGINE_ID_KEY,
+            WifiEnterpriseConfig.ENGINE_KEY,
+            WifiEnterpriseConfig.PRIVATE_KEY_ID_KEY,
+            WifiEnterpriseConfig.ALTSUBJECT_MATCH_KEY,
+            WifiEnterpriseConfig.DOM_SUFFIX_MATCH_KEY,
+            WifiEnterpriseConfig.CA_PATH_KEY,
+            WifiEnterpriseConfig.OPP_KEY_CACHING
+    };
+
     private final Object mLock = new Object();
     private final String mIfaceName;
     private final WifiMonitor mWifiMonitor;
@@ -148,6 +168,17 @@ public class SupplicantStaNetworkHal {
         }
     }
 
+    /**
+     * Read the wpa_supplicant network ID of this network.
+     *
+     * @return network ID on success, -1 otherwise.
+     */
+    public int getNetworkId() {
+        synchronized (mLock) {
+            return getId() ? mNetworkId : -1;
+        }
+    }
+
     /**
      * Read network variables from wpa_supplicant into the provided WifiConfiguration object.
      *
@@ -391,6 +422,219 @@ public class SupplicantStaNetworkHal {
         }
     }
 
+    /**
+     * Update a network previously saved to wpa_supplicant via
+     * {@link #saveWifiConfiguration(WifiConfiguration)}, only sending the fields which differ
+     * from |oldConfig|.
+     * Fields which cannot be updated in place (SSID, security parameters or a value which needs
+     * to be cleared) are not touched and the method returns false, in which case the caller
+     * should remove this network and save |config| to a new one.
+     *
+     * @param oldConfig WifiConfiguration object last saved to this network.
+     * @param config WifiConfiguration object to be saved.
+     * @return true if succeeds, false otherwise.
+     * @throws IllegalArgumentException on malformed configuration params.
+     */
+    public boolean updateWifiConfiguration(WifiConfiguration oldConfig, WifiConfiguration config) {
+        synchronized (mLock) {
+            if (oldConfig == null || config == null) return false;
+            if (!canUpdateWifiConfiguration(oldConfig, config)) return false;
+            /** BSSID */
+            String bssidStr = config.getNetworkSelectionStatus().getNetworkSelectionBSSID();
+            if (!TextUtils.equals(bssidStr,
+                    oldConfig.getNetworkSelectionStatus().getNetworkSelectionBSSID())) {
+                // A null BSSID resets the network to "any".
+                if (!setBssid(NativeUtil.macAddressToByteArray(bssidStr))) {
+                    Log.e(TAG, "failed to set BSSID: " + bssidStr);
+                    return false;
+                }
+            }
+            /** Pre Shared Key */
+            if (!TextUtils.equals(config.preSharedKey, oldConfig.preSharedKey)) {
+                if (config.preSharedKey.startsWith("\"")) {
+                    if (!setPskPassphrase(NativeUtil.removeEnclosingQuotes(config.preSharedKey))) {
+                        Log.e(TAG, "failed to set psk passphrase");
+                        return false;
+                    }
+                } else {
+                    if (!setPsk(NativeUtil.hexStringToByteArray(config.preSharedKey))) {
+                        Log.e(TAG, "failed to set psk");
+                        return false;
+                    }
+                }
+            }
+            /** Wep Keys */
+            for (int i = 0; i < config.wepKeys.length; i++) {
+                if (!TextUtils.equals(config.wepKeys[i], oldConfig.wepKeys[i])
+                        && !setWepKey(i, NativeUtil.hexOrQuotedStringToBytes(config.wepKeys[i]))) {
+                    Log.e(TAG, "failed to set wep_key " + i);
+                    return false;
+                }
+            }
+            /** Wep Tx Key Idx */
+            if (config.wepTxKeyIndex != oldConfig.wepTxKeyIndex
+                    && !setWepTxKeyIdx(config.wepTxKeyIndex)) {
+                Log.e(TAG, "failed to set wep_tx_keyidx: " + config.wepTxKeyIndex);
+                return false;
+            }
+            /** HiddenSSID */
+            if (config.hiddenSSID != oldConfig.hiddenSSID && !setScanSsid(config.hiddenSSID)) {
+                Log.e(TAG, config.SSID + ": failed to set hiddenSSID: " + config.hiddenSSID);
+                return false;
+            }
+            /** RequirePMF */
+            if (config.requirePMF != oldConfig.requirePMF && !setRequirePmf(config.requirePMF)) {
+                Log.e(TAG, config.SSID + ": failed to set requirePMF: " + config.requirePMF);
+                return false;
+            }
+            /** metadata: FQDN + ConfigKey + CreatorUid */
+            if (config.creatorUid != oldConfig.creatorUid) {
+                final Map<String, String> metadata = new HashMap<String, String>();
+                if (config.isPasspoint()) {
+                    metadata.put(ID_STRING_KEY_FQDN, config.FQDN);
+                }
+                metadata.put(ID_STRING_KEY_CONFIG_KEY, config.configKey());
+                metadata.put(ID_STRING_KEY_CREATOR_UID, Integer.toString(config.creatorUid));
+                if (!setIdStr(createNetworkExtra(metadata))) {
+                    Log.e(TAG, "failed to set id string");
+                    return false;
+                }
+            }
+            /** UpdateIdentifier */
+            if (!TextUtils.equals(config.updateIdentifier, oldConfig.updateIdentifier)
+                    && !setUpdateIdentifier(Integer.parseInt(config.updateIdentifier))) {
+                Log.e(TAG, "failed to set update identifier");
+                return false;
+            }
+            if (isEnterpriseConfig(config)) {
+                return updateWifiEnterpriseConfig(
+                        config.SSID, oldConfig.enterpriseConfig, config.enterpriseConfig);
+            }
+            return true;
+        }
+    }
+
+    private static boolean isEnterpriseConfig(WifiConfiguration config) {
+        return config.enterpriseConfig != null
+                && config.enterpriseConfig.getEapMethod() != WifiEnterpriseConfig.Eap.NONE;
+    }
+
+    /**
+     * Returns true if every difference between |oldConfig| and |config| can be applied to the
+     * existing wpa_supplicant network by {@link #updateWifiConfiguration}.
+     */
+    private static boolean canUpdateWifiConfiguration(
+            WifiConfiguration oldConfig, WifiConfiguration config) {
+        if (oldConfig.networkId != config.networkId) return false;
+        if (!TextUtils.equals(oldConfig.SSID, config.SSID)) return false;
+        if (!TextUtils.equals(oldConfig.FQDN, config.FQDN)) return false;
+        if (!TextUtils.equals(oldConfig.configKey(), config.configKey())) return false;
+        if (!oldConfig.allowedKeyManagement.equals(config.allowedKeyManagement)
+                || !oldConfig.allowedProtocols.equals(config.allowedProtocols)
+                || !oldConfig.allowedAuthAlgorithms.equals(config.allowedAuthAlgorithms)
+                || !oldConfig.allowedGroupCiphers.equals(config.allowedGroupCiphers)
+                || !oldConfig.allowedPairwiseCiphers.equals(config.allowedPairwiseCiphers)) {
+            return false;
+        }
+        // There are no HIDL calls to clear a previously set value.
+        if (oldConfig.preSharedKey != null && config.preSharedKey == null) return false;
+        if (oldConfig.updateIdentifier != null && config.updateIdentifier == null) return false;
+        if (config.wepKeys == null || oldConfig.wepKeys == null
+                || config.wepKeys.length != oldConfig.wepKeys.length) {
+            return false;
+        }
+        for (int i = 0; i < config.wepKeys.length; i++) {
+            if (oldConfig.wepKeys[i] != null && config.wepKeys[i] == null) return false;
+        }
+        if (isEnterpriseConfig(oldConfig) != isEnterpriseConfig(config)) return false;
+        if (isEnterpriseConfig(config)) {
+            if (oldConfig.enterpriseConfig.getEapMethod()
+                    != config.enterpriseConfig.getEapMethod()) {
+                return false;
+            }
+            for (String key : UPDATABLE_EAP_FIELD_KEYS) {
+                if (!TextUtils.isEmpty(oldConfig.enterpriseConfig.getFieldValue(key))
+                        && TextUtils.isEmpty(config.enterpriseConfig.getFieldValue(key))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Update the enterprise network variables in wpa_supplicant which differ between
+     * |oldEapConfig| and |eapConfig|.
+     *
+     * @param ssid SSID of the network. (Used for logging purposes only)
+     * @param oldEapConfig WifiEnterpriseConfig object last saved to this network.
+     * @param eapConfig WifiEnterpriseConfig object to be saved.
+     * @return true if succeeds, false otherwise.
+     */
+    private boolean updateWifiEnterpriseConfig(String ssid, WifiEnterpriseConfig oldEapConfig,
+            WifiEnterpriseConfig eapConfig) {
+        synchronized (mLock) {
+            /** EAP Phase 2 method */
+            if (oldEapConfig.getPhase2Method() != eapConfig.getPhase2Method()
+                    && !setEapPhase2Method(wifiConfigurationToSupplicantEapPhase2Method(
+                            eapConfig.getPhase2Method()))) {
+                Log.e(TAG, ssid + ": failed to set eap phase 2 method: "
+                        + eapConfig.getPhase2Method());
+                return false;
+            }
+            for (String key : UPDATABLE_EAP_FIELD_KEYS) {
+                String eapParam = eapConfig.getFieldValue(key);
+                if (TextUtils.equals(eapParam, oldEapConfig.getFieldValue(key))
+                        || TextUtils.isEmpty(eapParam)) {
+                    continue;
+                }
+                if (!setEapField(key, eapParam)) {
+                    Log.e(TAG, ssid + ": failed to set eap field: " + key);
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Set a single enterprise field using the same conversions as
+     * {@link #saveWifiEnterpriseConfig(String, WifiEnterpriseConfig)}.
+     */
+    private boolean setEapField(String key, String eapParam) {
+        switch (key) {
+            case WifiEnterpriseConfig.IDENTITY_KEY:
+                return setEapIdentity(NativeUtil.stringToByteArrayList(eapParam));
+            case WifiEnterpriseConfig.ANON_IDENTITY_KEY:
+                return setEapAnonymousIdentity(NativeUtil.stringToByteArrayList(eapParam));
+            case WifiEnterpriseConfig.PASSWORD_KEY:
+                return setEapPassword(NativeUtil.stringToByteArrayList(eapParam));
+            case WifiEnterpriseConfig.CLIENT_CERT_KEY:
+                return setEapClientCert(eapParam);
+            case WifiEnterpriseConfig.CA_CERT_KEY:
+                return setEapCACert(eapParam);
+            case WifiEnterpriseConfig.SUBJECT_MATCH_KEY:
+                return setEapSubjectMatch(eapParam);
+            case WifiEnterpriseConfig.ENGINE_ID_KEY:
+                return setEapEngineID(eapParam);
+            case WifiEnterpriseConfig.ENGINE_KEY:
+                return setEapEngine(eapParam.equals(WifiEnterpriseConfig.ENGINE_ENABLE));
+            case WifiEnterpriseConfig.PRIVATE_KEY_ID_KEY:
+                return setEapPrivateKeyId(eapParam);
+            case WifiEnterpriseConfig.ALTSUBJECT_MATCH_KEY:
+                return setEapAltSubjectMatch(eapParam);
+            case WifiEnterpriseConfig.DOM_SUFFIX_MATCH_KEY:
+                return setEapDomainSuffixMatch(eapParam);
+            case WifiEnterpriseConfig.CA_PATH_KEY:
+                return setEapCAPath(eapParam);
+            case WifiEnterpriseConfig.OPP_KEY_CACHING:
+                return setEapProactiveKeyCaching(eapParam.equals("1"));
+            default:
+                Log.e(TAG, "unknown eap field: " + key);
+                return false;
+        }
+    }
+
     /**
      * Read network variables from wpa_supplicant into the provided WifiEnterpriseConfig object.
      *
@@ -33,6 +33,10 @@ public class VelocityBasedConnectedScore extends ConnectedScore {
     private double mThresholdAdjustment;
     private final KalmanFilter mFilter;
     private long mLastMillis;
+    // Filter state; preallocated since the filter runs on every RSSI poll
+    private final Matrix mState = new Matrix(2, 1);
+    private final Matrix mObservation = new Matrix(1, 1);
+    private boolean mHasState;
 
     public VelocityBasedConnectedScore(ScoringParams scoringParams, Clock clock) {
         super(clock);
@@ -40,21 +44,35 @@ public class VelocityBasedConnectedScore extends ConnectedScore {
         mFilter = new KalmanFilter();
         mFilter.mH = new Matrix(2, new double[]{1.0, 0.0});
         mFilter.mR = new Matrix(1, new double[]{1.0});
+        mFilter.mF = new Matrix(2, 2);
+        mFilter.mQ = new Matrix(2, 2);
+        mFilter.mP = new Matrix(2, 2);
+        mFilter.mx = mState;
     }
 
     /**
      * Set the Kalman filter's state transition matrix F and process noise covariance Q given
      * a time step.
+     * <p>
+     * Q is G * G' * stda^2, with G = [dt^2/2, dt]'.
      *
      * @param dt delta time, in seconds
      */
     private void setDeltaTimeSeconds(double dt) {
-        mFilter.mF = new Matrix(2, new double[]{1.0, dt, 0.0, 1.0});
-        Matrix tG = new Matrix(1, new double[]{0.5 * dt * dt, dt});
+        double[] f = mFilter.mF.mem;
+        f[0] = 1.0;
+        f[1] = dt;
+        f[2] = 0.0;
+        f[3] = 1.0;
+        double g0 = 0.5 * dt * dt;
+        double g1 = dt;
         double stda = 0.02; // standard deviation of modelled acceleration
-        mFilter.mQ = tG.dotTranspose(tG).dot(new Matrix(2, new double[]{
-                stda * stda, 0.0,
-                0.0, stda * stda}));
+        double variance = stda * stda;
+        double[] q = mFilter.mQ.mem;
+        q[0] = g0 * g0 * variance;
+        q[1] = g0 * g1 * variance;
+        q[2] = g1 * g0 * variance;
+        q[3] = g1 * g1 * variance;
     }
     /**
      * Reset the filter state.
@@ -63,7 +81,7 @@ public class VelocityBasedConnectedScore extends ConnectedScore {
     public void reset() {
         mLastMillis = 0;
         mThresholdAdjustment = 0;
-        mFilter.mx = null;
+        mHasState = false;
     }
 
     /**
@@ -79,20 +97,27 @@ public class VelocityBasedConnectedScore extends ConnectedScore {
     @Override
     public void updateUsingRssi(int rssi, long millis, double standardDeviation) {
         if (millis <= 0) return;
-        if (mLastMillis <= 0 || millis < mLastMillis || mFilter.mx == null) {
+        if (mLastMillis <= 0 || millis < mLastMillis || !mHasState) {
             double initialVariance = 9.0 * standardDeviation * standardDeviation;
-            mFilter.mx = new Matrix(1, new double[]{rssi, 0.0});
-            mFilter.mP = new Matrix(2, new double[]{initialVariance, 0.0, 0.0, 0.0});
+            mState.mem[0] = rssi;
+            mState.mem[1] = 0.0;
+            double[] p = mFilter.mP.mem;
+            p[0] = initialVariance;
+            p[1] = 0.0;
+            p[2] = 0.0;
+            p[3] = 0.0;
+            mHasState = true;
         } else {
             double dt = (millis - mLastMillis) * 0.001;
             mFilter.mR.put(0, 0, standardDeviation * standardDeviation);
             setDeltaTimeSeconds(dt);
             mFilter.predict();
-            mFilter.update(new Matrix(1, new double[]{rssi}));
+            mObservation.mem[0] = rssi;
+            mFilter.update(mObservation);
         }
         mLastMillis = millis;
-        mFilteredRssi = mFilter.mx.get(0, 0);
-        mEstimatedRateOfRssiChange = mFilter.mx.get(1, 0);
+        mFilteredRssi = mState.get(0, 0);
+        mEstimatedRateOfRssiChange = mState.get(1, 0);
     }
 
     /**
@@ -168,14 +193,12 @@ public class VelocityBasedConnectedScore extends ConnectedScore {
      */
     @Override
     public int generateScore() {
-        if (mFilter.mx == null) return WIFI_TRANSITION_SCORE + 1;
+        if (!mHasState) return WIFI_TRANSITION_SCORE + 1;
         double badRssi = getAdjustedRssiThreshold();
         double horizonSeconds = mScoringParams.getHorizonSeconds();
-        Matrix x = new Matrix(mFilter.mx);
-        double filteredRssi = x.get(0, 0);
-        setDeltaTimeSeconds(horizonSeconds);
-        x = mFilter.mF.dot(x);
-        double forecastRssi = x.get(0, 0);
+        double filteredRssi = mState.get(0, 0);
+        // Same as the first row of F(horizon) * x, without disturbing the filter
+        double forecastRssi = filteredRssi + horizonSeconds * mState.get(1, 0);
         if (forecastRssi > filteredRssi) {
             forecastRssi = filteredRssi; // Be pessimistic about predicting an actual increase
         }
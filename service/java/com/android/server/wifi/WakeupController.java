@@ -181,8 +181,10 @@ public class WakeupController {
         if (isEnabled()) {
             mWakeupOnboarding.maybeShowNotification();
 
-            List<ScanResult> scanResults =
-                    filterDfsScanResults(mWifiInjector.getWifiScanner().getSingleScanResults());
+            // The merged results include the partial scans, e.g. while connected. The DFS channels
+            // are excluded using the same classification as filterDfsScanResults().
+            List<ScanResult> scanResults = mWifiInjector.getMergedScanResultTable()
+                    .getResults(WifiScanner.WIFI_BAND_BOTH);
             Set<ScanResultMatchInfo> matchInfos = toMatchInfos(scanResults);
             matchInfos.retainAll(getGoodSavedNetworks());
 
@@ -222,19 +224,16 @@ public class WakeupController {
         mWakeupLock.enableVerboseLogging(mVerboseLoggingEnabled);
     }
 
-    /** Returns a list of ScanResults with DFS channels removed. */
+    /**
+     * Returns a list of ScanResults with DFS channels removed. The DFS channels are the ones of
+     * the {@link MergedScanResultTable}, i.e. those of the scanning service, as used in start().
+     */
     private List<ScanResult> filterDfsScanResults(Collection<ScanResult> scanResults) {
-        int[] dfsChannels = mWifiInjector.getWifiNative()
-                .getChannelsForBand(WifiScanner.WIFI_BAND_5_GHZ_DFS_ONLY);
-        if (dfsChannels == null) {
-            dfsChannels = new int[0];
-        }
-
-        final Set<Integer> dfsChannelSet = Arrays.stream(dfsChannels).boxed()
-                .collect(Collectors.toSet());
-
+        final MergedScanResultTable mergedScanResultTable =
+                mWifiInjector.getMergedScanResultTable();
         return scanResults.stream()
-                .filter(scanResult -> !dfsChannelSet.contains(scanResult.frequency))
+                .filter(scanResult -> mergedScanResultTable.isFrequencyInBand(
+                        scanResult.frequency, WifiScanner.WIFI_BAND_BOTH))
                 .collect(Collectors.toList());
     }
 
@@ -35,6 +35,8 @@ import android.net.wifi.WifiEnterpriseConfig;
 import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
 import android.net.wifi.WifiScanner;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.Process;
 import android.os.UserHandle;
 import android.os.UserManager;
@@ -68,6 +70,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -249,6 +252,7 @@ public class WifiConfigManager {
     private final WifiConfigStoreLegacy mWifiConfigStoreLegacy;
     private final WifiPermissionsUtil mWifiPermissionsUtil;
     private final WifiPermissionsWrapper mWifiPermissionsWrapper;
+    private final Handler mHandler;
     /**
      * Local log used for debugging any WifiConfigManager issues.
      */
@@ -258,6 +262,20 @@ public class WifiConfigManager {
      * Map of configured networks with network id as the key.
      */
     private final ConfigurationMap mConfiguredNetworks;
+    /**
+     * Generation of the configured networks. Incremented on every change to the internal
+     * configurations, used to detect a stale {@link #mConfiguredNetworksSnapshot}.
+     */
+    private volatile long mConfiguredNetworksGeneration = 0;
+    /**
+     * Snapshot of the external copies of the configured networks. Read from binder threads, only
+     * replaced (never modified) from the WifiStateMachine thread.
+     */
+    private volatile ConfiguredNetworksSnapshot mConfiguredNetworksSnapshot = null;
+    /**
+     * Whether a new snapshot of the configured networks is already scheduled to be published.
+     */
+    private boolean mConfiguredNetworksSnapshotUpdatePending = false;
     /**
      * Stores a map of NetworkId to ScanDetailCache.
      */
@@ -330,6 +348,17 @@ public class WifiConfigManager {
     // parsing data to/from the config store.
     private final NetworkListStoreData mNetworkListStoreData;
     private final DeletedEphemeralSsidsStoreData mDeletedEphemeralSsidsStoreData;
+    private final NetworkChannelHistoryStoreData mNetworkChannelHistoryStoreData;
+
+    /**
+     * Persisted history of the channels on which the saved networks were seen, used to pick the
+     * channels of partial scans. Unlike {@link #mScanDetailCaches}, it survives reboots.
+     */
+    private final NetworkChannelHistory mNetworkChannelHistory = new NetworkChannelHistory();
+    private final PnoNetworkListBuilder mPnoNetworkListBuilder =
+            new PnoNetworkListBuilder(mNetworkChannelHistory);
+    private final HiddenNetworkProbePlanner mHiddenNetworkProbePlanner =
+            new HiddenNetworkProbePlanner(mNetworkChannelHistory);
 
     // Store the saved network update listener.
     private OnSavedNetworkUpdateListener mListener = null;
@@ -344,7 +373,9 @@ public class WifiConfigManager {
             WifiPermissionsUtil wifiPermissionsUtil,
             WifiPermissionsWrapper wifiPermissionsWrapper,
             NetworkListStoreData networkListStoreData,
-            DeletedEphemeralSsidsStoreData deletedEphemeralSsidsStoreData) {
+            DeletedEphemeralSsidsStoreData deletedEphemeralSsidsStoreData,
+            NetworkChannelHistoryStoreData networkChannelHistoryStoreData,
+            Looper looper) {
         mContext = context;
         mClock = clock;
         mUserManager = userManager;
@@ -355,16 +386,20 @@ public class WifiConfigManager {
         mWifiConfigStoreLegacy = wifiConfigStoreLegacy;
         mWifiPermissionsUtil = wifiPermissionsUtil;
         mWifiPermissionsWrapper = wifiPermissionsWrapper;
+        mHandler = new Handler(looper);
 
         mConfiguredNetworks = new ConfigurationMap(userManager);
         mScanDetailCaches = new HashMap<>(16, 0.75f);
         mDeletedEphemeralSSIDs = new HashSet<>();
 
-        // Register store data for network list and deleted ephemeral SSIDs.
+        // Register store data for network list, deleted ephemeral SSIDs and channel history.
         mNetworkListStoreData = networkListStoreData;
         mDeletedEphemeralSsidsStoreData = deletedEphemeralSsidsStoreData;
+        mNetworkChannelHistoryStoreData = networkChannelHistoryStoreData;
+        mNetworkChannelHistoryStoreData.setHistory(mNetworkChannelHistory);
         mWifiConfigStore.registerStoreData(mNetworkListStoreData);
         mWifiConfigStore.registerStoreData(mDeletedEphemeralSsidsStoreData);
+        mWifiConfigStore.registerStoreData(mNetworkChannelHistoryStoreData);
 
         mOnlyLinkSameCredentialConfigurations = mContext.getResources().getBoolean(
                 R.bool.config_wifi_only_link_same_credential_configurations);
@@ -512,6 +547,105 @@ public class WifiConfigManager {
         return getConfiguredNetworks(true, true);
     }
 
+    /**
+     * Immutable snapshot of the external copies of the configured networks, stamped with the
+     * generation of the internal configurations it was created from.
+     */
+    public static final class ConfiguredNetworksSnapshot {
+        public final long generation;
+        private final List<WifiConfiguration> mSavedNetworks;
+        private final List<WifiConfiguration> mConfiguredNetworksWithPasswords;
+
+        ConfiguredNetworksSnapshot(long generation, List<WifiConfiguration> savedNetworks,
+                List<WifiConfiguration> configuredNetworksWithPasswords) {
+            this.generation = generation;
+            mSavedNetworks = savedNetworks;
+            mConfiguredNetworksWithPasswords = configuredNetworksWithPasswords;
+        }
+
+        /**
+         * Retrieves a copy of the saved networks with the passwords masked.
+         * See {@link WifiConfigManager#getSavedNetworks()}.
+         */
+        public List<WifiConfiguration> getSavedNetworks() {
+            return copyConfigurations(mSavedNetworks);
+        }
+
+        /**
+         * Retrieves a copy of all the configured networks with the passwords in plaintext.
+         * See {@link WifiConfigManager#getConfiguredNetworksWithPasswords()}.
+         */
+        public List<WifiConfiguration> getConfiguredNetworksWithPasswords() {
+            return copyConfigurations(mConfiguredNetworksWithPasswords);
+        }
+
+        private static List<WifiConfiguration> copyConfigurations(
+                List<WifiConfiguration> configurations) {
+            List<WifiConfiguration> copies = new ArrayList<>(configurations.size());
+            for (WifiConfiguration config : configurations) {
+                copies.add(new WifiConfiguration(config));
+            }
+            return copies;
+        }
+    }
+
+    /**
+     * Retrieves the snapshot of the configured networks if it is up to date with the internal
+     * configurations.
+     *
+     * Note: Unlike the rest of the class, this can be invoked from any thread. It allows serving
+     * the configured networks to external callers without going through the WifiStateMachine
+     * thread.
+     *
+     * A new snapshot is published on the WifiStateMachine thread right after every change to the
+     * internal configurations, so this only returns null while a change is in progress.
+     *
+     * @return Up to date snapshot, or null if the configurations changed since the last snapshot
+     * (use {@link #updateConfiguredNetworksSnapshot()} on the WifiStateMachine thread).
+     */
+    public ConfiguredNetworksSnapshot getConfiguredNetworksSnapshot() {
+        ConfiguredNetworksSnapshot snapshot = mConfiguredNetworksSnapshot;
+        if (snapshot == null || snapshot.generation != mConfiguredNetworksGeneration) {
+            return null;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Retrieves the snapshot of the configured networks, creating a new one if the internal
+     * configurations changed since the last snapshot.
+     *
+     * @return Up to date snapshot.
+     */
+    public ConfiguredNetworksSnapshot updateConfiguredNetworksSnapshot() {
+        ConfiguredNetworksSnapshot snapshot = getConfiguredNetworksSnapshot();
+        if (snapshot == null) {
+            snapshot = new ConfiguredNetworksSnapshot(mConfiguredNetworksGeneration,
+                    getConfiguredNetworks(true, true), getConfiguredNetworks(false, false));
+            mConfiguredNetworksSnapshot = snapshot;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Helper method to mark the current snapshot of the configured networks as stale. Needs to be
+     * invoked on any change to the internal configurations.
+     *
+     * A new snapshot is published once the WifiStateMachine thread is done with the current
+     * message, i.e. after the change (which may span several calls) is complete. All the changes
+     * made while processing a message are published in a single snapshot.
+     */
+    private void invalidateConfiguredNetworksSnapshot() {
+        mConfiguredNetworksGeneration++;
+        if (!mConfiguredNetworksSnapshotUpdatePending) {
+            mConfiguredNetworksSnapshotUpdatePending = true;
+            mHandler.postAtFrontOfQueue(() -> {
+                mConfiguredNetworksSnapshotUpdatePending = false;
+                updateConfiguredNetworksSnapshot();
+            });
+        }
+    }
+
     /**
      * Retrieves the configured network corresponding to the provided networkId with password
      * masked.
@@ -626,6 +760,19 @@ public class WifiConfigManager {
         return internalConfig;
     }
 
+    /**
+     * Helper method to retrieve the internal WifiConfiguration object corresponding to the
+     * provided network ID in our database, for modification. Invalidates the snapshot of the
+     * configured networks.
+     */
+    private WifiConfiguration getInternalConfiguredNetworkForUpdate(int networkId) {
+        WifiConfiguration internalConfig = getInternalConfiguredNetwork(networkId);
+        if (internalConfig != null) {
+            invalidateConfiguredNetworksSnapshot();
+        }
+        return internalConfig;
+    }
+
     /**
      * Helper method to retrieve the internal WifiConfiguration object corresponding to the
      * provided configKey in our database.
@@ -1058,6 +1205,7 @@ public class WifiConfigManager {
             Log.e(TAG, "Failed to add network to config map", e);
             return new NetworkUpdateResult(WifiConfiguration.INVALID_NETWORK_ID);
         }
+        invalidateConfiguredNetworksSnapshot();
 
         if (mDeletedEphemeralSSIDs.remove(config.SSID)) {
             if (mVerboseLoggingEnabled) {
@@ -1147,7 +1295,9 @@ public class WifiConfigManager {
 
         removeConnectChoiceFromAllNetworks(config.configKey());
         mConfiguredNetworks.remove(config.networkId);
+        invalidateConfiguredNetworksSnapshot();
         mScanDetailCaches.remove(config.networkId);
+        mNetworkChannelHistory.removeNetwork(config.configKey());
         // Stage the backup of the SettingsProvider package which backs this up.
         mBackupManagerProxy.notifyDataChanged();
 
@@ -1377,6 +1527,7 @@ public class WifiConfigManager {
      * @return true if the input configuration has been updated, false otherwise.
      */
     private boolean updateNetworkSelectionStatus(WifiConfiguration config, int reason) {
+        invalidateConfiguredNetworksSnapshot();
         NetworkSelectionStatus networkStatus = config.getNetworkSelectionStatus();
         if (reason != NetworkSelectionStatus.NETWORK_SELECTION_ENABLE) {
             networkStatus.incrementDisableReasonCounter(reason);
@@ -1429,7 +1580,7 @@ public class WifiConfigManager {
      * @return true if the network is updated, false otherwise
      */
     public boolean updateNetworkNotRecommended(int networkId, boolean notRecommended) {
-        WifiConfiguration config = getInternalConfiguredNetwork(networkId);
+        WifiConfiguration config = getInternalConfiguredNetworkForUpdate(networkId);
         if (config == null) {
             return false;
         }
@@ -1578,7 +1729,7 @@ public class WifiConfigManager {
             Log.e(TAG, "UID " + uid + " not visible to the current user");
             return false;
         }
-        WifiConfiguration config = getInternalConfiguredNetwork(networkId);
+        WifiConfiguration config = getInternalConfiguredNetworkForUpdate(networkId);
         if (config == null) {
             return false;
         }
@@ -1603,7 +1754,7 @@ public class WifiConfigManager {
         if (mVerboseLoggingEnabled) {
             Log.v(TAG, "Update network after connect for " + networkId);
         }
-        WifiConfiguration config = getInternalConfiguredNetwork(networkId);
+        WifiConfiguration config = getInternalConfiguredNetworkForUpdate(networkId);
         if (config == null) {
             return false;
         }
@@ -1630,7 +1781,7 @@ public class WifiConfigManager {
         if (mVerboseLoggingEnabled) {
             Log.v(TAG, "Update network after disconnect for " + networkId);
         }
-        WifiConfiguration config = getInternalConfiguredNetwork(networkId);
+        WifiConfiguration config = getInternalConfiguredNetworkForUpdate(networkId);
         if (config == null) {
             return false;
         }
@@ -1652,7 +1803,7 @@ public class WifiConfigManager {
      * @return true if the network was found, false otherwise.
      */
     public boolean setNetworkDefaultGwMacAddress(int networkId, String macAddress) {
-        WifiConfiguration config = getInternalConfiguredNetwork(networkId);
+        WifiConfiguration config = getInternalConfiguredNetworkForUpdate(networkId);
         if (config == null) {
             return false;
         }
@@ -1668,7 +1819,7 @@ public class WifiConfigManager {
      * @return true if the network was found, false otherwise.
     */
     public boolean setNetworkRandomizedMacAddress(int networkId, MacAddress macAddress) {
-        WifiConfiguration config = getInternalConfiguredNetwork(networkId);
+        WifiConfiguration config = getInternalConfiguredNetworkForUpdate(networkId);
         if (config == null) {
             return false;
         }
@@ -1691,7 +1842,7 @@ public class WifiConfigManager {
         if (mVerboseLoggingEnabled) {
             Log.v(TAG, "Clear network candidate scan result for " + networkId);
         }
-        WifiConfiguration config = getInternalConfiguredNetwork(networkId);
+        WifiConfiguration config = getInternalConfiguredNetworkForUpdate(networkId);
         if (config == null) {
             return false;
         }
@@ -1718,7 +1869,7 @@ public class WifiConfigManager {
         if (mVerboseLoggingEnabled) {
             Log.v(TAG, "Set network candidate scan result " + scanResult + " for " + networkId);
         }
-        WifiConfiguration config = getInternalConfiguredNetwork(networkId);
+        WifiConfiguration config = getInternalConfiguredNetworkForUpdate(networkId);
         if (config == null) {
             return false;
         }
@@ -1765,7 +1916,7 @@ public class WifiConfigManager {
         if (mVerboseLoggingEnabled) {
             Log.v(TAG, "Clear network connect choice for " + networkId);
         }
-        WifiConfiguration config = getInternalConfiguredNetwork(networkId);
+        WifiConfiguration config = getInternalConfiguredNetworkForUpdate(networkId);
         if (config == null) {
             return false;
         }
@@ -1794,7 +1945,7 @@ public class WifiConfigManager {
         if (mVerboseLoggingEnabled) {
             Log.v(TAG, "Set network connect choice " + connectChoiceConfigKey + " for " + networkId);
         }
-        WifiConfiguration config = getInternalConfiguredNetwork(networkId);
+        WifiConfiguration config = getInternalConfiguredNetworkForUpdate(networkId);
         if (config == null) {
             return false;
         }
@@ -1811,7 +1962,7 @@ public class WifiConfigManager {
      * @return true if the network was found, false otherwise.
      */
     public boolean incrementNetworkNoInternetAccessReports(int networkId) {
-        WifiConfiguration config = getInternalConfiguredNetwork(networkId);
+        WifiConfiguration config = getInternalConfiguredNetworkForUpdate(networkId);
         if (config == null) {
             return false;
         }
@@ -1827,7 +1978,7 @@ public class WifiConfigManager {
      * @return true if the network was found, false otherwise.
      */
     public boolean setNetworkValidatedInternetAccess(int networkId, boolean validated) {
-        WifiConfiguration config = getInternalConfiguredNetwork(networkId);
+        WifiConfiguration config = getInternalConfiguredNetworkForUpdate(networkId);
         if (config == null) {
             return false;
         }
@@ -1845,7 +1996,7 @@ public class WifiConfigManager {
      * @return true if the network was found, false otherwise.
      */
     public boolean setNetworkNoInternetAccessExpected(int networkId, boolean expected) {
-        WifiConfiguration config = getInternalConfiguredNetwork(networkId);
+        WifiConfiguration config = getInternalConfiguredNetworkForUpdate(networkId);
         if (config == null) {
             return false;
         }
@@ -1970,6 +2121,10 @@ public class WifiConfigManager {
 
         // Add the scan detail to this network's scan detail cache.
         scanDetailCache.put(scanDetail);
+        if (!config.ephemeral) {
+            mNetworkChannelHistory.recordSighting(
+                    config.configKey(), scanResult.frequency, mClock.getWallClockMillis());
+        }
 
         // Since we added a scan result to this configuration, re-attempt linking.
         // TODO: Do we really need to do this after every scan result?
@@ -2165,6 +2320,7 @@ public class WifiConfigManager {
         }
         // TODO (b/30638473): This needs to become a set instead of map, but it will need
         // public interface changes and need some migration of existing store data.
+        invalidateConfiguredNetworksSnapshot();
         network2.linkedConfigurations.put(network1.configKey(), 1);
         network1.linkedConfigurations.put(network2.configKey(), 1);
     }
@@ -2176,6 +2332,7 @@ public class WifiConfigManager {
      * @param network2 WifiConfiguration corresponding to network 2.
      */
     private void unlinkNetworks(WifiConfiguration network1, WifiConfiguration network2) {
+        invalidateConfiguredNetworksSnapshot();
         if (network2.linkedConfigurations != null
                 && (network2.linkedConfigurations.get(network1.configKey()) != null)) {
             if (mVerboseLoggingEnabled) {
@@ -2243,20 +2400,18 @@ public class WifiConfigManager {
 
     /**
      * Helper method to fetch list of channels for a network from the associated ScanResult's cache
-     * and add it to the provided channel as long as the size of the set is less than
-     * |maxChannelSetSize|.
+     * and add it to the provided channel list.
      *
-     * @param channelSet        Channel set holding all the channels for the network.
+     * @param channelList       Channel list holding all the channels for the network, without
+     *                          duplicates.
      * @param scanDetailCache   ScanDetailCache entry associated with the network.
      * @param nowInMillis       current timestamp to be used for age comparison.
      * @param ageInMillis       only consider scan details whose timestamps are earlier than this
      *                          value.
-     * @param maxChannelSetSize Maximum number of channels to be added to the set.
-     * @return false if the list is full, true otherwise.
      */
-    private boolean addToChannelSetForNetworkFromScanDetailCache(
-            Set<Integer> channelSet, ScanDetailCache scanDetailCache,
-            long nowInMillis, long ageInMillis, int maxChannelSetSize) {
+    private void addToChannelListForNetworkFromScanDetailCache(
+            List<Integer> channelList, ScanDetailCache scanDetailCache,
+            long nowInMillis, long ageInMillis) {
         if (scanDetailCache != null && scanDetailCache.size() > 0) {
             for (ScanDetail scanDetail : scanDetailCache.values()) {
                 ScanResult result = scanDetail.getScanResult();
@@ -2266,15 +2421,11 @@ public class WifiConfigManager {
                             + result.frequency + " age " + (nowInMillis - result.seen)
                             + " ?=" + valid);
                 }
-                if (valid) {
-                    channelSet.add(result.frequency);
-                }
-                if (channelSet.size() >= maxChannelSetSize) {
-                    return false;
+                if (valid && !channelList.contains(result.frequency)) {
+                    channelList.add(result.frequency);
                 }
             }
         }
-        return true;
     }
 
     /**
@@ -2282,11 +2433,17 @@ public class WifiConfigManager {
      * internal ScanResult's cache {@link #mScanDetailCaches}. This is used for initiating partial
      * scans for the currently connected network.
      *
+     * The channels are ordered by likelihood according to the persisted channel history of the
+     * network {@link #mNetworkChannelHistory}, so that the least likely channels are the ones
+     * left out when the set is truncated. If the caches hold no recent scan details for the
+     * network (e.g. after a reboot), the channels are taken from the channel history instead.
+     *
      * @param networkId       network ID corresponding to the network.
      * @param ageInMillis     only consider scan details whose timestamps are earlier than this value.
      * @param homeChannelFreq frequency of the currently connected network.
-     * @return Set containing the frequencies on which this network was found, null if the network
-     * was not found or there are no associated scan details in the cache.
+     * @return Set containing the frequencies on which this network was found, in decreasing order
+     * of likelihood, null if the network was not found or there are no associated scan details in
+     * the cache nor channel history.
      */
     public Set<Integer> fetchChannelSetForNetworkForPartialScan(int networkId, long ageInMillis,
                                                                 int homeChannelFreq) {
@@ -2294,9 +2451,15 @@ public class WifiConfigManager {
         if (config == null) {
             return null;
         }
+        long nowInMillis = mClock.getWallClockMillis();
+        String configKey = config.configKey();
+        List<Integer> historyChannels =
+                mNetworkChannelHistory.getChannelsByLikelihood(configKey, nowInMillis);
         ScanDetailCache scanDetailCache = getScanDetailCacheForNetwork(networkId);
-        if (scanDetailCache == null && config.linkedConfigurations == null) {
-            Log.i(TAG, "No scan detail and linked configs associated with networkId " + networkId);
+        if (scanDetailCache == null && config.linkedConfigurations == null
+                && historyChannels.isEmpty()) {
+            Log.i(TAG, "No scan detail, linked configs and channel history associated with"
+                    + " networkId " + networkId);
             return null;
         }
         if (mVerboseLoggingEnabled) {
@@ -2304,7 +2467,7 @@ public class WifiConfigManager {
             dbg.append("fetchChannelSetForNetworkForPartialScan ageInMillis ")
                     .append(ageInMillis)
                     .append(" for ")
-                    .append(config.configKey())
+                    .append(configKey)
                     .append(" max ")
                     .append(mMaxNumActiveChannelsForPartialScans);
             if (scanDetailCache != null) {
@@ -2313,9 +2476,10 @@ public class WifiConfigManager {
             if (config.linkedConfigurations != null) {
                 dbg.append(" linked " + config.linkedConfigurations.size());
             }
+            dbg.append(" history " + historyChannels);
             Log.v(TAG, dbg.toString());
         }
-        Set<Integer> channelSet = new HashSet<>();
+        Set<Integer> channelSet = new LinkedHashSet<>();
 
         // First add the currently connected network channel.
         if (homeChannelFreq > 0) {
@@ -2325,30 +2489,42 @@ public class WifiConfigManager {
             }
         }
 
-        long nowInMillis = mClock.getWallClockMillis();
-
-        // Then get channels for the network.
-        if (!addToChannelSetForNetworkFromScanDetailCache(
-                channelSet, scanDetailCache, nowInMillis, ageInMillis,
-                mMaxNumActiveChannelsForPartialScans)) {
-            return channelSet;
-        }
-
-        // Lastly get channels for linked networks.
+        // Then get channels for the network, and lastly for linked networks.
+        List<Integer> channelList = new ArrayList<>();
+        addToChannelListForNetworkFromScanDetailCache(
+                channelList, scanDetailCache, nowInMillis, ageInMillis);
         if (config.linkedConfigurations != null) {
-            for (String configKey : config.linkedConfigurations.keySet()) {
-                WifiConfiguration linkedConfig = getInternalConfiguredNetwork(configKey);
+            for (String linkedConfigKey : config.linkedConfigurations.keySet()) {
+                WifiConfiguration linkedConfig = getInternalConfiguredNetwork(linkedConfigKey);
                 if (linkedConfig == null) {
                     continue;
                 }
                 ScanDetailCache linkedScanDetailCache =
                         getScanDetailCacheForNetwork(linkedConfig.networkId);
-                if (!addToChannelSetForNetworkFromScanDetailCache(
-                        channelSet, linkedScanDetailCache, nowInMillis, ageInMillis,
-                        mMaxNumActiveChannelsForPartialScans)) {
-                    break;
-                }
+                addToChannelListForNetworkFromScanDetailCache(
+                        channelList, linkedScanDetailCache, nowInMillis, ageInMillis);
+            }
+        }
+
+        if (channelList.isEmpty()) {
+            // Nothing recent in the caches: fall back to the channel history, already ordered.
+            channelList = historyChannels;
+        } else {
+            // Most likely channels first. The sort is stable: channels without history keep
+            // their order, the network's own channels before those of the linked networks.
+            Map<Integer, Double> weights = new HashMap<>();
+            for (int frequency : channelList) {
+                weights.put(frequency, mNetworkChannelHistory.getWeight(
+                        configKey, frequency, nowInMillis));
             }
+            Collections.sort(channelList, (a, b) -> Double.compare(weights.get(b),
+                    weights.get(a)));
+        }
+        for (int frequency : channelList) {
+            if (channelSet.size() >= mMaxNumActiveChannelsForPartialScans) {
+                break;
+            }
+            channelSet.add(frequency);
         }
         return channelSet;
     }
@@ -2359,13 +2535,15 @@ public class WifiConfigManager {
      * PNO network list sent to the firmware has limited size. If there are a lot of saved
      * networks, this list will be truncated and we might end up not sending the networks
      * with the highest chance of connecting to the firmware.
-     * So, re-sort the network list based on the frequency of connection to those networks
-     * and whether it was last seen in the scan results.
+     * So, rank the networks with {@link PnoNetworkListBuilder} based on the recency and
+     * frequency of connection to those networks, their channel history, whether they were last
+     * seen in the scan results and their security. The list is not truncated here: the number of
+     * match sets supported by the driver is not known, so the firmware keeps the networks at the
+     * head of the list.
      *
      * @return list of networks in the order of priority.
      */
     public List<WifiScanner.PnoSettings.PnoNetwork> retrievePnoNetworkList() {
-        List<WifiScanner.PnoSettings.PnoNetwork> pnoList = new ArrayList<>();
         List<WifiConfiguration> networks = new ArrayList<>(getInternalConfiguredNetworks());
         // Remove any permanently or temporarily disabled networks.
         Iterator<WifiConfiguration> iter = networks.iterator();
@@ -2377,26 +2555,40 @@ public class WifiConfigManager {
                 iter.remove();
             }
         }
+        // The comparator order only breaks the ties of the ranking of the list builder.
         Collections.sort(networks, sScanListComparator);
-        // The most frequently connected network has the highest priority now.
-        for (WifiConfiguration config : networks) {
-            pnoList.add(WifiConfigurationUtil.createPnoNetwork(config));
+        PnoNetworkListBuilder.Result result = mPnoNetworkListBuilder.build(
+                networks, Integer.MAX_VALUE, mClock.getWallClockMillis());
+        if (!result.droppedConfigKeys.isEmpty()) {
+            localLog("retrievePnoNetworkList: dropped " + result.droppedConfigKeys.size()
+                    + " networks: " + result.droppedConfigKeys);
         }
-        return pnoList;
+        return result.pnoNetworks;
     }
 
     /**
-     * Retrieves a list of all the saved hidden networks for scans.
+     * Plans the saved hidden networks to probe in a scan of all the channels, to be invoked once
+     * per scan. See {@link #planHiddenNetworksForScan(Set)}.
+     */
+    public List<WifiScanner.ScanSettings.HiddenNetwork> planHiddenNetworksForScan() {
+        return planHiddenNetworksForScan(null);
+    }
+
+    /**
+     * Plans the saved hidden networks to probe in a scan, to be invoked once per scan.
      *
-     * Hidden network list sent to the firmware has limited size. If there are a lot of saved
-     * networks, this list will be truncated and we might end up not sending the networks
-     * with the highest chance of connecting to the firmware.
-     * So, re-sort the network list based on the frequency of connection to those networks
-     * and whether it was last seen in the scan results.
+     * Each hidden network adds directed probes on every channel of the scan. If there are a lot
+     * of saved hidden networks, the scans get much longer. So, sort the network list based on the
+     * frequency of connection to those networks and whether it was last seen in the scan results,
+     * and let {@link HiddenNetworkProbePlanner} pick the few networks probed by this scan.
+     * Note: This records the returned networks as probed, moving the rotation of the networks
+     * probed by successive scans forward.
      *
+     * @param scanFreqs the frequencies scanned, null if all the channels are scanned.
      * @return list of networks in the order of priority.
      */
-    public List<WifiScanner.ScanSettings.HiddenNetwork> retrieveHiddenNetworkList() {
+    public List<WifiScanner.ScanSettings.HiddenNetwork> planHiddenNetworksForScan(
+            Set<Integer> scanFreqs) {
         List<WifiScanner.ScanSettings.HiddenNetwork> hiddenList = new ArrayList<>();
         List<WifiConfiguration> networks = new ArrayList<>(getInternalConfiguredNetworks());
         // Remove any permanently disabled networks or non hidden networks.
@@ -2409,7 +2601,8 @@ public class WifiConfigManager {
         }
         Collections.sort(networks, sScanListComparator);
         // The most frequently connected network has the highest priority now.
-        for (WifiConfiguration config : networks) {
+        for (WifiConfiguration config : mHiddenNetworkProbePlanner.plan(
+                networks, scanFreqs, mClock.getWallClockMillis())) {
             hiddenList.add(
                     new WifiScanner.ScanSettings.HiddenNetwork(config.SSID));
         }
@@ -2463,6 +2656,7 @@ public class WifiConfigManager {
      */
     public void resetSimNetworks(boolean simPresent) {
         if (mVerboseLoggingEnabled) localLog("resetSimNetworks");
+        invalidateConfiguredNetworksSnapshot();
         for (WifiConfiguration config : getInternalConfiguredNetworks()) {
             if (TelephonyUtil.isSimConfig(config)) {
                 Pair<String, String> currentIdentity = null;
@@ -2574,6 +2768,7 @@ public class WifiConfigManager {
         // Remove any private networks of the old user before switching the userId.
         Set<Integer> removedNetworkIds = clearInternalUserData(mCurrentUserId);
         mConfiguredNetworks.setNewUser(userId);
+        invalidateConfiguredNetworksSnapshot();
         mCurrentUserId = userId;
 
         if (mUserManager.isUserUnlockingOrUnlocked(mCurrentUserId)) {
@@ -2636,6 +2831,7 @@ public class WifiConfigManager {
     private void clearInternalData() {
         localLog("clearInternalData: Clearing all internal data");
         mConfiguredNetworks.clear();
+        invalidateConfiguredNetworksSnapshot();
         mDeletedEphemeralSSIDs.clear();
         mScanDetailCaches.clear();
         clearLastSelectedNetwork();
@@ -2666,6 +2862,7 @@ public class WifiConfigManager {
                 mConfiguredNetworks.remove(config.networkId);
             }
         }
+        invalidateConfiguredNetworksSnapshot();
         mDeletedEphemeralSSIDs.clear();
         mScanDetailCaches.clear();
         clearLastSelectedNetwork();
@@ -2742,6 +2939,7 @@ public class WifiConfigManager {
         if (mConfiguredNetworks.sizeForAllUsers() == 0) {
             Log.w(TAG, "No stored networks found.");
         }
+        invalidateConfiguredNetworksSnapshot();
         sendConfiguredNetworksChangedBroadcast();
         mPendingStoreRead = false;
     }
@@ -2909,6 +3107,7 @@ public class WifiConfigManager {
         // Remove the configurations for migrated Passpoint configurations.
         for (int networkId : legacyPasspointNetId) {
             mConfiguredNetworks.remove(networkId);
+            invalidateConfiguredNetworksSnapshot();
         }
 
         // Setup store data for write.
@@ -2952,6 +3151,8 @@ public class WifiConfigManager {
         pw.println("WifiConfigManager - Configured networks End ----");
         pw.println("WifiConfigManager - Next network ID to be allocated " + mNextNetworkId);
         pw.println("WifiConfigManager - Last selected network ID " + mLastSelectedNetworkId);
+        mNetworkChannelHistory.dump(pw);
+        mHiddenNetworkProbePlanner.dump(pw);
     }
 
     /**
@@ -2993,7 +3194,7 @@ public class WifiConfigManager {
      *               recent failure reason
      */
     public void setRecentFailureAssociationStatus(int netId, int reason) {
-        WifiConfiguration config = getInternalConfiguredNetwork(netId);
+        WifiConfiguration config = getInternalConfiguredNetworkForUpdate(netId);
         if (config == null) {
             return;
         }
@@ -3004,7 +3205,7 @@ public class WifiConfigManager {
      * @param netId The network ID of the config to clear the extra failure reason from
      */
     public void clearRecentFailureReason(int netId) {
-        WifiConfiguration config = getInternalConfiguredNetwork(netId);
+        WifiConfiguration config = getInternalConfiguredNetworkForUpdate(netId);
         if (config == null) {
             return;
         }
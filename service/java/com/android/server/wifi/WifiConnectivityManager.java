@@ -168,6 +168,12 @@ public class WifiConnectivityManager {
     private boolean mEnableAutoJoinWhenAssociated;
     private boolean mWaitForFullBandScanResults = false;
     private boolean mUseSingleRadioChainScanResults = false;
+    // Stage of the staged full band scan in progress, STAGED_SCAN_NONE if none. Its results
+    // are collected by AllSingleScanListener until the DFS stage completes.
+    private int mStagedScanStage = STAGED_SCAN_NONE;
+    // Set when the results of the current stage were delivered to its own listener, i.e. the
+    // next results delivered to AllSingleScanListener are the results of the stage.
+    private boolean mStagedScanResultsReady = false;
     private int mFullScanMaxTxRate;
     private int mFullScanMaxRxRate;
 
@@ -237,6 +243,14 @@ public class WifiConnectivityManager {
                 }
             };
 
+    // Stages of the staged full band scan: when disconnected with the screen on, the non-DFS
+    // channels are scanned first, and a strong saved network found there is connected to right
+    // away instead of waiting for the passive dwell on the DFS channels. Otherwise the DFS
+    // channels are scanned next, and the network selection runs on the results of both stages.
+    private static final int STAGED_SCAN_NONE = 0;
+    private static final int STAGED_SCAN_NON_DFS = 1;
+    private static final int STAGED_SCAN_DFS = 2;
+
     // Due to b/28020168, timer based single scan will be scheduled
     // to provide periodic scan in an exponential backoff fashion.
     private final AlarmManager.OnAlarmListener mPeriodicScanTimerListener =
@@ -255,6 +269,19 @@ public class WifiConnectivityManager {
      *         false - if no candidate is selected by WifiNetworkSelector
      */
     private boolean handleScanResults(List<ScanDetail> scanDetails, String listenerName) {
+        if (!prepareNetworkSelection(listenerName)) {
+            return false;
+        }
+        return handleNetworkCandidate(selectNetwork(scanDetails, listenerName), scanDetails,
+                listenerName);
+    }
+
+    /**
+     * Frees the blacklisted BSSIDs which can be, and checks that a network selection can be run.
+     *
+     * @return false if the supplicant is in a transient state, true otherwise
+     */
+    private boolean prepareNetworkSelection(String listenerName) {
         // Check if any blacklisted BSSIDs can be freed.
         refreshBssidBlacklist();
 
@@ -264,13 +291,31 @@ public class WifiConnectivityManager {
                     + mStateMachine.isSupplicantTransientState());
             return false;
         }
+        return true;
+    }
 
+    /**
+     * Runs the network selection on the scan results, see {@link #prepareNetworkSelection}.
+     *
+     * @return the network candidate selected by WifiNetworkSelector, null if none
+     */
+    private WifiConfiguration selectNetwork(List<ScanDetail> scanDetails, String listenerName) {
         localLog(listenerName + " onResults: start network selection");
 
-        WifiConfiguration candidate =
-                mNetworkSelector.selectNetwork(scanDetails, buildBssidBlacklist(), mWifiInfo,
+        return mNetworkSelector.selectNetwork(scanDetails, buildBssidBlacklist(), mWifiInfo,
                 mStateMachine.isConnected(), mStateMachine.isDisconnected(),
                 mUntrustedConnectionAllowed);
+    }
+
+    /**
+     * Acts on the result of a network selection: initiates a connection attempt to the
+     * candidate, or notifies of the open and carrier networks available if there is none.
+     *
+     * @return true - if a connection to the candidate was attempted
+     *         false - if there is no candidate
+     */
+    private boolean handleNetworkCandidate(WifiConfiguration candidate,
+            List<ScanDetail> scanDetails, String listenerName) {
         mWifiLastResortWatchdog.updateAvailableNetworks(
                 mNetworkSelector.getConnectableScanDetails());
         mWifiMetrics.countScanResults(scanDetails);
@@ -325,12 +370,31 @@ public class WifiConnectivityManager {
             if (!mWifiEnabled || !mWifiConnectivityManagerEnabled) {
                 clearScanDetails();
                 mWaitForFullBandScanResults = false;
+                mStagedScanStage = STAGED_SCAN_NONE;
+                mStagedScanResultsReady = false;
                 return;
             }
 
-            // Full band scan results only.
-            if (mWaitForFullBandScanResults) {
-                if (!results[0].isAllChannelsScanned()) {
+            boolean isAllChannelsScanned = results.length > 0 && results[0].isAllChannelsScanned();
+            if (mStagedScanStage != STAGED_SCAN_NONE) {
+                if (!mStagedScanResultsReady) {
+                    // Results of another scan: kept for the evaluation of the staged scan.
+                    return;
+                }
+                mStagedScanResultsReady = false;
+                if (mStagedScanStage == STAGED_SCAN_NON_DFS) {
+                    if (handleNonDfsStageResults(mScanDetails)) {
+                        clearScanDetails();
+                    }
+                    return;
+                }
+                // Both stages are done: together they cover all the channels.
+                mStagedScanStage = STAGED_SCAN_NONE;
+                mWaitForFullBandScanResults = false;
+                isAllChannelsScanned = true;
+            } else if (mWaitForFullBandScanResults) {
+                // Full band scan results only.
+                if (!isAllChannelsScanned) {
                     localLog("AllSingleScanListener waiting for full band scan results.");
                     clearScanDetails();
                     return;
@@ -340,7 +404,7 @@ public class WifiConnectivityManager {
             }
             if (results.length > 0) {
                 mWifiMetrics.incrementAvailableNetworksHistograms(mScanDetails,
-                        results[0].isAllChannelsScanned());
+                        isAllChannelsScanned);
             }
             if (mNumScanResultsIgnoredDueToSingleRadioChain > 0) {
                 Log.i(TAG, "Number of scan results ignored due to single radio chain scan: "
@@ -398,9 +462,12 @@ public class WifiConnectivityManager {
     //        WifiConnectivityManager.
     private class SingleScanListener implements WifiScanner.ScanListener {
         private final boolean mIsFullBandScan;
+        // Stage of the staged full band scan performed by this scan, STAGED_SCAN_NONE if none
+        private final int mStage;
 
-        SingleScanListener(boolean isFullBandScan) {
+        SingleScanListener(boolean isFullBandScan, int stage) {
             mIsFullBandScan = isFullBandScan;
+            mStage = stage;
         }
 
         @Override
@@ -412,6 +479,11 @@ public class WifiConnectivityManager {
             localLog("SingleScanListener onFailure:"
                     + " reason: " + reason + " description: " + description);
 
+            // A failed stage ends the staged scan. The scan is retried as a regular scan.
+            if (mStage != STAGED_SCAN_NONE && mStage == mStagedScanStage) {
+                resetStagedScan();
+            }
+
             // reschedule the scan
             if (mSingleScanRestartCount++ < MAX_SCAN_RESTART_ALLOWED) {
                 scheduleDelayedSingleScan(mIsFullBandScan);
@@ -430,6 +502,10 @@ public class WifiConnectivityManager {
 
         @Override
         public void onResults(WifiScanner.ScanData[] results) {
+            // The results of the scan are delivered to AllSingleScanListener right after.
+            if (mStage != STAGED_SCAN_NONE && mStage == mStagedScanStage) {
+                mStagedScanResultsReady = true;
+            }
         }
 
         @Override
@@ -437,6 +513,57 @@ public class WifiConnectivityManager {
         }
     }
 
+    /**
+     * Handles the results of the non-DFS stage of a staged full band scan: connects to the
+     * network candidate if its RSSI is good, or starts the DFS stage otherwise.
+     *
+     * @return true - if a connection to the candidate was attempted
+     *         false - if the DFS stage was started
+     */
+    private boolean handleNonDfsStageResults(List<ScanDetail> scanDetails) {
+        final String listenerName = "AllSingleScanListener";
+        boolean canSelectNetwork = prepareNetworkSelection(listenerName);
+        WifiConfiguration candidate =
+                canSelectNetwork ? selectNetwork(scanDetails, listenerName) : null;
+        mStagedScanStage = STAGED_SCAN_NONE;
+        ScanResult scanResultCandidate =
+                candidate == null ? null : candidate.getNetworkSelectionStatus().getCandidate();
+        if (scanResultCandidate != null && scanResultCandidate.level
+                >= mScoringParams.getGoodRssi(scanResultCandidate.frequency)) {
+            localLog("Staged scan: strong candidate " + candidate.SSID
+                    + " found before the DFS channels");
+            return handleNetworkCandidate(candidate, scanDetails, listenerName);
+        }
+        localLog("Staged scan: no strong candidate on the non-DFS channels, scan the DFS ones");
+        if (startSingleScan(true, STAGED_SCAN_DFS, WIFI_WORK_SOURCE)) {
+            return false;
+        }
+        // The DFS stage can't start: settle for the results of the non-DFS stage.
+        if (canSelectNetwork) {
+            handleNetworkCandidate(candidate, scanDetails, listenerName);
+        }
+        return true;
+    }
+
+    // End the staged scan in progress, if any, and drop the results of its stages.
+    private void resetStagedScan() {
+        if (mStagedScanStage != STAGED_SCAN_NONE) {
+            mStagedScanStage = STAGED_SCAN_NONE;
+            mStagedScanResultsReady = false;
+            mAllSingleScanListener.clearScanDetails();
+        }
+    }
+
+    // Whether a full band scan is better staged: there are DFS channels to scan last.
+    private boolean shouldStageFullBandScan() {
+        if (mWifiState != WIFI_STATE_DISCONNECTED || mWaitForFullBandScanResults) {
+            return false;
+        }
+        List<Integer> dfsChannels =
+                mScanner.getAvailableChannels(WifiScanner.WIFI_BAND_5_GHZ_DFS_ONLY);
+        return dfsChannels != null && !dfsChannels.isEmpty();
+    }
+
     // PNO scan results listener for both disconected and connected PNO scanning.
     // A PNO scan is initiated when screen is off.
     private class PnoScanListener implements WifiScanner.PnoScanListener {
@@ -868,7 +995,12 @@ public class WifiConnectivityManager {
 
         if (isScanNeeded) {
             mLastPeriodicSingleScanTimeStamp = currentTimeStamp;
-            startSingleScan(isFullBandScan, WIFI_WORK_SOURCE);
+            if (isFullBandScan && shouldStageFullBandScan()) {
+                resetStagedScan();
+                startSingleScan(true, STAGED_SCAN_NON_DFS, WIFI_WORK_SOURCE);
+            } else {
+                startSingleScan(isFullBandScan, WIFI_WORK_SOURCE);
+            }
             schedulePeriodicScanTimer(mPeriodicSingleScanInterval);
 
             // Set up the next scan interval in an exponential backoff fashion.
@@ -900,8 +1032,15 @@ public class WifiConnectivityManager {
 
     // Start a single scan
     private void startSingleScan(boolean isFullBandScan, WorkSource workSource) {
+        startSingleScan(isFullBandScan, STAGED_SCAN_NONE, workSource);
+    }
+
+    // Start a single scan, or a stage of a staged full band scan. Returns false if the scan
+    // was skipped.
+    private boolean startSingleScan(boolean isFullBandScan, int stagedScanStage,
+            WorkSource workSource) {
         if (!mWifiEnabled || !mWifiConnectivityManagerEnabled) {
-            return;
+            return false;
         }
 
         // Any scans will impact Wifi performance including WFD performance,
@@ -912,7 +1051,7 @@ public class WifiConnectivityManager {
                 (mMiracastMode == WifiP2pManager.MIRACAST_SOURCE ||
                 mMiracastMode == WifiP2pManager.MIRACAST_SINK)) {
             localLog("Ignore connectivity scan, MiracastMode:" + mMiracastMode);
-            return;
+            return false;
         }
 
         mPnoScanListener.resetLowRssiNetworkRetryDelay();
@@ -925,19 +1064,36 @@ public class WifiConnectivityManager {
         }
         settings.type = WifiScanner.TYPE_HIGH_ACCURACY; // always do high accuracy scans.
         settings.band = getScanBand(isFullBandScan);
+        if (stagedScanStage == STAGED_SCAN_NON_DFS) {
+            settings.band = WifiScanner.WIFI_BAND_BOTH;
+        } else if (stagedScanStage == STAGED_SCAN_DFS) {
+            settings.band = WifiScanner.WIFI_BAND_5_GHZ_DFS_ONLY;
+        }
         settings.reportEvents = WifiScanner.REPORT_EVENT_FULL_SCAN_RESULT
                             | WifiScanner.REPORT_EVENT_AFTER_EACH_SCAN;
         settings.numBssidsPerScan = 0;
 
+        // Partial scans only probe the hidden networks seen on their channels.
+        Set<Integer> scanFreqs = null;
+        if (!isFullBandScan) {
+            scanFreqs = new HashSet<>();
+            for (WifiScanner.ChannelSpec channel : settings.channels) {
+                scanFreqs.add(channel.frequency);
+            }
+        }
         List<ScanSettings.HiddenNetwork> hiddenNetworkList =
-                mConfigManager.retrieveHiddenNetworkList();
+                mConfigManager.planHiddenNetworksForScan(scanFreqs);
         settings.hiddenNetworks =
                 hiddenNetworkList.toArray(new ScanSettings.HiddenNetwork[hiddenNetworkList.size()]);
 
         SingleScanListener singleScanListener =
-                new SingleScanListener(isFullBandScan);
+                new SingleScanListener(isFullBandScan, stagedScanStage);
+        if (stagedScanStage != STAGED_SCAN_NONE) {
+            mStagedScanStage = stagedScanStage;
+        }
         mScanner.startScan(settings, singleScanListener, workSource);
         mWifiMetrics.incrementConnectivityOneshotScanCount();
+        return true;
     }
 
     // Start a periodic scan when screen is on
@@ -1095,6 +1251,7 @@ public class WifiConnectivityManager {
         cancelPeriodicScanTimer();
         stopPnoScan();
         mScanRestartCount = 0;
+        resetStagedScan();
     }
 
     /**
@@ -35,6 +35,7 @@ import android.util.Log;
 import com.android.internal.util.Protocol;
 import com.android.internal.util.State;
 import com.android.internal.util.StateMachine;
+import com.android.server.wifi.util.StateMachineProfiler;
 
 /**
  * WifiController is the class used to manage on/off state of WifiStateMachine for various operating
@@ -45,6 +46,7 @@ public class WifiController extends StateMachine {
     private static final boolean DBG = false;
     private Context mContext;
     private boolean mFirstUserSignOnSeen = false;
+    private StateMachineProfiler mStateMachineProfiler;
 
     /**
      * See {@link Settings.Global#WIFI_REENABLE_DELAY_MS}.  This is the default value if a
@@ -187,6 +189,27 @@ public class WifiController extends StateMachine {
         readWifiReEnableDelay();
     }
 
+    /**
+     * Set the profiler to report the handling of messages to, see {@link StateMachineProfiler}.
+     */
+    public void setStateMachineProfiler(StateMachineProfiler stateMachineProfiler) {
+        mStateMachineProfiler = stateMachineProfiler;
+    }
+
+    @Override
+    protected void onPreHandleMessage(Message msg) {
+        if (mStateMachineProfiler != null && mStateMachineProfiler.isEnabled()) {
+            mStateMachineProfiler.onPreHandleMessage(this, msg);
+        }
+    }
+
+    @Override
+    protected void onPostHandleMessage(Message msg) {
+        if (mStateMachineProfiler != null && mStateMachineProfiler.isEnabled()) {
+            mStateMachineProfiler.onPostHandleMessage(this, msg, getWhatToString(msg.what));
+        }
+    }
+
     private boolean checkScanOnlyModeAvailable() {
         // first check if Location service is disabled, if so return false
         if (mSettingsStore.getLocationModeSetting(mContext)
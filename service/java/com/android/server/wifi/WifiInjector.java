@@ -58,6 +58,7 @@ import com.android.server.wifi.p2p.SupplicantP2pIfaceHal;
 import com.android.server.wifi.p2p.WifiP2pMonitor;
 import com.android.server.wifi.p2p.WifiP2pNative;
 import com.android.server.wifi.rtt.RttMetrics;
+import com.android.server.wifi.util.StateMachineProfiler;
 import com.android.server.wifi.util.WifiPermissionsUtil;
 import com.android.server.wifi.util.WifiPermissionsWrapper;
 
@@ -102,6 +103,7 @@ public class WifiInjector {
     private final WifiController mWifiController;
     private final WificondControl mWificondControl;
     private final Clock mClock = new Clock();
+    private final StateMachineProfiler mStateMachineProfiler = new StateMachineProfiler(mClock);
     private final WifiMetrics mWifiMetrics;
     private final WifiLastResortWatchdog mWifiLastResortWatchdog;
     private final PropertyService mPropertyService = new SystemPropertyService();
@@ -137,6 +139,8 @@ public class WifiInjector {
     private final WakeupController mWakeupController;
     private final INetworkManagementService mNwManagementService;
     private final ScanRequestProxy mScanRequestProxy;
+    private final SoftApChannelSelector mSoftApChannelSelector;
+    private final MergedScanResultTable mMergedScanResultTable;
     private final SarManager mSarManager;
     private final BaseWifiDiagnostics mWifiDiagnostics;
 
@@ -196,6 +200,11 @@ public class WifiInjector {
                 mWifiMonitor, mNwManagementService, mPropertyService, mWifiMetrics);
         mWifiP2pMonitor = new WifiP2pMonitor(this);
         mSupplicantP2pIfaceHal = new SupplicantP2pIfaceHal(mWifiP2pMonitor);
+        HalCallTracker halCallTracker = mWifiMetrics.getHalCallTracker();
+        mWifiVendorHal.setHalCallTracker(halCallTracker);
+        mSupplicantStaIfaceHal.setHalCallTracker(halCallTracker);
+        mHostapdHal.setHalCallTracker(halCallTracker);
+        mSupplicantP2pIfaceHal.setHalCallTracker(halCallTracker);
         mWifiP2pNative = new WifiP2pNative(mSupplicantP2pIfaceHal, mHalDeviceManager);
 
         // Now get instances of all the objects that depend on the HandlerThreads
@@ -226,7 +235,8 @@ public class WifiInjector {
                 UserManager.get(mContext), TelephonyManager.from(mContext),
                 mWifiKeyStore, mWifiConfigStore, mWifiConfigStoreLegacy, mWifiPermissionsUtil,
                 mWifiPermissionsWrapper, new NetworkListStoreData(mContext),
-                new DeletedEphemeralSsidsStoreData());
+                new DeletedEphemeralSsidsStoreData(), new NetworkChannelHistoryStoreData(),
+                wifiStateMachineLooper);
         mWifiMetrics.setWifiConfigManager(mWifiConfigManager);
         mWifiConnectivityHelper = new WifiConnectivityHelper(mWifiNative);
         mConnectivityLocalLog = new LocalLog(ActivityManager.isLowRamDeviceStatic() ? 256 : 512);
@@ -249,11 +259,13 @@ public class WifiInjector {
         mPasspointNetworkEvaluator = new PasspointNetworkEvaluator(
                 mPasspointManager, mWifiConfigManager, mConnectivityLocalLog);
         mWifiMetrics.setPasspointManager(mPasspointManager);
+        mSoftApChannelSelector = new SoftApChannelSelector(mClock);
+        mMergedScanResultTable = new MergedScanResultTable(mClock);
         mScanRequestProxy = new ScanRequestProxy(mContext,
                 (AppOpsManager) mContext.getSystemService(Context.APP_OPS_SERVICE),
                 (ActivityManager) mContext.getSystemService(Context.ACTIVITY_SERVICE),
                 this, mWifiConfigManager,
-                mWifiPermissionsUtil, mWifiMetrics, mClock);
+                mWifiPermissionsUtil, mWifiMetrics, mBatteryStats, mClock);
         mSarManager = new SarManager(mContext, makeTelephonyManager(), wifiStateMachineLooper,
                 mWifiNative, new SystemSensorManager(mContext, wifiStateMachineLooper));
         if (mUseRealLogger) {
@@ -294,6 +306,8 @@ public class WifiInjector {
         mWifiController = new WifiController(mContext, mWifiStateMachine, wifiStateMachineLooper,
                 mSettingsStore, mWifiServiceHandlerThread.getLooper(), mFrameworkFacade,
                 mWifiStateMachinePrime);
+        mWifiStateMachine.setStateMachineProfiler(mStateMachineProfiler);
+        mWifiController.setStateMachineProfiler(mStateMachineProfiler);
         mSelfRecovery = new SelfRecovery(mWifiController, mClock);
         mWifiLastResortWatchdog = new WifiLastResortWatchdog(mSelfRecovery, mClock,
                 mWifiMetrics, mWifiStateMachine, wifiStateMachineLooper);
@@ -338,6 +352,10 @@ public class WifiInjector {
         return mWifiMetrics;
     }
 
+    public StateMachineProfiler getStateMachineProfiler() {
+        return mStateMachineProfiler;
+    }
+
     public SupplicantStaIfaceHal getSupplicantStaIfaceHal() {
         return mSupplicantStaIfaceHal;
     }
@@ -467,7 +485,7 @@ public class WifiInjector {
                                            @NonNull SoftApModeConfiguration config) {
         return new SoftApManager(mContext, mWifiStateMachineHandlerThread.getLooper(),
                 mFrameworkFacade, mWifiNative, mCountryCode.getCountryCode(), callback,
-                mWifiApConfigStore, config, mWifiMetrics, mSarManager);
+                mWifiApConfigStore, config, mWifiMetrics, mSarManager, mSoftApChannelSelector);
     }
 
     /**
@@ -609,6 +627,14 @@ public class WifiInjector {
         return mScanRequestProxy;
     }
 
+    public SoftApChannelSelector getSoftApChannelSelector() {
+        return mSoftApChannelSelector;
+    }
+
+    public MergedScanResultTable getMergedScanResultTable() {
+        return mMergedScanResultTable;
+    }
+
     public Runtime getJavaRuntime() {
         return Runtime.getRuntime();
     }
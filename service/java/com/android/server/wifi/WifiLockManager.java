@@ -22,13 +22,16 @@ import android.os.Binder;
 import android.os.IBinder;
 import android.os.RemoteException;
 import android.os.WorkSource;
+import android.os.WorkSource.WorkChain;
 import android.util.Slog;
 
 import com.android.internal.app.IBatteryStats;
 
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * WifiLockManager maintains the list of wake locks held by different applications.
@@ -40,7 +43,17 @@ public class WifiLockManager {
     private final Context mContext;
     private final IBatteryStats mBatteryStats;
 
-    private final List<WifiLock> mWifiLocks = new ArrayList<>();
+    // Held locks, indexed by the binder of the app holding them.
+    private final Map<IBinder, WifiLock> mWifiLocks = new HashMap<>();
+    // Number of held locks of each mode: the strongest mode is read off these.
+    private int mFullHighPerfLocksHeld;
+    private int mFullLocksHeld;
+    private int mScanLocksHeld;
+    // Union of the WorkSources of the held locks, maintained as locks come and go. Each attribution
+    // entry (UID/name or work chain) is reference counted: it leaves the union once no held lock
+    // carries it.
+    private final WorkSource mMergedWorkSource = new WorkSource();
+    private final Map<WorkSource, Integer> mWorkSourceEntryRefCounts = new HashMap<>();
     // some wifi lock statistics
     private int mFullHighPerfLocksAcquired;
     private int mFullHighPerfLocksReleased;
@@ -104,11 +117,11 @@ public class WifiLockManager {
             return WifiManager.WIFI_MODE_NO_LOCKS_HELD;
         }
 
-        if (mFullHighPerfLocksAcquired > mFullHighPerfLocksReleased) {
+        if (mFullHighPerfLocksHeld > 0) {
             return WifiManager.WIFI_MODE_FULL_HIGH_PERF;
         }
 
-        if (mFullLocksAcquired > mFullLocksReleased) {
+        if (mFullLocksHeld > 0) {
             return WifiManager.WIFI_MODE_FULL;
         }
 
@@ -119,11 +132,7 @@ public class WifiLockManager {
      * Method to create a WorkSource containing all active WifiLock WorkSources.
      */
     public synchronized WorkSource createMergedWorkSource() {
-        WorkSource mergedWS = new WorkSource();
-        for (WifiLock lock : mWifiLocks) {
-            mergedWS.add(lock.getWorkSource());
-        }
-        return mergedWS;
+        return new WorkSource(mMergedWorkSource);
     }
 
     /**
@@ -164,6 +173,8 @@ public class WifiLockManager {
             mBatteryStats.noteFullWifiLockAcquiredFromSource(newWorkSource);
             mBatteryStats.noteFullWifiLockReleasedFromSource(wl.mWorkSource);
 
+            addToMergedWorkSource(newWorkSource);
+            removeFromMergedWorkSource(wl.mWorkSource);
             wl.mWorkSource = newWorkSource;
         } catch (RemoteException e) {
         } finally {
@@ -192,7 +203,9 @@ public class WifiLockManager {
             return false;
         }
 
-        mWifiLocks.add(lock);
+        mWifiLocks.put(lock.getBinder(), lock);
+        updateHeldLockCount(lock.mMode, 1);
+        addToMergedWorkSource(lock.mWorkSource);
 
         boolean lockAdded = false;
         long ident = Binder.clearCallingIdentity();
@@ -218,14 +231,81 @@ public class WifiLockManager {
     }
 
     private synchronized WifiLock removeLock(IBinder binder) {
-        WifiLock lock = findLockByBinder(binder);
+        WifiLock lock = mWifiLocks.remove(binder);
         if (lock != null) {
-            mWifiLocks.remove(lock);
+            updateHeldLockCount(lock.mMode, -1);
+            removeFromMergedWorkSource(lock.mWorkSource);
             lock.unlinkDeathRecipient();
         }
         return lock;
     }
 
+    private void updateHeldLockCount(int lockMode, int delta) {
+        switch (lockMode) {
+            case WifiManager.WIFI_MODE_FULL:
+                mFullLocksHeld += delta;
+                break;
+            case WifiManager.WIFI_MODE_FULL_HIGH_PERF:
+                mFullHighPerfLocksHeld += delta;
+                break;
+            case WifiManager.WIFI_MODE_SCAN_ONLY:
+                mScanLocksHeld += delta;
+                break;
+        }
+    }
+
+    private void addToMergedWorkSource(WorkSource ws) {
+        for (WorkSource entry : splitWorkSource(ws)) {
+            Integer refCount = mWorkSourceEntryRefCounts.get(entry);
+            if (refCount == null) {
+                mWorkSourceEntryRefCounts.put(entry, 1);
+                mMergedWorkSource.add(entry);
+            } else {
+                mWorkSourceEntryRefCounts.put(entry, refCount + 1);
+            }
+        }
+    }
+
+    private void removeFromMergedWorkSource(WorkSource ws) {
+        for (WorkSource entry : splitWorkSource(ws)) {
+            Integer refCount = mWorkSourceEntryRefCounts.get(entry);
+            if (refCount == null) {
+                Slog.wtf(TAG, "removeFromMergedWorkSource: unknown entry " + entry);
+            } else if (refCount == 1) {
+                mWorkSourceEntryRefCounts.remove(entry);
+                mMergedWorkSource.remove(entry);
+            } else {
+                mWorkSourceEntryRefCounts.put(entry, refCount - 1);
+            }
+        }
+    }
+
+    /**
+     * Split a WorkSource into single-entry WorkSources: one per UID (and name) and one per work
+     * chain.
+     */
+    private static List<WorkSource> splitWorkSource(WorkSource ws) {
+        List<WorkSource> entries = new ArrayList<>();
+        for (int i = 0; i < ws.size(); i++) {
+            String name = ws.getName(i);
+            entries.add(name == null ? new WorkSource(ws.get(i)) : new WorkSource(ws.get(i), name));
+        }
+        List<WorkChain> workChains = ws.getWorkChains();
+        if (workChains != null) {
+            for (WorkChain workChain : workChains) {
+                WorkSource entry = new WorkSource();
+                WorkChain copy = entry.createWorkChain();
+                int[] uids = workChain.getUids();
+                String[] tags = workChain.getTags();
+                for (int i = 0; i < workChain.getSize(); i++) {
+                    copy.addNode(uids[i], tags[i]);
+                }
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
     private synchronized boolean releaseLock(IBinder binder) {
         WifiLock wifiLock = removeLock(binder);
         if (wifiLock == null) {
@@ -260,12 +340,7 @@ public class WifiLockManager {
 
 
     private synchronized WifiLock findLockByBinder(IBinder binder) {
-        for (WifiLock lock : mWifiLocks) {
-            if (lock.getBinder() == binder) {
-                return lock;
-            }
-        }
-        return null;
+        return mWifiLocks.get(binder);
     }
 
     protected void dump(PrintWriter pw) {
@@ -276,8 +351,10 @@ public class WifiLockManager {
                 + mFullHighPerfLocksReleased + " full high perf, "
                 + mScanLocksReleased + " scan");
         pw.println();
-        pw.println("Locks held:");
-        for (WifiLock lock : mWifiLocks) {
+        pw.println("Locks held: " + mFullLocksHeld + " full, "
+                + mFullHighPerfLocksHeld + " full high perf, "
+                + mScanLocksHeld + " scan");
+        for (WifiLock lock : mWifiLocks.values()) {
             pw.print("    ");
             pw.println(lock);
         }
@@ -191,6 +191,26 @@ public class WifiMetrics {
     private boolean mIsWifiNetworksAvailableNotificationOn = false;
     private int mNumOpenNetworkConnectMessageFailedToSend = 0;
     private int mNumOpenNetworkRecommendationUpdates = 0;
+    /** Scan requests from external apps which joined a scan already in flight */
+    private int mNumExternalAppOneshotScanRequestsCoalesced = 0;
+    /** Scan requests from external apps which were served the results of a just completed scan */
+    private int mNumExternalAppOneshotScanRequestsServedFromRecentScan = 0;
+    /** Histogram of the number of single scan requests served by each single scan of the radio */
+    private final SparseIntArray mSingleScanRequestsPerRadioScanHistogram = new SparseIntArray();
+    /** Fan-outs of single scan results to the requests and listeners, and their cost */
+    private int mNumScanResultFanOuts = 0;
+    private long mNumScanResultFanOutRecipients = 0;
+    private long mNumScanResultFanOutFilterPasses = 0;
+    private long mScanResultFanOutDurationNanos = 0;
+    /**
+     * Radio single scans with and without hidden networks, their directed probes (hidden
+     * networks * actively scanned channels) and their duration
+     */
+    private int mNumSingleScansWithHiddenNetworks = 0;
+    private long mNumHiddenNetworkProbes = 0;
+    private long mSingleScansWithHiddenNetworksDurationMillis = 0;
+    private int mNumSingleScansWithoutHiddenNetworks = 0;
+    private long mSingleScansWithoutHiddenNetworksDurationMillis = 0;
     /** List of soft AP events related to number of connected clients in tethered mode */
     private final List<SoftApConnectedClientsEvent> mSoftApEventListTethered = new ArrayList<>();
     /** List of soft AP events related to number of connected clients in local only mode */
@@ -211,6 +231,9 @@ public class WifiMetrics {
     /** Wifi Wake metrics */
     private final WifiWakeMetrics mWifiWakeMetrics = new WifiWakeMetrics();
 
+    /** Latency of the HIDL calls made by the HAL wrappers, kept since boot */
+    private final HalCallTracker mHalCallTracker;
+
     private boolean mIsMacRandomizationOn = false;
 
     class RouterFingerPrint {
@@ -455,6 +478,7 @@ public class WifiMetrics {
         mRecordStartTimeSec = mClock.getElapsedSinceBootMillis() / 1000;
         mWifiAwareMetrics = awareMetrics;
         mRttMetrics = rttMetrics;
+        mHalCallTracker = new HalCallTracker(clock);
 
         mHandler = new Handler(looper) {
             public void handleMessage(Message msg) {
@@ -941,6 +965,74 @@ public class WifiMetrics {
         }
     }
 
+    /**
+     * Increment count of oneshot scan requests from external apps which joined a scan already in
+     * flight instead of starting a new one.
+     */
+    public void incrementExternalAppOneshotScanRequestsCoalescedCount() {
+        synchronized (mLock) {
+            mNumExternalAppOneshotScanRequestsCoalesced++;
+        }
+    }
+
+    /**
+     * Increment count of oneshot scan requests from external apps which were served the results
+     * of a just completed scan instead of starting a new one.
+     */
+    public void incrementExternalAppOneshotScanRequestsServedFromRecentScanCount() {
+        synchronized (mLock) {
+            mNumExternalAppOneshotScanRequestsServedFromRecentScan++;
+        }
+    }
+
+    /**
+     * Record the number of single scan requests served by a single scan of the radio.
+     */
+    public void addSingleScanRequestsPerRadioScan(int numRequests) {
+        synchronized (mLock) {
+            mSingleScanRequestsPerRadioScanHistogram.put(numRequests,
+                    mSingleScanRequestsPerRadioScanHistogram.get(numRequests) + 1);
+        }
+    }
+
+    /**
+     * Record a fan-out of single scan results.
+     *
+     * @param numRecipients Number of requests and listeners the results were delivered to.
+     * @param numFilterPasses Number of times the results were filtered for the recipients.
+     * @param durationNanos Time spent on the fan-out.
+     */
+    public void addScanResultFanOut(int numRecipients, int numFilterPasses, long durationNanos) {
+        synchronized (mLock) {
+            mNumScanResultFanOuts++;
+            mNumScanResultFanOutRecipients += numRecipients;
+            mNumScanResultFanOutFilterPasses += numFilterPasses;
+            mScanResultFanOutDurationNanos += durationNanos;
+        }
+    }
+
+    /**
+     * Record the duration of a radio single scan.
+     *
+     * @param numHiddenNetworks Number of hidden networks probed by the scan.
+     * @param numProbedChannels Number of channels scanned actively, on which the hidden networks
+     * are probed. The DFS channels are scanned passively and not counted.
+     * @param durationMillis Time from the start of the scan to its results.
+     */
+    public void addSingleScanDuration(int numHiddenNetworks, int numProbedChannels,
+            long durationMillis) {
+        synchronized (mLock) {
+            if (numHiddenNetworks > 0) {
+                mNumSingleScansWithHiddenNetworks++;
+                mNumHiddenNetworkProbes += (long) numHiddenNetworks * numProbedChannels;
+                mSingleScansWithHiddenNetworksDurationMillis += durationMillis;
+            } else {
+                mNumSingleScansWithoutHiddenNetworks++;
+                mSingleScansWithoutHiddenNetworksDurationMillis += durationMillis;
+            }
+        }
+    }
+
     private String returnCodeToString(int scanReturnCode) {
         switch(scanReturnCode){
             case WifiMetricsProto.WifiLog.SCAN_UNKNOWN:
@@ -1902,6 +1994,23 @@ public class WifiMetrics {
                         + mWifiLogProto.numExternalForegroundAppOneshotScanRequestsThrottled);
                 pw.println("mWifiLogProto.numExternalBackgroundAppOneshotScanRequestsThrottled="
                         + mWifiLogProto.numExternalBackgroundAppOneshotScanRequestsThrottled);
+                pw.println("mNumExternalAppOneshotScanRequestsCoalesced="
+                        + mNumExternalAppOneshotScanRequestsCoalesced);
+                pw.println("mNumExternalAppOneshotScanRequestsServedFromRecentScan="
+                        + mNumExternalAppOneshotScanRequestsServedFromRecentScan);
+                pw.println("mSingleScanRequestsPerRadioScanHistogram="
+                        + mSingleScanRequestsPerRadioScanHistogram.toString());
+                pw.println("mNumScanResultFanOuts=" + mNumScanResultFanOuts
+                        + " recipients=" + mNumScanResultFanOutRecipients
+                        + " filterPasses=" + mNumScanResultFanOutFilterPasses
+                        + " durationMicros=" + mScanResultFanOutDurationNanos / 1000);
+                pw.println("mNumSingleScansWithHiddenNetworks="
+                        + mNumSingleScansWithHiddenNetworks
+                        + " hiddenNetworkProbes=" + mNumHiddenNetworkProbes
+                        + " durationMillis=" + mSingleScansWithHiddenNetworksDurationMillis);
+                pw.println("mNumSingleScansWithoutHiddenNetworks="
+                        + mNumSingleScansWithoutHiddenNetworks
+                        + " durationMillis=" + mSingleScansWithoutHiddenNetworksDurationMillis);
 
                 pw.println("mScanReturnEntries:");
                 pw.println("  SCAN_UNKNOWN: " + getScanReturnEntry(
@@ -2213,6 +2322,7 @@ public class WifiMetrics {
 
                 mWifiPowerMetrics.dump(pw);
                 mWifiWakeMetrics.dump(pw);
+                mHalCallTracker.dump(pw);
 
                 pw.println("mWifiLogProto.isMacRandomizationOn=" + mIsMacRandomizationOn);
                 pw.println("mWifiLogProto.scoreExperimentId=" + mWifiLogProto.scoreExperimentId);
@@ -2655,6 +2765,18 @@ public class WifiMetrics {
             mConnectToNetworkNotificationActionCount.clear();
             mNumOpenNetworkRecommendationUpdates = 0;
             mNumOpenNetworkConnectMessageFailedToSend = 0;
+            mNumExternalAppOneshotScanRequestsCoalesced = 0;
+            mNumExternalAppOneshotScanRequestsServedFromRecentScan = 0;
+            mSingleScanRequestsPerRadioScanHistogram.clear();
+            mNumScanResultFanOuts = 0;
+            mNumScanResultFanOutRecipients = 0;
+            mNumScanResultFanOutFilterPasses = 0;
+            mScanResultFanOutDurationNanos = 0;
+            mNumSingleScansWithHiddenNetworks = 0;
+            mNumHiddenNetworkProbes = 0;
+            mSingleScansWithHiddenNetworksDurationMillis = 0;
+            mNumSingleScansWithoutHiddenNetworks = 0;
+            mSingleScansWithoutHiddenNetworksDurationMillis = 0;
             mObservedHotspotR1ApInScanHistogram.clear();
             mObservedHotspotR2ApInScanHistogram.clear();
             mObservedHotspotR1EssInScanHistogram.clear();
@@ -2858,6 +2980,10 @@ public class WifiMetrics {
         return mWifiWakeMetrics;
     }
 
+    public HalCallTracker getHalCallTracker() {
+        return mHalCallTracker;
+    }
+
     public RttMetrics getRttMetrics() {
         return mRttMetrics;
     }
@@ -150,6 +150,7 @@ public class WifiServiceImpl extends IWifiManager.Stub {
     final WifiStateMachine mWifiStateMachine;
     final WifiStateMachinePrime mWifiStateMachinePrime;
     final ScanRequestProxy mScanRequestProxy;
+    final WifiConfigManager mWifiConfigManager;
 
     private final Context mContext;
     private final FrameworkFacade mFacade;
@@ -455,6 +456,7 @@ public class WifiServiceImpl extends IWifiManager.Stub {
         mWifiStateMachinePrime = mWifiInjector.getWifiStateMachinePrime();
         mWifiStateMachine.enableRssiPolling(true);
         mScanRequestProxy = mWifiInjector.getScanRequestProxy();
+        mWifiConfigManager = mWifiInjector.getWifiConfigManager();
         mSettingsStore = mWifiInjector.getWifiSettingsStore();
         mPowerManager = mContext.getSystemService(PowerManager.class);
         mAppOps = (AppOpsManager) mContext.getSystemService(Context.APP_OPS_SERVICE);
@@ -1749,6 +1751,13 @@ public class WifiServiceImpl extends IWifiManager.Stub {
         if (mVerboseLoggingEnabled) {
             mLog.info("getConfiguredNetworks uid=%").c(Binder.getCallingUid()).flush();
         }
+        // Serve the snapshot directly if it is up to date, avoids queuing behind the
+        // WifiStateMachine.
+        WifiConfigManager.ConfiguredNetworksSnapshot snapshot =
+                mWifiConfigManager.getConfiguredNetworksSnapshot();
+        if (snapshot != null) {
+            return new ParceledListSlice<WifiConfiguration>(snapshot.getSavedNetworks());
+        }
         if (mWifiStateMachineChannel != null) {
             List<WifiConfiguration> configs = mWifiStateMachine.syncGetConfiguredNetworks(
                     Binder.getCallingUid(), mWifiStateMachineChannel);
@@ -1772,6 +1781,12 @@ public class WifiServiceImpl extends IWifiManager.Stub {
         if (mVerboseLoggingEnabled) {
             mLog.info("getPrivilegedConfiguredNetworks uid=%").c(Binder.getCallingUid()).flush();
         }
+        WifiConfigManager.ConfiguredNetworksSnapshot snapshot =
+                mWifiConfigManager.getConfiguredNetworksSnapshot();
+        if (snapshot != null) {
+            return new ParceledListSlice<WifiConfiguration>(
+                    snapshot.getConfiguredNetworksWithPasswords());
+        }
         if (mWifiStateMachineChannel != null) {
             List<WifiConfiguration> configs =
                     mWifiStateMachine.syncGetPrivilegedConfiguredNetwork(mWifiStateMachineChannel);
@@ -2045,14 +2060,9 @@ public class WifiServiceImpl extends IWifiManager.Stub {
         }
         try {
             mWifiPermissionsUtil.enforceCanAccessScanResults(callingPackage, uid);
-            final List<ScanResult> scanResults = new ArrayList<>();
-            boolean success = mWifiInjector.getWifiStateMachineHandler().runWithScissors(() -> {
-                scanResults.addAll(mScanRequestProxy.getScanResults());
-            }, RUN_WITH_SCISSORS_TIMEOUT_MILLIS);
-            if (!success) {
-                Log.e(TAG, "Failed to post runnable to fetch scan results");
-            }
-            return scanResults;
+            // The scan results are published as an immutable snapshot, no need to go through
+            // the WifiStateMachine thread.
+            return new ArrayList<>(mScanRequestProxy.getScanResults());
         } catch (SecurityException e) {
             return new ArrayList<ScanResult>();
         } finally {
@@ -2507,8 +2517,9 @@ public class WifiServiceImpl extends IWifiManager.Stub {
     @Override
     public void onShellCommand(FileDescriptor in, FileDescriptor out, FileDescriptor err,
             String[] args, ShellCallback callback, ResultReceiver resultReceiver) {
-        (new WifiShellCommand(mWifiStateMachine)).exec(this, in, out, err, args, callback,
-                resultReceiver);
+        (new WifiShellCommand(mWifiStateMachine, mWifiInjector.getStateMachineProfiler(),
+                mWifiMetrics.getHalCallTracker())).exec(
+                        this, in, out, err, args, callback, resultReceiver);
     }
 
     @Override
@@ -2553,6 +2564,8 @@ public class WifiServiceImpl extends IWifiManager.Stub {
             pw.println();
             mWifiStateMachine.dump(fd, pw, args);
             pw.println();
+            mWifiInjector.getStateMachineProfiler().dump(pw);
+            pw.println();
             mWifiStateMachine.updateWifiMetrics();
             mWifiMetrics.dump(fd, pw, args);
             pw.println();
@@ -21,6 +21,8 @@ import android.content.pm.IPackageManager;
 import android.os.Binder;
 import android.os.ShellCommand;
 
+import com.android.server.wifi.util.StateMachineProfiler;
+
 import java.io.PrintWriter;
 
 /**
@@ -41,10 +43,15 @@ import java.io.PrintWriter;
  */
 public class WifiShellCommand extends ShellCommand {
     private final WifiStateMachine mStateMachine;
+    private final StateMachineProfiler mStateMachineProfiler;
+    private final HalCallTracker mHalCallTracker;
     private final IPackageManager mPM;
 
-    WifiShellCommand(WifiStateMachine stateMachine) {
+    WifiShellCommand(WifiStateMachine stateMachine, StateMachineProfiler stateMachineProfiler,
+            HalCallTracker halCallTracker) {
         mStateMachine = stateMachine;
+        mStateMachineProfiler = stateMachineProfiler;
+        mHalCallTracker = halCallTracker;
         mPM = AppGlobals.getPackageManager();
     }
 
@@ -99,6 +106,56 @@ public class WifiShellCommand extends ShellCommand {
                     pw.println("WifiStateMachine.mPollRssiIntervalMsecs = "
                             + mStateMachine.getPollRssiIntervalMsecs());
                     return 0;
+                case "set-sm-profiling": {
+                    String nextArg = getNextArgRequired();
+                    if ("enabled".equals(nextArg)) {
+                        mStateMachineProfiler.setEnabled(true);
+                    } else if ("disabled".equals(nextArg)) {
+                        mStateMachineProfiler.setEnabled(false);
+                    } else {
+                        pw.println("Invalid argument to 'set-sm-profiling' - must be 'enabled'"
+                                + " or 'disabled'");
+                        return -1;
+                    }
+                    return 0;
+                }
+                case "set-sm-profiling-slow-msecs": {
+                    int thresholdMsecs;
+                    try {
+                        thresholdMsecs = Integer.parseInt(getNextArgRequired());
+                    } catch (NumberFormatException e) {
+                        thresholdMsecs = -1;
+                    }
+                    if (thresholdMsecs < 0) {
+                        pw.println("Invalid argument to 'set-sm-profiling-slow-msecs' "
+                                + "- must be a non-negative integer");
+                        return -1;
+                    }
+                    mStateMachineProfiler.setSlowMessageThresholdMs(thresholdMsecs);
+                    return 0;
+                }
+                case "get-sm-profile":
+                    mStateMachineProfiler.dump(pw);
+                    return 0;
+                case "clear-sm-profile":
+                    mStateMachineProfiler.clear();
+                    return 0;
+                case "set-hal-call-tracking": {
+                    String nextArg = getNextArgRequired();
+                    if ("enabled".equals(nextArg)) {
+                        mHalCallTracker.setEnabled(true);
+                    } else if ("disabled".equals(nextArg)) {
+                        mHalCallTracker.setEnabled(false);
+                    } else {
+                        pw.println("Invalid argument to 'set-hal-call-tracking' - must be"
+                                + " 'enabled' or 'disabled'");
+                        return -1;
+                    }
+                    return 0;
+                }
+                case "get-hal-call-stats":
+                    mHalCallTracker.dump(pw);
+                    return 0;
                 default:
                     return handleDefaultCommands(cmd);
             }
@@ -132,6 +189,19 @@ public class WifiShellCommand extends ShellCommand {
         pw.println("    Sets the interval between RSSI polls to <int> milliseconds.");
         pw.println("  get-poll-rssi-interval-msecs");
         pw.println("    Gets current interval between RSSI polls, in milliseconds.");
+        pw.println("  set-sm-profiling enabled|disabled");
+        pw.println("    Sets whether the message handling of the state machines is profiled.");
+        pw.println("  set-sm-profiling-slow-msecs <int>");
+        pw.println("    Sets the handling time above which messages are recorded as slow.");
+        pw.println("  get-sm-profile");
+        pw.println("    Prints the state machine message handling profile.");
+        pw.println("  clear-sm-profile");
+        pw.println("    Clears the state machine message handling profile.");
+        pw.println("  set-hal-call-tracking enabled|disabled");
+        pw.println("    Sets whether the HAL calls are timed. Enabling applies to the HAL");
+        pw.println("    interfaces retrieved afterwards, e.g. once Wi-Fi is toggled.");
+        pw.println("  get-hal-call-stats");
+        pw.println("    Prints the HAL call latency statistics.");
         pw.println();
     }
 }
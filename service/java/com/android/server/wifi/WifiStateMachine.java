@@ -105,6 +105,7 @@ import com.android.server.wifi.nano.WifiMetricsProto;
 import com.android.server.wifi.nano.WifiMetricsProto.StaEvent;
 import com.android.server.wifi.p2p.WifiP2pServiceImpl;
 import com.android.server.wifi.util.NativeUtil;
+import com.android.server.wifi.util.StateMachineProfiler;
 import com.android.server.wifi.util.TelephonyUtil;
 import com.android.server.wifi.util.TelephonyUtil.SimAuthRequestData;
 import com.android.server.wifi.util.TelephonyUtil.SimAuthResponseData;
@@ -195,6 +196,7 @@ public class WifiStateMachine extends StateMachine {
     private final AtomicBoolean mP2pConnected = new AtomicBoolean(false);
     private boolean mTemporarilyDisconnectWifi = false;
     private final Clock mClock;
+    private StateMachineProfiler mStateMachineProfiler;
     private final PropertyService mPropertyService;
     private final BuildProperties mBuildProperties;
     private final WifiCountryCode mCountryCode;
@@ -251,6 +253,8 @@ public class WifiStateMachine extends StateMachine {
     // Accessed via Binder thread ({get,set}PollRssiIntervalMsecs), and WifiStateMachine thread.
     private volatile int mPollRssiIntervalMsecs = DEFAULT_POLL_RSSI_INTERVAL_MSECS;
     private int mRssiPollToken = 0;
+    // Adapts the RSSI poll interval to the link conditions.
+    private final RssiPollScheduler mRssiPollScheduler;
     /* 3 operational states for STA operation: CONNECT_MODE, SCAN_ONLY_MODE, SCAN_ONLY_WIFI_OFF_MODE
     * In CONNECT_MODE, the STA can scan and connect to an access point
     * In SCAN_ONLY_MODE, the STA can only scan for access points
@@ -824,6 +828,7 @@ public class WifiStateMachine extends StateMachine {
         mCountryCode = countryCode;
 
         mWifiScoreReport = new WifiScoreReport(mWifiInjector.getScoringParams(), mClock);
+        mRssiPollScheduler = new RssiPollScheduler(mWifiInjector.getScoringParams(), mClock);
 
         mNetworkCapabilitiesFilter.addTransportType(NetworkCapabilities.TRANSPORT_WIFI);
         mNetworkCapabilitiesFilter.addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET);
@@ -1079,6 +1084,13 @@ public class WifiStateMachine extends StateMachine {
         mWifiNative.setSupplicantLogLevel(mVerboseLoggingEnabled);
     }
 
+    /**
+     * Set the profiler to report the handling of messages to, see {@link StateMachineProfiler}.
+     */
+    public void setStateMachineProfiler(StateMachineProfiler stateMachineProfiler) {
+        mStateMachineProfiler = stateMachineProfiler;
+    }
+
     /**
      * Method to update logging level in wifi service related classes.
      *
@@ -1920,6 +1932,8 @@ public class WifiStateMachine extends StateMachine {
         }
         pw.println("Wlan Wake Reasons:" + mWifiNative.getWlanWakeReasonCount());
         pw.println();
+        mRssiPollScheduler.dump(pw);
+        pw.println();
 
         mWifiConfigManager.dump(fd, pw, args);
         pw.println();
@@ -1971,6 +1985,20 @@ public class WifiStateMachine extends StateMachine {
         }
     }
 
+    @Override
+    protected void onPreHandleMessage(Message msg) {
+        if (mStateMachineProfiler != null && mStateMachineProfiler.isEnabled()) {
+            mStateMachineProfiler.onPreHandleMessage(this, msg);
+        }
+    }
+
+    @Override
+    protected void onPostHandleMessage(Message msg) {
+        if (mStateMachineProfiler != null && mStateMachineProfiler.isEnabled()) {
+            mStateMachineProfiler.onPostHandleMessage(this, msg, smToString(msg));
+        }
+    }
+
     /**
      * Return the additional string to be logged by LogRec, default
      *
@@ -3346,11 +3374,15 @@ public class WifiStateMachine extends StateMachine {
                     deleteNetworkConfigAndSendReply(message, false);
                     break;
                 case CMD_GET_CONFIGURED_NETWORKS:
-                    replyToMessage(message, message.what, mWifiConfigManager.getSavedNetworks());
+                    // Also refreshes the snapshot served directly to subsequent binder calls.
+                    replyToMessage(message, message.what,
+                            mWifiConfigManager.updateConfiguredNetworksSnapshot()
+                                    .getSavedNetworks());
                     break;
                 case CMD_GET_PRIVILEGED_CONFIGURED_NETWORKS:
                     replyToMessage(message, message.what,
-                            mWifiConfigManager.getConfiguredNetworksWithPasswords());
+                            mWifiConfigManager.updateConfiguredNetworksSnapshot()
+                                    .getConfiguredNetworksWithPasswords());
                     break;
                 case CMD_ENABLE_RSSI_POLL:
                     mEnableRssiPolling = (message.arg1 == 1);
@@ -4833,6 +4865,7 @@ public class WifiStateMachine extends StateMachine {
         @Override
         public void enter() {
             mRssiPollToken++;
+            mRssiPollScheduler.reset();
             if (mEnableRssiPolling) {
                 sendMessage(CMD_RSSI_POLL, mRssiPollToken, 0);
             }
@@ -4994,8 +5027,11 @@ public class WifiStateMachine extends StateMachine {
                             mIpClient.confirmConfiguration();
                             mWifiScoreReport.noteIpCheck();
                         }
+                        int pollIntervalMsecs = mRssiPollScheduler.onPoll(mPollRssiIntervalMsecs,
+                                mWifiInfo.getRssi(), mWifiInfo.getFrequency(),
+                                mWifiInfo.txSuccessRate, mWifiInfo.rxSuccessRate);
                         sendMessageDelayed(obtainMessage(CMD_RSSI_POLL, mRssiPollToken, 0),
-                                mPollRssiIntervalMsecs);
+                                pollIntervalMsecs);
                         if (mVerboseLoggingEnabled) sendRssiChangeBroadcast(mWifiInfo.getRssi());
                     } else {
                         // Polling has completed
@@ -5005,6 +5041,7 @@ public class WifiStateMachine extends StateMachine {
                     cleanWifiScore();
                     mEnableRssiPolling = (message.arg1 == 1);
                     mRssiPollToken++;
+                    mRssiPollScheduler.reset();
                     if (mEnableRssiPolling) {
                         // First poll
                         fetchRssiLinkSpeedAndFrequencyNative();
@@ -5054,6 +5091,12 @@ public class WifiStateMachine extends StateMachine {
                 case CMD_RSSI_THRESHOLD_BREACHED:
                     byte currRssi = (byte) message.arg1;
                     processRssiThreshold(currRssi, message.what, mRssiEventHandler);
+                    if (message.what == CMD_RSSI_THRESHOLD_BREACHED
+                            && mRssiPollScheduler.onFirmwareRssiEvent() && mEnableRssiPolling) {
+                        // The link changed while polling was slowed down: poll right away.
+                        mRssiPollToken++;
+                        sendMessage(CMD_RSSI_POLL, mRssiPollToken, 0);
+                    }
                     break;
                 case CMD_STOP_RSSI_MONITORING_OFFLOAD:
                     stopRssiMonitoringOffload();
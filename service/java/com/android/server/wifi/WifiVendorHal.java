@@ -252,6 +252,7 @@ public class WifiVendorHal {
     private HashMap<String, IWifiStaIface> mIWifiStaIfaces = new HashMap<>();
     private HashMap<String, IWifiApIface> mIWifiApIfaces = new HashMap<>();
     private final HalDeviceManager mHalDeviceManager;
+    private HalCallTracker mHalCallTracker;
     private final HalDeviceManagerStatusListener mHalDeviceManagerStatusCallbacks;
     private final IWifiStaIfaceEventCallback mIWifiStaIfaceEventCallback;
     private final ChipEventCallback mIWifiChipEventCallback;
@@ -280,6 +281,17 @@ public class WifiVendorHal {
 
     public static final Object sLock = new Object();
 
+    /**
+     * Set the tracker used to record the latency of the HIDL calls made by this object.
+     *
+     * @param halCallTracker tracker to use, or null to disable tracking.
+     */
+    public void setHalCallTracker(HalCallTracker halCallTracker) {
+        synchronized (sLock) {
+            mHalCallTracker = halCallTracker;
+        }
+    }
+
     private void handleRemoteException(RemoteException e) {
         String methodName = niceMethodName(Thread.currentThread().getStackTrace(), 3);
         mVerboseLog.err("% RemoteException in HIDL call %").c(methodName).c(e.toString()).flush();
@@ -428,7 +440,8 @@ public class WifiVendorHal {
                 mLog.err("Failed to register STA iface callback").flush();
                 return stringResult(null);
             }
-            mIWifiRttController = mHalDeviceManager.createRttController();
+            mIWifiRttController = HalCallTracker.track(mHalCallTracker, "IWifiRttController",
+                    IWifiRttController.class, mHalDeviceManager.createRttController());
             if (mIWifiRttController == null) {
                 mLog.err("Failed to create RTT controller").flush();
                 return stringResult(null);
@@ -442,7 +455,8 @@ public class WifiVendorHal {
                 return stringResult(null);
             }
             enableLinkLayerStats(iface);
-            mIWifiStaIfaces.put(ifaceName, iface);
+            mIWifiStaIfaces.put(ifaceName, HalCallTracker.track(
+                    mHalCallTracker, "IWifiStaIface", IWifiStaIface.class, iface));
             return ifaceName;
         }
     }
@@ -516,7 +530,8 @@ public class WifiVendorHal {
                 mLog.err("Failed to get wifi chip").flush();
                 return stringResult(null);
             }
-            mIWifiApIfaces.put(ifaceName, iface);
+            mIWifiApIfaces.put(ifaceName, HalCallTracker.track(
+                    mHalCallTracker, "IWifiApIface", IWifiApIface.class, iface));
             return ifaceName;
         }
     }
@@ -544,7 +559,8 @@ public class WifiVendorHal {
     private boolean retrieveWifiChip(IWifiIface iface) {
         synchronized (sLock) {
             boolean registrationNeeded = mIWifiChip == null;
-            mIWifiChip = mHalDeviceManager.getChip(iface);
+            mIWifiChip = HalCallTracker.track(mHalCallTracker, "IWifiChip", IWifiChip.class,
+                    mHalDeviceManager.getChip(iface));
             if (mIWifiChip == null) {
                 mLog.err("Failed to get the chip created for the Iface").flush();
                 return false;
@@ -29,6 +29,9 @@ import libcore.util.HexEncoding;
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 
 /**
  * Manages the state of a single Aware discovery session (publish or subscribe).
@@ -70,6 +73,51 @@ public class WifiAwareDiscoverySessionState {
 
     private final SparseArray<PeerInfo> mPeerInfoByRequestorInstanceId = new SparseArray<>();
 
+    /*
+     * Match de-duplication: time at which each distinct match (peer + SSI + match filter) was last
+     * delivered to the client.
+     */
+    private static final int MAX_RECENT_MATCHES = 256;
+    private final Map<MatchKey, Long> mRecentMatches = new HashMap<>();
+    private int mNumSuppressedMatches = 0;
+
+    private static class MatchKey {
+        private final int mInstanceId;
+        private final byte[] mMac;
+        private final int mServiceSpecificInfoHash;
+        private final int mMatchFilterHash;
+
+        MatchKey(int instanceId, byte[] mac, byte[] serviceSpecificInfo, byte[] matchFilter) {
+            mInstanceId = instanceId;
+            mMac = mac;
+            mServiceSpecificInfoHash = Arrays.hashCode(serviceSpecificInfo);
+            mMatchFilterHash = Arrays.hashCode(matchFilter);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof MatchKey)) {
+                return false;
+            }
+            MatchKey other = (MatchKey) o;
+            return mInstanceId == other.mInstanceId && Arrays.equals(mMac, other.mMac)
+                    && mServiceSpecificInfoHash == other.mServiceSpecificInfoHash
+                    && mMatchFilterHash == other.mMatchFilterHash;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = mInstanceId;
+            result = 31 * result + Arrays.hashCode(mMac);
+            result = 31 * result + mServiceSpecificInfoHash;
+            result = 31 * result + mMatchFilterHash;
+            return result;
+        }
+    }
+
     public WifiAwareDiscoverySessionState(WifiAwareNativeApi wifiAwareNativeApi, int sessionId,
             byte pubSubId, IWifiAwareDiscoverySessionCallback callback, boolean isPublishSession,
             boolean isRangingEnabled, long creationTime) {
@@ -289,6 +337,45 @@ public class WifiAwareDiscoverySessionState {
         }
     }
 
+    /**
+     * Check whether a match indication duplicates a match delivered to the client within the
+     * de-duplication window: same peer, same service specific info and same match filter. If not
+     * a duplicate, the match is recorded as delivered at the specified time.
+     *
+     * @param nowMs The current time (elapsed since boot).
+     * @param windowMs The de-duplication window, 0 to disable de-duplication.
+     * @return true if the match is a duplicate and should be suppressed, false otherwise.
+     */
+    public boolean isDuplicateMatch(int requestorInstanceId, byte[] peerMac,
+            byte[] serviceSpecificInfo, byte[] matchFilter, long nowMs, long windowMs) {
+        if (windowMs <= 0) {
+            return false;
+        }
+
+        MatchKey key = new MatchKey(requestorInstanceId, peerMac, serviceSpecificInfo,
+                matchFilter);
+        Long lastDeliveryMs = mRecentMatches.get(key);
+        if (lastDeliveryMs != null && nowMs - lastDeliveryMs < windowMs) {
+            mNumSuppressedMatches++;
+            return true;
+        }
+
+        if (mRecentMatches.size() >= MAX_RECENT_MATCHES) {
+            Iterator<Long> it = mRecentMatches.values().iterator();
+            while (it.hasNext()) {
+                if (nowMs - it.next() >= windowMs) {
+                    it.remove();
+                }
+            }
+            if (mRecentMatches.size() >= MAX_RECENT_MATCHES) {
+                // all recent: a very crowded environment - start over rather than grow
+                mRecentMatches.clear();
+            }
+        }
+        mRecentMatches.put(key, nowMs);
+        return false;
+    }
+
     private int getPeerIdOrAddIfNew(int requestorInstanceId, byte[] peerMac) {
         for (int i = 0; i < mPeerInfoByRequestorInstanceId.size(); ++i) {
             PeerInfo peerInfo = mPeerInfoByRequestorInstanceId.valueAt(i);
@@ -318,5 +405,7 @@ public class WifiAwareDiscoverySessionState {
         pw.println("  mIsPublishSession: " + mIsPublishSession);
         pw.println("  mPubSubId: " + mPubSubId);
         pw.println("  mPeerInfoByRequestorInstanceId: [" + mPeerInfoByRequestorInstanceId + "]");
+        pw.println("  mRecentMatches: " + mRecentMatches.size());
+        pw.println("  mNumSuppressedMatches: " + mNumSuppressedMatches);
     }
 }
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi.aware;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Host queue of the Aware follow-on (L2) messages waiting to be handed to the firmware.
+ *
+ * Messages are queued per discovery session and dequeued round-robin across the sessions: a
+ * session sending a burst of messages doesn't delay the messages of the other sessions. The
+ * messages of a session are dequeued in order. The number of messages a session may have queued
+ * can be bounded, in which case further messages are rejected - a back-pressure signal to the
+ * sending app.
+ *
+ * Not thread-safe: only used on the Aware state machine thread.
+ */
+class WifiAwareFollowupQueue {
+    /**
+     * A follow-on message requested by an app.
+     */
+    static class FollowupMessage {
+        public final int clientId;
+        public final int sessionId;
+        public final int peerId;
+        public final byte[] message;
+        public final int messageId;
+        public int retryCount;
+
+        // time at which the app requested the message - used for latency metrics
+        public final long arrivalTimeMs;
+        // time at which the firmware queued the message - used for the send timeout
+        public long fwQueueTimeMs;
+
+        FollowupMessage(int clientId, int sessionId, int peerId, byte[] message, int messageId,
+                int retryCount, long arrivalTimeMs) {
+            this.clientId = clientId;
+            this.sessionId = sessionId;
+            this.peerId = peerId;
+            this.message = message;
+            this.messageId = messageId;
+            this.retryCount = retryCount;
+            this.arrivalTimeMs = arrivalTimeMs;
+        }
+
+        @Override
+        public String toString() {
+            return "FollowupMessage: clientId=" + clientId + ", sessionId=" + sessionId
+                    + ", peerId=" + peerId + ", messageId=" + messageId + ", retryCount="
+                    + retryCount + ", arrivalTimeMs=" + arrivalTimeMs + ", fwQueueTimeMs="
+                    + fwQueueTimeMs;
+        }
+    }
+
+    // Per-session queues, in round-robin order: the session at the head is served next.
+    private final Map<Long, ArrayDeque<FollowupMessage>> mSessionQueues = new LinkedHashMap<>();
+    private int mSize = 0;
+
+    private static long getSessionKey(int clientId, int sessionId) {
+        return ((long) clientId << 32) | (sessionId & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Queue a message behind the other messages of its session.
+     *
+     * @param maxQueuedPerSession Maximum number of messages the session may have queued, 0 for
+     *                            no limit.
+     * @return false if the message was rejected since its session already has the maximum number
+     * of messages queued, true otherwise.
+     */
+    public boolean enqueue(FollowupMessage message, int maxQueuedPerSession) {
+        long key = getSessionKey(message.clientId, message.sessionId);
+        ArrayDeque<FollowupMessage> queue = mSessionQueues.get(key);
+        if (queue == null) {
+            queue = new ArrayDeque<>();
+            mSessionQueues.put(key, queue);
+        } else if (maxQueuedPerSession > 0 && queue.size() >= maxQueuedPerSession) {
+            return false;
+        }
+        queue.addLast(message);
+        mSize++;
+        return true;
+    }
+
+    /**
+     * Queue a message back at the head of the messages of its session, e.g. for a
+     * re-transmission. Not subject to the limit of queued messages.
+     */
+    public void requeue(FollowupMessage message) {
+        long key = getSessionKey(message.clientId, message.sessionId);
+        ArrayDeque<FollowupMessage> queue = mSessionQueues.get(key);
+        if (queue == null) {
+            queue = new ArrayDeque<>();
+            mSessionQueues.put(key, queue);
+        }
+        queue.addFirst(message);
+        mSize++;
+    }
+
+    /**
+     * Remove the next message to transmit: the head message of the next session in round-robin
+     * order.
+     *
+     * @return the message or null if the queue is empty.
+     */
+    public FollowupMessage poll() {
+        Iterator<Map.Entry<Long, ArrayDeque<FollowupMessage>>> it =
+                mSessionQueues.entrySet().iterator();
+        if (!it.hasNext()) {
+            return null;
+        }
+        Map.Entry<Long, ArrayDeque<FollowupMessage>> entry = it.next();
+        ArrayDeque<FollowupMessage> queue = entry.getValue();
+        FollowupMessage message = queue.pollFirst();
+        it.remove();
+        if (!queue.isEmpty()) {
+            // move the session to the back of the round
+            mSessionQueues.put(entry.getKey(), queue);
+        }
+        mSize--;
+        return message;
+    }
+
+    /**
+     * Returns the number of queued messages of all the sessions.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the number of queued messages of the specified session.
+     */
+    public int getQueuedCount(int clientId, int sessionId) {
+        ArrayDeque<FollowupMessage> queue = mSessionQueues.get(
+                getSessionKey(clientId, sessionId));
+        return queue == null ? 0 : queue.size();
+    }
+
+    /**
+     * Drop all the queued messages.
+     */
+    public void clear() {
+        mSessionQueues.clear();
+        mSize = 0;
+    }
+
+    /**
+     * Dump the number of queued messages of each session.
+     */
+    public void dump(PrintWriter pw) {
+        pw.println("  mHostQueuedSendMessages: size=" + mSize);
+        for (ArrayDeque<FollowupMessage> queue : mSessionQueues.values()) {
+            FollowupMessage head = queue.peekFirst();
+            pw.println("    clientId=" + head.clientId + ", sessionId=" + head.sessionId
+                    + ": queued=" + queue.size());
+        }
+    }
+}
@@ -112,6 +112,7 @@ public class WifiAwareMetrics {
     private int mNumSubscribesWithRanging = 0;
     private int mNumMatchesWithRanging = 0;
     private int mNumMatchesWithoutRangingForRangingEnabledSubscribes = 0;
+    private int mNumMatchesSuppressed = 0;
 
     // data-path (NDI/NDP) data
     private int mMaxNdiInApp = 0;
@@ -133,6 +134,17 @@ public class WifiAwareMetrics {
 
     private SparseIntArray mHistogramNdpDuration = new SparseIntArray();
 
+    // follow-on messages: latency is measured from the request of the app to the final status
+    private static class FollowupData {
+        public int mNumSuccess;
+        public int mNumFail;
+        public long mTotalLatencyMs;
+        public long mMaxLatencyMs;
+    }
+    private Map<Integer, FollowupData> mFollowupDataByUid = new HashMap<>();
+    private SparseIntArray mFollowupStatusData = new SparseIntArray();
+    private SparseIntArray mHistogramFollowupLatency = new SparseIntArray();
+
     public WifiAwareMetrics(Clock clock) {
         mClock = clock;
     }
@@ -389,6 +401,16 @@ public class WifiAwareMetrics {
         }
     }
 
+    /**
+     * Record a match indication which wasn't delivered to the app since it duplicates a recently
+     * delivered match.
+     */
+    public void recordMatchIndicationSuppressed() {
+        synchronized (mLock) {
+            mNumMatchesSuppressed++;
+        }
+    }
+
     /**
      * Record NDP (and by extension NDI) usage - on successful creation of an NDP.
      */
@@ -493,6 +515,31 @@ public class WifiAwareMetrics {
         }
     }
 
+    /**
+     * Record the final status of a follow-on message along with the time elapsed since the app
+     * requested it.
+     */
+    public void recordFollowupMessageStatus(int uid, int status, long latencyMs) {
+        synchronized (mLock) {
+            addNanHalStatusToHistogram(status, mFollowupStatusData);
+            MetricsUtils.addValueToLogHistogram(latencyMs, mHistogramFollowupLatency,
+                    DURATION_LOG_HISTOGRAM);
+
+            FollowupData data = mFollowupDataByUid.get(uid);
+            if (data == null) {
+                data = new FollowupData();
+                mFollowupDataByUid.put(uid, data);
+            }
+            if (status == NanStatusType.SUCCESS) {
+                data.mNumSuccess++;
+            } else {
+                data.mNumFail++;
+            }
+            data.mTotalLatencyMs += latencyMs;
+            data.mMaxLatencyMs = Math.max(data.mMaxLatencyMs, latencyMs);
+        }
+    }
+
     /**
      * Consolidate all metrics into the proto.
      */
@@ -634,6 +681,7 @@ public class WifiAwareMetrics {
             mNumSubscribesWithRanging = 0;
             mNumMatchesWithRanging = 0;
             mNumMatchesWithoutRangingForRangingEnabledSubscribes = 0;
+            mNumMatchesSuppressed = 0;
 
             mMaxNdiInApp = 0;
             mMaxNdpInApp = 0;
@@ -653,6 +701,10 @@ public class WifiAwareMetrics {
             mNdpCreationTimeNumSamples = 0;
 
             mHistogramNdpDuration.clear();
+
+            mFollowupDataByUid.clear();
+            mFollowupStatusData.clear();
+            mHistogramFollowupLatency.clear();
         }
     }
 
@@ -753,6 +805,7 @@ public class WifiAwareMetrics {
             pw.println("mNumMatchesWithRanging:" + mNumMatchesWithRanging);
             pw.println("mNumMatchesWithoutRangingForRangingEnabledSubscribes:"
                     + mNumMatchesWithoutRangingForRangingEnabledSubscribes);
+            pw.println("mNumMatchesSuppressed:" + mNumMatchesSuppressed);
 
             pw.println("mMaxNdiInApp:" + mMaxNdiInApp);
             pw.println("mMaxNdpInApp:" + mMaxNdpInApp);
@@ -788,6 +841,26 @@ public class WifiAwareMetrics {
                 pw.println("  " + mHistogramNdpDuration.keyAt(i) + ": "
                         + mHistogramNdpDuration.valueAt(i));
             }
+
+            pw.println("mFollowupDataByUid:");
+            for (Map.Entry<Integer, FollowupData> fde: mFollowupDataByUid.entrySet()) {
+                FollowupData data = fde.getValue();
+                int count = data.mNumSuccess + data.mNumFail;
+                pw.println("  " + "uid=" + fde.getKey() + ": success=" + data.mNumSuccess
+                        + ", fail=" + data.mNumFail + ", avgLatencyMs="
+                        + (data.mTotalLatencyMs / count) + ", maxLatencyMs="
+                        + data.mMaxLatencyMs);
+            }
+            pw.println("mFollowupStatusData:");
+            for (int i = 0; i < mFollowupStatusData.size(); ++i) {
+                pw.println("  " + mFollowupStatusData.keyAt(i) + ": "
+                        + mFollowupStatusData.valueAt(i));
+            }
+            pw.println("mHistogramFollowupLatency:");
+            for (int i = 0; i < mHistogramFollowupLatency.size(); ++i) {
+                pw.println("  " + mHistogramFollowupLatency.keyAt(i) + ": "
+                        + mHistogramFollowupLatency.valueAt(i));
+            }
         }
     }
 
@@ -61,6 +61,7 @@ public final class WifiAwareService extends SystemService {
                     wifiAwareStateManager, halDeviceManager, wifiAwareNativeCallback);
             WifiAwareNativeApi wifiAwareNativeApi = new WifiAwareNativeApi(wifiAwareNativeManager);
             wifiAwareStateManager.setNative(wifiAwareNativeManager, wifiAwareNativeApi);
+            wifiAwareStateManager.setStateMachineProfiler(wifiInjector.getStateMachineProfiler());
             WifiAwareShellCommand wifiAwareShellCommand = new WifiAwareShellCommand();
             wifiAwareShellCommand.register("native_api", wifiAwareNativeApi);
             wifiAwareShellCommand.register("native_cb", wifiAwareNativeCallback);
@@ -52,6 +52,7 @@ import com.android.internal.util.MessageUtils;
 import com.android.internal.util.State;
 import com.android.internal.util.StateMachine;
 import com.android.internal.util.WakeupMessage;
+import com.android.server.wifi.util.StateMachineProfiler;
 import com.android.server.wifi.util.WifiPermissionsUtil;
 import com.android.server.wifi.util.WifiPermissionsWrapper;
 
@@ -168,16 +169,11 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
     private static final String MESSAGE_BUNDLE_KEY_SESSION_TYPE = "session_type";
     private static final String MESSAGE_BUNDLE_KEY_SESSION_ID = "session_id";
     private static final String MESSAGE_BUNDLE_KEY_CONFIG = "config";
-    private static final String MESSAGE_BUNDLE_KEY_MESSAGE = "message";
-    private static final String MESSAGE_BUNDLE_KEY_MESSAGE_PEER_ID = "message_peer_id";
-    private static final String MESSAGE_BUNDLE_KEY_MESSAGE_ID = "message_id";
     private static final String MESSAGE_BUNDLE_KEY_SSI_DATA = "ssi_data";
     private static final String MESSAGE_BUNDLE_KEY_FILTER_DATA = "filter_data";
     private static final String MESSAGE_BUNDLE_KEY_MAC_ADDRESS = "mac_address";
     private static final String MESSAGE_BUNDLE_KEY_MESSAGE_DATA = "message_data";
     private static final String MESSAGE_BUNDLE_KEY_REQ_INSTANCE_ID = "req_instance_id";
-    private static final String MESSAGE_BUNDLE_KEY_SEND_MESSAGE_ENQUEUE_TIME = "message_queue_time";
-    private static final String MESSAGE_BUNDLE_KEY_RETRY_COUNT = "retry_count";
     private static final String MESSAGE_BUNDLE_KEY_SUCCESS_FLAG = "success_flag";
     private static final String MESSAGE_BUNDLE_KEY_STATUS_CODE = "status_code";
     private static final String MESSAGE_BUNDLE_KEY_INTERFACE_NAME = "interface_name";
@@ -187,8 +183,6 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
     private static final String MESSAGE_BUNDLE_KEY_UID = "uid";
     private static final String MESSAGE_BUNDLE_KEY_PID = "pid";
     private static final String MESSAGE_BUNDLE_KEY_CALLING_PACKAGE = "calling_package";
-    private static final String MESSAGE_BUNDLE_KEY_SENT_MESSAGE = "send_message";
-    private static final String MESSAGE_BUNDLE_KEY_MESSAGE_ARRIVAL_SEQ = "message_arrival_seq";
     private static final String MESSAGE_BUNDLE_KEY_NOTIFY_IDENTITY_CHANGE = "notify_identity_chg";
     private static final String MESSAGE_BUNDLE_KEY_PMK = "pmk";
     private static final String MESSAGE_BUNDLE_KEY_PASSPHRASE = "passphrase";
@@ -211,6 +205,7 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
      */
     private Context mContext;
     private WifiAwareMetrics mAwareMetrics;
+    private StateMachineProfiler mStateMachineProfiler;
     private volatile Capabilities mCapabilities;
     private volatile Characteristics mCharacteristics = null;
     private WifiAwareStateMachine mSm;
@@ -240,11 +235,31 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
         mWifiAwareNativeApi = wifiAwareNativeApi;
     }
 
+    /**
+     * Set the profiler to report the handling of messages to, see {@link StateMachineProfiler}.
+     */
+    public void setStateMachineProfiler(StateMachineProfiler stateMachineProfiler) {
+        mStateMachineProfiler = stateMachineProfiler;
+    }
+
     /*
      * parameters settable through shell command
      */
     public static final String PARAM_ON_IDLE_DISABLE_AWARE = "on_idle_disable_aware";
     public static final int PARAM_ON_IDLE_DISABLE_AWARE_DEFAULT = 1; // 0 = false, 1 = true
+    // Maximum number of follow-on messages a discovery session may have queued on the host, 0 for
+    // no limit. Further messages fail immediately with FOLLOWUP_TX_QUEUE_FULL.
+    public static final String PARAM_MAX_QUEUED_FOLLOWUPS_PER_SESSION =
+            "max_queued_followups_per_session";
+    public static final int PARAM_MAX_QUEUED_FOLLOWUPS_PER_SESSION_DEFAULT = 64;
+    // Maximum number of follow-on messages handed to the firmware at the same time, 0 to only be
+    // limited by the firmware (which rejects messages with FOLLOWUP_TX_QUEUE_FULL).
+    public static final String PARAM_MAX_FW_QUEUED_FOLLOWUPS = "max_fw_queued_followups";
+    public static final int PARAM_MAX_FW_QUEUED_FOLLOWUPS_DEFAULT = 0;
+    // Window during which a match identical to one already delivered to a discovery session (same
+    // peer, service specific info and match filter) is suppressed, 0 to deliver all matches.
+    public static final String PARAM_MATCH_DEDUP_WINDOW_MS = "match_dedup_window_ms";
+    public static final int PARAM_MATCH_DEDUP_WINDOW_MS_DEFAULT = 5_000;
 
     private Map<String, Integer> mSettableParameters = new HashMap<>();
 
@@ -349,6 +364,11 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
     @Override
     public void onReset() {
         mSettableParameters.put(PARAM_ON_IDLE_DISABLE_AWARE, PARAM_ON_IDLE_DISABLE_AWARE_DEFAULT);
+        mSettableParameters.put(PARAM_MAX_QUEUED_FOLLOWUPS_PER_SESSION,
+                PARAM_MAX_QUEUED_FOLLOWUPS_PER_SESSION_DEFAULT);
+        mSettableParameters.put(PARAM_MAX_FW_QUEUED_FOLLOWUPS,
+                PARAM_MAX_FW_QUEUED_FOLLOWUPS_DEFAULT);
+        mSettableParameters.put(PARAM_MATCH_DEDUP_WINDOW_MS, PARAM_MATCH_DEDUP_WINDOW_MS_DEFAULT);
         if (mDataPathMgr != null) {
             mDataPathMgr.mAllowNdpResponderFromAnyOverride = false;
         }
@@ -673,11 +693,8 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
         Message msg = mSm.obtainMessage(MESSAGE_TYPE_COMMAND);
         msg.arg1 = COMMAND_TYPE_ENQUEUE_SEND_MESSAGE;
         msg.arg2 = clientId;
-        msg.getData().putInt(MESSAGE_BUNDLE_KEY_SESSION_ID, sessionId);
-        msg.getData().putInt(MESSAGE_BUNDLE_KEY_MESSAGE_PEER_ID, peerId);
-        msg.getData().putByteArray(MESSAGE_BUNDLE_KEY_MESSAGE, message);
-        msg.getData().putInt(MESSAGE_BUNDLE_KEY_MESSAGE_ID, messageId);
-        msg.getData().putInt(MESSAGE_BUNDLE_KEY_RETRY_COUNT, retryCount);
+        msg.obj = new WifiAwareFollowupQueue.FollowupMessage(clientId, sessionId, peerId, message,
+                messageId, retryCount, SystemClock.elapsedRealtime());
         mSm.sendMessage(msg);
     }
 
@@ -1184,14 +1201,26 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
         private short mNextTransactionId = 1;
         public int mNextSessionId = 1;
 
-        private Message mCurrentCommand;
-        private short mCurrentTransactionId = TRANSACTION_ID_IGNORE;
+        /*
+         * Commands waiting for a HAL response, keyed by transaction ID. Several discovery,
+         * follow-up and data-path commands may be outstanding at the same time (up to
+         * MAX_CONCURRENT_COMMANDS); any other command is only dispatched once all the outstanding
+         * commands have completed and blocks further commands until it completes itself.
+         */
+        private static final int MAX_CONCURRENT_COMMANDS = 4;
+        private static final long AWARE_COMMAND_TIMEOUT = 5_000;
+        private final SparseArray<PendingCommand> mPendingCommands = new SparseArray<>();
+        // transaction ID of the command processed by the current message: only used by
+        // getLogRecString(), the commands in flight are tracked by mPendingCommands
+        private short mLoggedTransactionId = TRANSACTION_ID_IGNORE;
 
         private static final long AWARE_SEND_MESSAGE_TIMEOUT = 10_000;
-        private int mSendArrivalSequenceCounter = 0;
+        // set when the firmware queue is full: shared by all the sessions
         private boolean mSendQueueBlocked = false;
-        private final SparseArray<Message> mHostQueuedSendMessages = new SparseArray<>();
-        private final Map<Short, Message> mFwQueuedSendMessages = new LinkedHashMap<>();
+        private final WifiAwareFollowupQueue mHostQueuedSendMessages =
+                new WifiAwareFollowupQueue();
+        private final Map<Short, WifiAwareFollowupQueue.FollowupMessage> mFwQueuedSendMessages =
+                new LinkedHashMap<>();
         private WakeupMessage mSendMessageTimeoutMessage = new WakeupMessage(mContext, getHandler(),
                 HAL_SEND_MESSAGE_TIMEOUT_TAG, MESSAGE_TYPE_SEND_MESSAGE_TIMEOUT);
 
@@ -1199,6 +1228,20 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
         private final Map<WifiAwareNetworkSpecifier, WakeupMessage>
                 mDataPathConfirmTimeoutMessages = new ArrayMap<>();
 
+        @Override
+        protected void onPreHandleMessage(Message msg) {
+            if (mStateMachineProfiler != null && mStateMachineProfiler.isEnabled()) {
+                mStateMachineProfiler.onPreHandleMessage(this, msg);
+            }
+        }
+
+        @Override
+        protected void onPostHandleMessage(Message msg) {
+            if (mStateMachineProfiler != null && mStateMachineProfiler.isEnabled()) {
+                mStateMachineProfiler.onPostHandleMessage(this, msg, messageToString(msg));
+            }
+        }
+
         WifiAwareStateMachine(String name, Looper looper) {
             super(name, looper);
 
@@ -1261,19 +1304,23 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
 
                 switch (msg.what) {
                     case MESSAGE_TYPE_COMMAND:
-                        if (processCommand(msg)) {
+                        if (!canDispatchCommand(msg)) {
+                            /*
+                             * preserve the order of the commands: this one and all the following
+                             * ones are deferred until a pending command completes
+                             */
+                            mLoggedTransactionId = TRANSACTION_ID_IGNORE;
+                            deferMessage(msg);
                             transitionTo(mWaitForResponseState);
+                            return HANDLED;
                         }
+                        processCommand(msg);
                         return HANDLED;
                     case MESSAGE_TYPE_RESPONSE:
-                        /* fall-through */
+                        processResponse(msg);
+                        return HANDLED;
                     case MESSAGE_TYPE_RESPONSE_TIMEOUT:
-                        /*
-                         * remnants/delayed/out-of-sync messages - but let
-                         * WaitForResponseState deal with them (identified as
-                         * out-of-date by transaction ID).
-                         */
-                        deferMessage(msg);
+                        processTimeout(msg);
                         return HANDLED;
                     default:
                         /* fall-through */
@@ -1284,21 +1331,6 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
         }
 
         private class WaitForResponseState extends State {
-            private static final long AWARE_COMMAND_TIMEOUT = 5_000;
-            private WakeupMessage mTimeoutMessage;
-
-            @Override
-            public void enter() {
-                mTimeoutMessage = new WakeupMessage(mContext, getHandler(), HAL_COMMAND_TIMEOUT_TAG,
-                        MESSAGE_TYPE_RESPONSE_TIMEOUT, mCurrentCommand.arg1, mCurrentTransactionId);
-                mTimeoutMessage.schedule(SystemClock.elapsedRealtime() + AWARE_COMMAND_TIMEOUT);
-            }
-
-            @Override
-            public void exit() {
-                mTimeoutMessage.cancel();
-            }
-
             @Override
             public boolean processMessage(Message msg) {
                 if (VDBG) {
@@ -1311,29 +1343,18 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
                          * don't want COMMANDs in this state - defer until back
                          * in WaitState
                          */
+                        mLoggedTransactionId = TRANSACTION_ID_IGNORE;
                         deferMessage(msg);
                         return HANDLED;
                     case MESSAGE_TYPE_RESPONSE:
-                        if (msg.arg2 == mCurrentTransactionId) {
-                            processResponse(msg);
+                        if (processResponse(msg)) {
+                            /* a pending command completed: retry the deferred commands */
                             transitionTo(mWaitState);
-                        } else {
-                            Log.w(TAG,
-                                    "WaitForResponseState: processMessage: non-matching "
-                                            + "transaction ID on RESPONSE (a very late "
-                                            + "response) -- msg=" + msg);
-                            /* no transition */
                         }
                         return HANDLED;
                     case MESSAGE_TYPE_RESPONSE_TIMEOUT:
-                        if (msg.arg2 == mCurrentTransactionId) {
-                            processTimeout(msg);
+                        if (processTimeout(msg)) {
                             transitionTo(mWaitState);
-                        } else {
-                            Log.w(TAG, "WaitForResponseState: processMessage: non-matching "
-                                    + "transaction ID on RESPONSE_TIMEOUT (either a non-cancelled "
-                                    + "timeout or a race condition with cancel) -- msg=" + msg);
-                            /* no transition */
                         }
                         return HANDLED;
                     default:
@@ -1410,7 +1431,8 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
                 }
                 case NOTIFICATION_TYPE_ON_MESSAGE_SEND_SUCCESS: {
                     short transactionId = (short) msg.arg2;
-                    Message queuedSendCommand = mFwQueuedSendMessages.get(transactionId);
+                    WifiAwareFollowupQueue.FollowupMessage queuedSendCommand =
+                            mFwQueuedSendMessages.get(transactionId);
                     if (VDBG) {
                         Log.v(TAG, "NOTIFICATION_TYPE_ON_MESSAGE_SEND_SUCCESS: queuedSendCommand="
                                 + queuedSendCommand);
@@ -1433,7 +1455,8 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
                 case NOTIFICATION_TYPE_ON_MESSAGE_SEND_FAIL: {
                     short transactionId = (short) msg.arg2;
                     int reason = (Integer) msg.obj;
-                    Message sentMessage = mFwQueuedSendMessages.get(transactionId);
+                    WifiAwareFollowupQueue.FollowupMessage sentMessage =
+                            mFwQueuedSendMessages.get(transactionId);
                     if (VDBG) {
                         Log.v(TAG, "NOTIFICATION_TYPE_ON_MESSAGE_SEND_FAIL: sentMessage="
                                 + sentMessage);
@@ -1447,8 +1470,7 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
                         mFwQueuedSendMessages.remove(transactionId);
                         updateSendMessageTimeout();
 
-                        int retryCount = sentMessage.getData()
-                                .getInt(MESSAGE_BUNDLE_KEY_RETRY_COUNT);
+                        int retryCount = sentMessage.retryCount;
                         if (retryCount > 0 && reason == NanStatusType.NO_OTA_ACK) {
                             if (VDBG) {
                                 Log.v(TAG,
@@ -1456,12 +1478,8 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
                                                 + transactionId + ", reason=" + reason
                                                 + ": retransmitting - retryCount=" + retryCount);
                             }
-                            sentMessage.getData().putInt(MESSAGE_BUNDLE_KEY_RETRY_COUNT,
-                                    retryCount - 1);
-
-                            int arrivalSeq = sentMessage.getData().getInt(
-                                    MESSAGE_BUNDLE_KEY_MESSAGE_ARRIVAL_SEQ);
-                            mHostQueuedSendMessages.put(arrivalSeq, sentMessage);
+                            sentMessage.retryCount = retryCount - 1;
+                            mHostQueuedSendMessages.requeue(sentMessage);
                         } else {
                             onMessageSendFailLocal(sentMessage, reason);
                         }
@@ -1525,21 +1543,16 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
          * wait for a RESPONSE if there was an error in the state (so no command
          * is sent to HAL) OR if we choose not to wait for response - e.g. for
          * disconnected/terminate commands failure is not possible.
+         *
+         * A command waiting for a RESPONSE is added to the pending commands until its RESPONSE
+         * or its timeout is processed.
          */
         private boolean processCommand(Message msg) {
             if (VDBG) {
                 Log.v(TAG, "processCommand: msg=" + msg);
             }
 
-            if (mCurrentCommand != null) {
-                Log.wtf(TAG,
-                        "processCommand: receiving a command (msg=" + msg
-                                + ") but current (previous) command isn't null (prev_msg="
-                                + mCurrentCommand + ")");
-                mCurrentCommand = null;
-            }
-
-            mCurrentTransactionId = mNextTransactionId++;
+            short transactionId = mNextTransactionId++;
 
             boolean waitForResponse = true;
 
@@ -1556,18 +1569,18 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
                     boolean notifyIdentityChange = msg.getData().getBoolean(
                             MESSAGE_BUNDLE_KEY_NOTIFY_IDENTITY_CHANGE);
 
-                    waitForResponse = connectLocal(mCurrentTransactionId, clientId, uid, pid,
+                    waitForResponse = connectLocal(transactionId, clientId, uid, pid,
                             callingPackage, callback, configRequest, notifyIdentityChange);
                     break;
                 }
                 case COMMAND_TYPE_DISCONNECT: {
                     int clientId = msg.arg2;
 
-                    waitForResponse = disconnectLocal(mCurrentTransactionId, clientId);
+                    waitForResponse = disconnectLocal(transactionId, clientId);
                     break;
                 }
                 case COMMAND_TYPE_RECONFIGURE:
-                    waitForResponse = reconfigureLocal(mCurrentTransactionId);
+                    waitForResponse = reconfigureLocal(transactionId);
                     break;
                 case COMMAND_TYPE_TERMINATE_SESSION: {
                     int clientId = msg.arg2;
@@ -1584,7 +1597,7 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
                     PublishConfig publishConfig = (PublishConfig) msg.getData()
                             .getParcelable(MESSAGE_BUNDLE_KEY_CONFIG);
 
-                    waitForResponse = publishLocal(mCurrentTransactionId, clientId, publishConfig,
+                    waitForResponse = publishLocal(transactionId, clientId, publishConfig,
                             callback);
                     break;
                 }
@@ -1593,7 +1606,7 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
                     int sessionId = msg.getData().getInt(MESSAGE_BUNDLE_KEY_SESSION_ID);
                     PublishConfig publishConfig = (PublishConfig) msg.obj;
 
-                    waitForResponse = updatePublishLocal(mCurrentTransactionId, clientId, sessionId,
+                    waitForResponse = updatePublishLocal(transactionId, clientId, sessionId,
                             publishConfig);
                     break;
                 }
@@ -1604,7 +1617,7 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
                     SubscribeConfig subscribeConfig = (SubscribeConfig) msg.getData()
                             .getParcelable(MESSAGE_BUNDLE_KEY_CONFIG);
 
-                    waitForResponse = subscribeLocal(mCurrentTransactionId, clientId,
+                    waitForResponse = subscribeLocal(transactionId, clientId,
                             subscribeConfig, callback);
                     break;
                 }
@@ -1613,24 +1626,29 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
                     int sessionId = msg.getData().getInt(MESSAGE_BUNDLE_KEY_SESSION_ID);
                     SubscribeConfig subscribeConfig = (SubscribeConfig) msg.obj;
 
-                    waitForResponse = updateSubscribeLocal(mCurrentTransactionId, clientId,
+                    waitForResponse = updateSubscribeLocal(transactionId, clientId,
                             sessionId, subscribeConfig);
                     break;
                 }
                 case COMMAND_TYPE_ENQUEUE_SEND_MESSAGE: {
+                    WifiAwareFollowupQueue.FollowupMessage sendMsg =
+                            (WifiAwareFollowupQueue.FollowupMessage) msg.obj;
                     if (VDBG) {
-                        Log.v(TAG, "processCommand: ENQUEUE_SEND_MESSAGE - messageId="
-                                + msg.getData().getInt(MESSAGE_BUNDLE_KEY_MESSAGE_ID)
-                                + ", mSendArrivalSequenceCounter=" + mSendArrivalSequenceCounter);
+                        Log.v(TAG, "processCommand: ENQUEUE_SEND_MESSAGE - " + sendMsg);
                     }
-                    Message sendMsg = obtainMessage(msg.what);
-                    sendMsg.copyFrom(msg);
-                    sendMsg.getData().putInt(MESSAGE_BUNDLE_KEY_MESSAGE_ARRIVAL_SEQ,
-                            mSendArrivalSequenceCounter);
-                    mHostQueuedSendMessages.put(mSendArrivalSequenceCounter, sendMsg);
-                    mSendArrivalSequenceCounter++;
                     waitForResponse = false;
 
+                    if (!mHostQueuedSendMessages.enqueue(sendMsg,
+                            mSettableParameters.get(PARAM_MAX_QUEUED_FOLLOWUPS_PER_SESSION))) {
+                        // back-pressure: the app has to wait for its queued messages to go out
+                        if (mDbg) {
+                            Log.v(TAG, "processCommand: ENQUEUE_SEND_MESSAGE - session queue "
+                                    + "full, rejecting " + sendMsg);
+                        }
+                        onMessageSendFailLocal(sendMsg, NanStatusType.FOLLOWUP_TX_QUEUE_FULL);
+                        break;
+                    }
+
                     if (!mSendQueueBlocked) {
                         transmitNextMessage();
                     }
@@ -1638,32 +1656,27 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
                     break;
                 }
                 case COMMAND_TYPE_TRANSMIT_NEXT_MESSAGE: {
-                    if (mSendQueueBlocked || mHostQueuedSendMessages.size() == 0) {
+                    int maxFwQueued = mSettableParameters.get(PARAM_MAX_FW_QUEUED_FOLLOWUPS);
+                    if (mSendQueueBlocked || mHostQueuedSendMessages.size() == 0
+                            || (maxFwQueued > 0 && mFwQueuedSendMessages.size() >= maxFwQueued)) {
                         if (VDBG) {
-                            Log.v(TAG, "processCommand: SEND_TOP_OF_QUEUE_MESSAGE - blocked or "
-                                    + "empty host queue");
+                            Log.v(TAG, "processCommand: SEND_TOP_OF_QUEUE_MESSAGE - blocked, "
+                                    + "empty host queue or full firmware queue");
                         }
                         waitForResponse = false;
                     } else {
+                        WifiAwareFollowupQueue.FollowupMessage sendMessage =
+                                mHostQueuedSendMessages.poll();
                         if (VDBG) {
                             Log.v(TAG, "processCommand: SEND_TOP_OF_QUEUE_MESSAGE - "
-                                    + "sendArrivalSequenceCounter="
-                                    + mHostQueuedSendMessages.keyAt(0));
+                                    + sendMessage);
                         }
-                        Message sendMessage = mHostQueuedSendMessages.valueAt(0);
-                        mHostQueuedSendMessages.removeAt(0);
-
-                        Bundle data = sendMessage.getData();
-                        int clientId = sendMessage.arg2;
-                        int sessionId = sendMessage.getData().getInt(MESSAGE_BUNDLE_KEY_SESSION_ID);
-                        int peerId = data.getInt(MESSAGE_BUNDLE_KEY_MESSAGE_PEER_ID);
-                        byte[] message = data.getByteArray(MESSAGE_BUNDLE_KEY_MESSAGE);
-                        int messageId = data.getInt(MESSAGE_BUNDLE_KEY_MESSAGE_ID);
 
-                        msg.getData().putParcelable(MESSAGE_BUNDLE_KEY_SENT_MESSAGE, sendMessage);
+                        msg.obj = sendMessage;
 
-                        waitForResponse = sendFollowonMessageLocal(mCurrentTransactionId, clientId,
-                                sessionId, peerId, message, messageId);
+                        waitForResponse = sendFollowonMessageLocal(transactionId,
+                                sendMessage.clientId, sendMessage.sessionId, sendMessage.peerId,
+                                sendMessage.message, sendMessage.messageId);
                     }
                     break;
                 }
@@ -1672,12 +1685,12 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
                     waitForResponse = false;
                     break;
                 case COMMAND_TYPE_DISABLE_USAGE:
-                    waitForResponse = disableUsageLocal(mCurrentTransactionId);
+                    waitForResponse = disableUsageLocal(transactionId);
                     break;
                 case COMMAND_TYPE_GET_CAPABILITIES:
                     if (mCapabilities == null) {
                         waitForResponse = mWifiAwareNativeApi.getCapabilities(
-                                mCurrentTransactionId);
+                                transactionId);
                     } else {
                         if (VDBG) {
                             Log.v(TAG, "COMMAND_TYPE_GET_CAPABILITIES: already have capabilities - "
@@ -1696,11 +1709,11 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
                     break;
                 case COMMAND_TYPE_CREATE_DATA_PATH_INTERFACE:
                     waitForResponse = mWifiAwareNativeApi.createAwareNetworkInterface(
-                            mCurrentTransactionId, (String) msg.obj);
+                            transactionId, (String) msg.obj);
                     break;
                 case COMMAND_TYPE_DELETE_DATA_PATH_INTERFACE:
                     waitForResponse = mWifiAwareNativeApi.deleteAwareNetworkInterface(
-                            mCurrentTransactionId, (String) msg.obj);
+                            transactionId, (String) msg.obj);
                     break;
                 case COMMAND_TYPE_INITIATE_DATA_PATH_SETUP: {
                     Bundle data = msg.getData();
@@ -1717,7 +1730,7 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
                     String passphrase = data.getString(MESSAGE_BUNDLE_KEY_PASSPHRASE);
                     boolean isOutOfBand = data.getBoolean(MESSAGE_BUNDLE_KEY_OOB);
 
-                    waitForResponse = initiateDataPathSetupLocal(mCurrentTransactionId,
+                    waitForResponse = initiateDataPathSetupLocal(transactionId,
                             networkSpecifier, peerId, channelRequestType, channel, peer,
                             interfaceName, pmk, passphrase, isOutOfBand);
 
@@ -1741,13 +1754,13 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
                     String passphrase = data.getString(MESSAGE_BUNDLE_KEY_PASSPHRASE);
                     boolean isOutOfBand = data.getBoolean(MESSAGE_BUNDLE_KEY_OOB);
 
-                    waitForResponse = respondToDataPathRequestLocal(mCurrentTransactionId, accept,
+                    waitForResponse = respondToDataPathRequestLocal(transactionId, accept,
                             ndpId, interfaceName, pmk, passphrase, isOutOfBand);
 
                     break;
                 }
                 case COMMAND_TYPE_END_DATA_PATH:
-                    waitForResponse = endDataPathLocal(mCurrentTransactionId, msg.arg2);
+                    waitForResponse = endDataPathLocal(transactionId, msg.arg2);
                     break;
                 case COMMAND_TYPE_DELAYED_INITIALIZATION:
                     mWifiAwareNativeManager.start(getHandler());
@@ -1768,65 +1781,142 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
             }
 
             if (!waitForResponse) {
-                mCurrentTransactionId = TRANSACTION_ID_IGNORE;
+                mLoggedTransactionId = TRANSACTION_ID_IGNORE;
             } else {
-                mCurrentCommand = obtainMessage(msg.what);
-                mCurrentCommand.copyFrom(msg);
+                Message command = obtainMessage(msg.what);
+                command.copyFrom(msg);
+                mPendingCommands.put(transactionId, new PendingCommand(command, transactionId));
+                mLoggedTransactionId = transactionId;
             }
 
             return waitForResponse;
         }
 
-        private void processResponse(Message msg) {
+        /**
+         * Returns true if the command may be dispatched to the HAL while the pending commands are
+         * still waiting for their RESPONSE.
+         */
+        private boolean canDispatchCommand(Message msg) {
+            if (mPendingCommands.size() == 0) {
+                return true;
+            }
+            if (mPendingCommands.size() >= MAX_CONCURRENT_COMMANDS
+                    || !isPipelinedCommand(msg.arg1)) {
+                return false;
+            }
+            for (int i = 0; i < mPendingCommands.size(); ++i) {
+                int pendingCommandType = mPendingCommands.valueAt(i).command.arg1;
+                if (!isPipelinedCommand(pendingCommandType)) {
+                    return false;
+                }
+                // follow-on messages are handed to the firmware one at a time to keep their order
+                if (pendingCommandType == COMMAND_TYPE_TRANSMIT_NEXT_MESSAGE
+                        && msg.arg1 == COMMAND_TYPE_TRANSMIT_NEXT_MESSAGE) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Returns true for the commands which are independent of each other and may therefore be
+         * outstanding at the same time: discovery session configuration, follow-on messages and
+         * data-path setup/teardown. Commands which (re)configure, enable or disable Aware - as
+         * well as session termination which has to follow the session configuration - remain
+         * serialized.
+         */
+        private boolean isPipelinedCommand(int commandType) {
+            switch (commandType) {
+                case COMMAND_TYPE_PUBLISH:
+                case COMMAND_TYPE_UPDATE_PUBLISH:
+                case COMMAND_TYPE_SUBSCRIBE:
+                case COMMAND_TYPE_UPDATE_SUBSCRIBE:
+                case COMMAND_TYPE_ENQUEUE_SEND_MESSAGE:
+                case COMMAND_TYPE_TRANSMIT_NEXT_MESSAGE:
+                case COMMAND_TYPE_INITIATE_DATA_PATH_SETUP:
+                case COMMAND_TYPE_RESPOND_TO_DATA_PATH_SETUP_REQUEST:
+                case COMMAND_TYPE_END_DATA_PATH:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        /**
+         * A command waiting for its RESPONSE, along with its timeout.
+         */
+        private class PendingCommand {
+            public final Message command;
+            public final WakeupMessage timeoutMessage;
+
+            PendingCommand(Message command, short transactionId) {
+                this.command = command;
+                timeoutMessage = new WakeupMessage(mContext, getHandler(),
+                        HAL_COMMAND_TIMEOUT_TAG, MESSAGE_TYPE_RESPONSE_TIMEOUT, command.arg1,
+                        transactionId);
+                timeoutMessage.schedule(SystemClock.elapsedRealtime() + AWARE_COMMAND_TIMEOUT);
+            }
+
+            @Override
+            public String toString() {
+                return command.toString();
+            }
+        }
+
+        /**
+         * Process the RESPONSE to a pending command. Returns true if the RESPONSE matched a
+         * pending command, which is then completed.
+         */
+        private boolean processResponse(Message msg) {
             if (VDBG) {
                 Log.v(TAG, "processResponse: msg=" + msg);
             }
 
-            if (mCurrentCommand == null) {
-                Log.wtf(TAG, "processResponse: no existing command stored!? msg=" + msg);
-                mCurrentTransactionId = TRANSACTION_ID_IGNORE;
-                return;
+            short transactionId = (short) msg.arg2;
+            Message command = removePendingCommand(transactionId);
+            if (command == null) {
+                Log.w(TAG, "processResponse: non-matching transaction ID on RESPONSE (a very late "
+                        + "response) -- msg=" + msg);
+                return false;
             }
 
             switch (msg.arg1) {
                 case RESPONSE_TYPE_ON_CONFIG_SUCCESS:
-                    onConfigCompletedLocal(mCurrentCommand);
+                    onConfigCompletedLocal(command);
                     break;
                 case RESPONSE_TYPE_ON_CONFIG_FAIL: {
                     int reason = (Integer) msg.obj;
 
-                    onConfigFailedLocal(mCurrentCommand, reason);
+                    onConfigFailedLocal(command, reason);
                     break;
                 }
                 case RESPONSE_TYPE_ON_SESSION_CONFIG_SUCCESS: {
                     byte pubSubId = (Byte) msg.obj;
                     boolean isPublish = msg.getData().getBoolean(MESSAGE_BUNDLE_KEY_SESSION_TYPE);
 
-                    onSessionConfigSuccessLocal(mCurrentCommand, pubSubId, isPublish);
+                    onSessionConfigSuccessLocal(command, pubSubId, isPublish);
                     break;
                 }
                 case RESPONSE_TYPE_ON_SESSION_CONFIG_FAIL: {
                     int reason = (Integer) msg.obj;
                     boolean isPublish = msg.getData().getBoolean(MESSAGE_BUNDLE_KEY_SESSION_TYPE);
 
-                    onSessionConfigFailLocal(mCurrentCommand, isPublish, reason);
+                    onSessionConfigFailLocal(command, isPublish, reason);
                     break;
                 }
                 case RESPONSE_TYPE_ON_MESSAGE_SEND_QUEUED_SUCCESS: {
-                    Message sentMessage = mCurrentCommand.getData().getParcelable(
-                            MESSAGE_BUNDLE_KEY_SENT_MESSAGE);
-                    sentMessage.getData().putLong(MESSAGE_BUNDLE_KEY_SEND_MESSAGE_ENQUEUE_TIME,
-                            SystemClock.elapsedRealtime());
-                    mFwQueuedSendMessages.put(mCurrentTransactionId, sentMessage);
+                    WifiAwareFollowupQueue.FollowupMessage sentMessage =
+                            (WifiAwareFollowupQueue.FollowupMessage) command.obj;
+                    sentMessage.fwQueueTimeMs = SystemClock.elapsedRealtime();
+                    mFwQueuedSendMessages.put(transactionId, sentMessage);
                     updateSendMessageTimeout();
                     if (!mSendQueueBlocked) {
                         transmitNextMessage();
                     }
 
                     if (VDBG) {
-                        Log.v(TAG, "processResponse: ON_MESSAGE_SEND_QUEUED_SUCCESS - arrivalSeq="
-                                + sentMessage.getData().getInt(
-                                MESSAGE_BUNDLE_KEY_MESSAGE_ARRIVAL_SEQ));
+                        Log.v(TAG, "processResponse: ON_MESSAGE_SEND_QUEUED_SUCCESS - "
+                                + sentMessage);
                     }
                     break;
                 }
@@ -1835,21 +1925,17 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
                         Log.v(TAG, "processResponse: ON_MESSAGE_SEND_QUEUED_FAIL - blocking!");
                     }
                     int reason = (Integer) msg.obj;
+                    WifiAwareFollowupQueue.FollowupMessage sentMessage =
+                            (WifiAwareFollowupQueue.FollowupMessage) command.obj;
                     if (reason == NanStatusType.FOLLOWUP_TX_QUEUE_FULL) {
-                        Message sentMessage = mCurrentCommand.getData().getParcelable(
-                                MESSAGE_BUNDLE_KEY_SENT_MESSAGE);
-                        int arrivalSeq = sentMessage.getData().getInt(
-                                MESSAGE_BUNDLE_KEY_MESSAGE_ARRIVAL_SEQ);
-                        mHostQueuedSendMessages.put(arrivalSeq, sentMessage);
+                        mHostQueuedSendMessages.requeue(sentMessage);
                         mSendQueueBlocked = true;
 
                         if (VDBG) {
-                            Log.v(TAG, "processResponse: ON_MESSAGE_SEND_QUEUED_FAIL - arrivalSeq="
-                                    + arrivalSeq + " -- blocking");
+                            Log.v(TAG, "processResponse: ON_MESSAGE_SEND_QUEUED_FAIL - "
+                                    + sentMessage + " -- blocking");
                         }
                     } else {
-                        Message sentMessage = mCurrentCommand.getData().getParcelable(
-                                MESSAGE_BUNDLE_KEY_SENT_MESSAGE);
                         onMessageSendFailLocal(sentMessage, NanStatusType.INTERNAL_FAILURE);
                         if (!mSendQueueBlocked) {
                             transmitNextMessage();
@@ -1862,54 +1948,57 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
                     break;
                 }
                 case RESPONSE_TYPE_ON_CREATE_INTERFACE:
-                    onCreateDataPathInterfaceResponseLocal(mCurrentCommand,
+                    onCreateDataPathInterfaceResponseLocal(command,
                             msg.getData().getBoolean(MESSAGE_BUNDLE_KEY_SUCCESS_FLAG),
                             msg.getData().getInt(MESSAGE_BUNDLE_KEY_STATUS_CODE));
                     break;
                 case RESPONSE_TYPE_ON_DELETE_INTERFACE:
-                    onDeleteDataPathInterfaceResponseLocal(mCurrentCommand,
+                    onDeleteDataPathInterfaceResponseLocal(command,
                             msg.getData().getBoolean(MESSAGE_BUNDLE_KEY_SUCCESS_FLAG),
                             msg.getData().getInt(MESSAGE_BUNDLE_KEY_STATUS_CODE));
                     break;
                 case RESPONSE_TYPE_ON_INITIATE_DATA_PATH_SUCCESS:
-                    onInitiateDataPathResponseSuccessLocal(mCurrentCommand, (int) msg.obj);
+                    onInitiateDataPathResponseSuccessLocal(command, (int) msg.obj);
                     break;
                 case RESPONSE_TYPE_ON_INITIATE_DATA_PATH_FAIL:
-                    onInitiateDataPathResponseFailLocal(mCurrentCommand, (int) msg.obj);
+                    onInitiateDataPathResponseFailLocal(command, (int) msg.obj);
                     break;
                 case RESPONSE_TYPE_ON_RESPOND_TO_DATA_PATH_SETUP_REQUEST:
-                    onRespondToDataPathSetupRequestResponseLocal(mCurrentCommand,
+                    onRespondToDataPathSetupRequestResponseLocal(command,
                             msg.getData().getBoolean(MESSAGE_BUNDLE_KEY_SUCCESS_FLAG),
                             msg.getData().getInt(MESSAGE_BUNDLE_KEY_STATUS_CODE));
                     break;
                 case RESPONSE_TYPE_ON_END_DATA_PATH:
-                    onEndPathEndResponseLocal(mCurrentCommand,
+                    onEndPathEndResponseLocal(command,
                             msg.getData().getBoolean(MESSAGE_BUNDLE_KEY_SUCCESS_FLAG),
                             msg.getData().getInt(MESSAGE_BUNDLE_KEY_STATUS_CODE));
                     break;
                 case RESPONSE_TYPE_ON_DISABLE:
-                    onDisableResponseLocal(mCurrentCommand, (Integer) msg.obj);
+                    onDisableResponseLocal(command, (Integer) msg.obj);
                     break;
                 default:
                     Log.wtf(TAG, "processResponse: this isn't a RESPONSE -- msg=" + msg);
-                    mCurrentCommand = null;
-                    mCurrentTransactionId = TRANSACTION_ID_IGNORE;
-                    return;
+                    /* fall-through */
             }
 
-            mCurrentCommand = null;
-            mCurrentTransactionId = TRANSACTION_ID_IGNORE;
+            return true;
         }
 
-        private void processTimeout(Message msg) {
+        /**
+         * Process the timeout of a pending command. Returns true if the timeout matched a pending
+         * command, which is then completed.
+         */
+        private boolean processTimeout(Message msg) {
             if (mDbg) {
                 Log.v(TAG, "processTimeout: msg=" + msg);
             }
 
-            if (mCurrentCommand == null) {
-                Log.wtf(TAG, "processTimeout: no existing command stored!? msg=" + msg);
-                mCurrentTransactionId = TRANSACTION_ID_IGNORE;
-                return;
+            Message command = removePendingCommand((short) msg.arg2);
+            if (command == null) {
+                Log.w(TAG, "processTimeout: non-matching transaction ID on RESPONSE_TIMEOUT "
+                        + "(either a non-cancelled timeout or a race condition with cancel) -- msg="
+                        + msg);
+                return false;
             }
 
             /*
@@ -1917,11 +2006,11 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
              */
             switch (msg.arg1) {
                 case COMMAND_TYPE_CONNECT: {
-                    onConfigFailedLocal(mCurrentCommand, NanStatusType.INTERNAL_FAILURE);
+                    onConfigFailedLocal(command, NanStatusType.INTERNAL_FAILURE);
                     break;
                 }
                 case COMMAND_TYPE_DISCONNECT: {
-                    onConfigFailedLocal(mCurrentCommand, NanStatusType.INTERNAL_FAILURE);
+                    onConfigFailedLocal(command, NanStatusType.INTERNAL_FAILURE);
                     break;
                 }
                 case COMMAND_TYPE_RECONFIGURE:
@@ -1929,27 +2018,27 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
                      * Reconfigure timed-out. There is nothing to do but log the issue - which
                       * will be done in the callback.
                      */
-                    onConfigFailedLocal(mCurrentCommand, NanStatusType.INTERNAL_FAILURE);
+                    onConfigFailedLocal(command, NanStatusType.INTERNAL_FAILURE);
                     break;
                 case COMMAND_TYPE_TERMINATE_SESSION: {
                     Log.wtf(TAG, "processTimeout: TERMINATE_SESSION - shouldn't be waiting!");
                     break;
                 }
                 case COMMAND_TYPE_PUBLISH: {
-                    onSessionConfigFailLocal(mCurrentCommand, true, NanStatusType.INTERNAL_FAILURE);
+                    onSessionConfigFailLocal(command, true, NanStatusType.INTERNAL_FAILURE);
                     break;
                 }
                 case COMMAND_TYPE_UPDATE_PUBLISH: {
-                    onSessionConfigFailLocal(mCurrentCommand, true, NanStatusType.INTERNAL_FAILURE);
+                    onSessionConfigFailLocal(command, true, NanStatusType.INTERNAL_FAILURE);
                     break;
                 }
                 case COMMAND_TYPE_SUBSCRIBE: {
-                    onSessionConfigFailLocal(mCurrentCommand, false,
+                    onSessionConfigFailLocal(command, false,
                             NanStatusType.INTERNAL_FAILURE);
                     break;
                 }
                 case COMMAND_TYPE_UPDATE_SUBSCRIBE: {
-                    onSessionConfigFailLocal(mCurrentCommand, false,
+                    onSessionConfigFailLocal(command, false,
                             NanStatusType.INTERNAL_FAILURE);
                     break;
                 }
@@ -1958,8 +2047,8 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
                     break;
                 }
                 case COMMAND_TYPE_TRANSMIT_NEXT_MESSAGE: {
-                    Message sentMessage = mCurrentCommand.getData().getParcelable(
-                            MESSAGE_BUNDLE_KEY_SENT_MESSAGE);
+                    WifiAwareFollowupQueue.FollowupMessage sentMessage =
+                            (WifiAwareFollowupQueue.FollowupMessage) command.obj;
                     onMessageSendFailLocal(sentMessage, NanStatusType.INTERNAL_FAILURE);
                     mSendQueueBlocked = false;
                     transmitNextMessage();
@@ -1988,23 +2077,23 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
                     break;
                 case COMMAND_TYPE_CREATE_DATA_PATH_INTERFACE:
                     // TODO: fix status: timeout
-                    onCreateDataPathInterfaceResponseLocal(mCurrentCommand, false, 0);
+                    onCreateDataPathInterfaceResponseLocal(command, false, 0);
                     break;
                 case COMMAND_TYPE_DELETE_DATA_PATH_INTERFACE:
                     // TODO: fix status: timeout
-                    onDeleteDataPathInterfaceResponseLocal(mCurrentCommand, false, 0);
+                    onDeleteDataPathInterfaceResponseLocal(command, false, 0);
                     break;
                 case COMMAND_TYPE_INITIATE_DATA_PATH_SETUP:
                     // TODO: fix status: timeout
-                    onInitiateDataPathResponseFailLocal(mCurrentCommand, 0);
+                    onInitiateDataPathResponseFailLocal(command, 0);
                     break;
                 case COMMAND_TYPE_RESPOND_TO_DATA_PATH_SETUP_REQUEST:
                     // TODO: fix status: timeout
-                    onRespondToDataPathSetupRequestResponseLocal(mCurrentCommand, false, 0);
+                    onRespondToDataPathSetupRequestResponseLocal(command, false, 0);
                     break;
                 case COMMAND_TYPE_END_DATA_PATH:
                     // TODO: fix status: timeout
-                    onEndPathEndResponseLocal(mCurrentCommand, false, 0);
+                    onEndPathEndResponseLocal(command, false, 0);
                     break;
                 case COMMAND_TYPE_DELAYED_INITIALIZATION:
                     Log.wtf(TAG,
@@ -2024,8 +2113,17 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
                     /* fall-through */
             }
 
-            mCurrentCommand = null;
-            mCurrentTransactionId = TRANSACTION_ID_IGNORE;
+            return true;
+        }
+
+        private Message removePendingCommand(short transactionId) {
+            PendingCommand pendingCommand = mPendingCommands.get(transactionId);
+            if (pendingCommand == null) {
+                return null;
+            }
+            mPendingCommands.remove(transactionId);
+            pendingCommand.timeoutMessage.cancel();
+            return pendingCommand.command;
         }
 
         private void updateSendMessageTimeout() {
@@ -2035,16 +2133,15 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
                         + mFwQueuedSendMessages.size() + ", mSendQueueBlocked="
                         + mSendQueueBlocked);
             }
-            Iterator<Message> it = mFwQueuedSendMessages.values().iterator();
+            Iterator<WifiAwareFollowupQueue.FollowupMessage> it =
+                    mFwQueuedSendMessages.values().iterator();
             if (it.hasNext()) {
                 /*
                  * Schedule timeout based on the first message in the queue (which is the earliest
                  * submitted message). Timeout = queuing time + timeout constant.
                  */
-                Message msg = it.next();
-                mSendMessageTimeoutMessage.schedule(
-                        msg.getData().getLong(MESSAGE_BUNDLE_KEY_SEND_MESSAGE_ENQUEUE_TIME)
-                        + AWARE_SEND_MESSAGE_TIMEOUT);
+                WifiAwareFollowupQueue.FollowupMessage msg = it.next();
+                mSendMessageTimeoutMessage.schedule(msg.fwQueueTimeMs + AWARE_SEND_MESSAGE_TIMEOUT);
             } else {
                 mSendMessageTimeoutMessage.cancel();
             }
@@ -2065,13 +2162,13 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
              */
             boolean first = true;
             long currentTime = SystemClock.elapsedRealtime();
-            Iterator<Map.Entry<Short, Message>> it = mFwQueuedSendMessages.entrySet().iterator();
+            Iterator<Map.Entry<Short, WifiAwareFollowupQueue.FollowupMessage>> it =
+                    mFwQueuedSendMessages.entrySet().iterator();
             while (it.hasNext()) {
-                Map.Entry<Short, Message> entry = it.next();
+                Map.Entry<Short, WifiAwareFollowupQueue.FollowupMessage> entry = it.next();
                 short transactionId = entry.getKey();
-                Message message = entry.getValue();
-                long messageEnqueueTime = message.getData().getLong(
-                        MESSAGE_BUNDLE_KEY_SEND_MESSAGE_ENQUEUE_TIME);
+                WifiAwareFollowupQueue.FollowupMessage message = entry.getValue();
+                long messageEnqueueTime = message.fwQueueTimeMs;
                 if (first || messageEnqueueTime + AWARE_SEND_MESSAGE_TIMEOUT <= currentTime) {
                     if (mDbg) {
                         Log.v(TAG, "processSendMessageTimeout: expiring - transactionId="
@@ -2096,8 +2193,8 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
             StringBuilder sb = new StringBuilder(WifiAwareStateManager.messageToString(msg));
 
             if (msg.what == MESSAGE_TYPE_COMMAND
-                    && mCurrentTransactionId != TRANSACTION_ID_IGNORE) {
-                sb.append(" (Transaction ID=").append(mCurrentTransactionId).append(")");
+                    && mLoggedTransactionId != TRANSACTION_ID_IGNORE) {
+                sb.append(" (Transaction ID=").append(mLoggedTransactionId).append(")");
             }
 
             return sb.toString();
@@ -2108,11 +2205,9 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
             pw.println("WifiAwareStateMachine:");
             pw.println("  mNextTransactionId: " + mNextTransactionId);
             pw.println("  mNextSessionId: " + mNextSessionId);
-            pw.println("  mCurrentCommand: " + mCurrentCommand);
-            pw.println("  mCurrentTransaction: " + mCurrentTransactionId);
+            pw.println("  mPendingCommands: [" + mPendingCommands + "]");
             pw.println("  mSendQueueBlocked: " + mSendQueueBlocked);
-            pw.println("  mSendArrivalSequenceCounter: " + mSendArrivalSequenceCounter);
-            pw.println("  mHostQueuedSendMessages: [" + mHostQueuedSendMessages + "]");
+            mHostQueuedSendMessages.dump(pw);
             pw.println("  mFwQueuedSendMessages: [" + mFwQueuedSendMessages + "]");
             super.dump(fd, pw, args);
         }
@@ -2785,20 +2880,23 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
         }
     }
 
-    private void onMessageSendSuccessLocal(Message completedCommand) {
+    private void onMessageSendSuccessLocal(
+            WifiAwareFollowupQueue.FollowupMessage completedCommand) {
         if (VDBG) {
             Log.v(TAG, "onMessageSendSuccess: completedCommand=" + completedCommand);
         }
 
-        int clientId = completedCommand.arg2;
-        int sessionId = completedCommand.getData().getInt(MESSAGE_BUNDLE_KEY_SESSION_ID);
-        int messageId = completedCommand.getData().getInt(MESSAGE_BUNDLE_KEY_MESSAGE_ID);
+        int clientId = completedCommand.clientId;
+        int sessionId = completedCommand.sessionId;
+        int messageId = completedCommand.messageId;
 
         WifiAwareClientState client = mClients.get(clientId);
         if (client == null) {
             Log.e(TAG, "onMessageSendSuccessLocal: no client exists for clientId=" + clientId);
             return;
         }
+        mAwareMetrics.recordFollowupMessageStatus(client.getUid(), NanStatusType.SUCCESS,
+                SystemClock.elapsedRealtime() - completedCommand.arrivalTimeMs);
 
         WifiAwareDiscoverySessionState session = client.getSession(sessionId);
         if (session == null) {
@@ -2814,20 +2912,23 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
         }
     }
 
-    private void onMessageSendFailLocal(Message failedCommand, int reason) {
+    private void onMessageSendFailLocal(WifiAwareFollowupQueue.FollowupMessage failedCommand,
+            int reason) {
         if (VDBG) {
             Log.v(TAG, "onMessageSendFail: failedCommand=" + failedCommand + ", reason=" + reason);
         }
 
-        int clientId = failedCommand.arg2;
-        int sessionId = failedCommand.getData().getInt(MESSAGE_BUNDLE_KEY_SESSION_ID);
-        int messageId = failedCommand.getData().getInt(MESSAGE_BUNDLE_KEY_MESSAGE_ID);
+        int clientId = failedCommand.clientId;
+        int sessionId = failedCommand.sessionId;
+        int messageId = failedCommand.messageId;
 
         WifiAwareClientState client = mClients.get(clientId);
         if (client == null) {
             Log.e(TAG, "onMessageSendFailLocal: no client exists for clientId=" + clientId);
             return;
         }
+        mAwareMetrics.recordFollowupMessageStatus(client.getUid(), reason,
+                SystemClock.elapsedRealtime() - failedCommand.arrivalTimeMs);
 
         WifiAwareDiscoverySessionState session = client.getSession(sessionId);
         if (session == null) {
@@ -2982,6 +3083,17 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
             return;
         }
 
+        // ranging events carry new information (the distance): never suppressed
+        if (rangingIndication == 0 && data.second.isDuplicateMatch(requestorInstanceId, peerMac,
+                serviceSpecificInfo, matchFilter, SystemClock.elapsedRealtime(),
+                mSettableParameters.get(PARAM_MATCH_DEDUP_WINDOW_MS))) {
+            if (VDBG) {
+                Log.v(TAG, "onMatch: duplicate of a recently delivered match - suppressed");
+            }
+            mAwareMetrics.recordMatchIndicationSuppressed();
+            return;
+        }
+
         if (data.second.isRangingEnabled()) {
             mAwareMetrics.recordMatchIndicationForRangeEnabledSubscribe(rangingIndication != 0);
         }
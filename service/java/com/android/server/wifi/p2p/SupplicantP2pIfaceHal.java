@@ -42,6 +42,7 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.internal.util.ArrayUtils;
+import com.android.server.wifi.HalCallTracker;
 import com.android.server.wifi.util.NativeUtil;
 
 import java.nio.ByteBuffer;
@@ -114,11 +115,23 @@ public class SupplicantP2pIfaceHal {
 
     private final WifiP2pMonitor mMonitor;
     private SupplicantP2pIfaceCallback mCallback = null;
+    private HalCallTracker mHalCallTracker;
 
     public SupplicantP2pIfaceHal(WifiP2pMonitor monitor) {
         mMonitor = monitor;
     }
 
+    /**
+     * Set the tracker used to record the latency of the HIDL calls made by this object.
+     *
+     * @param halCallTracker tracker to use, or null to disable tracking.
+     */
+    public void setHalCallTracker(HalCallTracker halCallTracker) {
+        synchronized (mLock) {
+            mHalCallTracker = halCallTracker;
+        }
+    }
+
     private boolean linkToServiceManagerDeath() {
         if (mIServiceManager == null) return false;
         try {
@@ -200,7 +213,9 @@ public class SupplicantP2pIfaceHal {
     private boolean initSupplicantService() {
         synchronized (mLock) {
             try {
-                mISupplicant = getSupplicantMockable();
+                mISupplicant = HalCallTracker.track(
+                        mHalCallTracker, "ISupplicant", ISupplicant.class,
+                        getSupplicantMockable());
             } catch (RemoteException e) {
                 Log.e(TAG, "ISupplicant.getService exception: " + e);
                 return false;
@@ -250,7 +265,9 @@ public class SupplicantP2pIfaceHal {
                 Log.e(TAG, "initSupplicantP2pIface got null iface");
                 return false;
             }
-            mISupplicantP2pIface = getP2pIfaceMockable(ifaceHwBinder);
+            mISupplicantP2pIface = HalCallTracker.track(mHalCallTracker,
+                    "ISupplicantP2pIface", ISupplicantP2pIface.class,
+                    getP2pIfaceMockable(ifaceHwBinder));
             if (!linkToSupplicantP2pIfaceDeath()) {
                 return false;
             }
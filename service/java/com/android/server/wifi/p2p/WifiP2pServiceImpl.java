@@ -81,6 +81,7 @@ import com.android.internal.util.State;
 import com.android.internal.util.StateMachine;
 import com.android.server.wifi.WifiInjector;
 import com.android.server.wifi.WifiStateMachine;
+import com.android.server.wifi.util.StateMachineProfiler;
 import com.android.server.wifi.util.WifiAsyncChannel;
 import com.android.server.wifi.util.WifiHandler;
 import com.android.server.wifi.util.WifiPermissionsUtil;
@@ -664,6 +665,8 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
 
         private WifiP2pNative mWifiNative = WifiInjector.getInstance().getWifiP2pNative();
         private WifiP2pMonitor mWifiMonitor = WifiInjector.getInstance().getWifiP2pMonitor();
+        private final StateMachineProfiler mStateMachineProfiler =
+                WifiInjector.getInstance().getStateMachineProfiler();
         private final WifiP2pDeviceList mPeers = new WifiP2pDeviceList();
         // WifiInjector is lazy initialized in P2p Service
         private WifiInjector mWifiInjector;
@@ -698,6 +701,20 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
         // or if it is connected without any ongoing join request
         private WifiP2pConfig mSavedPeerConfig = new WifiP2pConfig();
 
+        @Override
+        protected void onPreHandleMessage(Message msg) {
+            if (mStateMachineProfiler != null && mStateMachineProfiler.isEnabled()) {
+                mStateMachineProfiler.onPreHandleMessage(this, msg);
+            }
+        }
+
+        @Override
+        protected void onPostHandleMessage(Message msg) {
+            if (mStateMachineProfiler != null && mStateMachineProfiler.isEnabled()) {
+                mStateMachineProfiler.onPostHandleMessage(this, msg, getWhatToString(msg.what));
+            }
+        }
+
         P2pStateMachine(String name, Looper looper, boolean p2pSupported) {
             super(name, looper);
 
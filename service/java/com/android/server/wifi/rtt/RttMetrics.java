@@ -81,6 +81,12 @@ public class RttMetrics {
     private static final int PEER_AWARE = 1;
 
     private int mNumStartRangingCalls = 0;
+    private int mNumResultCacheLookups = 0;
+    private int mNumResultCacheHits = 0;
+    private int mNumRequestsAnsweredFromCache = 0;
+    private int mNumMergedRangingCommands = 0;
+    private int mNumMergedRangingRequests = 0;
+    private int mNumDuplicatePeersMerged = 0;
     private SparseIntArray mOverallStatusHistogram = new SparseIntArray();
     private PerPeerTypeInfo[] mPerPeerTypeInfo;
 
@@ -196,6 +202,34 @@ public class RttMetrics {
         }
     }
 
+    /**
+     * Record metrics for a lookup of the peers of a request in the ranging result cache.
+     *
+     * @param numPeers Number of peers in the request.
+     * @param numHits Number of peers with a fresh cached result: the request is answered from the
+     *                cache if all its peers have one.
+     */
+    public void recordResultCacheLookup(int numPeers, int numHits) {
+        mNumResultCacheLookups += numPeers;
+        mNumResultCacheHits += numHits;
+        if (numHits == numPeers) {
+            mNumRequestsAnsweredFromCache++;
+        }
+    }
+
+    /**
+     * Record metrics for a HAL ranging command which executes the requests of several clients.
+     *
+     * @param numRequests Number of requests merged into the command.
+     * @param numDuplicatePeers Number of peers shared by several of the requests, i.e. ranged once
+     *                          instead of once per request.
+     */
+    public void recordMergedRangingCommand(int numRequests, int numDuplicatePeers) {
+        mNumMergedRangingCommands++;
+        mNumMergedRangingRequests += numRequests;
+        mNumDuplicatePeersMerged += numDuplicatePeers;
+    }
+
     /**
      * Record metrics for the overall ranging request status.
      */
@@ -355,6 +389,12 @@ public class RttMetrics {
             pw.println("RTT Metrics:");
             pw.println("mNumStartRangingCalls:" + mNumStartRangingCalls);
             pw.println("mOverallStatusHistogram:" + mOverallStatusHistogram);
+            pw.println("mNumResultCacheLookups:" + mNumResultCacheLookups);
+            pw.println("mNumResultCacheHits:" + mNumResultCacheHits);
+            pw.println("mNumRequestsAnsweredFromCache:" + mNumRequestsAnsweredFromCache);
+            pw.println("mNumMergedRangingCommands:" + mNumMergedRangingCommands);
+            pw.println("mNumMergedRangingRequests:" + mNumMergedRangingRequests);
+            pw.println("mNumDuplicatePeersMerged:" + mNumDuplicatePeersMerged);
             pw.println("AP:" + mPerPeerTypeInfo[PEER_AP]);
             pw.println("AWARE:" + mPerPeerTypeInfo[PEER_AWARE]);
         }
@@ -366,6 +406,12 @@ public class RttMetrics {
     public void clear() {
         synchronized (mLock) {
             mNumStartRangingCalls = 0;
+            mNumResultCacheLookups = 0;
+            mNumResultCacheHits = 0;
+            mNumRequestsAnsweredFromCache = 0;
+            mNumMergedRangingCommands = 0;
+            mNumMergedRangingRequests = 0;
+            mNumDuplicatePeersMerged = 0;
             mOverallStatusHistogram.clear();
             mPerPeerTypeInfo[PEER_AP] = new PerPeerTypeInfo();
             mPerPeerTypeInfo[PEER_AWARE] = new PerPeerTypeInfo();
@@ -54,6 +54,7 @@ import android.provider.Settings;
 import android.util.Log;
 import android.util.SparseIntArray;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.WakeupMessage;
 import com.android.server.wifi.Clock;
 import com.android.server.wifi.FrameworkFacade;
@@ -66,6 +67,7 @@ import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
@@ -122,6 +124,20 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
             "override_assume_no_privilege";
     private static final int CONTROL_PARAM_OVERRIDE_ASSUME_NO_PRIVILEGE_DEFAULT = 0;
 
+    // If set to 1: pending requests of different clients are merged into a single HAL ranging
+    // command (up to the per-command peer limit), if set to 0: requests are executed one at a time
+    private static final String CONTROL_PARAM_MERGE_REQUESTS_NAME = "merge_requests";
+    private static final int CONTROL_PARAM_MERGE_REQUESTS_DEFAULT = 1;
+
+    // If set to a positive value: requests whose peers all have a successful result younger than
+    // the value (in ms) are answered from the result cache, if set to 0: result cache disabled
+    private static final String CONTROL_PARAM_RESULT_CACHE_FRESHNESS_MS_NAME =
+            "result_cache_freshness_ms";
+    private static final int CONTROL_PARAM_RESULT_CACHE_FRESHNESS_MS_DEFAULT = 0;
+
+    // arbitrary, larger than anything reasonable within a freshness window
+    /* package */ static final int MAX_CACHED_RESULTS = 100;
+
     private class RttShellCommand extends ShellCommand {
         private Map<String, Integer> mControlParams = new HashMap<>();
 
@@ -203,6 +219,10 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
         public void reset() {
             mControlParams.put(CONTROL_PARAM_OVERRIDE_ASSUME_NO_PRIVILEGE_NAME,
                     CONTROL_PARAM_OVERRIDE_ASSUME_NO_PRIVILEGE_DEFAULT);
+            mControlParams.put(CONTROL_PARAM_MERGE_REQUESTS_NAME,
+                    CONTROL_PARAM_MERGE_REQUESTS_DEFAULT);
+            mControlParams.put(CONTROL_PARAM_RESULT_CACHE_FRESHNESS_MS_NAME,
+                    CONTROL_PARAM_RESULT_CACHE_FRESHNESS_MS_DEFAULT);
         }
     }
 
@@ -297,6 +317,25 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
         });
     }
 
+    /**
+     * Enable or disable merging of pending ranging requests into a single HAL command. Equivalent
+     * to the "merge_requests" shell command control parameter.
+     */
+    @VisibleForTesting
+    void enableRequestMerging(boolean enable) {
+        mShellCommand.mControlParams.put(CONTROL_PARAM_MERGE_REQUESTS_NAME, enable ? 1 : 0);
+    }
+
+    /**
+     * Set the freshness window of the ranging result cache - 0 disables the cache. Equivalent to
+     * the "result_cache_freshness_ms" shell command control parameter.
+     */
+    @VisibleForTesting
+    void setResultCacheFreshnessMs(int freshnessMs) {
+        mShellCommand.mControlParams.put(CONTROL_PARAM_RESULT_CACHE_FRESHNESS_MS_NAME,
+                freshnessMs);
+    }
+
     private void enableVerboseLogging(int verbose) {
         if (verbose > 0) {
             mDbg = true;
@@ -545,8 +584,10 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
 
         private RttNative mRttNative;
         private int mNextCommandId = 1000;
+        private int mNumRangingCommands = 0;
         private Map<Integer, RttRequesterInfo> mRttRequesterInfo = new HashMap<>();
         private List<RttRequestInfo> mRttRequestQueue = new LinkedList<>();
+        private Map<ResponderConfig, CachedRttResult> mRttResultCache = new HashMap<>();
         private WakeupMessage mRangingTimeoutMessage = null;
 
         RttServiceSynchronized(Looper looper, RttNative rttNative) {
@@ -560,8 +601,10 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
         }
 
         private void cancelRanging(RttRequestInfo rri) {
+            RangingRequest request =
+                    rri.dispatchedRequest != null ? rri.dispatchedRequest : rri.request;
             ArrayList<byte[]> macAddresses = new ArrayList<>();
-            for (ResponderConfig peer : rri.request.mRttPeers) {
+            for (ResponderConfig peer : request.mRttPeers) {
                 macAddresses.add(peer.macAddress.toByteArray());
             }
 
@@ -570,9 +613,11 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
 
         private void cleanUpOnDisable() {
             if (VDBG) Log.v(TAG, "RttServiceSynchronized.cleanUpOnDisable");
+            int cancelledCmdId = 0;
             for (RttRequestInfo rri : mRttRequestQueue) {
                 try {
-                    if (rri.dispatchedToNative) {
+                    if (rri.dispatchedToNative && rri.cmdId != cancelledCmdId) {
+                        cancelledCmdId = rri.cmdId;
                         // may not be necessary in some cases (e.g. Wi-Fi disable may already clear
                         // up active RTT), but in other cases will be needed (doze disabling RTT
                         // but Wi-Fi still up). Doesn't hurt - worst case will fail.
@@ -589,6 +634,7 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
                 rri.binder.unlinkToDeath(rri.dr, 0);
             }
             mRttRequestQueue.clear();
+            mRttResultCache.clear();
             mRangingTimeoutMessage.cancel();
         }
 
@@ -605,7 +651,7 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
                 Log.v(TAG, "RttServiceSynchronized.cleanUpOnClientDeath: uid=" + uid
                         + ", workSource=" + workSource + ", mRttRequestQueue=" + mRttRequestQueue);
             }
-            boolean dispatchedRequestAborted = false;
+            List<RttRequestInfo> abortedDispatchedRequests = new ArrayList<>();
             ListIterator<RttRequestInfo> it = mRttRequestQueue.listIterator();
             while (it.hasNext()) {
                 RttRequestInfo rri = it.next();
@@ -623,11 +669,26 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
                         it.remove();
                         rri.binder.unlinkToDeath(rri.dr, 0);
                     } else {
-                        dispatchedRequestAborted = true;
-                        Log.d(TAG, "Client death - cancelling RTT operation in progress: cmdId="
-                                + rri.cmdId);
-                        mRangingTimeoutMessage.cancel();
-                        cancelRanging(rri);
+                        abortedDispatchedRequests.add(rri);
+                    }
+                }
+            }
+
+            // the HAL command in progress is only cancelled if no other client (merged into the
+            // same command) is still waiting for its results
+            boolean dispatchedRequestAborted = false;
+            if (abortedDispatchedRequests.size() != 0) {
+                RttRequestInfo rri = abortedDispatchedRequests.get(0);
+                if (abortedDispatchedRequests.containsAll(getDispatchedRequests(rri.cmdId))) {
+                    dispatchedRequestAborted = true;
+                    Log.d(TAG, "Client death - cancelling RTT operation in progress: cmdId="
+                            + rri.cmdId);
+                    mRangingTimeoutMessage.cancel();
+                    cancelRanging(rri);
+                } else {
+                    for (RttRequestInfo abortedRequest : abortedDispatchedRequests) {
+                        mRttRequestQueue.remove(abortedRequest);
+                        abortedRequest.binder.unlinkToDeath(abortedRequest.dr, 0);
                     }
                 }
             }
@@ -659,11 +720,15 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
                 return;
             }
             cancelRanging(rri);
-            try {
-                mRttMetrics.recordOverallStatus(WifiMetricsProto.WifiRttLog.OVERALL_TIMEOUT);
-                rri.callback.onRangingFailure(RangingResultCallback.STATUS_CODE_FAIL);
-            } catch (RemoteException e) {
-                Log.e(TAG, "RttServiceSynchronized.timeoutRangingRequest: callback failed: " + e);
+            for (RttRequestInfo dispatchedRequest : getDispatchedRequests(rri.cmdId)) {
+                try {
+                    mRttMetrics.recordOverallStatus(WifiMetricsProto.WifiRttLog.OVERALL_TIMEOUT);
+                    dispatchedRequest.callback.onRangingFailure(
+                            RangingResultCallback.STATUS_CODE_FAIL);
+                } catch (RemoteException e) {
+                    Log.e(TAG, "RttServiceSynchronized.timeoutRangingRequest: callback failed: "
+                            + e);
+                }
             }
             executeNextRangingRequestIfPossible(true);
         }
@@ -757,6 +822,14 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
                 } else {
                     RttRequestInfo topOfQueueRequest = mRttRequestQueue.remove(0);
                     topOfQueueRequest.binder.unlinkToDeath(topOfQueueRequest.dr, 0);
+
+                    // pop any requests merged into the same HAL command (queued right after it)
+                    while (topOfQueueRequest.dispatchedToNative && mRttRequestQueue.size() != 0
+                            && mRttRequestQueue.get(0).dispatchedToNative
+                            && mRttRequestQueue.get(0).cmdId == topOfQueueRequest.cmdId) {
+                        RttRequestInfo mergedRequest = mRttRequestQueue.remove(0);
+                        mergedRequest.binder.unlinkToDeath(mergedRequest.dr, 0);
+                    }
                 }
             }
 
@@ -820,24 +893,236 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
                 return;
             }
 
-            nextRequest.cmdId = mNextCommandId++;
-            if (mRttNative.rangeRequest(nextRequest.cmdId, nextRequest.request,
+            if (dispatchCachedResultsIfPossible(nextRequest)) {
+                executeNextRangingRequestIfPossible(true);
+                return;
+            }
+
+            List<RttRequestInfo> requests = collectMergeableRequests(nextRequest);
+            RangingRequest halRequest =
+                    requests.size() == 1 ? nextRequest.request : mergeRangingRequests(requests);
+            int cmdId = mNextCommandId++;
+            for (RttRequestInfo request : requests) {
+                request.cmdId = cmdId;
+                request.dispatchedRequest = halRequest;
+                request.dispatchedToNative = true;
+            }
+            mNumRangingCommands++;
+            if (requests.size() > 1) {
+                int numPeers = 0;
+                for (RttRequestInfo request : requests) {
+                    numPeers += request.request.mRttPeers.size();
+                }
+                mRttMetrics.recordMergedRangingCommand(requests.size(),
+                        numPeers - halRequest.mRttPeers.size());
+                if (mDbg) {
+                    Log.v(TAG, "RttServiceSynchronized.startRanging: cmdId=" + cmdId + " merges "
+                            + requests.size() + " requests into " + halRequest.mRttPeers.size()
+                            + " peers");
+                }
+            }
+
+            if (mRttNative.rangeRequest(cmdId, halRequest,
                     nextRequest.isCalledFromPrivilegedContext)) {
                 mRangingTimeoutMessage.schedule(
                         mClock.getElapsedSinceBootMillis() + HAL_RANGING_TIMEOUT_MS);
             } else {
                 Log.w(TAG, "RttServiceSynchronized.startRanging: native rangeRequest call failed");
-                try {
-                    mRttMetrics.recordOverallStatus(
-                            WifiMetricsProto.WifiRttLog.OVERALL_HAL_FAILURE);
-                    nextRequest.callback.onRangingFailure(RangingResultCallback.STATUS_CODE_FAIL);
-                } catch (RemoteException e) {
-                    Log.e(TAG, "RttServiceSynchronized.startRanging: HAL request failed, callback "
-                            + "failed -- " + e);
+                for (RttRequestInfo request : requests) {
+                    try {
+                        mRttMetrics.recordOverallStatus(
+                                WifiMetricsProto.WifiRttLog.OVERALL_HAL_FAILURE);
+                        request.callback.onRangingFailure(RangingResultCallback.STATUS_CODE_FAIL);
+                    } catch (RemoteException e) {
+                        Log.e(TAG, "RttServiceSynchronized.startRanging: HAL request failed, "
+                                + "callback failed -- " + e);
+                    }
                 }
                 executeNextRangingRequestIfPossible(true);
             }
-            nextRequest.dispatchedToNative = true;
+        }
+
+        /**
+         * Collect the pending requests which can be executed in the same HAL command as the
+         * top-of-queue request. Requests are merged if:
+         * - Merging is enabled (shell control parameter)
+         * - They have the same privilege level
+         * - All their peers have a MAC address (i.e. no pending Aware PeerHandle translation)
+         * - Any peer they share with the already merged requests has an identical configuration
+         * - The total number of (unique) peers does not exceed the per-command limit
+         * - They pass the execution throttling check
+         *
+         * The merged requests are moved right after the top-of-queue request so that all requests
+         * of the command in progress are at the head of the queue.
+         *
+         * @return A list whose first entry is the top-of-queue request.
+         */
+        private List<RttRequestInfo> collectMergeableRequests(RttRequestInfo topOfQueueRequest) {
+            List<RttRequestInfo> requests = new ArrayList<>();
+            requests.add(topOfQueueRequest);
+            if (mShellCommand.getControlParam(CONTROL_PARAM_MERGE_REQUESTS_NAME) == 0) {
+                return requests;
+            }
+
+            Map<MacAddress, ResponderConfig> peers = new HashMap<>();
+            for (ResponderConfig peer : topOfQueueRequest.request.mRttPeers) {
+                peers.put(peer.macAddress, peer);
+            }
+
+            for (RttRequestInfo candidate : mRttRequestQueue) {
+                if (peers.size() >= RangingRequest.getMaxPeers()) {
+                    break;
+                }
+                if (candidate == topOfQueueRequest || candidate.dispatchedToNative
+                        || candidate.peerHandlesTranslated
+                        || candidate.isCalledFromPrivilegedContext
+                                != topOfQueueRequest.isCalledFromPrivilegedContext) {
+                    continue;
+                }
+
+                Map<MacAddress, ResponderConfig> newPeers = new HashMap<>();
+                boolean compatible = true;
+                for (ResponderConfig peer : candidate.request.mRttPeers) {
+                    if (peer.macAddress == null) {
+                        compatible = false;
+                        break;
+                    }
+                    ResponderConfig existingPeer = peers.containsKey(peer.macAddress)
+                            ? peers.get(peer.macAddress) : newPeers.get(peer.macAddress);
+                    if (existingPeer == null) {
+                        newPeers.put(peer.macAddress, peer);
+                    } else if (!existingPeer.equals(peer)) {
+                        compatible = false;
+                        break;
+                    }
+                }
+                if (!compatible || peers.size() + newPeers.size() > RangingRequest.getMaxPeers()) {
+                    continue;
+                }
+                if (!preExecThrottleCheck(candidate.workSource)) {
+                    continue;
+                }
+
+                peers.putAll(newPeers);
+                requests.add(candidate);
+            }
+
+            if (requests.size() > 1) {
+                mRttRequestQueue.removeAll(requests);
+                mRttRequestQueue.addAll(0, requests);
+            }
+            return requests;
+        }
+
+        /**
+         * Merge the requests into a single request containing each unique peer once.
+         */
+        private RangingRequest mergeRangingRequests(List<RttRequestInfo> requests) {
+            Map<MacAddress, ResponderConfig> peers = new LinkedHashMap<>();
+            for (RttRequestInfo request : requests) {
+                for (ResponderConfig peer : request.request.mRttPeers) {
+                    if (!peers.containsKey(peer.macAddress)) {
+                        peers.put(peer.macAddress, peer);
+                    }
+                }
+            }
+
+            RangingRequest.Builder builder = new RangingRequest.Builder();
+            for (ResponderConfig peer : peers.values()) {
+                builder.addResponder(peer);
+            }
+            return builder.build();
+        }
+
+        /**
+         * Answer the request from the result cache if there are fresh (successful) results for
+         * all of its peers. Results are only used for requests with the same privilege level as
+         * the request which obtained them.
+         *
+         * @return true if the request was answered, false if it needs to be executed.
+         */
+        private boolean dispatchCachedResultsIfPossible(RttRequestInfo request) {
+            int freshnessMs = mShellCommand.getControlParam(
+                    CONTROL_PARAM_RESULT_CACHE_FRESHNESS_MS_NAME);
+            if (freshnessMs <= 0) {
+                return false;
+            }
+
+            long nowMs = mClock.getElapsedSinceBootMillis();
+            List<RttResult> results = new ArrayList<>(request.request.mRttPeers.size());
+            for (ResponderConfig peer : request.request.mRttPeers) {
+                CachedRttResult cachedResult = mRttResultCache.get(peer);
+                if (cachedResult != null && nowMs - cachedResult.timestampMs <= freshnessMs
+                        && cachedResult.isCalledFromPrivilegedContext
+                                == request.isCalledFromPrivilegedContext) {
+                    results.add(cachedResult.result);
+                }
+            }
+            mRttMetrics.recordResultCacheLookup(request.request.mRttPeers.size(), results.size());
+            if (results.size() != request.request.mRttPeers.size()) {
+                return false;
+            }
+
+            if (mDbg) {
+                Log.v(TAG, "RttServiceSynchronized.dispatchCachedResultsIfPossible: answering "
+                        + "from cache - request=" + request);
+            }
+            dispatchRangingResults(request, results, true);
+            return true;
+        }
+
+        /**
+         * Store the successful results of the (possibly merged) request dispatched to the HAL in
+         * the result cache - keyed by the peer configuration. Stale entries are evicted.
+         */
+        private void updateResultCache(RttRequestInfo request, List<RttResult> results) {
+            int freshnessMs = mShellCommand.getControlParam(
+                    CONTROL_PARAM_RESULT_CACHE_FRESHNESS_MS_NAME);
+            if (freshnessMs <= 0) {
+                mRttResultCache.clear();
+                return;
+            }
+
+            long nowMs = mClock.getElapsedSinceBootMillis();
+            mRttResultCache.values().removeIf(
+                    cachedResult -> nowMs - cachedResult.timestampMs > freshnessMs);
+
+            Map<MacAddress, ResponderConfig> peers = new HashMap<>();
+            for (ResponderConfig peer : request.dispatchedRequest.mRttPeers) {
+                peers.put(peer.macAddress, peer);
+            }
+            for (RttResult result : results) {
+                if (mRttResultCache.size() >= MAX_CACHED_RESULTS) {
+                    break;
+                }
+                if (result == null || result.status != RttStatus.SUCCESS) {
+                    continue;
+                }
+                ResponderConfig peer = peers.get(MacAddress.fromBytes(result.addr));
+                if (peer == null) {
+                    continue;
+                }
+
+                CachedRttResult cachedResult = new CachedRttResult();
+                cachedResult.result = result;
+                cachedResult.timestampMs = nowMs;
+                cachedResult.isCalledFromPrivilegedContext = request.isCalledFromPrivilegedContext;
+                mRttResultCache.put(peer, cachedResult);
+            }
+        }
+
+        /**
+         * Returns all the requests which were dispatched to the HAL with the specified command ID:
+         * more than 1 if requests were merged.
+         */
+        private List<RttRequestInfo> getDispatchedRequests(int cmdId) {
+            List<RttRequestInfo> requests = new ArrayList<>();
+            for (RttRequestInfo rri : mRttRequestQueue) {
+                if (rri.dispatchedToNative && rri.cmdId == cmdId) {
+                    requests.add(rri);
+                }
+            }
+            return requests;
         }
 
         /**
@@ -1058,34 +1343,70 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
                 return;
             }
 
+            updateResultCache(topOfQueueRequest, results);
+            for (RttRequestInfo request : getDispatchedRequests(cmdId)) {
+                dispatchRangingResults(request, results, false);
+            }
+
+            executeNextRangingRequestIfPossible(true);
+        }
+
+        /*
+         * Dispatch the results of a HAL command to one of the requests executed by it. Results of
+         * merged commands are filtered to the peers of the request. Results obtained from the cache
+         * are not recorded (again) in the metrics.
+         */
+        private void dispatchRangingResults(RttRequestInfo request, List<RttResult> results,
+                boolean fromCache) {
+            if (request.dispatchedRequest != null && request.dispatchedRequest != request.request) {
+                results = filterResults(request.request, results);
+            }
+
             boolean permissionGranted = mWifiPermissionsUtil.checkCallersLocationPermission(
-                    topOfQueueRequest.callingPackage, topOfQueueRequest.uid)
+                    request.callingPackage, request.uid)
                     && mLocationManager.isLocationEnabled();
             try {
                 if (permissionGranted) {
-                    List<RangingResult> finalResults = postProcessResults(topOfQueueRequest.request,
-                            results, topOfQueueRequest.isCalledFromPrivilegedContext);
+                    List<RangingResult> finalResults = postProcessResults(request.request,
+                            results, request.isCalledFromPrivilegedContext);
                     mRttMetrics.recordOverallStatus(WifiMetricsProto.WifiRttLog.OVERALL_SUCCESS);
-                    mRttMetrics.recordResult(topOfQueueRequest.request, results);
+                    if (!fromCache) {
+                        mRttMetrics.recordResult(request.request, results);
+                    }
                     if (VDBG) {
                         Log.v(TAG, "RttServiceSynchronized.onRangingResults: finalResults="
                                 + finalResults);
                     }
-                    topOfQueueRequest.callback.onRangingResults(finalResults);
+                    request.callback.onRangingResults(finalResults);
                 } else {
                     Log.w(TAG, "RttServiceSynchronized.onRangingResults: location permission "
                             + "revoked - not forwarding results");
                     mRttMetrics.recordOverallStatus(
                             WifiMetricsProto.WifiRttLog.OVERALL_LOCATION_PERMISSION_MISSING);
-                    topOfQueueRequest.callback.onRangingFailure(
-                            RangingResultCallback.STATUS_CODE_FAIL);
+                    request.callback.onRangingFailure(RangingResultCallback.STATUS_CODE_FAIL);
                 }
             } catch (RemoteException e) {
                 Log.e(TAG,
                         "RttServiceSynchronized.onRangingResults: callback exception -- " + e);
             }
+        }
 
-            executeNextRangingRequestIfPossible(true);
+        /*
+         * Returns the results which match the peers of the request.
+         */
+        private List<RttResult> filterResults(RangingRequest request, List<RttResult> results) {
+            List<MacAddress> peerAddresses = new ArrayList<>(request.mRttPeers.size());
+            for (ResponderConfig peer : request.mRttPeers) {
+                peerAddresses.add(peer.macAddress);
+            }
+
+            List<RttResult> filteredResults = new ArrayList<>();
+            for (RttResult result : results) {
+                if (result != null && peerAddresses.contains(MacAddress.fromBytes(result.addr))) {
+                    filteredResults.add(result);
+                }
+            }
+            return filteredResults;
         }
 
         /*
@@ -1166,8 +1487,10 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
         // dump call (asynchronous most likely)
         protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
             pw.println("  mNextCommandId: " + mNextCommandId);
+            pw.println("  mNumRangingCommands: " + mNumRangingCommands);
             pw.println("  mRttRequesterInfo: " + mRttRequesterInfo);
             pw.println("  mRttRequestQueue: " + mRttRequestQueue);
+            pw.println("  mRttResultCache.size(): " + mRttResultCache.size());
             pw.println("  mRangingTimeoutMessage: " + mRangingTimeoutMessage);
             mRttMetrics.dump(fd, pw, args);
             mRttNative.dump(fd, pw, args);
@@ -1185,6 +1508,7 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
         public boolean isCalledFromPrivilegedContext;
 
         public int cmdId = 0; // uninitialized cmdId value
+        public RangingRequest dispatchedRequest = null; // may be merged with other requests
         public boolean dispatchedToNative = false;
         public boolean peerHandlesTranslated = false;
 
@@ -1201,6 +1525,19 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
         }
     }
 
+    private static class CachedRttResult {
+        public RttResult result;
+        public long timestampMs;
+        public boolean isCalledFromPrivilegedContext;
+
+        @Override
+        public String toString() {
+            return new StringBuilder("CachedRttResult: timestampMs=").append(timestampMs).append(
+                    ", isCalledFromPrivilegedContext=").append(
+                    isCalledFromPrivilegedContext).append(", result=").append(result).toString();
+        }
+    }
+
     private static class RttRequesterInfo {
         public long lastRangingExecuted;
 
@@ -52,6 +52,12 @@ import java.util.Set;
  * the last buckets (lower priority) are placed in the next best bucket until the number of buckets
  * is less than the number supported by the hardware.
  *
+ * <p>In airtime optimized mode the buckets to merge are instead chosen to minimize the estimated
+ * scan airtime, and requests are only merged into buckets that scan at least as often as the
+ * bucket they were placed in. The estimate counts each channel once per scan of the fastest
+ * bucket it is in, since a bucket period is a multiple of the periods of the faster buckets, and
+ * DFS channels (scanned passively) with a longer dwell time than the others.
+ *
  * <p>Finally, the scheduler creates a WifiNative.ScanSettings from the list of buckets which may be
  * passed through the Wifi HAL.</p>
  *
@@ -84,6 +90,8 @@ public class BackgroundScanScheduler {
      */
     private static final int DEFAULT_REPORT_THRESHOLD_PERCENTAGE = 100;
 
+    private static final long MILLIS_PER_HOUR = 60 * 60 * 1000;
+
     /**
      * List of predefined periods (in ms) that buckets can be scheduled at. Ordered by preference
      * if there are not enough buckets for all periods. All periods MUST be an integer multiple of
@@ -324,6 +332,8 @@ public class BackgroundScanScheduler {
     private int mMaxChannelsPerBucket = DEFAULT_MAX_CHANNELS_PER_BUCKET;
     private int mMaxBatch = DEFAULT_MAX_SCANS_TO_BATCH;
     private int mMaxApPerScan = DEFAULT_MAX_AP_PER_SCAN;
+    private boolean mAirtimeOptimized = false;
+    private double mEstimatedDutyCycle = 0;
 
     public int getMaxBuckets() {
         return mMaxBuckets;
@@ -359,6 +369,25 @@ public class BackgroundScanScheduler {
         mMaxApPerScan = maxApPerScan;
     }
 
+    public boolean isAirtimeOptimized() {
+        return mAirtimeOptimized;
+    }
+
+    /**
+     * Enable or disable the airtime optimized mode, applied from the next schedule update.
+     */
+    public void setAirtimeOptimized(boolean airtimeOptimized) {
+        mAirtimeOptimized = airtimeOptimized;
+    }
+
+    /**
+     * Returns the estimated fraction of time the radio spends scanning with the current
+     * schedule. The exponential back off bucket is counted at its initial period.
+     */
+    public double getEstimatedDutyCycle() {
+        return mEstimatedDutyCycle;
+    }
+
     private final BucketList mBuckets = new BucketList();
     private final ChannelHelper mChannelHelper;
     private WifiNative.ScanSettings mSchedule;
@@ -380,6 +409,9 @@ public class BackgroundScanScheduler {
             addScanToBuckets(request);
         }
 
+        if (mAirtimeOptimized) {
+            compactBucketsForAirtime(getMaxBuckets());
+        }
         compactBuckets(getMaxBuckets());
 
         List<Bucket> bucketList = optimizeBuckets();
@@ -483,9 +515,44 @@ public class BackgroundScanScheduler {
             schedule.base_period_ms = DEFAULT_PERIOD_MS;
         }
 
+        List<Bucket> sortedBucketList = new ArrayList<>(bucketList);
+        Collections.sort(sortedBucketList, mBuckets.mTimePeriodSortComparator);
+        mEstimatedDutyCycle =
+                estimateScanAirtimeMsPerHour(sortedBucketList, null, null) / MILLIS_PER_HOUR;
+
         mSchedule = schedule;
     }
 
+    /**
+     * Estimates the scan airtime per hour of the given buckets, sorted by increasing period,
+     * if the settings of bucket mergeFrom were moved to bucket mergeTo (if not null).
+     * Channels are counted once per scan of the fastest bucket they are in.
+     */
+    private double estimateScanAirtimeMsPerHour(List<Bucket> sortedBuckets,
+            @Nullable Bucket mergeFrom, @Nullable Bucket mergeTo) {
+        ChannelCollection scannedChannels = mChannelHelper.createChannelCollection();
+        Set<Integer> newChannels = new ArraySet<>();
+        double airtimeMs = 0;
+        for (Bucket bucket : sortedBuckets) {
+            if (bucket == mergeFrom || bucket.period <= 0) continue;
+            newChannels.clear();
+            for (ScanSettings settings : bucket.getSettingsList()) {
+                newChannels.addAll(scannedChannels.getMissingChannelsFromSettings(settings));
+            }
+            if (bucket == mergeTo) {
+                for (ScanSettings settings : mergeFrom.getSettingsList()) {
+                    newChannels.addAll(scannedChannels.getMissingChannelsFromSettings(settings));
+                }
+            }
+            for (int channel : newChannels) {
+                scannedChannels.addChannel(channel);
+            }
+            airtimeMs += mChannelHelper.estimateChannelsScanAirtime(newChannels)
+                    * (double) MILLIS_PER_HOUR / bucket.period;
+        }
+        return airtimeMs;
+    }
+
     /**
      * Add a scan to the most appropriate bucket, creating the bucket if necessary.
      */
@@ -547,6 +614,50 @@ public class BackgroundScanScheduler {
         }
     }
 
+    /**
+     * Reduce the number of required buckets by merging buckets into faster buckets, picking
+     * at each step the merge which adds the least estimated scan airtime. Merging into a faster
+     * bucket keeps the requested period satisfied; the report events of a bucket are derived
+     * from all its settings. Stops if no such merge is left, e.g. if only the exponential back
+     * off bucket would remain.
+     */
+    private void compactBucketsForAirtime(int maxBuckets) {
+        int maxRegularBuckets = maxBuckets;
+        if (mBuckets.isActive(EXPONENTIAL_BACK_OFF_BUCKET_IDX)) {
+            maxRegularBuckets--;
+        }
+        while (mBuckets.getActiveRegularBucketCount() > maxRegularBuckets) {
+            List<Bucket> sortedBuckets = mBuckets.getSortedActiveRegularBucketList();
+            Bucket bestFrom = null;
+            Bucket bestTo = null;
+            double bestAirtimeMs = Double.MAX_VALUE;
+            for (int from = 1; from < sortedBuckets.size(); from++) {
+                // On ties prefer the closest period, i.e. the slowest of the faster buckets
+                for (int to = from - 1; to >= 0; to--) {
+                    double airtimeMs = estimateScanAirtimeMsPerHour(sortedBuckets,
+                            sortedBuckets.get(from), sortedBuckets.get(to));
+                    if (airtimeMs < bestAirtimeMs) {
+                        bestAirtimeMs = airtimeMs;
+                        bestFrom = sortedBuckets.get(from);
+                        bestTo = sortedBuckets.get(to);
+                    }
+                }
+            }
+            if (bestFrom == null) {
+                return;
+            }
+            for (ScanSettings scanRequest : bestFrom.getSettingsList()) {
+                bestTo.addSettings(scanRequest);
+            }
+            for (int i = 0; i < NUM_OF_REGULAR_BUCKETS; i++) {
+                if (mBuckets.get(i) == bestFrom) {
+                    mBuckets.clear(i);
+                    break;
+                }
+            }
+        }
+    }
+
     /**
      * Clone the provided scan settings fields to a new ScanSettings object.
      */
@@ -36,6 +36,16 @@ public abstract class ChannelHelper {
      * The estimated period spent scanning each channel. This is used for estimating scan duration.
      */
     public static final int SCAN_PERIOD_PER_CHANNEL_MS = 200;
+    /**
+     * The typical dwell time on a channel scanned actively (probe requests sent). This is used for
+     * estimating the airtime of scans of the given channels.
+     */
+    public static final int ACTIVE_SCAN_DWELL_TIME_PER_CHANNEL_MS = 40;
+    /**
+     * The typical dwell time on a channel scanned passively (listening for beacons), as DFS
+     * channels are. This is used for estimating the airtime of scans of the given channels.
+     */
+    public static final int PASSIVE_SCAN_DWELL_TIME_PER_CHANNEL_MS = 110;
 
     protected static final WifiScanner.ChannelSpec[] NO_CHANNELS = new WifiScanner.ChannelSpec[0];
 
@@ -60,6 +70,27 @@ public abstract class ChannelHelper {
      */
     public abstract int estimateScanDuration(WifiScanner.ScanSettings settings);
 
+    /**
+     * Returns true if |frequency| is a DFS channel, which is scanned passively (no probe request
+     * is sent). The default implementation does not know the DFS channels and returns false.
+     */
+    public boolean isDfsChannel(int frequency) {
+        return false;
+    }
+
+    /**
+     * Estimates the airtime that the chip will spend scanning the given channels, using the dwell
+     * time of each channel: DFS channels are scanned passively, the other channels actively.
+     */
+    public int estimateChannelsScanAirtime(Set<Integer> channels) {
+        int airtimeMs = 0;
+        for (int channel : channels) {
+            airtimeMs += isDfsChannel(channel) ? PASSIVE_SCAN_DWELL_TIME_PER_CHANNEL_MS
+                    : ACTIVE_SCAN_DWELL_TIME_PER_CHANNEL_MS;
+        }
+        return airtimeMs;
+    }
+
     /**
      * Update the channel information that this object has. The source of the update is
      * implementation dependent and may result in no change. Warning the behavior of a
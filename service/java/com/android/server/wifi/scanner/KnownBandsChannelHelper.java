@@ -21,6 +21,7 @@ import android.util.ArraySet;
 
 import com.android.server.wifi.WifiNative;
 
+import java.util.Arrays;
 import java.util.Set;
 
 /**
@@ -30,6 +31,71 @@ import java.util.Set;
 public class KnownBandsChannelHelper extends ChannelHelper {
 
     private WifiScanner.ChannelSpec[][] mBandsToChannels;
+    private ChannelIndex mChannelIndex;
+
+    /**
+     * Dense index over all the known channels, in increasing frequency order, with a bitmask of
+     * the channels of each band. Lets a collection keep its channels as a bitmask so that band
+     * union, containment and missing channel checks are a few word operations.
+     * Immutable: replaced as a whole when the band channels change.
+     */
+    private static final class ChannelIndex {
+        final int[] frequencies;
+        final long[][] bandMasks;
+
+        ChannelIndex(WifiScanner.ChannelSpec[][] bandsToChannels) {
+            WifiScanner.ChannelSpec[] all =
+                    bandsToChannels[WifiScanner.WIFI_BAND_BOTH_WITH_DFS];
+            int[] sorted = new int[all.length];
+            for (int i = 0; i < all.length; i++) {
+                sorted[i] = all[i].frequency;
+            }
+            Arrays.sort(sorted);
+            int count = 0;
+            for (int i = 0; i < sorted.length; i++) {
+                if (count == 0 || sorted[count - 1] != sorted[i]) {
+                    sorted[count++] = sorted[i];
+                }
+            }
+            frequencies = Arrays.copyOf(sorted, count);
+            bandMasks = new long[bandsToChannels.length][];
+            for (int band = 0; band < bandsToChannels.length; band++) {
+                bandMasks[band] = new long[getWordCount()];
+                for (WifiScanner.ChannelSpec channel : bandsToChannels[band]) {
+                    int index = indexOf(channel.frequency);
+                    bandMasks[band][index >>> 6] |= 1L << index;
+                }
+            }
+        }
+
+        int getWordCount() {
+            return (frequencies.length + 63) >>> 6;
+        }
+
+        /**
+         * Returns the index of the frequency or -1 if it is not a known channel.
+         */
+        int indexOf(int frequency) {
+            int index = Arrays.binarySearch(frequencies, frequency);
+            return index < 0 ? -1 : index;
+        }
+
+        /**
+         * Returns the mask of the channels of the band, all zeros for an invalid band.
+         */
+        long[] getBandMask(int band) {
+            if (band < WifiScanner.WIFI_BAND_24_GHZ
+                    || band > WifiScanner.WIFI_BAND_BOTH_WITH_DFS) {
+                return bandMasks[WifiScanner.WIFI_BAND_UNSPECIFIED];
+            }
+            return bandMasks[band];
+        }
+
+        boolean isInBand(int frequency, int band) {
+            int index = indexOf(frequency);
+            return index >= 0 && (getBandMask(band)[index >>> 6] & (1L << index)) != 0;
+        }
+    }
 
     protected void setBandChannels(int[] channels2G, int[] channels5G, int[] channelsDfs) {
         mBandsToChannels = new WifiScanner.ChannelSpec[8][];
@@ -62,6 +128,8 @@ public class KnownBandsChannelHelper extends ChannelHelper {
         copyChannels(mBandsToChannels[7], 0, channels2G);
         copyChannels(mBandsToChannels[7], channels2G.length, channels5G);
         copyChannels(mBandsToChannels[7], channels2G.length + channels5G.length, channelsDfs);
+
+        mChannelIndex = new ChannelIndex(mBandsToChannels);
     }
 
     private static void copyChannels(
@@ -90,14 +158,9 @@ public class KnownBandsChannelHelper extends ChannelHelper {
         }
     }
 
-    private boolean isDfsChannel(int frequency) {
-        for (WifiScanner.ChannelSpec dfsChannel :
-                mBandsToChannels[WifiScanner.WIFI_BAND_5_GHZ_DFS_ONLY]) {
-            if (frequency == dfsChannel.frequency) {
-                return true;
-            }
-        }
-        return false;
+    @Override
+    public boolean isDfsChannel(int frequency) {
+        return mChannelIndex.isInBand(frequency, WifiScanner.WIFI_BAND_5_GHZ_DFS_ONLY);
     }
 
     // TODO this should be rewritten to be based on the input data instead of hardcoded ranges
@@ -133,12 +196,29 @@ public class KnownBandsChannelHelper extends ChannelHelper {
      * ChannelCollection that merges channels so that the optimal schedule will be generated.
      * When the max channels value is satisfied this implementation will always create a channel
      * list that includes no more than the added channels.
+     * <p>
+     * The known channels are stored as a bitmask over the {@link ChannelIndex} of the helper at
+     * the time of creation or of the last {@link #clear()}; channels that are not known, which
+     * is unexpected, are kept in a set on the side.
      */
     public class KnownBandsChannelCollection extends ChannelCollection {
+        private ChannelIndex mIndex = mChannelIndex;
+        /**
+         * Stores all known channels, including those that belong to added bands.
+         */
+        private long[] mChannelMask = new long[mIndex.getWordCount()];
         /**
-         * Stores all channels, including those that belong to added bands.
+         * Stores the added channels that are not in the index.
          */
-        private final ArraySet<Integer> mChannels = new ArraySet<Integer>();
+        private final ArraySet<Integer> mUnknownChannels = new ArraySet<Integer>();
+        /**
+         * Number of channels, known or not.
+         */
+        private int mChannelCount = 0;
+        /**
+         * All the channels as a set, built on demand; null if not built since the last change.
+         */
+        private ArraySet<Integer> mChannelSet;
         /**
          * Contains only the bands that were explicitly added as bands.
          */
@@ -151,7 +231,18 @@ public class KnownBandsChannelHelper extends ChannelHelper {
 
         @Override
         public void addChannel(int frequency) {
-            mChannels.add(frequency);
+            int index = mIndex.indexOf(frequency);
+            if (index >= 0) {
+                long bit = 1L << index;
+                if ((mChannelMask[index >>> 6] & bit) == 0) {
+                    mChannelMask[index >>> 6] |= bit;
+                    mChannelCount++;
+                    mChannelSet = null;
+                }
+            } else if (mUnknownChannels.add(frequency)) {
+                mChannelCount++;
+                mChannelSet = null;
+            }
             mAllBands |= getBandFromChannel(frequency);
         }
 
@@ -159,22 +250,31 @@ public class KnownBandsChannelHelper extends ChannelHelper {
         public void addBand(int band) {
             mExactBands |= band;
             mAllBands |= band;
-            WifiScanner.ChannelSpec[] bandChannels = getAvailableScanChannels(band);
-            for (int i = 0; i < bandChannels.length; ++i) {
-                mChannels.add(bandChannels[i].frequency);
+            long[] bandMask = mIndex.getBandMask(band);
+            for (int i = 0; i < mChannelMask.length; ++i) {
+                long added = bandMask[i] & ~mChannelMask[i];
+                if (added != 0) {
+                    mChannelMask[i] |= added;
+                    mChannelCount += Long.bitCount(added);
+                    mChannelSet = null;
+                }
             }
         }
 
         @Override
         public boolean containsChannel(int channel) {
-            return mChannels.contains(channel);
+            int index = mIndex.indexOf(channel);
+            if (index >= 0) {
+                return (mChannelMask[index >>> 6] & (1L << index)) != 0;
+            }
+            return mUnknownChannels.contains(channel);
         }
 
         @Override
         public boolean containsBand(int band) {
-            WifiScanner.ChannelSpec[] bandChannels = getAvailableScanChannels(band);
-            for (int i = 0; i < bandChannels.length; ++i) {
-                if (!mChannels.contains(bandChannels[i].frequency)) {
+            long[] bandMask = mIndex.getBandMask(band);
+            for (int i = 0; i < mChannelMask.length; ++i) {
+                if ((bandMask[i] & ~mChannelMask[i]) != 0) {
                     return false;
                 }
             }
@@ -183,9 +283,9 @@ public class KnownBandsChannelHelper extends ChannelHelper {
 
         @Override
         public boolean partiallyContainsBand(int band) {
-            WifiScanner.ChannelSpec[] bandChannels = getAvailableScanChannels(band);
-            for (int i = 0; i < bandChannels.length; ++i) {
-                if (mChannels.contains(bandChannels[i].frequency)) {
+            long[] bandMask = mIndex.getBandMask(band);
+            for (int i = 0; i < mChannelMask.length; ++i) {
+                if ((bandMask[i] & mChannelMask[i]) != 0) {
                     return true;
                 }
             }
@@ -194,50 +294,80 @@ public class KnownBandsChannelHelper extends ChannelHelper {
 
         @Override
         public boolean isEmpty() {
-            return mChannels.isEmpty();
+            return mChannelCount == 0;
         }
 
         @Override
         public boolean isAllChannels() {
             return getAvailableScanChannels(WifiScanner.WIFI_BAND_BOTH_WITH_DFS).length ==
-                    mChannels.size();
+                    mChannelCount;
         }
 
         @Override
         public void clear() {
             mAllBands = 0;
             mExactBands = 0;
-            mChannels.clear();
+            if (mIndex != mChannelIndex) {
+                mIndex = mChannelIndex;
+                mChannelMask = new long[mIndex.getWordCount()];
+            } else {
+                Arrays.fill(mChannelMask, 0);
+            }
+            mUnknownChannels.clear();
+            mChannelCount = 0;
+            mChannelSet = null;
         }
 
-        @Override
-        public Set<Integer> getMissingChannelsFromBand(int band) {
-            ArraySet<Integer> missingChannels = new ArraySet<>();
-            WifiScanner.ChannelSpec[] bandChannels = getAvailableScanChannels(band);
-            for (int i = 0; i < bandChannels.length; ++i) {
-                if (!mChannels.contains(bandChannels[i].frequency)) {
-                    missingChannels.add(bandChannels[i].frequency);
+        /**
+         * Adds to the set the channels of the band which are (if contained is true) or aren't in
+         * the collection.
+         */
+        private Set<Integer> getChannelsFromBand(int band, boolean contained) {
+            ArraySet<Integer> channels = new ArraySet<>();
+            long[] bandMask = mIndex.getBandMask(band);
+            for (int i = 0; i < mChannelMask.length; ++i) {
+                long word = bandMask[i] & (contained ? mChannelMask[i] : ~mChannelMask[i]);
+                while (word != 0) {
+                    channels.add(mIndex.frequencies[(i << 6) + Long.numberOfTrailingZeros(word)]);
+                    word &= word - 1;
                 }
             }
-            return missingChannels;
+            return channels;
+        }
+
+        @Override
+        public Set<Integer> getMissingChannelsFromBand(int band) {
+            return getChannelsFromBand(band, false);
         }
 
         @Override
         public Set<Integer> getContainingChannelsFromBand(int band) {
-            ArraySet<Integer> containingChannels = new ArraySet<>();
-            WifiScanner.ChannelSpec[] bandChannels = getAvailableScanChannels(band);
-            for (int i = 0; i < bandChannels.length; ++i) {
-                if (mChannels.contains(bandChannels[i].frequency)) {
-                    containingChannels.add(bandChannels[i].frequency);
+            return getChannelsFromBand(band, true);
+        }
+
+        /**
+         * Returns all the channels, in increasing frequency order. Must not be modified.
+         */
+        private ArraySet<Integer> getChannels() {
+            if (mChannelSet == null) {
+                mChannelSet = new ArraySet<>(mChannelCount);
+                for (int i = 0; i < mChannelMask.length; ++i) {
+                    long word = mChannelMask[i];
+                    while (word != 0) {
+                        mChannelSet.add(
+                                mIndex.frequencies[(i << 6) + Long.numberOfTrailingZeros(word)]);
+                        word &= word - 1;
+                    }
                 }
+                mChannelSet.addAll(mUnknownChannels);
             }
-            return containingChannels;
+            return mChannelSet;
         }
 
         @Override
         public Set<Integer> getChannelSet() {
             if (!isEmpty() && mAllBands != mExactBands) {
-                return mChannels;
+                return getChannels();
             } else {
                 return new ArraySet<>();
             }
@@ -245,18 +375,19 @@ public class KnownBandsChannelHelper extends ChannelHelper {
 
         @Override
         public void fillBucketSettings(WifiNative.BucketSettings bucketSettings, int maxChannels) {
-            if ((mChannels.size() > maxChannels || mAllBands == mExactBands)
+            if ((mChannelCount > maxChannels || mAllBands == mExactBands)
                     && mAllBands != 0) {
                 bucketSettings.band = mAllBands;
                 bucketSettings.num_channels = 0;
                 bucketSettings.channels = null;
             } else {
+                ArraySet<Integer> channels = getChannels();
                 bucketSettings.band = WifiScanner.WIFI_BAND_UNSPECIFIED;
-                bucketSettings.num_channels = mChannels.size();
-                bucketSettings.channels = new WifiNative.ChannelSettings[mChannels.size()];
-                for (int i = 0; i < mChannels.size(); ++i) {
+                bucketSettings.num_channels = channels.size();
+                bucketSettings.channels = new WifiNative.ChannelSettings[channels.size()];
+                for (int i = 0; i < channels.size(); ++i) {
                     WifiNative.ChannelSettings channelSettings = new WifiNative.ChannelSettings();
-                    channelSettings.frequency = mChannels.valueAt(i);
+                    channelSettings.frequency = channels.valueAt(i);
                     bucketSettings.channels[i] = channelSettings;
                 }
             }
@@ -267,12 +398,12 @@ public class KnownBandsChannelHelper extends ChannelHelper {
             if (mExactBands == WifiScanner.WIFI_BAND_BOTH_WITH_DFS) {
                 return null;
             } else {
-                return new ArraySet<Integer>(mChannels);
+                return new ArraySet<Integer>(getChannels());
             }
         }
 
         public Set<Integer> getAllChannels() {
-            return new ArraySet<Integer>(mChannels);
+            return new ArraySet<Integer>(getChannels());
         }
     }
 
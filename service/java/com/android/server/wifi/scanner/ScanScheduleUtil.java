@@ -18,12 +18,14 @@ package com.android.server.wifi.scanner;
 
 import android.annotation.Nullable;
 import android.net.wifi.ScanResult;
+import android.net.wifi.WifiScanner;
 import android.net.wifi.WifiScanner.ScanData;
 import android.net.wifi.WifiScanner.ScanSettings;
 
 import com.android.server.wifi.WifiNative;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -124,6 +126,47 @@ public class ScanScheduleUtil {
         }
     }
 
+    /**
+     * Key of the part of ScanSettings which determines the results reported for them: settings
+     * with equal keys are reported the same results by
+     * {@link #filterResultsForSettings(ChannelHelper, ScanData[], ScanSettings, int)} and
+     * {@link #shouldReportFullScanResultForSettings(ChannelHelper, ScanResult, int, ScanSettings,
+     * int)} for a given scheduled bucket. Lets the results be filtered once for all of them.
+     */
+    public static final class ResultFilterKey {
+        private final int mBand;
+        private final int[] mFrequencies;
+        private final int mNumBssidsPerScan;
+
+        public ResultFilterKey(ScanSettings settings) {
+            mBand = settings.band;
+            if (settings.band == WifiScanner.WIFI_BAND_UNSPECIFIED) {
+                mFrequencies = new int[settings.channels.length];
+                for (int i = 0; i < settings.channels.length; i++) {
+                    mFrequencies[i] = settings.channels[i].frequency;
+                }
+                Arrays.sort(mFrequencies);
+            } else {
+                mFrequencies = null;
+            }
+            mNumBssidsPerScan = settings.numBssidsPerScan;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) return true;
+            if (!(other instanceof ResultFilterKey)) return false;
+            ResultFilterKey that = (ResultFilterKey) other;
+            return mBand == that.mBand && mNumBssidsPerScan == that.mNumBssidsPerScan
+                    && Arrays.equals(mFrequencies, that.mFrequencies);
+        }
+
+        @Override
+        public int hashCode() {
+            return (mBand * 31 + mNumBssidsPerScan) * 31 + Arrays.hashCode(mFrequencies);
+        }
+    }
+
     /**
      * Returns true if the given scan result should be reported to a listener with the given
      * settings.
@@ -41,6 +41,7 @@ import android.os.Messenger;
 import android.os.RemoteException;
 import android.os.WorkSource;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.LocalLog;
 import android.util.Log;
 import android.util.Pair;
@@ -54,6 +55,7 @@ import com.android.internal.util.State;
 import com.android.internal.util.StateMachine;
 import com.android.server.wifi.Clock;
 import com.android.server.wifi.FrameworkFacade;
+import com.android.server.wifi.MergedScanResultTable;
 import com.android.server.wifi.WifiInjector;
 import com.android.server.wifi.WifiLog;
 import com.android.server.wifi.WifiMetrics;
@@ -62,6 +64,7 @@ import com.android.server.wifi.WifiStateMachine;
 import com.android.server.wifi.nano.WifiMetricsProto;
 import com.android.server.wifi.scanner.ChannelHelper.ChannelCollection;
 import com.android.server.wifi.util.ScanResultUtil;
+import com.android.server.wifi.util.StateMachineProfiler;
 import com.android.server.wifi.util.WifiHandler;
 
 import java.io.FileDescriptor;
@@ -69,8 +72,13 @@ import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 public class WifiScanningServiceImpl extends IWifiScanner.Stub {
 
@@ -272,6 +280,8 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
     private final AlarmManager mAlarmManager;
     private final WifiMetrics mWifiMetrics;
     private final Clock mClock;
+    private final MergedScanResultTable mMergedScanResultTable;
+    private final StateMachineProfiler mStateMachineProfiler;
     private final FrameworkFacade mFrameworkFacade;
 
     WifiScanningServiceImpl(Context context, Looper looper,
@@ -285,6 +295,8 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
         mAlarmManager = (AlarmManager) mContext.getSystemService(Context.ALARM_SERVICE);
         mWifiMetrics = wifiInjector.getWifiMetrics();
         mClock = wifiInjector.getClock();
+        mMergedScanResultTable = wifiInjector.getMergedScanResultTable();
+        mStateMachineProfiler = wifiInjector.getStateMachineProfiler();
         mLog = wifiInjector.makeLog(TAG);
         mFrameworkFacade = wifiInjector.getFrameworkFacade();
         mPreviousSchedule = null;
@@ -433,7 +445,7 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
      * State machine that holds the state of single scans. Scans should only be active in the
      * ScanningState. The pending scans and active scans maps are swapped when entering
      * ScanningState. Any requests queued while scanning will be placed in the pending queue and
-     * executed after transitioning back to IdleState.
+     * executed after transitioning back to IdleState, unless the active scan satisfies them.
      */
     class WifiSingleScanStateMachine extends StateMachine implements WifiNative.ScanEventHandler {
         /**
@@ -451,12 +463,38 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
         private final ScanningState  mScanningState  = new ScanningState();
 
         private WifiNative.ScanSettings mActiveScanSettings = null;
+        // Start time of the active scan and number of its channels scanned actively (so not the
+        // passive DFS channels), on which the hidden networks are probed, for the scan metrics.
+        private long mActiveScanStartTimeMillis;
+        private int mActiveScanNumProbedChannels;
         private RequestList<ScanSettings> mActiveScans = new RequestList<>();
         private RequestList<ScanSettings> mPendingScans = new RequestList<>();
 
         // Scan results cached from the last full single scan request.
         private final List<ScanResult> mCachedScanResults = new ArrayList<>();
 
+        // Result filter keys of the settings of the requests, for the fan-out of the results of
+        // the active scan. Cleared when the scan ends.
+        private final Map<ScanSettings, ScanScheduleUtil.ResultFilterKey> mResultFilterKeys =
+                new IdentityHashMap<>();
+        // Reused by reportFullScanResult: whether the result is reported, per result filter key
+        private final Map<ScanScheduleUtil.ResultFilterKey, Boolean> mFullScanResultFanOut =
+                new HashMap<>();
+
+        @Override
+        protected void onPreHandleMessage(Message msg) {
+            if (mStateMachineProfiler != null && mStateMachineProfiler.isEnabled()) {
+                mStateMachineProfiler.onPreHandleMessage(this, msg);
+            }
+        }
+
+        @Override
+        protected void onPostHandleMessage(Message msg) {
+            if (mStateMachineProfiler != null && mStateMachineProfiler.isEnabled()) {
+                mStateMachineProfiler.onPostHandleMessage(this, msg, getWhatToString(msg.what));
+            }
+        }
+
         WifiSingleScanStateMachine(Looper looper) {
             super("WifiSingleScanStateMachine", looper);
 
@@ -584,6 +622,7 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
             public void exit() {
                 // clear scan results when scan mode is not active
                 mCachedScanResults.clear();
+                mMergedScanResultTable.clear();
 
                 mWifiMetrics.incrementScanReturnEntry(
                         WifiMetricsProto.WifiLog.SCAN_FAILURE_INTERRUPTED,
@@ -678,6 +717,7 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
             @Override
             public void exit() {
                 mActiveScanSettings = null;
+                mResultFilterKeys.clear();
                 try {
                     mBatteryStats.noteWifiScanStoppedFromSource(mScanWorkSource);
                 } catch (RemoteException e) {
@@ -699,6 +739,11 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
                         mWifiMetrics.incrementScanReturnEntry(
                                 WifiMetricsProto.WifiLog.SCAN_SUCCESS,
                                 mActiveScans.size());
+                        mWifiMetrics.addSingleScanRequestsPerRadioScan(mActiveScans.size());
+                        mWifiMetrics.addSingleScanDuration(
+                                ArrayUtils.size(mActiveScanSettings.hiddenNetworks),
+                                mActiveScanNumProbedChannels,
+                                mClock.getElapsedSinceBootMillis() - mActiveScanStartTimeMillis);
                         reportScanResults(mScannerImpl.getLatestSingleScanResults());
                         mActiveScans.clear();
                         transitionTo(mIdleState);
@@ -851,6 +896,25 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
             return true;
         }
 
+        /**
+         * Returns the number of channels of a scan which are scanned actively, i.e. excluding the
+         * DFS channels where no probe request is sent.
+         *
+         * @param scanFreqs the frequencies scanned, null if all the channels are scanned.
+         */
+        private int getNumProbedChannels(Set<Integer> scanFreqs) {
+            if (scanFreqs == null) {
+                return mChannelHelper.getAvailableScanChannels(WifiScanner.WIFI_BAND_BOTH).length;
+            }
+            int numProbedChannels = 0;
+            for (int frequency : scanFreqs) {
+                if (!mChannelHelper.isDfsChannel(frequency)) {
+                    numProbedChannels++;
+                }
+            }
+            return numProbedChannels;
+        }
+
         void removeSingleScanRequest(ClientInfo ci, int handler) {
             if (ci != null) {
                 logScanRequest("removeSingleScanRequest", ci, handler, null, null, null);
@@ -867,11 +931,26 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
             }
         }
 
+        /**
+         * Pass the DFS channels of the channel helper to the merged scan result table, so that
+         * it classifies the results in the same bands as the scan requests.
+         */
+        private void updateMergedScanResultTableDfsFrequencies() {
+            ChannelSpec[] dfsChannels = mChannelHelper.getAvailableScanChannels(
+                    WifiScanner.WIFI_BAND_5_GHZ_DFS_ONLY);
+            Set<Integer> dfsFrequencies = new ArraySet<>(dfsChannels.length);
+            for (ChannelSpec channel : dfsChannels) {
+                dfsFrequencies.add(channel.frequency);
+            }
+            mMergedScanResultTable.setDfsFrequencies(dfsFrequencies);
+        }
+
         void tryToStartNewScan() {
             if (mPendingScans.size() == 0) { // no pending requests
                 return;
             }
             mChannelHelper.updateChannels();
+            updateMergedScanResultTableDfsFrequencies();
             // TODO move merging logic to a scheduler
             WifiNative.ScanSettings settings = new WifiNative.ScanSettings();
             settings.num_buckets = 1;
@@ -882,14 +961,20 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
 
             ChannelCollection channels = mChannelHelper.createChannelCollection();
             List<WifiNative.HiddenNetwork> hiddenNetworkList = new ArrayList<>();
+            // Requests often share hidden networks, which need to be probed once only.
+            ArraySet<String> hiddenNetworkSsids = new ArraySet<>();
             for (RequestInfo<ScanSettings> entry : mPendingScans) {
                 settings.scanType =
                     mergeScanTypes(settings.scanType, getNativeScanType(entry.settings.type));
                 channels.addChannels(entry.settings);
                 if (entry.settings.hiddenNetworks != null) {
                     for (int i = 0; i < entry.settings.hiddenNetworks.length; i++) {
+                        String ssid = entry.settings.hiddenNetworks[i].ssid;
+                        if (!hiddenNetworkSsids.add(ssid)) {
+                            continue;
+                        }
                         WifiNative.HiddenNetwork hiddenNetwork = new WifiNative.HiddenNetwork();
-                        hiddenNetwork.ssid = entry.settings.hiddenNetworks[i].ssid;
+                        hiddenNetwork.ssid = ssid;
                         hiddenNetworkList.add(hiddenNetwork);
                     }
                 }
@@ -912,6 +997,8 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
             if (mScannerImpl.startSingleScan(settings, this)) {
                 // store the active scan settings
                 mActiveScanSettings = settings;
+                mActiveScanStartTimeMillis = mClock.getElapsedSinceBootMillis();
+                mActiveScanNumProbedChannels = getNumProbedChannels(channels.getScanFreqs());
                 // swap pending and active scan requests
                 RequestList<ScanSettings> tmp = mActiveScans;
                 mActiveScans = mPendingScans;
@@ -939,10 +1026,27 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
             clientHandlers.clear();
         }
 
+        ScanScheduleUtil.ResultFilterKey getResultFilterKey(ScanSettings settings) {
+            ScanScheduleUtil.ResultFilterKey key = mResultFilterKeys.get(settings);
+            if (key == null) {
+                key = new ScanScheduleUtil.ResultFilterKey(settings);
+                mResultFilterKeys.put(settings, key);
+            }
+            return key;
+        }
+
         void reportFullScanResult(ScanResult result, int bucketsScanned) {
+            // check the result once per group of requests with the same filter
+            mFullScanResultFanOut.clear();
             for (RequestInfo<ScanSettings> entry : mActiveScans) {
-                if (ScanScheduleUtil.shouldReportFullScanResultForSettings(mChannelHelper,
-                                result, bucketsScanned, entry.settings, -1)) {
+                ScanScheduleUtil.ResultFilterKey key = getResultFilterKey(entry.settings);
+                Boolean shouldReport = mFullScanResultFanOut.get(key);
+                if (shouldReport == null) {
+                    shouldReport = ScanScheduleUtil.shouldReportFullScanResultForSettings(
+                            mChannelHelper, result, bucketsScanned, entry.settings, -1);
+                    mFullScanResultFanOut.put(key, shouldReport);
+                }
+                if (shouldReport) {
                     entry.reportEvent(WifiScanner.CMD_FULL_SCAN_RESULT, 0, result);
                 }
             }
@@ -961,11 +1065,21 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
                 }
             }
             ScanData[] allResults = new ScanData[] {results};
+            // Filter the results once per group of requests with the same filter, and share the
+            // filtered results between the requests of a group.
+            long fanOutStartNanos = mClock.getElapsedSinceBootNanos();
+            Map<ScanScheduleUtil.ResultFilterKey, WifiScanner.ParcelableScanData> fanOut =
+                    new HashMap<>();
             for (RequestInfo<ScanSettings> entry : mActiveScans) {
-                ScanData[] resultsToDeliver = ScanScheduleUtil.filterResultsForSettings(
-                        mChannelHelper, allResults, entry.settings, -1);
-                WifiScanner.ParcelableScanData parcelableResultsToDeliver =
-                        new WifiScanner.ParcelableScanData(resultsToDeliver);
+                ScanScheduleUtil.ResultFilterKey key = getResultFilterKey(entry.settings);
+                WifiScanner.ParcelableScanData parcelableResultsToDeliver = fanOut.get(key);
+                if (parcelableResultsToDeliver == null) {
+                    parcelableResultsToDeliver = new WifiScanner.ParcelableScanData(
+                            ScanScheduleUtil.filterResultsForSettings(
+                                    mChannelHelper, allResults, entry.settings, -1));
+                    fanOut.put(key, parcelableResultsToDeliver);
+                }
+                ScanData[] resultsToDeliver = parcelableResultsToDeliver.getResults();
                 logCallback("singleScanResults",  entry.clientInfo, entry.handlerId,
                         describeForLog(resultsToDeliver));
                 entry.reportEvent(WifiScanner.CMD_SCAN_RESULT, 0, parcelableResultsToDeliver);
@@ -980,7 +1094,11 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
                         describeForLog(allResults));
                 entry.reportEvent(WifiScanner.CMD_SCAN_RESULT, 0, parcelableAllResults);
             }
+            mWifiMetrics.addScanResultFanOut(mActiveScans.size() + mSingleScanListeners.size(),
+                    fanOut.size(), mClock.getElapsedSinceBootNanos() - fanOutStartNanos);
 
+            // Partial scans are merged too, unlike the cached results of the full scans.
+            mMergedScanResultTable.update(results.getResults());
             if (results.isAllChannelsScanned()) {
                 mCachedScanResults.clear();
                 mCachedScanResults.addAll(Arrays.asList(results.getResults()));
@@ -1001,6 +1119,20 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
 
         private final RequestList<ScanSettings> mActiveBackgroundScans = new RequestList<>();
 
+        @Override
+        protected void onPreHandleMessage(Message msg) {
+            if (mStateMachineProfiler != null && mStateMachineProfiler.isEnabled()) {
+                mStateMachineProfiler.onPreHandleMessage(this, msg);
+            }
+        }
+
+        @Override
+        protected void onPostHandleMessage(Message msg) {
+            if (mStateMachineProfiler != null && mStateMachineProfiler.isEnabled()) {
+                mStateMachineProfiler.onPostHandleMessage(this, msg, getWhatToString(msg.what));
+            }
+        }
+
         WifiBackgroundScanStateMachine(Looper looper) {
             super("WifiBackgroundScanStateMachine", looper);
 
@@ -1084,6 +1216,7 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
                         mChannelHelper = mScannerImpl.getChannelHelper();
 
                         mBackgroundScheduler = new BackgroundScanScheduler(mChannelHelper);
+                        mBackgroundScheduler.setAirtimeOptimized(true);
 
                         WifiNative.ScanCapabilities capabilities =
                                 new WifiNative.ScanCapabilities();
@@ -1449,6 +1582,20 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
         private final RequestList<Pair<PnoSettings, ScanSettings>> mActivePnoScans =
                 new RequestList<>();
 
+        @Override
+        protected void onPreHandleMessage(Message msg) {
+            if (mStateMachineProfiler != null && mStateMachineProfiler.isEnabled()) {
+                mStateMachineProfiler.onPreHandleMessage(this, msg);
+            }
+        }
+
+        @Override
+        protected void onPostHandleMessage(Message msg) {
+            if (mStateMachineProfiler != null && mStateMachineProfiler.isEnabled()) {
+                mStateMachineProfiler.onPostHandleMessage(this, msg, getWhatToString(msg.what));
+            }
+        }
+
         WifiPnoScanStateMachine(Looper looper) {
             super("WifiPnoScanStateMachine", looper);
 
@@ -2090,6 +2237,9 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
                 pw.println("  base period: " + schedule.base_period_ms);
                 pw.println("  max ap per scan: " + schedule.max_ap_per_scan);
                 pw.println("  batched scans: " + schedule.report_threshold_num_scans);
+                pw.println("  airtime optimized: " + mBackgroundScheduler.isAirtimeOptimized());
+                pw.println(String.format(Locale.US, "  estimated duty cycle: %.2f%%",
+                        mBackgroundScheduler.getEstimatedDutyCycle() * 100));
                 pw.println("  buckets:");
                 for (int b = 0; b < schedule.num_buckets; b++) {
                     WifiNative.BucketSettings bucket = schedule.buckets[b];
@@ -2112,6 +2262,8 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
             long nowMs = mClock.getElapsedSinceBootMillis();
             ScanResultUtil.dumpScanResults(pw, scanResults, nowMs);
             pw.println();
+            mMergedScanResultTable.dump(pw);
+            pw.println();
         }
         if (mScannerImpl != null) {
             mScannerImpl.dump(fd, pw, args);
@@ -20,6 +20,7 @@ import android.net.wifi.WifiConfiguration;
 import android.net.wifi.WifiScanner;
 import android.util.Log;
 
+import com.android.server.wifi.SoftApChannelSelector;
 import com.android.server.wifi.WifiNative;
 
 import java.util.ArrayList;
@@ -116,6 +117,25 @@ public class ApConfigUtil {
                                             String countryCode,
                                             ArrayList<Integer> allowed2GChannels,
                                             WifiConfiguration config) {
+        return updateApChannelConfig(wifiNative, countryCode, allowed2GChannels, null, config);
+    }
+
+    /**
+     * Update AP band and channel based on the provided country code and band. If the channel is
+     * not specified, the least loaded channel according to |channelSelector| is preferred over a
+     * random channel.
+     * @param wifiNative reference to WifiNative
+     * @param countryCode country code
+     * @param allowed2GChannels list of allowed 2GHz channels
+     * @param channelSelector channel selector based on recent scan results, may be null
+     * @param config configuration to update
+     * @return an integer result code
+     */
+    public static int updateApChannelConfig(WifiNative wifiNative,
+                                            String countryCode,
+                                            ArrayList<Integer> allowed2GChannels,
+                                            SoftApChannelSelector channelSelector,
+                                            WifiConfiguration config) {
         /* Use default band and channel for device without HAL. */
         if (!wifiNative.isHalStarted()) {
             config.apBand = DEFAULT_AP_BAND;
@@ -132,9 +152,16 @@ public class ApConfigUtil {
 
         /* Select a channel if it is not specified. */
         if (config.apChannel == 0) {
-            config.apChannel = chooseApChannel(
-                    config.apBand, allowed2GChannels,
-                    wifiNative.getChannelsForBand(WifiScanner.WIFI_BAND_5_GHZ));
+            int[] allowed5GFreqList = wifiNative.getChannelsForBand(WifiScanner.WIFI_BAND_5_GHZ);
+            if (channelSelector != null) {
+                config.apChannel = channelSelector.chooseChannel(
+                        config.apBand, allowed2GChannels, allowed5GFreqList);
+            }
+            if (config.apChannel <= 0) {
+                /* No recent scan results: pick a random channel. */
+                config.apChannel = chooseApChannel(
+                        config.apBand, allowed2GChannels, allowed5GFreqList);
+            }
             if (config.apChannel == -1) {
                 /* We're not able to get channel from wificond. */
                 Log.e(TAG, "Failed to get available channel.");
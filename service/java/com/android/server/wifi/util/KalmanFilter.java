@@ -20,6 +20,10 @@ package com.android.server.wifi.util;
  * Utility providiing a basic Kalman filter
  *
  * For background, see https://en.wikipedia.org/wiki/Kalman_filter
+ *
+ * The state estimate mx and the covariance mP are updated in place, and the intermediate results
+ * are kept in a workspace that is allocated once for given model dimensions - so a filter run on
+ * every sample does not allocate.
  */
 public class KalmanFilter {
     public Matrix mF; // stateTransition
@@ -29,24 +33,64 @@ public class KalmanFilter {
     public Matrix mP; // aPosterioriErrorCovariance
     public Matrix mx; // stateEstimate
 
+    // Workspace, sized for mStates states and mObservations observations
+    private int mStates = -1;
+    private int mObservations = -1;
+    private Matrix mTx;      // n x 1
+    private Matrix mTnn1;    // n x n
+    private Matrix mTnn2;    // n x n
+    private Matrix mTk;      // k x 1
+    private Matrix mTkn;     // k x n
+    private Matrix mTS;      // k x k
+    private Matrix mTSInv;   // k x k
+    private Matrix mTSInvScratch; // k x 2k
+    private Matrix mTnk;     // n x k
+    private Matrix mTK;      // n x k
+
+    private void ensureWorkspace() {
+        int n = mF.n;
+        int k = mH == null ? 0 : mH.n;
+        if (n == mStates && k == mObservations) return;
+        mStates = n;
+        mObservations = k;
+        mTx = new Matrix(n, 1);
+        mTnn1 = new Matrix(n, n);
+        mTnn2 = new Matrix(n, n);
+        mTk = new Matrix(k, 1);
+        mTkn = new Matrix(k, n);
+        mTS = new Matrix(k, k);
+        mTSInv = new Matrix(k, k);
+        mTSInvScratch = new Matrix(k, 2 * k);
+        mTnk = new Matrix(n, k);
+        mTK = new Matrix(n, k);
+    }
+
     /**
      * Performs the prediction phase of the filter, using the state estimate to produce
      * a new estimate for the current timestep.
      */
     public void predict() {
-        mx = mF.dot(mx);
-        mP = mF.dot(mP).dotTranspose(mF).plus(mQ);
+        ensureWorkspace();
+        mF.dot(mx, mTx);
+        copy(mTx, mx);
+        mF.dot(mP, mTnn1).dotTranspose(mF, mTnn2).plus(mQ, mP);
     }
 
     /**
      * Updates the state estimate to incorporate the new observation z.
      */
     public void update(Matrix z) {
-        Matrix y = z.minus(mH.dot(mx));
-        Matrix tS = mH.dot(mP).dotTranspose(mH).plus(mR);
-        Matrix tK = mP.dotTranspose(mH).dot(tS.inverse());
-        mx = mx.plus(tK.dot(y));
-        mP = mP.minus(tK.dot(mH).dot(mP));
+        ensureWorkspace();
+        Matrix y = z.minus(mH.dot(mx, mTk), mTk);
+        Matrix tS = mH.dot(mP, mTkn).dotTranspose(mH, mTS).plus(mR, mTS);
+        Matrix tK = mP.dotTranspose(mH, mTnk).dot(tS.inverse(mTSInv, mTSInvScratch), mTK);
+        mx.plus(tK.dot(y, mTx), mx);
+        mP.minus(tK.dot(mH, mTnn1).dot(mP, mTnn2), mP);
+    }
+
+    private static void copy(Matrix from, Matrix to) {
+        if (!(from.n == to.n && from.m == to.m)) throw new IllegalArgumentException();
+        System.arraycopy(from.mem, 0, to.mem, 0, from.mem.length);
     }
 
     @Override
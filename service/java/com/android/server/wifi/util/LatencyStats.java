@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi.util;
+
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Count, average, maximum and histogram of the latencies of a repeated operation, shared by the
+ * profilers of the HAL calls and of the state machine messages.
+ *
+ * This class is not thread safe, its users synchronize the accesses.
+ */
+public class LatencyStats {
+    /** Upper bounds (exclusive) of the histogram buckets, the last bucket is open. */
+    public static final int[] BUCKET_BOUNDS_MS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000};
+
+    private int mCount;
+    private long mTotalMs;
+    private long mMaxMs;
+    private final int[] mHistogram = new int[BUCKET_BOUNDS_MS.length + 1];
+
+    /**
+     * Record a single latency sample.
+     */
+    public void add(long latencyMs) {
+        mCount++;
+        mTotalMs += latencyMs;
+        mMaxMs = Math.max(mMaxMs, latencyMs);
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS_MS.length && latencyMs >= BUCKET_BOUNDS_MS[bucket]) {
+            bucket++;
+        }
+        mHistogram[bucket]++;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    public long getAverageMs() {
+        return mCount == 0 ? 0 : mTotalMs / mCount;
+    }
+
+    public long getMaxMs() {
+        return mMaxMs;
+    }
+
+    /**
+     * Get the number of samples in each bucket, see {@link #BUCKET_BOUNDS_MS}.
+     */
+    public int[] getHistogram() {
+        return mHistogram.clone();
+    }
+
+    /**
+     * Returns a copy of these statistics.
+     */
+    public LatencyStats copy() {
+        LatencyStats copy = new LatencyStats();
+        copy.mCount = mCount;
+        copy.mTotalMs = mTotalMs;
+        copy.mMaxMs = mMaxMs;
+        System.arraycopy(mHistogram, 0, copy.mHistogram, 0, mHistogram.length);
+        return copy;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("count=").append(mCount)
+                .append(" avgMs=").append(getAverageMs())
+                .append(" maxMs=").append(mMaxMs)
+                .append(" histogram=[");
+        for (int i = 0; i < mHistogram.length; i++) {
+            if (i > 0) sb.append(",");
+            sb.append(mHistogram[i]);
+        }
+        return sb.append("]").toString();
+    }
+
+    /**
+     * Print the bounds of the histogram buckets, to be used as the legend of a dump.
+     */
+    public static void dumpBucketBounds(PrintWriter pw) {
+        StringBuilder sb = new StringBuilder();
+        for (int bound : BUCKET_BOUNDS_MS) {
+            sb.append("<").append(bound).append(" ");
+        }
+        sb.append(">=").append(BUCKET_BOUNDS_MS[BUCKET_BOUNDS_MS.length - 1]);
+        pw.println("Latency histogram buckets (ms): " + sb);
+    }
+
+    /**
+     * Bounded log of the most recent slow operations, the oldest entries are dropped first.
+     *
+     * This class is not thread safe, its users synchronize the accesses.
+     */
+    public static class SlowLog<T> {
+        private final int mMaxSize;
+        private final LinkedList<T> mEntries = new LinkedList<>();
+
+        public SlowLog(int maxSize) {
+            mMaxSize = maxSize;
+        }
+
+        /**
+         * Add an entry, dropping the oldest one if the log is full.
+         */
+        public void add(T entry) {
+            mEntries.addLast(entry);
+            if (mEntries.size() > mMaxSize) mEntries.removeFirst();
+        }
+
+        public int size() {
+            return mEntries.size();
+        }
+
+        public void clear() {
+            mEntries.clear();
+        }
+
+        /**
+         * Print the entries, the most recent first.
+         */
+        public void dump(PrintWriter pw, String prefix) {
+            Iterator<T> it = mEntries.descendingIterator();
+            while (it.hasNext()) {
+                pw.println(prefix + it.next());
+            }
+        }
+    }
+}
@@ -196,7 +196,7 @@ public class Matrix {
      * Caller supplies an object to contain the result, as well as scratch space
      *
      * @param that   is the other matrix
-     * @param result is space to hold the result
+     * @param result is space to hold the result; must not be this or that
      * @return result, filled with the matrix product
      * @throws IllegalArgumentException if shapes are not conformant
      */
@@ -204,13 +204,18 @@ public class Matrix {
         if (!(this.n == result.n && this.m == that.n && that.m == result.m)) {
             throw new IllegalArgumentException();
         }
+        final double[] a = this.mem;
+        final double[] b = that.mem;
+        final double[] c = result.mem;
+        final int bm = that.m;
         for (int i = 0; i < n; i++) {
-            for (int j = 0; j < that.m; j++) {
+            final int row = i * m;
+            for (int j = 0; j < bm; j++) {
                 double s = 0.0;
                 for (int k = 0; k < m; k++) {
-                    s += this.get(i, k) * that.get(k, j);
+                    s += a[row + k] * b[k * bm + j];
                 }
-                result.put(i, j, s);
+                c[i * bm + j] = s;
             }
         }
         return result;
@@ -336,7 +341,7 @@ public class Matrix {
      * Caller supplies an object to contain the result, as well as scratch space
      *
      * @param that is the other matrix
-     * @param result is space to hold the result
+     * @param result is space to hold the result; must not be this or that
      * @return result, filled with the matrix product of this and that.transpose()
      * @throws IllegalArgumentException if shapes are not conformant
      */
@@ -344,13 +349,19 @@ public class Matrix {
         if (!(this.n == result.n && this.m == that.m && that.n == result.m)) {
             throw new IllegalArgumentException();
         }
+        final double[] a = this.mem;
+        final double[] b = that.mem;
+        final double[] c = result.mem;
+        final int bn = that.n;
         for (int i = 0; i < n; i++) {
-            for (int j = 0; j < that.n; j++) {
+            final int row = i * m;
+            for (int j = 0; j < bn; j++) {
+                final int col = j * m;
                 double s = 0.0;
                 for (int k = 0; k < m; k++) {
-                    s += this.get(i, k) * that.get(j, k);
+                    s += a[row + k] * b[col + k];
                 }
-                result.put(i, j, s);
+                c[i * bn + j] = s;
             }
         }
         return result;
@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi.util;
+
+import android.os.Message;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IState;
+import com.android.internal.util.StateMachine;
+import com.android.server.wifi.Clock;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Opt-in profiler of the message handling of the Wi-Fi state machines.
+ *
+ * State machines report every message they dispatch through
+ * {@link #onPreHandleMessage(StateMachine, Message)} and
+ * {@link #onPostHandleMessage(StateMachine, Message, String)}. When enabled, the profiler records
+ * per (state, message) histograms of the queueing delay (time between the message being due and
+ * its dispatch) and of the handling time, the message backlog of each state machine and the
+ * slowest recent messages. This helps attribute stalls of a state machine to a specific handler.
+ */
+public class StateMachineProfiler {
+    private static final String TAG = "StateMachineProfiler";
+
+    public static final long DEFAULT_SLOW_MESSAGE_THRESHOLD_MS = 100;
+    @VisibleForTesting
+    static final int MAX_SLOW_MESSAGES = 32;
+
+    private final Object mLock = new Object();
+    private final Clock mClock;
+    private volatile boolean mEnabled = false;
+    @GuardedBy("mLock")
+    private final Map<String, MachineStats> mMachineStats = new TreeMap<>();
+    @GuardedBy("mLock")
+    private final LatencyStats.SlowLog<MessageRecord> mSlowMessages =
+            new LatencyStats.SlowLog<>(MAX_SLOW_MESSAGES);
+    @GuardedBy("mLock")
+    private long mSlowMessageThresholdMs = DEFAULT_SLOW_MESSAGE_THRESHOLD_MS;
+
+    public StateMachineProfiler(Clock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * Statistics of a single message type handled in a single state.
+     */
+    public static class MessageStats {
+        public int slowCount;
+        public LatencyStats handlingTime = new LatencyStats();
+        public LatencyStats queueDelay = new LatencyStats();
+
+        MessageStats copy() {
+            MessageStats copy = new MessageStats();
+            copy.slowCount = slowCount;
+            copy.handlingTime = handlingTime.copy();
+            copy.queueDelay = queueDelay.copy();
+            return copy;
+        }
+    }
+
+    /**
+     * Statistics of a single state machine, along with the message currently being handled.
+     */
+    private static class MachineStats {
+        // Keyed by "<state>/<message>".
+        public final Map<String, MessageStats> messageStats = new TreeMap<>();
+        // Number of messages handled back to back while more messages were due: a lower bound of
+        // the depth of the message queue when the backlog started.
+        public int backlog;
+        public int maxBacklog;
+
+        // Message currently being handled.
+        public boolean inFlight;
+        public String stateName;
+        public long startTimeMs;
+        public long queueDelayMs;
+    }
+
+    /**
+     * A message handled slower than the threshold.
+     */
+    private static class MessageRecord {
+        public String machineName;
+        public String stateName;
+        public String messageName;
+        public int arg1;
+        public int arg2;
+        public String objType;
+        public long queueDelayMs;
+        public long handlingTimeMs;
+        public long wallClockMs;
+
+        @Override
+        public String toString() {
+            return String.format("%tm-%<td %<tH:%<tM:%<tS.%<tL", wallClockMs) + " " + machineName
+                    + " " + stateName + " " + messageName + " arg1=" + arg1 + " arg2=" + arg2
+                    + " obj=" + objType + " queueDelayMs=" + queueDelayMs + " handlingTimeMs="
+                    + handlingTimeMs;
+        }
+    }
+
+    /**
+     * Enable or disable the profiler. Disabling keeps the statistics recorded so far.
+     */
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Set the handling time above which a message is logged and recorded as slow.
+     */
+    public void setSlowMessageThresholdMs(long thresholdMs) {
+        synchronized (mLock) {
+            mSlowMessageThresholdMs = thresholdMs;
+        }
+    }
+
+    /**
+     * To be invoked by |stateMachine| before it dispatches |msg| to its current state.
+     */
+    public void onPreHandleMessage(StateMachine stateMachine, Message msg) {
+        if (!mEnabled) return;
+        IState state = stateMachine.getCurrentState();
+        // Messages posted at the front of the queue (e.g. deferred messages) have no due time.
+        long queueDelayMs = msg.getWhen() == 0
+                ? 0 : Math.max(0, mClock.getUptimeSinceBootMillis() - msg.getWhen());
+        synchronized (mLock) {
+            MachineStats machineStats = getOrCreateMachineStats(stateMachine.getName());
+            machineStats.inFlight = true;
+            machineStats.stateName = state == null ? "null" : state.getName();
+            machineStats.queueDelayMs = queueDelayMs;
+            machineStats.startTimeMs = mClock.getElapsedSinceBootMillis();
+        }
+    }
+
+    /**
+     * To be invoked by |stateMachine| once it has handled |msg|.
+     *
+     * @param messageName Name of the message, null to use the numeric value of |msg.what|.
+     */
+    public void onPostHandleMessage(StateMachine stateMachine, Message msg, String messageName) {
+        if (!mEnabled) return;
+        boolean moreMessagesDue = !stateMachine.getHandler().getLooper().getQueue().isIdle();
+        synchronized (mLock) {
+            MachineStats machineStats = mMachineStats.get(stateMachine.getName());
+            if (machineStats == null || !machineStats.inFlight) {
+                // profiler enabled while the message was being handled
+                return;
+            }
+            machineStats.inFlight = false;
+            long handlingTimeMs = mClock.getElapsedSinceBootMillis() - machineStats.startTimeMs;
+            if (messageName == null) {
+                messageName = Integer.toString(msg.what);
+            }
+
+            MessageStats stats = getOrCreateMessageStats(machineStats,
+                    machineStats.stateName + "/" + messageName);
+            stats.handlingTime.add(handlingTimeMs);
+            stats.queueDelay.add(machineStats.queueDelayMs);
+            if (moreMessagesDue) {
+                machineStats.backlog++;
+                machineStats.maxBacklog = Math.max(machineStats.maxBacklog, machineStats.backlog);
+            } else {
+                machineStats.backlog = 0;
+            }
+
+            if (handlingTimeMs >= mSlowMessageThresholdMs) {
+                stats.slowCount++;
+                MessageRecord record = new MessageRecord();
+                record.machineName = stateMachine.getName();
+                record.stateName = machineStats.stateName;
+                record.messageName = messageName;
+                record.arg1 = msg.arg1;
+                record.arg2 = msg.arg2;
+                // Only the type of the object: its contents may include credentials.
+                record.objType = msg.obj == null ? "null" : msg.obj.getClass().getSimpleName();
+                record.queueDelayMs = machineStats.queueDelayMs;
+                record.handlingTimeMs = handlingTimeMs;
+                record.wallClockMs = mClock.getWallClockMillis();
+                mSlowMessages.add(record);
+                Log.w(TAG, "Slow message: " + record);
+            }
+        }
+    }
+
+    /**
+     * Get the statistics recorded for a message handled in a state of a state machine.
+     *
+     * @return a copy of the statistics or null if no such message was recorded.
+     */
+    @VisibleForTesting
+    public MessageStats getMessageStats(String machineName, String stateName,
+            String messageName) {
+        synchronized (mLock) {
+            MachineStats machineStats = mMachineStats.get(machineName);
+            if (machineStats == null) return null;
+            MessageStats stats = machineStats.messageStats.get(stateName + "/" + messageName);
+            return stats == null ? null : stats.copy();
+        }
+    }
+
+    /**
+     * Get the largest backlog observed for a state machine.
+     */
+    @VisibleForTesting
+    public int getMaxBacklog(String machineName) {
+        synchronized (mLock) {
+            MachineStats machineStats = mMachineStats.get(machineName);
+            return machineStats == null ? 0 : machineStats.maxBacklog;
+        }
+    }
+
+    /**
+     * Clear all the recorded statistics.
+     */
+    public void clear() {
+        synchronized (mLock) {
+            mMachineStats.clear();
+            mSlowMessages.clear();
+        }
+    }
+
+    private MachineStats getOrCreateMachineStats(String machineName) {
+        MachineStats machineStats = mMachineStats.get(machineName);
+        if (machineStats == null) {
+            machineStats = new MachineStats();
+            mMachineStats.put(machineName, machineStats);
+        }
+        return machineStats;
+    }
+
+    private static MessageStats getOrCreateMessageStats(MachineStats machineStats, String key) {
+        MessageStats stats = machineStats.messageStats.get(key);
+        if (stats == null) {
+            stats = new MessageStats();
+            machineStats.messageStats.put(key, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * Dump the recorded statistics and the recent slow messages.
+     */
+    public void dump(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("Dump of StateMachineProfiler");
+            pw.println("mEnabled=" + mEnabled);
+            pw.println("mSlowMessageThresholdMs=" + mSlowMessageThresholdMs);
+            LatencyStats.dumpBucketBounds(pw);
+            for (Map.Entry<String, MachineStats> machineEntry : mMachineStats.entrySet()) {
+                MachineStats machineStats = machineEntry.getValue();
+                pw.println("  " + machineEntry.getKey() + ": backlog=" + machineStats.backlog
+                        + " maxBacklog=" + machineStats.maxBacklog);
+                for (Map.Entry<String, MessageStats> entry
+                        : machineStats.messageStats.entrySet()) {
+                    MessageStats stats = entry.getValue();
+                    pw.println("    " + entry.getKey() + ": slow=" + stats.slowCount);
+                    pw.println("      handling: " + stats.handlingTime);
+                    pw.println("      queueDelay: " + stats.queueDelay);
+                }
+            }
+            pw.println("Recent slow messages: " + mSlowMessages.size());
+            mSlowMessages.dump(pw, "  ");
+        }
+    }
+}
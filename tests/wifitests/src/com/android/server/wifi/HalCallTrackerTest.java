@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+import android.app.test.MockAnswerUtil.AnswerWithArguments;
+import android.hardware.wifi.hostapd.V1_0.HostapdStatus;
+import android.hardware.wifi.hostapd.V1_0.HostapdStatusCode;
+import android.hardware.wifi.hostapd.V1_0.IHostapd;
+import android.hardware.wifi.supplicant.V1_0.ISupplicantNetwork;
+import android.hardware.wifi.supplicant.V1_0.ISupplicantStaIface;
+import android.hardware.wifi.supplicant.V1_0.SupplicantStatus;
+import android.hardware.wifi.supplicant.V1_0.SupplicantStatusCode;
+import android.os.RemoteException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Unit tests for {@link com.android.server.wifi.HalCallTracker}.
+ */
+public class HalCallTrackerTest {
+    private static final String IFACE_NAME = "wlan0";
+
+    @Mock private Clock mClock;
+    @Mock private IHostapd mIHostapdMock;
+    @Mock private ISupplicantStaIface mISupplicantStaIfaceMock;
+
+    private HalCallTracker mDut;
+    private IHostapd mTrackedHostapd;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        mDut = new HalCallTracker(mClock);
+        mDut.setEnabled(true);
+        mTrackedHostapd = mDut.track("IHostapd", IHostapd.class, mIHostapdMock);
+    }
+
+    private static HostapdStatus createHostapdStatus(int code) {
+        HostapdStatus status = new HostapdStatus();
+        status.code = code;
+        return status;
+    }
+
+    /**
+     * Verifies that calls are forwarded and their latency is recorded in the histogram.
+     */
+    @Test
+    public void testCallLatencyIsRecorded() throws Exception {
+        HostapdStatus success = createHostapdStatus(HostapdStatusCode.SUCCESS);
+        when(mIHostapdMock.removeAccessPoint(IFACE_NAME)).thenReturn(success);
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(1000L, 1007L);
+
+        assertEquals(success, mTrackedHostapd.removeAccessPoint(IFACE_NAME));
+        verify(mIHostapdMock).removeAccessPoint(IFACE_NAME);
+
+        HalCallTracker.CallStats stats = mDut.getCallStats("IHostapd", "removeAccessPoint");
+        assertEquals(1, stats.latency.getCount());
+        assertEquals(0, stats.failureCount);
+        assertEquals(0, stats.slowCallCount);
+        assertEquals(7, stats.latency.getMaxMs());
+        // 7ms falls in the [5, 10) bucket.
+        assertEquals(1, stats.latency.getHistogram()[3]);
+    }
+
+    /**
+     * Verifies that failure statuses returned by the HAL are counted.
+     */
+    @Test
+    public void testFailureStatusIsCounted() throws Exception {
+        when(mIHostapdMock.removeAccessPoint(IFACE_NAME))
+                .thenReturn(createHostapdStatus(HostapdStatusCode.FAILURE_UNKNOWN));
+
+        mTrackedHostapd.removeAccessPoint(IFACE_NAME);
+
+        assertEquals(1, mDut.getCallStats("IHostapd", "removeAccessPoint").failureCount);
+    }
+
+    /**
+     * Verifies that failure statuses delivered through a result callback are counted, and that
+     * the original callback is still invoked.
+     */
+    @Test
+    public void testCallbackFailureStatusIsCounted() throws Exception {
+        doAnswer(new AnswerWithArguments() {
+            public void answer(ISupplicantStaIface.addNetworkCallback cb) {
+                SupplicantStatus status = new SupplicantStatus();
+                status.code = SupplicantStatusCode.FAILURE_UNKNOWN;
+                cb.onValues(status, null);
+            }
+        }).when(mISupplicantStaIfaceMock).addNetwork(
+                any(ISupplicantStaIface.addNetworkCallback.class));
+        ISupplicantStaIface trackedIface = mDut.track(
+                "ISupplicantStaIface", ISupplicantStaIface.class, mISupplicantStaIfaceMock);
+        ISupplicantStaIface.addNetworkCallback callback =
+                mock(ISupplicantStaIface.addNetworkCallback.class);
+
+        trackedIface.addNetwork(callback);
+
+        verify(callback).onValues(any(SupplicantStatus.class), any(ISupplicantNetwork.class));
+        assertEquals(1, mDut.getCallStats("ISupplicantStaIface", "addNetwork").failureCount);
+    }
+
+    /**
+     * Verifies that remote exceptions are counted and rethrown to the caller.
+     */
+    @Test
+    public void testRemoteExceptionIsCountedAndRethrown() throws Exception {
+        doThrow(new RemoteException()).when(mIHostapdMock).removeAccessPoint(IFACE_NAME);
+
+        try {
+            mTrackedHostapd.removeAccessPoint(IFACE_NAME);
+            fail("RemoteException not rethrown");
+        } catch (RemoteException e) {
+            // expected
+        }
+
+        HalCallTracker.CallStats stats = mDut.getCallStats("IHostapd", "removeAccessPoint");
+        assertEquals(1, stats.latency.getCount());
+        assertEquals(1, stats.remoteExceptionCount);
+    }
+
+    /**
+     * Verifies that calls slower than the threshold are recorded along with the calling thread.
+     */
+    @Test
+    public void testSlowCallIsRecorded() throws Exception {
+        mDut.setSlowCallThresholdMs(50);
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(1000L, 1200L);
+
+        mTrackedHostapd.removeAccessPoint(IFACE_NAME);
+
+        assertEquals(1, mDut.getCallStats("IHostapd", "removeAccessPoint").slowCallCount);
+        StringWriter sw = new StringWriter();
+        mDut.dump(new PrintWriter(sw));
+        assertTrue(sw.toString().contains(
+                "IHostapd.removeAccessPoint thread=" + Thread.currentThread().getName()));
+    }
+
+    /**
+     * Verifies that a tracked object is equal to the object it wraps and is not wrapped twice.
+     */
+    @Test
+    public void testTrackedObjectIdentity() throws Exception {
+        IHostapd other = mDut.track("IHostapd", IHostapd.class, mIHostapdMock);
+        assertTrue(mTrackedHostapd.equals(other));
+        assertEquals(mIHostapdMock.hashCode(), mTrackedHostapd.hashCode());
+        assertSame(mTrackedHostapd, mDut.track("IHostapd", IHostapd.class, mTrackedHostapd));
+        assertNull(mDut.track("IHostapd", IHostapd.class, null));
+        assertSame(mIHostapdMock, HalCallTracker.track(
+                null, "IHostapd", IHostapd.class, mIHostapdMock));
+    }
+
+    /**
+     * Verifies that objects are not wrapped while tracking is disabled, which is the default, and
+     * that calls through objects already wrapped are no longer recorded once disabled.
+     */
+    @Test
+    public void testNoTrackingWhenDisabled() throws Exception {
+        HalCallTracker tracker = new HalCallTracker(mClock);
+        assertFalse(tracker.isEnabled());
+        assertSame(mIHostapdMock, tracker.track("IHostapd", IHostapd.class, mIHostapdMock));
+
+        mDut.setEnabled(false);
+        mTrackedHostapd.removeAccessPoint(IFACE_NAME);
+
+        verify(mIHostapdMock).removeAccessPoint(IFACE_NAME);
+        assertNull(mDut.getCallStats("IHostapd", "removeAccessPoint"));
+    }
+}
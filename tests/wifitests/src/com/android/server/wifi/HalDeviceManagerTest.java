@@ -28,6 +28,7 @@ import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.clearInvocations;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
@@ -423,6 +424,69 @@ public class HalDeviceManagerTest {
         verifyNoMoreInteractions(staAvailListener);
     }
 
+    /**
+     * Validates that the chip capabilities are read once per Wi-Fi start and that interface
+     * availability queries are answered from the cached chip state - until a chip event
+     * invalidates it.
+     *
+     * Uses TestChipV1 - but nothing specific to its configuration. The test validates internal
+     * HDM behavior.
+     */
+    @Test
+    public void testChipInfoCachedUntilChipEvent() throws Exception {
+        TestChipV1 chipMock = new TestChipV1();
+        chipMock.initialize();
+        mInOrder = inOrder(mServiceManagerMock, mWifiMock, chipMock.chip,
+                mManagerStatusListenerMock);
+        executeAndValidateInitializationSequence();
+        executeAndValidateStartupSequence();
+
+        ArgumentCaptor<IWifiChipEventCallback> chipEventCallbackCaptor =
+                ArgumentCaptor.forClass(IWifiChipEventCallback.class);
+        verify(chipMock.chip).registerEventCallback(chipEventCallbackCaptor.capture());
+
+        // get STA interface
+        IWifiIface staIface = validateInterfaceSequence(chipMock,
+                false, // chipModeValid
+                -1000, // chipModeId (only used if chipModeValid is true)
+                IfaceType.STA, // ifaceTypeToCreate
+                "wlan0", // ifaceName
+                TestChipV1.STA_CHIP_MODE_ID, // finalChipMode
+                false, // high priority
+                null, // tearDownList
+                null, // destroyedListener
+                null // availableListener
+        );
+        collector.checkThat("STA created", staIface, IsNull.notNullValue());
+        clearInvocations(chipMock.chip);
+
+        // act: availability queries
+        HalDeviceManager.InterfaceAvailableForRequestListener availListener = mock(
+                HalDeviceManager.InterfaceAvailableForRequestListener.class);
+        mDut.registerInterfaceAvailableForRequestListener(IfaceType.AP, availListener, mHandler);
+        mDut.registerInterfaceAvailableForRequestListener(IfaceType.NAN, availListener, mHandler);
+        mDut.getSupportedIfaceTypes();
+
+        // verify: no chip state queries
+        verify(chipMock.chip, times(0)).getMode(any(IWifiChip.getModeCallback.class));
+        verify(chipMock.chip, times(0)).getStaIfaceNames(
+                any(IWifiChip.getStaIfaceNamesCallback.class));
+
+        // act: STA removed by the chip
+        chipMock.interfaceNames.get(IfaceType.STA).remove("wlan0");
+        chipMock.interfacesByName.get(IfaceType.STA).remove("wlan0");
+        chipEventCallbackCaptor.getValue().onIfaceRemoved(IfaceType.STA, "wlan0");
+        mDut.registerInterfaceAvailableForRequestListener(IfaceType.P2P, availListener, mHandler);
+        mDut.getSupportedIfaceTypes();
+
+        // verify: chip state re-read once, chip capabilities never re-read
+        verify(chipMock.chip).getMode(any(IWifiChip.getModeCallback.class));
+        verify(chipMock.chip).getStaIfaceNames(any(IWifiChip.getStaIfaceNamesCallback.class));
+        verify(chipMock.chip, times(0)).getAvailableModes(
+                any(IWifiChip.getAvailableModesCallback.class));
+        verify(mWifiMock).getChipIds(any(IWifi.getChipIdsCallback.class));
+    }
+
     /**
      * Validate that when no chip info is found an empty list is returned.
      */
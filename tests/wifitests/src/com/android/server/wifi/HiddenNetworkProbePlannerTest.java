@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.net.wifi.WifiConfiguration;
+import android.support.test.filters.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Unit tests for {@link com.android.server.wifi.HiddenNetworkProbePlanner}.
+ */
+@SmallTest
+public class HiddenNetworkProbePlannerTest {
+    private static final long TEST_NOW_MS = 100L * 24 * 60 * 60 * 1000;
+
+    private NetworkChannelHistory mChannelHistory;
+    private HiddenNetworkProbePlanner mDut;
+
+    @Before
+    public void setUp() throws Exception {
+        mChannelHistory = new NetworkChannelHistory();
+        mDut = new HiddenNetworkProbePlanner(mChannelHistory);
+    }
+
+    private static List<WifiConfiguration> createHiddenNetworks(int numNetworks) {
+        List<WifiConfiguration> networks = new ArrayList<>();
+        for (int i = 0; i < numNetworks; i++) {
+            networks.add(WifiConfigurationTestUtil.createPskHiddenNetwork());
+        }
+        return networks;
+    }
+
+    /**
+     * Verify that all the networks are probed when they fit in a scan.
+     */
+    @Test
+    public void testAllNetworksProbedWhenUnderLimit() {
+        List<WifiConfiguration> networks =
+                createHiddenNetworks(HiddenNetworkProbePlanner.MAX_HIDDEN_NETWORKS_PER_SCAN);
+
+        assertEquals(networks, mDut.plan(networks, null, TEST_NOW_MS));
+        assertEquals(networks, mDut.plan(networks, null, TEST_NOW_MS));
+    }
+
+    /**
+     * Verify that the highest priority networks are probed by every scan, and that the other
+     * networks are probed in turn.
+     */
+    @Test
+    public void testPinnedNetworksAndRotation() {
+        List<WifiConfiguration> networks = createHiddenNetworks(8);
+        int numRotated = HiddenNetworkProbePlanner.MAX_HIDDEN_NETWORKS_PER_SCAN
+                - HiddenNetworkProbePlanner.NUM_PINNED_NETWORKS;
+        int numScans = (networks.size() - HiddenNetworkProbePlanner.NUM_PINNED_NETWORKS)
+                / numRotated;
+
+        Set<WifiConfiguration> probedNetworks = new HashSet<>();
+        for (int i = 0; i < numScans; i++) {
+            List<WifiConfiguration> probed = mDut.plan(networks, null, TEST_NOW_MS);
+            assertEquals(HiddenNetworkProbePlanner.MAX_HIDDEN_NETWORKS_PER_SCAN, probed.size());
+            assertEquals(networks.subList(0, HiddenNetworkProbePlanner.NUM_PINNED_NETWORKS),
+                    probed.subList(0, HiddenNetworkProbePlanner.NUM_PINNED_NETWORKS));
+            probedNetworks.addAll(probed);
+        }
+        // every network was probed once per round
+        assertEquals(new HashSet<>(networks), probedNetworks);
+    }
+
+    /**
+     * Verify that a partial scan only probes the networks seen on its channels, and the networks
+     * never seen.
+     */
+    @Test
+    public void testPartialScanSkipsNetworksSeenOnOtherChannels() {
+        List<WifiConfiguration> networks = createHiddenNetworks(3);
+        mChannelHistory.recordSighting(networks.get(0).configKey(), 2412, TEST_NOW_MS);
+        mChannelHistory.recordSighting(networks.get(1).configKey(), 5180, TEST_NOW_MS);
+        Set<Integer> scanFreqs = new HashSet<>(Arrays.asList(2412, 2437));
+
+        List<WifiConfiguration> probed = mDut.plan(networks, scanFreqs, TEST_NOW_MS);
+
+        assertEquals(Arrays.asList(networks.get(0), networks.get(2)), probed);
+        // a full scan probes all of them
+        assertEquals(networks, mDut.plan(networks, null, TEST_NOW_MS));
+    }
+
+    /**
+     * Verify that an empty list of networks yields no probes.
+     */
+    @Test
+    public void testNoHiddenNetworks() {
+        assertTrue(mDut.plan(new ArrayList<>(), null, TEST_NOW_MS).isEmpty());
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.server.wifi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+
+import android.net.wifi.ScanResult;
+import android.net.wifi.WifiScanner;
+import android.support.test.filters.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Unit tests for {@link com.android.server.wifi.MergedScanResultTable}.
+ */
+@SmallTest
+public class MergedScanResultTableTest {
+    private static final long NOW_MS = 1000 * 1000;
+    private static final Set<Integer> DFS_FREQUENCIES =
+            new HashSet<>(Arrays.asList(5260, 5500, 5600));
+
+    @Mock private Clock mClock;
+    private MergedScanResultTable mDut;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(NOW_MS);
+        mDut = new MergedScanResultTable(mClock);
+        mDut.setDfsFrequencies(DFS_FREQUENCIES);
+    }
+
+    private static ScanResult createScanResult(String bssid, int frequency, long timeMillis) {
+        ScanResult result = new ScanResult();
+        result.BSSID = bssid;
+        result.frequency = frequency;
+        result.timestamp = timeMillis * 1000;
+        return result;
+    }
+
+    /**
+     * Verify that a partial scan is merged with the results of the previous scans, and that the
+     * newer result of a BSSID replaces the older one but not the other way around.
+     */
+    @Test
+    public void partialScanMergedAndNewerResultKept() {
+        ScanResult resultA = createScanResult("00:00:00:00:00:0a", 2412, NOW_MS - 2000);
+        ScanResult resultB = createScanResult("00:00:00:00:00:0b", 5180, NOW_MS - 2000);
+        mDut.update(new ScanResult[] {resultA, resultB});
+
+        ScanResult newerB = createScanResult("00:00:00:00:00:0b", 5180, NOW_MS - 1000);
+        mDut.update(new ScanResult[] {newerB});
+        assertEquals(2, mDut.size());
+        List<ScanResult> results = mDut.getRecentResults(MergedScanResultTable.MAX_AGE_MS,
+                WifiScanner.WIFI_BAND_BOTH_WITH_DFS);
+        assertEquals(2, results.size());
+        assertTrue(results.contains(resultA));
+        assertTrue(results.contains(newerB));
+
+        mDut.update(new ScanResult[] {resultB});
+        results = mDut.getResultsNewerThan(0, WifiScanner.WIFI_BAND_5_GHZ);
+        assertEquals(1, results.size());
+        assertSame(newerB, results.get(0));
+    }
+
+    /**
+     * Verify that the results older than {@link MergedScanResultTable#MAX_AGE_MS} are evicted.
+     */
+    @Test
+    public void oldResultsEvicted() {
+        mDut.update(new ScanResult[] {
+                createScanResult("00:00:00:00:00:0a", 2412, NOW_MS - 1000),
+                createScanResult("00:00:00:00:00:0b", 2437, NOW_MS - 60 * 1000)});
+        assertEquals(2, mDut.size());
+
+        when(mClock.getElapsedSinceBootMillis())
+                .thenReturn(NOW_MS - 30 * 1000 + MergedScanResultTable.MAX_AGE_MS);
+        List<ScanResult> results =
+                mDut.getResultsNewerThan(0, WifiScanner.WIFI_BAND_BOTH_WITH_DFS);
+        assertEquals(1, results.size());
+        assertEquals("00:00:00:00:00:0a", results.get(0).BSSID);
+        assertEquals(1, mDut.size());
+    }
+
+    /**
+     * Verify that the results are filtered by time and by band.
+     */
+    @Test
+    public void resultsFilteredByTimeAndBand() {
+        mDut.update(new ScanResult[] {
+                createScanResult("00:00:00:00:00:0a", 2412, NOW_MS - 5000),
+                createScanResult("00:00:00:00:00:0b", 5180, NOW_MS - 1000),
+                createScanResult("00:00:00:00:00:0c", 5500, NOW_MS - 1000)});
+
+        assertEquals(2, mDut.getRecentResults(2000, WifiScanner.WIFI_BAND_BOTH_WITH_DFS).size());
+        assertEquals(1, mDut.getResultsNewerThan(NOW_MS - 10 * 1000,
+                WifiScanner.WIFI_BAND_24_GHZ).size());
+        assertEquals(1, mDut.getResultsNewerThan(0, WifiScanner.WIFI_BAND_5_GHZ).size());
+        assertEquals(2, mDut.getResultsNewerThan(0,
+                WifiScanner.WIFI_BAND_5_GHZ_WITH_DFS).size());
+        assertEquals(0, mDut.getResultsNewerThan(NOW_MS, WifiScanner.WIFI_BAND_BOTH).size());
+    }
+
+    /**
+     * Verify the band of the frequencies, the DFS channels being a band of their own.
+     */
+    @Test
+    public void frequencyBands() {
+        assertTrue(mDut.isFrequencyInBand(2412, WifiScanner.WIFI_BAND_24_GHZ));
+        assertFalse(mDut.isFrequencyInBand(2412, WifiScanner.WIFI_BAND_5_GHZ));
+        assertTrue(mDut.isFrequencyInBand(5180, WifiScanner.WIFI_BAND_5_GHZ));
+        assertFalse(mDut.isFrequencyInBand(5180, WifiScanner.WIFI_BAND_5_GHZ_DFS_ONLY));
+        assertTrue(mDut.isFrequencyInBand(5500, WifiScanner.WIFI_BAND_5_GHZ_DFS_ONLY));
+        assertFalse(mDut.isFrequencyInBand(5500, WifiScanner.WIFI_BAND_BOTH));
+        assertTrue(mDut.isFrequencyInBand(5745, WifiScanner.WIFI_BAND_BOTH));
+    }
+
+    /**
+     * Verify that the DFS channels are those set, e.g. from the channels of the country code, and
+     * that the 5 GHz results are classified as non DFS while the DFS channels are unknown.
+     */
+    @Test
+    public void dfsFrequenciesFollowTheChannelsSet() {
+        // Channel 52 is not DFS in this test country code.
+        assertTrue(mDut.isFrequencyInBand(5280, WifiScanner.WIFI_BAND_5_GHZ));
+        assertFalse(mDut.isFrequencyInBand(5280, WifiScanner.WIFI_BAND_5_GHZ_DFS_ONLY));
+
+        mDut.setDfsFrequencies(Collections.emptySet());
+        assertTrue(mDut.isFrequencyInBand(5500, WifiScanner.WIFI_BAND_5_GHZ));
+        assertFalse(mDut.isFrequencyInBand(5500, WifiScanner.WIFI_BAND_5_GHZ_DFS_ONLY));
+    }
+
+    /**
+     * Verify that at most {@link MergedScanResultTable#MAX_SIZE} results are kept, the least
+     * recently updated ones being evicted first.
+     */
+    @Test
+    public void leastRecentlyUpdatedResultsEvictedBeyondMaxSize() {
+        ScanResult[] results = new ScanResult[MergedScanResultTable.MAX_SIZE + 1];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = createScanResult(String.format("00:00:00:00:%02x:%02x", i / 256,
+                    i % 256), 2412, NOW_MS - 1000);
+        }
+        mDut.update(results);
+        assertEquals(MergedScanResultTable.MAX_SIZE, mDut.size());
+        assertFalse(mDut.getResultsNewerThan(0, WifiScanner.WIFI_BAND_24_GHZ)
+                .contains(results[0]));
+
+        mDut.clear();
+        assertEquals(0, mDut.size());
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.support.test.filters.SmallTest;
+import android.util.Xml;
+
+import com.android.internal.util.FastXmlSerializer;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Unit tests for {@link com.android.server.wifi.NetworkChannelHistoryStoreData}.
+ */
+@SmallTest
+public class NetworkChannelHistoryStoreDataTest {
+    private static final String TEST_CONFIG_KEY = "\"TestSsid\"WPA_PSK";
+    private static final long TEST_TIME_MS = 1500000000000L;
+
+    private NetworkChannelHistory mHistory;
+    private NetworkChannelHistoryStoreData mNetworkChannelHistoryStoreData;
+
+    @Before
+    public void setUp() throws Exception {
+        mHistory = new NetworkChannelHistory();
+        mNetworkChannelHistoryStoreData = new NetworkChannelHistoryStoreData();
+        mNetworkChannelHistoryStoreData.setHistory(mHistory);
+    }
+
+    /**
+     * Helper function for serializing the history to a XML block.
+     */
+    private byte[] serializeData(boolean shared) throws Exception {
+        final XmlSerializer out = new FastXmlSerializer();
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        out.setOutput(outputStream, StandardCharsets.UTF_8.name());
+        mNetworkChannelHistoryStoreData.serializeData(out, shared);
+        out.flush();
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * Helper function for parsing the history from a XML block.
+     */
+    private void deserializeData(byte[] data, boolean shared) throws Exception {
+        final XmlPullParser in = Xml.newPullParser();
+        final ByteArrayInputStream inputStream = new ByteArrayInputStream(data);
+        in.setInput(inputStream, StandardCharsets.UTF_8.name());
+        mNetworkChannelHistoryStoreData.deserializeData(in, in.getDepth(), shared);
+    }
+
+    /**
+     * Verify that a XmlPullParserException will be thrown when attempting to serialize the
+     * history to the share store.
+     */
+    @Test(expected = XmlPullParserException.class)
+    public void serializeShareData() throws Exception {
+        serializeData(true /* shared */);
+    }
+
+    /**
+     * Verify that NetworkChannelHistoryStoreData does not support share data, and that an empty
+     * history is serialized to nothing.
+     */
+    @Test
+    public void serializeEmptyHistory() throws Exception {
+        assertFalse(mNetworkChannelHistoryStoreData.supportShareData());
+        assertEquals(0, serializeData(false /* shared */).length);
+    }
+
+    /**
+     * Verify that the history is restored with its order and weights after a store round trip,
+     * and that resetting the user data clears it.
+     */
+    @Test
+    public void serializeAndDeserializeHistory() throws Exception {
+        long now = TEST_TIME_MS;
+        mHistory.recordSighting(TEST_CONFIG_KEY, 2412, now);
+        mHistory.recordSighting(TEST_CONFIG_KEY, 5180, now);
+        now += NetworkChannelHistory.SIGHTING_MERGE_WINDOW_MS;
+        mHistory.recordSighting(TEST_CONFIG_KEY, 5180, now);
+        byte[] data = serializeData(false /* shared */);
+
+        mNetworkChannelHistoryStoreData.resetData(false /* shared */);
+        assertTrue(mHistory.getChannelsByLikelihood(TEST_CONFIG_KEY, now).isEmpty());
+
+        deserializeData(data, false /* shared */);
+        assertEquals(Arrays.asList(5180, 2412),
+                mHistory.getChannelsByLikelihood(TEST_CONFIG_KEY, now));
+        assertEquals(2.0, mHistory.getWeight(TEST_CONFIG_KEY, 5180, now), 0.01);
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.support.test.filters.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+/**
+ * Unit tests for {@link com.android.server.wifi.NetworkChannelHistory}.
+ */
+@SmallTest
+public class NetworkChannelHistoryTest {
+    private static final String TEST_CONFIG_KEY = "\"TestSsid\"WPA_PSK";
+    private static final String TEST_OTHER_CONFIG_KEY = "\"OtherSsid\"NONE";
+    private static final long SCAN_INTERVAL_MS = NetworkChannelHistory.SIGHTING_MERGE_WINDOW_MS;
+
+    private NetworkChannelHistory mDut;
+
+    @Before
+    public void setUp() throws Exception {
+        mDut = new NetworkChannelHistory();
+    }
+
+    /**
+     * Verify that the channels are ordered by the number of sightings, and that sightings within
+     * the merge window count once.
+     */
+    @Test
+    public void testChannelsOrderedBySightings() {
+        long now = 0;
+        for (int i = 0; i < 3; i++) {
+            mDut.recordSighting(TEST_CONFIG_KEY, 5180, now);
+            mDut.recordSighting(TEST_CONFIG_KEY, 2412, now);
+            // a second AP on the same channel in the same scan
+            mDut.recordSighting(TEST_CONFIG_KEY, 2412, now + 1);
+            now += SCAN_INTERVAL_MS;
+        }
+        mDut.recordSighting(TEST_CONFIG_KEY, 2412, now);
+        mDut.recordSighting(TEST_CONFIG_KEY, 2437, now);
+
+        assertEquals(Arrays.asList(2412, 5180, 2437),
+                mDut.getChannelsByLikelihood(TEST_CONFIG_KEY, now));
+        assertEquals(4.0, mDut.getWeight(TEST_CONFIG_KEY, 2412, now), 0.01);
+        assertEquals(0.0, mDut.getWeight(TEST_CONFIG_KEY, 5745, now), 0.0);
+        assertTrue(mDut.getChannelsByLikelihood(TEST_OTHER_CONFIG_KEY, now).isEmpty());
+    }
+
+    /**
+     * Verify that recent sightings outweigh old ones, and that channels not seen for long are
+     * forgotten.
+     */
+    @Test
+    public void testWeightsDecay() {
+        long now = 0;
+        for (int i = 0; i < 4; i++) {
+            mDut.recordSighting(TEST_CONFIG_KEY, 2412, now);
+            now += SCAN_INTERVAL_MS;
+        }
+        now += 3 * NetworkChannelHistory.WEIGHT_HALF_LIFE_MS;
+        mDut.recordSighting(TEST_CONFIG_KEY, 5180, now);
+        assertEquals(0.5, mDut.getWeight(TEST_CONFIG_KEY, 2412, now), 0.01);
+        assertEquals(Arrays.asList(5180, 2412),
+                mDut.getChannelsByLikelihood(TEST_CONFIG_KEY, now));
+
+        now += 4 * NetworkChannelHistory.WEIGHT_HALF_LIFE_MS;
+        assertEquals(Arrays.asList(5180), mDut.getChannelsByLikelihood(TEST_CONFIG_KEY, now));
+    }
+
+    /**
+     * Verify that a new channel replaces the least likely one once a network has the maximum
+     * number of channels.
+     */
+    @Test
+    public void testMaxChannelsPerNetwork() {
+        long now = 0;
+        for (int i = 0; i < NetworkChannelHistory.MAX_CHANNELS_PER_NETWORK; i++) {
+            for (int j = 0; j <= i; j++) {
+                mDut.recordSighting(TEST_CONFIG_KEY, 5000 + 5 * i, now);
+                now += SCAN_INTERVAL_MS;
+            }
+        }
+        mDut.recordSighting(TEST_CONFIG_KEY, 2412, now);
+
+        assertEquals(NetworkChannelHistory.MAX_CHANNELS_PER_NETWORK,
+                mDut.getChannelsByLikelihood(TEST_CONFIG_KEY, now).size());
+        assertFalse(mDut.getChannelsByLikelihood(TEST_CONFIG_KEY, now).contains(5000));
+        assertTrue(mDut.getChannelsByLikelihood(TEST_CONFIG_KEY, now).contains(2412));
+    }
+
+    /**
+     * Verify that removing a network forgets its history only.
+     */
+    @Test
+    public void testRemoveNetwork() {
+        mDut.recordSighting(TEST_CONFIG_KEY, 2412, 0);
+        mDut.recordSighting(TEST_OTHER_CONFIG_KEY, 2437, 0);
+        mDut.removeNetwork(TEST_CONFIG_KEY);
+
+        assertTrue(mDut.getChannelsByLikelihood(TEST_CONFIG_KEY, 0).isEmpty());
+        assertEquals(Arrays.asList(2437), mDut.getChannelsByLikelihood(TEST_OTHER_CONFIG_KEY, 0));
+    }
+}
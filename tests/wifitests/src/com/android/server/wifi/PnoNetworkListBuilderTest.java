@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.net.wifi.WifiConfiguration;
+import android.net.wifi.WifiScanner.PnoSettings.PnoNetwork;
+import android.support.test.filters.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Unit tests for {@link com.android.server.wifi.PnoNetworkListBuilder}.
+ */
+@SmallTest
+public class PnoNetworkListBuilderTest {
+    private static final long TEST_NOW_MS = 100L * 24 * 60 * 60 * 1000;
+    private static final long DAY_MS = 24 * 60 * 60 * 1000L;
+
+    private NetworkChannelHistory mChannelHistory;
+    private PnoNetworkListBuilder mDut;
+
+    @Before
+    public void setUp() throws Exception {
+        mChannelHistory = new NetworkChannelHistory();
+        mDut = new PnoNetworkListBuilder(mChannelHistory);
+    }
+
+    /**
+     * Verify that a recently connected network is ranked above a network connected to more
+     * often but long ago.
+     */
+    @Test
+    public void testRecentConnectionRankedFirst() {
+        WifiConfiguration oldNetwork = WifiConfigurationTestUtil.createPskNetwork();
+        oldNetwork.numAssociation = 10;
+        oldNetwork.lastConnected = TEST_NOW_MS - 60 * DAY_MS;
+        WifiConfiguration recentNetwork = WifiConfigurationTestUtil.createPskNetwork();
+        recentNetwork.numAssociation = 1;
+        recentNetwork.lastConnected = TEST_NOW_MS - DAY_MS;
+
+        PnoNetworkListBuilder.Result result =
+                mDut.build(Arrays.asList(oldNetwork, recentNetwork), 16, TEST_NOW_MS);
+
+        assertSsids(result.pnoNetworks, recentNetwork.SSID, oldNetwork.SSID);
+        assertTrue(result.droppedConfigKeys.isEmpty());
+    }
+
+    /**
+     * Verify that a network often seen lately is ranked above a network never seen, and that a
+     * secure network is ranked above an otherwise equal open network.
+     */
+    @Test
+    public void testChannelHistoryAndSecurityRanking() {
+        WifiConfiguration openNetwork = WifiConfigurationTestUtil.createOpenNetwork();
+        WifiConfiguration pskNetwork = WifiConfigurationTestUtil.createPskNetwork();
+        WifiConfiguration seenNetwork = WifiConfigurationTestUtil.createOpenNetwork();
+        for (int i = 0; i < 8; i++) {
+            mChannelHistory.recordSighting(seenNetwork.configKey(), 2412,
+                    TEST_NOW_MS - i * NetworkChannelHistory.SIGHTING_MERGE_WINDOW_MS);
+        }
+
+        PnoNetworkListBuilder.Result result = mDut.build(
+                Arrays.asList(openNetwork, pskNetwork, seenNetwork), 16, TEST_NOW_MS);
+
+        assertSsids(result.pnoNetworks, seenNetwork.SSID, pskNetwork.SSID, openNetwork.SSID);
+    }
+
+    /**
+     * Verify that equally ranked networks keep their order.
+     */
+    @Test
+    public void testStableOrder() {
+        WifiConfiguration network1 = WifiConfigurationTestUtil.createPskNetwork();
+        WifiConfiguration network2 = WifiConfigurationTestUtil.createPskNetwork();
+        WifiConfiguration network3 = WifiConfigurationTestUtil.createPskNetwork();
+
+        PnoNetworkListBuilder.Result result = mDut.build(
+                Arrays.asList(network2, network3, network1), 16, TEST_NOW_MS);
+
+        assertSsids(result.pnoNetworks, network2.SSID, network3.SSID, network1.SSID);
+    }
+
+    /**
+     * Verify that the networks sharing an SSID take a single entry matching all of them.
+     */
+    @Test
+    public void testSameSsidNetworksMerged() {
+        WifiConfiguration pskNetwork = WifiConfigurationTestUtil.createPskNetwork();
+        WifiConfiguration openNetwork =
+                WifiConfigurationTestUtil.createOpenNetwork(pskNetwork.SSID);
+        openNetwork.hiddenSSID = true;
+
+        PnoNetworkListBuilder.Result result =
+                mDut.build(Arrays.asList(pskNetwork, openNetwork), 1, TEST_NOW_MS);
+
+        assertSsids(result.pnoNetworks, pskNetwork.SSID);
+        PnoNetwork pnoNetwork = result.pnoNetworks.get(0);
+        assertEquals(PnoNetwork.AUTH_CODE_PSK | PnoNetwork.AUTH_CODE_OPEN,
+                pnoNetwork.authBitField);
+        assertEquals(PnoNetwork.FLAG_DIRECTED_SCAN,
+                pnoNetwork.flags & PnoNetwork.FLAG_DIRECTED_SCAN);
+        assertTrue(result.droppedConfigKeys.isEmpty());
+    }
+
+    /**
+     * Verify that the lowest ranked networks beyond the maximum are dropped and reported.
+     */
+    @Test
+    public void testNetworksBeyondMaximumDropped() {
+        WifiConfiguration network1 = WifiConfigurationTestUtil.createPskNetwork();
+        network1.numAssociation = 3;
+        WifiConfiguration network2 = WifiConfigurationTestUtil.createPskNetwork();
+        network2.numAssociation = 2;
+        WifiConfiguration network3 = WifiConfigurationTestUtil.createPskNetwork();
+        network3.numAssociation = 1;
+
+        PnoNetworkListBuilder.Result result = mDut.build(
+                Arrays.asList(network3, network2, network1), 2, TEST_NOW_MS);
+
+        assertSsids(result.pnoNetworks, network1.SSID, network2.SSID);
+        assertEquals(Arrays.asList(network3.configKey()), result.droppedConfigKeys);
+    }
+
+    private static void assertSsids(List<PnoNetwork> pnoNetworks, String... ssids) {
+        assertEquals(ssids.length, pnoNetworks.size());
+        for (int i = 0; i < ssids.length; i++) {
+            assertEquals(ssids[i], pnoNetworks.get(i).ssid);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+
+import android.net.wifi.WifiInfo;
+import android.support.test.filters.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Unit tests for {@link com.android.server.wifi.RssiPollScheduler}.
+ */
+@SmallTest
+public class RssiPollSchedulerTest {
+    private static final int BASE_INTERVAL_MS = 3000;
+    private static final int FREQUENCY = 2412;
+
+    @Mock private Clock mClock;
+    private ScoringParams mScoringParams;
+    private RssiPollScheduler mDut;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        mScoringParams = new ScoringParams();
+        mDut = new RssiPollScheduler(mScoringParams, mClock);
+    }
+
+    private int pollIdle(int rssi) {
+        return mDut.onPoll(BASE_INTERVAL_MS, rssi, FREQUENCY, 0.0, 0.0);
+    }
+
+    private int goodRssi() {
+        return mScoringParams.getGoodRssi(FREQUENCY);
+    }
+
+    /**
+     * Verify that the interval grows tier by tier while the link is stable and idle, and is capped.
+     */
+    @Test
+    public void testIntervalGrowsWhileStableAndIdle() {
+        int expectedTier = 0;
+        int stablePolls = 0;
+        for (int i = 0; i < 30; i++) {
+            int interval = pollIdle(goodRssi() + (i % 2));
+            // the RSSI history must fill up before the link is deemed stable
+            if (i >= 3 && expectedTier < RssiPollScheduler.MAX_TIER
+                    && ++stablePolls == RssiPollScheduler.STABLE_POLLS_PER_TIER) {
+                stablePolls = 0;
+                expectedTier++;
+            }
+            assertEquals(BASE_INTERVAL_MS << expectedTier, interval);
+        }
+        assertEquals(RssiPollScheduler.MAX_TIER, mDut.getTier());
+    }
+
+    /**
+     * Verify that traffic, an RSSI below the sufficient level, an invalid RSSI or fluctuations
+     * drop the interval back to the base interval.
+     */
+    @Test
+    public void testIntervalResetsWhenLinkNeedsWatching() {
+        reachMaxTier();
+        assertEquals(BASE_INTERVAL_MS, mDut.onPoll(BASE_INTERVAL_MS, goodRssi(), FREQUENCY,
+                RssiPollScheduler.ACTIVE_TRAFFIC_PACKETS_PER_SECOND, 1.0));
+
+        reachMaxTier();
+        assertEquals(BASE_INTERVAL_MS, pollIdle(mScoringParams.getSufficientRssi(FREQUENCY) - 1));
+
+        reachMaxTier();
+        assertEquals(BASE_INTERVAL_MS, pollIdle(WifiInfo.INVALID_RSSI));
+
+        reachMaxTier();
+        assertEquals(BASE_INTERVAL_MS,
+                pollIdle(goodRssi() + RssiPollScheduler.STABLE_RSSI_SPREAD_DB + 1));
+    }
+
+    /**
+     * Verify that a firmware RSSI event resets the interval and requests an immediate poll only
+     * if polling was slowed down.
+     */
+    @Test
+    public void testFirmwareRssiEvent() {
+        assertFalse(mDut.onFirmwareRssiEvent());
+
+        reachMaxTier();
+        assertTrue(mDut.onFirmwareRssiEvent());
+        assertEquals(0, mDut.getTier());
+        assertEquals(BASE_INTERVAL_MS, pollIdle(goodRssi()));
+    }
+
+    /**
+     * Verify that the dump reports the polls and wakeups per hour.
+     */
+    @Test
+    public void testDumpReportsRatesPerHour() {
+        pollIdle(goodRssi());
+        pollIdle(goodRssi());
+        mDut.onFirmwareRssiEvent();
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(30 * 60 * 1000L);
+
+        StringWriter sw = new StringWriter();
+        mDut.dump(new PrintWriter(sw));
+        assertTrue(sw.toString().contains("polls/hour=4.0 firmwareRssiWakeups/hour=2.0"));
+    }
+
+    private void reachMaxTier() {
+        mDut.reset();
+        for (int i = 0; i < 3 + RssiPollScheduler.STABLE_POLLS_PER_TIER
+                * RssiPollScheduler.MAX_TIER; i++) {
+            pollIdle(goodRssi());
+        }
+        assertEquals(RssiPollScheduler.MAX_TIER, mDut.getTier());
+    }
+}
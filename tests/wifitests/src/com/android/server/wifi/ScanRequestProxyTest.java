@@ -20,6 +20,7 @@ import static android.app.ActivityManager.RunningAppProcessInfo.IMPORTANCE_FOREG
 
 import static com.android.server.wifi.ScanRequestProxy.SCAN_REQUEST_THROTTLE_MAX_IN_TIME_WINDOW_FG_APPS;
 import static com.android.server.wifi.ScanRequestProxy.SCAN_REQUEST_THROTTLE_TIME_WINDOW_FG_APPS_MS;
+import static com.android.server.wifi.ScanRequestProxy.SCAN_RESULTS_REUSE_WINDOW_MS;
 
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
@@ -35,6 +36,7 @@ import android.os.UserHandle;
 import android.os.WorkSource;
 import android.support.test.filters.SmallTest;
 
+import com.android.internal.app.IBatteryStats;
 import com.android.server.wifi.util.WifiPermissionsUtil;
 
 import org.junit.After;
@@ -54,6 +56,7 @@ import java.util.List;
 @SmallTest
 public class ScanRequestProxyTest {
     private static final int TEST_UID = 5;
+    private static final int TEST_UID_2 = 6;
     private static final String TEST_PACKAGE_NAME_1 = "com.test.1";
     private static final String TEST_PACKAGE_NAME_2 = "com.test.2";
     private static final List<WifiScanner.ScanSettings.HiddenNetwork> TEST_HIDDEN_NETWORKS_LIST =
@@ -71,7 +74,9 @@ public class ScanRequestProxyTest {
     @Mock private WifiScanner mWifiScanner;
     @Mock private WifiPermissionsUtil mWifiPermissionsUtil;
     @Mock private WifiMetrics mWifiMetrics;
+    @Mock private IBatteryStats mBatteryStats;
     @Mock private Clock mClock;
+    @Mock private SoftApChannelSelector mSoftApChannelSelector;
     private ArgumentCaptor<WorkSource> mWorkSourceArgumentCaptor =
             ArgumentCaptor.forClass(WorkSource.class);
     private ArgumentCaptor<WifiScanner.ScanSettings> mScanSettingsArgumentCaptor =
@@ -89,7 +94,8 @@ public class ScanRequestProxyTest {
         MockitoAnnotations.initMocks(this);
 
         when(mWifiInjector.getWifiScanner()).thenReturn(mWifiScanner);
-        when(mWifiConfigManager.retrieveHiddenNetworkList()).thenReturn(TEST_HIDDEN_NETWORKS_LIST);
+        when(mWifiInjector.getSoftApChannelSelector()).thenReturn(mSoftApChannelSelector);
+        when(mWifiConfigManager.planHiddenNetworksForScan()).thenReturn(TEST_HIDDEN_NETWORKS_LIST);
         doNothing().when(mWifiScanner).startScan(
                 mScanSettingsArgumentCaptor.capture(),
                 mScanListenerArgumentCaptor.capture(),
@@ -101,12 +107,14 @@ public class ScanRequestProxyTest {
 
         mScanRequestProxy =
             new ScanRequestProxy(mContext, mAppOps, mActivityManager, mWifiInjector,
-                    mWifiConfigManager, mWifiPermissionsUtil, mWifiMetrics, mClock);
+                    mWifiConfigManager, mWifiPermissionsUtil, mWifiMetrics, mBatteryStats,
+                    mClock);
     }
 
     @After
     public void cleanUp() throws Exception {
-        verifyNoMoreInteractions(mWifiScanner, mWifiConfigManager, mContext, mWifiMetrics);
+        verifyNoMoreInteractions(mWifiScanner, mWifiConfigManager, mContext, mWifiMetrics,
+                mBatteryStats);
         validateMockitoUsage();
     }
 
@@ -167,7 +175,7 @@ public class ScanRequestProxyTest {
     public void testStartScanWithHiddenNetworkScanningDisabled() {
         mScanRequestProxy.enableScanningForHiddenNetworks(false);
         assertTrue(mScanRequestProxy.startScan(TEST_UID, TEST_PACKAGE_NAME_1));
-        mInOrder.verify(mWifiConfigManager, never()).retrieveHiddenNetworkList();
+        mInOrder.verify(mWifiConfigManager, never()).planHiddenNetworksForScan();
         mInOrder.verify(mWifiScanner).startScan(any(), any(), any());
 
         assertTrue(mWorkSourceArgumentCaptor.getValue().equals(new WorkSource(TEST_UID)));
@@ -183,7 +191,7 @@ public class ScanRequestProxyTest {
     public void testStartScanWithHiddenNetworkScanningEnabled() {
         mScanRequestProxy.enableScanningForHiddenNetworks(true);
         assertTrue(mScanRequestProxy.startScan(TEST_UID, TEST_PACKAGE_NAME_1));
-        mInOrder.verify(mWifiConfigManager).retrieveHiddenNetworkList();
+        mInOrder.verify(mWifiConfigManager).planHiddenNetworksForScan();
         mInOrder.verify(mWifiScanner).startScan(any(), any(), any());
 
         assertTrue(mWorkSourceArgumentCaptor.getValue().equals(new WorkSource(TEST_UID)));
@@ -246,6 +254,8 @@ public class ScanRequestProxyTest {
                 mTestScanDatas1[0].getResults(),
                 mScanRequestProxy.getScanResults().stream().toArray(ScanResult[]::new));
 
+        // Results of request 1 are no longer recent.
+        when(mClock.getElapsedSinceBootMillis()).thenReturn((long) SCAN_RESULTS_REUSE_WINDOW_MS);
         // Make scan request 2.
         assertTrue(mScanRequestProxy.startScan(TEST_UID, TEST_PACKAGE_NAME_2));
         mInOrder.verify(mWifiScanner).startScan(any(), any(), any());
@@ -276,6 +286,8 @@ public class ScanRequestProxyTest {
                 mTestScanDatas1[0].getResults(),
                 mScanRequestProxy.getScanResults().stream().toArray(ScanResult[]::new));
 
+        // Results of request 1 are no longer recent.
+        when(mClock.getElapsedSinceBootMillis()).thenReturn((long) SCAN_RESULTS_REUSE_WINDOW_MS);
         // Make scan request 2.
         assertTrue(mScanRequestProxy.startScan(TEST_UID, TEST_PACKAGE_NAME_2));
         mInOrder.verify(mWifiScanner).startScan(any(), any(), any());
@@ -293,22 +305,18 @@ public class ScanRequestProxyTest {
     /**
      * Verify processing of a new scan request while there was a previous scan request being
      * processed.
-     * Verify that we don't send a second broadcast.
+     * Verify that the new request joins the scan in flight: no second scan is started and a single
+     * broadcast is sent.
      */
     @Test
     public void testScanRequestWhilePeviousScanRunning() {
-        WifiScanner.ScanListener listener1;
-        WifiScanner.ScanListener listener2;
         // Make scan request 1.
         assertTrue(mScanRequestProxy.startScan(TEST_UID, TEST_PACKAGE_NAME_1));
         mInOrder.verify(mWifiScanner).startScan(any(), any(), any());
-        listener1 = mScanListenerArgumentCaptor.getValue();
+        WifiScanner.ScanListener listener1 = mScanListenerArgumentCaptor.getValue();
 
-        // Make scan request 2.
+        // Make scan request 2: joins scan 1.
         assertTrue(mScanRequestProxy.startScan(TEST_UID, TEST_PACKAGE_NAME_2));
-        // Ensure that we did send a second scan request to scanner.
-        mInOrder.verify(mWifiScanner).startScan(any(), any(), any());
-        listener2 = mScanListenerArgumentCaptor.getValue();
 
         // Now send the scan results for request 1.
         listener1.onResults(mTestScanDatas1);
@@ -318,16 +326,113 @@ public class ScanRequestProxyTest {
                 mTestScanDatas1[0].getResults(),
                 mScanRequestProxy.getScanResults().stream().toArray(ScanResult[]::new));
 
-        // Now send the scan results for request 2.
+        verify(mWifiMetrics, times(2)).incrementExternalAppOneshotScanRequestsCount();
+        verify(mWifiMetrics).incrementExternalAppOneshotScanRequestsCoalescedCount();
+    }
+
+    /**
+     * Verify that a scan request from another uid which joins the scan in flight is blamed for
+     * that scan until it completes, and that the results broadcast reaches the joining app.
+     */
+    @Test
+    public void testScanRequestFromAnotherUidJoiningScanInFlightIsBlamed() throws Exception {
+        // Make scan request 1.
+        assertTrue(mScanRequestProxy.startScan(TEST_UID, TEST_PACKAGE_NAME_1));
+        mInOrder.verify(mWifiScanner).startScan(any(), any(), any());
+        WifiScanner.ScanListener listener1 = mScanListenerArgumentCaptor.getValue();
+        assertEquals(new WorkSource(TEST_UID), mWorkSourceArgumentCaptor.getValue());
+
+        // Make scan requests 2 & 3 from another uid: both join scan 1, blamed once.
+        assertTrue(mScanRequestProxy.startScan(TEST_UID_2, TEST_PACKAGE_NAME_2));
+        assertTrue(mScanRequestProxy.startScan(TEST_UID_2, TEST_PACKAGE_NAME_2));
+        verify(mBatteryStats).noteWifiScanStartedFromSource(new WorkSource(TEST_UID_2));
+
+        // Now send the scan results for request 1: broadcast to all apps & blame released.
+        listener1.onResults(mTestScanDatas1);
+        ArgumentCaptor<Intent> intentCaptor = ArgumentCaptor.forClass(Intent.class);
+        mInOrder.verify(mContext).sendBroadcastAsUser(intentCaptor.capture(), eq(UserHandle.ALL));
+        Intent intent = intentCaptor.getValue();
+        assertEquals(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION, intent.getAction());
+        assertTrue(intent.getBooleanExtra(WifiManager.EXTRA_RESULTS_UPDATED, false));
+        assertNull(intent.getPackage());
+        verify(mBatteryStats).noteWifiScanStoppedFromSource(new WorkSource(TEST_UID_2));
+
+        verify(mWifiMetrics, times(3)).incrementExternalAppOneshotScanRequestsCount();
+        verify(mWifiMetrics, times(2)).incrementExternalAppOneshotScanRequestsCoalescedCount();
+    }
+
+    /**
+     * Verify that the blame of a scan request which joined the scan in flight is released when
+     * that scan fails.
+     */
+    @Test
+    public void testScanRequestJoiningScanInFlightBlameReleasedOnFailure() throws Exception {
+        assertTrue(mScanRequestProxy.startScan(TEST_UID, TEST_PACKAGE_NAME_1));
+        mInOrder.verify(mWifiScanner).startScan(any(), any(), any());
+        WifiScanner.ScanListener listener1 = mScanListenerArgumentCaptor.getValue();
+
+        assertTrue(mScanRequestProxy.startScan(TEST_UID_2, TEST_PACKAGE_NAME_2));
+        verify(mBatteryStats).noteWifiScanStartedFromSource(new WorkSource(TEST_UID_2));
+
+        listener1.onFailure(0, "failed");
+        validateScanResultsAvailableBroadcastSent(false);
+        verify(mBatteryStats).noteWifiScanStoppedFromSource(new WorkSource(TEST_UID_2));
+
+        verify(mWifiMetrics, times(2)).incrementExternalAppOneshotScanRequestsCount();
+        verify(mWifiMetrics).incrementExternalAppOneshotScanRequestsCoalescedCount();
+    }
+
+    /**
+     * Verify that a scan request from an app with NETWORK_SETTINGS permission doesn't join a (less
+     * accurate) scan in flight started for another app, and that the results of the latest scan
+     * are broadcast.
+     */
+    @Test
+    public void testHighAccuracyScanRequestDoesNotJoinLowLatencyScanInFlight() {
+        // Make scan request 1.
+        assertTrue(mScanRequestProxy.startScan(TEST_UID, TEST_PACKAGE_NAME_1));
+        mInOrder.verify(mWifiScanner).startScan(any(), any(), any());
+        WifiScanner.ScanListener listener1 = mScanListenerArgumentCaptor.getValue();
+
+        // Make scan request 2 from settings: a second scan is started.
+        when(mWifiPermissionsUtil.checkNetworkSettingsPermission(TEST_UID)).thenReturn(true);
+        assertTrue(mScanRequestProxy.startScan(TEST_UID, TEST_PACKAGE_NAME_2));
+        mInOrder.verify(mWifiScanner).startScan(any(), any(), any());
+        WifiScanner.ScanListener listener2 = mScanListenerArgumentCaptor.getValue();
+        validateScanSettings(mScanSettingsArgumentCaptor.getValue(), false, true);
+
+        listener1.onResults(mTestScanDatas1);
+        validateScanResultsAvailableBroadcastSent(true);
+
+        // Make scan request 3: joins scan 2 - whose results are then broadcast as well.
+        when(mWifiPermissionsUtil.checkNetworkSettingsPermission(TEST_UID)).thenReturn(false);
+        assertTrue(mScanRequestProxy.startScan(TEST_UID, TEST_PACKAGE_NAME_1));
         listener2.onResults(mTestScanDatas2);
-        // Ensure that we did not send out another broadcast.
+        validateScanResultsAvailableBroadcastSent(true);
 
-        // Validate the scan results in the cache.
-        ScanTestUtil.assertScanResultsEquals(
-                mTestScanDatas2[0].getResults(),
-                mScanRequestProxy.getScanResults().stream().toArray(ScanResult[]::new));
+        verify(mWifiMetrics, times(2)).incrementExternalAppOneshotScanRequestsCount();
+        verify(mWifiMetrics).incrementExternalAppOneshotScanRequestsCoalescedCount();
+    }
+
+    /**
+     * Verify that a scan request shortly after a scan completed is served the results of that
+     * scan: no new scan is started and a broadcast is sent to the requesting app.
+     */
+    @Test
+    public void testScanRequestAfterRecentScanServedFromRecentResults() {
+        // Make scan request 1 & process its results.
+        assertTrue(mScanRequestProxy.startScan(TEST_UID, TEST_PACKAGE_NAME_1));
+        mInOrder.verify(mWifiScanner).startScan(any(), any(), any());
+        mScanListenerArgumentCaptor.getValue().onResults(mTestScanDatas1);
+        validateScanResultsAvailableBroadcastSent(true);
+
+        // Make scan request 2 just before the results are no longer recent.
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(SCAN_RESULTS_REUSE_WINDOW_MS - 1L);
+        assertTrue(mScanRequestProxy.startScan(TEST_UID, TEST_PACKAGE_NAME_2));
+        validateScanResultsBroadcastSentToPackage(TEST_PACKAGE_NAME_2, true);
 
         verify(mWifiMetrics, times(2)).incrementExternalAppOneshotScanRequestsCount();
+        verify(mWifiMetrics).incrementExternalAppOneshotScanRequestsServedFromRecentScanCount();
     }
 
 
@@ -348,6 +453,8 @@ public class ScanRequestProxyTest {
                 mTestScanDatas1[0].getResults(),
                 mScanRequestProxy.getScanResults().stream().toArray(ScanResult[]::new));
 
+        // Results of request 1 are no longer recent.
+        when(mClock.getElapsedSinceBootMillis()).thenReturn((long) SCAN_RESULTS_REUSE_WINDOW_MS);
         // Make scan request 2.
         assertTrue(mScanRequestProxy.startScan(TEST_UID, TEST_PACKAGE_NAME_2));
         // Ensure that we did send a second scan request to scanner.
@@ -450,6 +557,33 @@ public class ScanRequestProxyTest {
         verify(mWifiMetrics).incrementExternalAppOneshotScanRequestsCount();
     }
 
+    /**
+     * Verify that each update of the scan results publishes a new immutable list, leaving the
+     * lists returned earlier unchanged.
+     */
+    @Test
+    public void testScanResultsAreImmutableSnapshots() {
+        // Make scan request 1 & process its results.
+        testStartScanSuccess();
+        mScanListenerArgumentCaptor.getValue().onResults(mTestScanDatas1);
+
+        List<ScanResult> scanResults = mScanRequestProxy.getScanResults();
+        ScanTestUtil.assertScanResultsEquals(
+                mTestScanDatas1[0].getResults(),
+                scanResults.stream().toArray(ScanResult[]::new));
+        try {
+            scanResults.clear();
+            fail("Scan results are modifiable");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+
+        // Clearing the results publishes a new (empty) list, the old one is unchanged.
+        mScanRequestProxy.clearScanResults();
+        assertTrue(mScanRequestProxy.getScanResults().isEmpty());
+        assertEquals(mTestScanDatas1[0].getResults().length, scanResults.size());
+    }
+
     /**
      * Verify that we don't use the same listener for multiple scan requests.
      */
@@ -461,7 +595,11 @@ public class ScanRequestProxyTest {
         assertTrue(mScanRequestProxy.startScan(TEST_UID, TEST_PACKAGE_NAME_1));
         mInOrder.verify(mWifiScanner).startScan(any(), any(), any());
         listener1 = mScanListenerArgumentCaptor.getValue();
+        listener1.onResults(mTestScanDatas1);
+        validateScanResultsAvailableBroadcastSent(true);
 
+        // Results of request 1 are no longer recent.
+        when(mClock.getElapsedSinceBootMillis()).thenReturn((long) SCAN_RESULTS_REUSE_WINDOW_MS);
         // Make scan request 2.
         assertTrue(mScanRequestProxy.startScan(TEST_UID, TEST_PACKAGE_NAME_2));
         // Ensure that we did send a second scan request to scanner.
@@ -485,12 +623,45 @@ public class ScanRequestProxyTest {
         for (int i = 0; i < SCAN_REQUEST_THROTTLE_MAX_IN_TIME_WINDOW_FG_APPS; i++) {
             when(mClock.getElapsedSinceBootMillis()).thenReturn(firstRequestMs + i);
             assertTrue(mScanRequestProxy.startScan(TEST_UID, TEST_PACKAGE_NAME_1));
-            mInOrder.verify(mWifiScanner).startScan(any(), any(), any());
         }
+        // Only the first request started a scan: the others joined it.
+        mInOrder.verify(mWifiScanner).startScan(any(), any(), any());
         // Make next scan request from the same package name & ensure that it is throttled.
         assertFalse(mScanRequestProxy.startScan(TEST_UID, TEST_PACKAGE_NAME_1));
         validateScanResultsFailureBroadcastSent(TEST_PACKAGE_NAME_1);
 
+        verify(mWifiMetrics, times(SCAN_REQUEST_THROTTLE_MAX_IN_TIME_WINDOW_FG_APPS + 1))
+                .incrementExternalAppOneshotScanRequestsCount();
+        verify(mWifiMetrics).incrementExternalForegroundAppOneshotScanRequestsThrottledCount();
+        verify(mWifiMetrics, times(SCAN_REQUEST_THROTTLE_MAX_IN_TIME_WINDOW_FG_APPS - 1))
+                .incrementExternalAppOneshotScanRequestsCoalescedCount();
+    }
+
+    /**
+     * Ensure that requests spread over the window count towards the same limit: the
+     * {@link ScanRequestProxy#SCAN_REQUEST_THROTTLE_MAX_IN_TIME_WINDOW_FG_APPS} + 1 request within
+     * {@link ScanRequestProxy#SCAN_REQUEST_THROTTLE_TIME_WINDOW_FG_APPS_MS} of the first one is
+     * throttled.
+     */
+    @Test
+    public void testSpreadScanRequestsFromSameFgAppThrottledWithinWindow() {
+        long firstRequestMs = 782;
+        long requestIntervalMs = SCAN_REQUEST_THROTTLE_TIME_WINDOW_FG_APPS_MS
+                / SCAN_REQUEST_THROTTLE_MAX_IN_TIME_WINDOW_FG_APPS;
+        for (int i = 0; i < SCAN_REQUEST_THROTTLE_MAX_IN_TIME_WINDOW_FG_APPS; i++) {
+            when(mClock.getElapsedSinceBootMillis())
+                    .thenReturn(firstRequestMs + i * requestIntervalMs);
+            assertTrue(mScanRequestProxy.startScan(TEST_UID, TEST_PACKAGE_NAME_1));
+            // Each request starts a new scan since the previous one is assumed lost.
+            mInOrder.verify(mWifiScanner).startScan(any(), any(), any());
+        }
+        // Make next scan request from the same package name just before the end of the window of
+        // the first request & ensure that it is throttled.
+        when(mClock.getElapsedSinceBootMillis())
+                .thenReturn(firstRequestMs + SCAN_REQUEST_THROTTLE_TIME_WINDOW_FG_APPS_MS - 1);
+        assertFalse(mScanRequestProxy.startScan(TEST_UID, TEST_PACKAGE_NAME_1));
+        validateScanResultsFailureBroadcastSent(TEST_PACKAGE_NAME_1);
+
         verify(mWifiMetrics, times(SCAN_REQUEST_THROTTLE_MAX_IN_TIME_WINDOW_FG_APPS + 1))
                 .incrementExternalAppOneshotScanRequestsCount();
         verify(mWifiMetrics).incrementExternalForegroundAppOneshotScanRequestsThrottledCount();
@@ -508,16 +679,20 @@ public class ScanRequestProxyTest {
         for (int i = 0; i < SCAN_REQUEST_THROTTLE_MAX_IN_TIME_WINDOW_FG_APPS; i++) {
             when(mClock.getElapsedSinceBootMillis()).thenReturn(firstRequestMs + i);
             assertTrue(mScanRequestProxy.startScan(TEST_UID, TEST_PACKAGE_NAME_1));
-            mInOrder.verify(mWifiScanner).startScan(any(), any(), any());
         }
+        // Only the first request started a scan: the others joined it.
+        mInOrder.verify(mWifiScanner).startScan(any(), any(), any());
         long lastRequestMs = firstRequestMs + SCAN_REQUEST_THROTTLE_TIME_WINDOW_FG_APPS_MS + 1;
         when(mClock.getElapsedSinceBootMillis()).thenReturn(lastRequestMs);
-        // Make next scan request from the same package name & ensure that it is not throttled.
+        // Make next scan request from the same package name & ensure that it is not throttled (and
+        // starts a new scan since the scan in flight is assumed lost).
         assertTrue(mScanRequestProxy.startScan(TEST_UID, TEST_PACKAGE_NAME_1));
         mInOrder.verify(mWifiScanner).startScan(any(), any(), any());
 
         verify(mWifiMetrics, times(SCAN_REQUEST_THROTTLE_MAX_IN_TIME_WINDOW_FG_APPS + 1))
                 .incrementExternalAppOneshotScanRequestsCount();
+        verify(mWifiMetrics, times(SCAN_REQUEST_THROTTLE_MAX_IN_TIME_WINDOW_FG_APPS - 1))
+                .incrementExternalAppOneshotScanRequestsCoalescedCount();
     }
 
     /**
@@ -533,11 +708,14 @@ public class ScanRequestProxyTest {
         for (int i = 0; i < SCAN_REQUEST_THROTTLE_MAX_IN_TIME_WINDOW_FG_APPS; i++) {
             when(mClock.getElapsedSinceBootMillis()).thenReturn(firstRequestMs + i);
             assertTrue(mScanRequestProxy.startScan(TEST_UID, TEST_PACKAGE_NAME_1));
-            mInOrder.verify(mWifiScanner).startScan(any(), any(), any());
         }
+        // Only the first request started a scan: the others joined it.
+        mInOrder.verify(mWifiScanner).startScan(any(), any(), any());
         // Make next scan request from the same package name & ensure that it is not throttled.
         assertTrue(mScanRequestProxy.startScan(TEST_UID, TEST_PACKAGE_NAME_1));
-        mInOrder.verify(mWifiScanner).startScan(any(), any(), any());
+
+        verify(mWifiMetrics, times(SCAN_REQUEST_THROTTLE_MAX_IN_TIME_WINDOW_FG_APPS))
+                .incrementExternalAppOneshotScanRequestsCoalescedCount();
     }
 
     /**
@@ -553,11 +731,14 @@ public class ScanRequestProxyTest {
         for (int i = 0; i < SCAN_REQUEST_THROTTLE_MAX_IN_TIME_WINDOW_FG_APPS; i++) {
             when(mClock.getElapsedSinceBootMillis()).thenReturn(firstRequestMs + i);
             assertTrue(mScanRequestProxy.startScan(TEST_UID, TEST_PACKAGE_NAME_1));
-            mInOrder.verify(mWifiScanner).startScan(any(), any(), any());
         }
+        // Only the first request started a scan: the others joined it.
+        mInOrder.verify(mWifiScanner).startScan(any(), any(), any());
         // Make next scan request from the same package name & ensure that it is not throttled.
         assertTrue(mScanRequestProxy.startScan(TEST_UID, TEST_PACKAGE_NAME_1));
-        mInOrder.verify(mWifiScanner).startScan(any(), any(), any());
+
+        verify(mWifiMetrics, times(SCAN_REQUEST_THROTTLE_MAX_IN_TIME_WINDOW_FG_APPS))
+                .incrementExternalAppOneshotScanRequestsCoalescedCount();
     }
 
     /**
@@ -570,21 +751,21 @@ public class ScanRequestProxyTest {
         for (int i = 0; i < SCAN_REQUEST_THROTTLE_MAX_IN_TIME_WINDOW_FG_APPS / 2; i++) {
             when(mClock.getElapsedSinceBootMillis()).thenReturn(firstRequestMs + i);
             assertTrue(mScanRequestProxy.startScan(TEST_UID, TEST_PACKAGE_NAME_1));
-            mInOrder.verify(mWifiScanner).startScan(any(), any(), any());
         }
         for (int i = 0; i < SCAN_REQUEST_THROTTLE_MAX_IN_TIME_WINDOW_FG_APPS / 2; i++) {
             when(mClock.getElapsedSinceBootMillis()).thenReturn(firstRequestMs + i);
             assertTrue(mScanRequestProxy.startScan(TEST_UID, TEST_PACKAGE_NAME_2));
-            mInOrder.verify(mWifiScanner).startScan(any(), any(), any());
         }
         // Make next scan request from both the package name & ensure that it is not throttled.
         assertTrue(mScanRequestProxy.startScan(TEST_UID, TEST_PACKAGE_NAME_1));
-        mInOrder.verify(mWifiScanner).startScan(any(), any(), any());
         assertTrue(mScanRequestProxy.startScan(TEST_UID, TEST_PACKAGE_NAME_2));
+        // Only the first request started a scan: the others joined it.
         mInOrder.verify(mWifiScanner).startScan(any(), any(), any());
 
         verify(mWifiMetrics, times(SCAN_REQUEST_THROTTLE_MAX_IN_TIME_WINDOW_FG_APPS + 2))
                 .incrementExternalAppOneshotScanRequestsCount();
+        verify(mWifiMetrics, times(SCAN_REQUEST_THROTTLE_MAX_IN_TIME_WINDOW_FG_APPS + 1))
+                .incrementExternalAppOneshotScanRequestsCoalescedCount();
     }
 
     /**
@@ -599,18 +780,20 @@ public class ScanRequestProxyTest {
         for (int i = 0; i < SCAN_REQUEST_THROTTLE_MAX_IN_TIME_WINDOW_FG_APPS; i++) {
             when(mClock.getElapsedSinceBootMillis()).thenReturn(firstRequestMs + i);
             assertTrue(mScanRequestProxy.startScan(TEST_UID, TEST_PACKAGE_NAME_1));
-            mInOrder.verify(mWifiScanner).startScan(any(), any(), any());
         }
+        // Only the first request started a scan: the others joined it.
+        mInOrder.verify(mWifiScanner).startScan(any(), any(), any());
         // Now simulate removing the app.
         mScanRequestProxy.clearScanRequestTimestampsForApp(TEST_PACKAGE_NAME_1, TEST_UID);
 
         // Make next scan request from the same package name (simulating a reinstall) & ensure that
         // it is not throttled.
         assertTrue(mScanRequestProxy.startScan(TEST_UID, TEST_PACKAGE_NAME_1));
-        mInOrder.verify(mWifiScanner).startScan(any(), any(), any());
 
         verify(mWifiMetrics, times(SCAN_REQUEST_THROTTLE_MAX_IN_TIME_WINDOW_FG_APPS + 1))
                 .incrementExternalAppOneshotScanRequestsCount();
+        verify(mWifiMetrics, times(SCAN_REQUEST_THROTTLE_MAX_IN_TIME_WINDOW_FG_APPS))
+                .incrementExternalAppOneshotScanRequestsCoalescedCount();
     }
 
     /**
@@ -625,8 +808,9 @@ public class ScanRequestProxyTest {
         for (int i = 0; i < SCAN_REQUEST_THROTTLE_MAX_IN_TIME_WINDOW_FG_APPS; i++) {
             when(mClock.getElapsedSinceBootMillis()).thenReturn(firstRequestMs + i);
             assertTrue(mScanRequestProxy.startScan(TEST_UID, TEST_PACKAGE_NAME_1));
-            mInOrder.verify(mWifiScanner).startScan(any(), any(), any());
         }
+        // Only the first request started a scan: the others joined it.
+        mInOrder.verify(mWifiScanner).startScan(any(), any(), any());
         // Now simulate removing the app for another user (User 1).
         mScanRequestProxy.clearScanRequestTimestampsForApp(
                 TEST_PACKAGE_NAME_1,
@@ -639,6 +823,8 @@ public class ScanRequestProxyTest {
         verify(mWifiMetrics, times(SCAN_REQUEST_THROTTLE_MAX_IN_TIME_WINDOW_FG_APPS + 1))
                 .incrementExternalAppOneshotScanRequestsCount();
         verify(mWifiMetrics).incrementExternalForegroundAppOneshotScanRequestsThrottledCount();
+        verify(mWifiMetrics, times(SCAN_REQUEST_THROTTLE_MAX_IN_TIME_WINDOW_FG_APPS - 1))
+                .incrementExternalAppOneshotScanRequestsCoalescedCount();
     }
 
     /**
@@ -749,6 +935,11 @@ public class ScanRequestProxyTest {
     }
 
     private void validateScanResultsFailureBroadcastSent(String expectedPackageName) {
+        validateScanResultsBroadcastSentToPackage(expectedPackageName, false);
+    }
+
+    private void validateScanResultsBroadcastSentToPackage(String expectedPackageName,
+            boolean expectScanSuceeded) {
         ArgumentCaptor<Intent> intentCaptor = ArgumentCaptor.forClass(Intent.class);
         ArgumentCaptor<UserHandle> userHandleCaptor = ArgumentCaptor.forClass(UserHandle.class);
         mInOrder.verify(mContext).sendBroadcastAsUser(
@@ -760,7 +951,7 @@ public class ScanRequestProxyTest {
         assertEquals(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION, intent.getAction());
         assertEquals(Intent.FLAG_RECEIVER_REGISTERED_ONLY_BEFORE_BOOT, intent.getFlags());
         boolean scanSucceeded = intent.getBooleanExtra(WifiManager.EXTRA_RESULTS_UPDATED, false);
-        assertFalse(scanSucceeded);
+        assertEquals(expectScanSuceeded, scanSucceeded);
         String packageName = intent.getPackage();
         assertEquals(expectedPackageName, packageName);
     }
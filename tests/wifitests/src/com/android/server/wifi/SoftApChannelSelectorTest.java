@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.when;
+
+import android.net.wifi.ScanResult;
+import android.net.wifi.ScanResult.InformationElement;
+import android.net.wifi.WifiConfiguration;
+import android.support.test.filters.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Unit tests for {@link com.android.server.wifi.SoftApChannelSelector}.
+ */
+@SmallTest
+public class SoftApChannelSelectorTest {
+    private static final ArrayList<Integer> ALLOWED_2G_CHANNELS =
+            new ArrayList<>(Arrays.asList(1, 6, 11));
+    private static final int[] ALLOWED_5G_FREQS = {5180, 5200, 5745};
+
+    @Mock private Clock mClock;
+    private SoftApChannelSelector mDut;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        mDut = new SoftApChannelSelector(mClock);
+    }
+
+    private static ScanResult createScanResult(int frequency, int level) {
+        ScanResult result = new ScanResult();
+        result.frequency = frequency;
+        result.level = level;
+        result.channelWidth = ScanResult.CHANNEL_WIDTH_20MHZ;
+        return result;
+    }
+
+    private static ScanResult createScanResultWithBssLoad(int frequency, int level,
+            int channelUtilization) {
+        ScanResult result = createScanResult(frequency, level);
+        InformationElement ie = new InformationElement();
+        ie.id = InformationElement.EID_BSS_LOAD;
+        ie.bytes = new byte[] {1, 0, (byte) channelUtilization, 0, 0};
+        result.informationElements = new InformationElement[] {ie};
+        return result;
+    }
+
+    /**
+     * Verify that no channel is chosen without scan results, with empty scan results only or
+     * with stale scan results.
+     */
+    @Test
+    public void noChannelWithoutRecentScanResults() {
+        assertEquals(-1, mDut.chooseChannel(WifiConfiguration.AP_BAND_2GHZ,
+                ALLOWED_2G_CHANNELS, ALLOWED_5G_FREQS));
+
+        mDut.updateScanResults(Collections.emptyList());
+        assertEquals(-1, mDut.chooseChannel(WifiConfiguration.AP_BAND_2GHZ,
+                ALLOWED_2G_CHANNELS, ALLOWED_5G_FREQS));
+
+        mDut.updateScanResults(Arrays.asList(createScanResult(2412, -50)));
+        when(mClock.getElapsedSinceBootMillis())
+                .thenReturn(SoftApChannelSelector.MAX_SCAN_RESULTS_AGE_MS + 1);
+        assertEquals(-1, mDut.chooseChannel(WifiConfiguration.AP_BAND_2GHZ,
+                ALLOWED_2G_CHANNELS, ALLOWED_5G_FREQS));
+    }
+
+    /**
+     * Verify that the 2.4 GHz channel with the fewest and weakest BSSs is chosen, taking the
+     * BSSs on the adjacent channels into account.
+     */
+    @Test
+    public void chooseLeastLoaded2GChannel() {
+        List<ScanResult> results = Arrays.asList(
+                createScanResult(2412, -50),
+                // channel 3 overlaps half of channel 1, and a quarter of channel 6
+                createScanResult(2422, -50),
+                createScanResult(2437, -55),
+                createScanResult(2462, -85));
+        mDut.updateScanResults(results);
+        assertEquals(11, mDut.chooseChannel(WifiConfiguration.AP_BAND_2GHZ,
+                ALLOWED_2G_CHANNELS, ALLOWED_5G_FREQS));
+        assertEquals(1.5, SoftApChannelSelector.scoreChannel(2412, results), 0.01);
+        assertEquals(0.0, SoftApChannelSelector.scoreChannel(2484, results), 0.0);
+    }
+
+    /**
+     * Verify that the channel utilization from the BSS Load IE and the width of the BSSs are
+     * accounted for on 5 GHz.
+     */
+    @Test
+    public void chooseLeastLoaded5GChannel() {
+        mDut.updateScanResults(Arrays.asList(
+                createScanResultWithBssLoad(5180, -60, 200),
+                createScanResult(5200, -60),
+                createScanResult(5745, -50)));
+        assertEquals(40, mDut.chooseChannel(WifiConfiguration.AP_BAND_5GHZ,
+                ALLOWED_2G_CHANNELS, ALLOWED_5G_FREQS));
+
+        // An 80 MHz BSS on channels 36-48 makes channel 40 busy.
+        ScanResult wideResult = createScanResult(5180, -60);
+        wideResult.channelWidth = ScanResult.CHANNEL_WIDTH_80MHZ;
+        wideResult.centerFreq0 = 5210;
+        mDut.updateScanResults(Arrays.asList(
+                wideResult,
+                createScanResult(5745, -90)));
+        assertEquals(149, mDut.chooseChannel(WifiConfiguration.AP_BAND_5GHZ,
+                ALLOWED_2G_CHANNELS, ALLOWED_5G_FREQS));
+    }
+}
@@ -91,6 +91,7 @@ public class SoftApManagerTest {
     @Mock WifiApConfigStore mWifiApConfigStore;
     @Mock WifiMetrics mWifiMetrics;
     @Mock SarManager mSarManager;
+    @Mock SoftApChannelSelector mSoftApChannelSelector;
     final ArgumentCaptor<WifiNative.InterfaceCallback> mWifiNativeInterfaceCallbackCaptor =
             ArgumentCaptor.forClass(WifiNative.InterfaceCallback.class);
     final ArgumentCaptor<WifiNative.SoftApListener> mSoftApListenerCaptor =
@@ -105,6 +106,7 @@ public class SoftApManagerTest {
         mLooper = new TestLooper();
 
         when(mWifiNative.startSoftAp(eq(TEST_INTERFACE_NAME), any(), any())).thenReturn(true);
+        when(mSoftApChannelSelector.chooseChannel(anyInt(), any(), any())).thenReturn(-1);
 
         when(mFrameworkFacade.getIntegerSetting(
                 mContext, Settings.Global.SOFT_AP_TIMEOUT_ENABLED, 1)).thenReturn(1);
@@ -138,7 +140,8 @@ public class SoftApManagerTest {
                                                            mWifiApConfigStore,
                                                            config,
                                                            mWifiMetrics,
-                                                           mSarManager);
+                                                           mSarManager,
+                                                           mSoftApChannelSelector);
         mLooper.dispatchAll();
 
         return newSoftApManager;
@@ -211,7 +214,8 @@ public class SoftApManagerTest {
                                                            mWifiApConfigStore,
                                                            nullApConfig,
                                                            mWifiMetrics,
-                                                           mSarManager);
+                                                           mSarManager,
+                                                           mSoftApChannelSelector);
         mLooper.dispatchAll();
         newSoftApManager.start();
         mLooper.dispatchAll();
@@ -254,7 +258,8 @@ public class SoftApManagerTest {
                                                            mWifiApConfigStore,
                                                            nullApConfig,
                                                            mWifiMetrics,
-                                                           mSarManager);
+                                                           mSarManager,
+                                                           mSoftApChannelSelector);
         mLooper.dispatchAll();
         newSoftApManager.start();
         mLooper.dispatchAll();
@@ -296,7 +301,8 @@ public class SoftApManagerTest {
                                                            mWifiApConfigStore,
                                                            nullApConfig,
                                                            mWifiMetrics,
-                                                           mSarManager);
+                                                           mSarManager,
+                                                           mSoftApChannelSelector);
         mLooper.dispatchAll();
         newSoftApManager.start();
         mLooper.dispatchAll();
@@ -337,7 +343,7 @@ public class SoftApManagerTest {
                 mWifiApConfigStore,
                 softApConfig,
                 mWifiMetrics,
-                mSarManager);
+                mSarManager, mSoftApChannelSelector);
         mLooper.dispatchAll();
         newSoftApManager.start();
         mLooper.dispatchAll();
@@ -383,7 +389,8 @@ public class SoftApManagerTest {
                                                            mWifiApConfigStore,
                                                            softApConfig,
                                                            mWifiMetrics,
-                                                           mSarManager);
+                                                           mSarManager,
+                                                           mSoftApChannelSelector);
         mLooper.dispatchAll();
         newSoftApManager.start();
         mLooper.dispatchAll();
@@ -499,7 +506,8 @@ public class SoftApManagerTest {
                                                            mWifiApConfigStore,
                                                            softApConfig,
                                                            mWifiMetrics,
-                                                           mSarManager);
+                                                           mSarManager,
+                                                           mSoftApChannelSelector);
         mLooper.dispatchAll();
         newSoftApManager.start();
         mLooper.dispatchAll();
@@ -537,7 +545,8 @@ public class SoftApManagerTest {
                                                            mWifiApConfigStore,
                                                            softApModeConfig,
                                                            mWifiMetrics,
-                                                           mSarManager);
+                                                           mSarManager,
+                                                           mSoftApChannelSelector);
 
         mLooper.dispatchAll();
         newSoftApManager.start();
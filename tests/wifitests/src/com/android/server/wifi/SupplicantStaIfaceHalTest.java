@@ -599,7 +599,7 @@ public class SupplicantStaIfaceHalTest {
     }
 
     @Test
-    public void testConnectToNetworkWithDifferentConfigReplacesNetworkInSupplicant()
+    public void testConnectToNetworkWithDifferentConfigRetainsNetworkInSupplicant()
             throws Exception {
         executeAndValidateInitializationSequence();
         WifiConfiguration config = executeAndValidateConnectSequence(
@@ -610,11 +610,84 @@ public class SupplicantStaIfaceHalTest {
         // Make this network different by changing SSID.
         config.SSID = "AnDifferentSSID";
         assertTrue(mDut.connectToNetwork(WLAN0_IFACE_NAME, config));
+        verify(mISupplicantStaIfaceMock, never()).removeNetwork(anyInt());
+        verify(mISupplicantStaIfaceMock)
+                .addNetwork(any(ISupplicantStaIface.addNetworkCallback.class));
+    }
+
+    /**
+     * Tests that connecting back to a network retained in supplicant updates it in place instead
+     * of adding it again.
+     */
+    @Test
+    public void testConnectToRetainedNetworkUpdatesNetworkInSupplicant() throws Exception {
+        executeAndValidateInitializationSequence();
+        WifiConfiguration config = executeAndValidateConnectSequence(
+                SUPPLICANT_NETWORK_ID, false);
+        WifiConfiguration otherConfig = new WifiConfiguration(config);
+        otherConfig.networkId = SUPPLICANT_NETWORK_ID + 1;
+        otherConfig.SSID = "AnDifferentSSID";
+        assertTrue(mDut.connectToNetwork(WLAN0_IFACE_NAME, otherConfig));
+
+        reset(mISupplicantStaIfaceMock);
+        setupMocksForConnectSequence(true /*haveExistingNetwork*/);
+        when(mSupplicantStaNetworkMock.updateWifiConfiguration(
+                any(WifiConfiguration.class), any(WifiConfiguration.class))).thenReturn(true);
+        assertTrue(mDut.connectToNetwork(WLAN0_IFACE_NAME, config));
+        verify(mSupplicantStaNetworkMock).updateWifiConfiguration(
+                any(WifiConfiguration.class), eq(config));
+        verify(mISupplicantStaIfaceMock, never()).removeNetwork(anyInt());
+        verify(mISupplicantStaIfaceMock, never())
+                .addNetwork(any(ISupplicantStaIface.addNetworkCallback.class));
+    }
+
+    /**
+     * Tests that a retained network which cannot be updated in place is removed and added again.
+     */
+    @Test
+    public void testConnectToRetainedNetworkReplacesNetworkOnUpdateFailure() throws Exception {
+        executeAndValidateInitializationSequence();
+        WifiConfiguration config = executeAndValidateConnectSequence(
+                SUPPLICANT_NETWORK_ID, false);
+        WifiConfiguration otherConfig = new WifiConfiguration(config);
+        otherConfig.networkId = SUPPLICANT_NETWORK_ID + 1;
+        otherConfig.SSID = "AnDifferentSSID";
+        assertTrue(mDut.connectToNetwork(WLAN0_IFACE_NAME, otherConfig));
+
+        reset(mISupplicantStaIfaceMock);
+        setupMocksForConnectSequence(true /*haveExistingNetwork*/);
+        when(mSupplicantStaNetworkMock.updateWifiConfiguration(
+                any(WifiConfiguration.class), any(WifiConfiguration.class))).thenReturn(false);
+        assertTrue(mDut.connectToNetwork(WLAN0_IFACE_NAME, config));
         verify(mISupplicantStaIfaceMock).removeNetwork(SUPPLICANT_NETWORK_ID);
         verify(mISupplicantStaIfaceMock)
                 .addNetwork(any(ISupplicantStaIface.addNetworkCallback.class));
     }
 
+    /**
+     * Tests that the least recently used network is removed from supplicant once more than
+     * {@link SupplicantStaIfaceHal#MAX_RETAINED_NETWORKS} networks have been connected to.
+     */
+    @Test
+    public void testConnectToNetworkEvictsLeastRecentlyUsedRetainedNetwork() throws Exception {
+        executeAndValidateInitializationSequence();
+        WifiConfiguration config = executeAndValidateConnectSequence(
+                SUPPLICANT_NETWORK_ID, false);
+        for (int i = 1; i < SupplicantStaIfaceHal.MAX_RETAINED_NETWORKS; i++) {
+            WifiConfiguration otherConfig = new WifiConfiguration(config);
+            otherConfig.networkId = SUPPLICANT_NETWORK_ID + i;
+            otherConfig.SSID = "\"AnDifferentSSID" + i + "\"";
+            assertTrue(mDut.connectToNetwork(WLAN0_IFACE_NAME, otherConfig));
+        }
+        verify(mISupplicantStaIfaceMock, never()).removeNetwork(anyInt());
+
+        WifiConfiguration newConfig = new WifiConfiguration(config);
+        newConfig.networkId = SUPPLICANT_NETWORK_ID + SupplicantStaIfaceHal.MAX_RETAINED_NETWORKS;
+        newConfig.SSID = "\"AnotherNewSSID\"";
+        assertTrue(mDut.connectToNetwork(WLAN0_IFACE_NAME, newConfig));
+        verify(mISupplicantStaIfaceMock).removeNetwork(SUPPLICANT_NETWORK_ID);
+    }
+
     @Test
     public void connectToNetworkWithSameNetworkDoesNotRemoveNetworkFromSupplicant()
             throws Exception {
@@ -1790,6 +1863,7 @@ public class SupplicantStaIfaceHalTest {
                 any(ISupplicantStaIface.addNetworkCallback.class));
         when(mSupplicantStaNetworkMock.saveWifiConfiguration(any(WifiConfiguration.class)))
                 .thenReturn(true);
+        when(mSupplicantStaNetworkMock.getNetworkId()).thenReturn(existingNetworkId);
         when(mSupplicantStaNetworkMock.select()).thenReturn(true);
     }
 
@@ -18,10 +18,13 @@ package com.android.server.wifi;
 import static org.junit.Assert.*;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyInt;
 import static org.mockito.Mockito.anyString;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
 import android.app.test.MockAnswerUtil.AnswerWithArguments;
@@ -165,6 +168,67 @@ public class SupplicantStaNetworkHalTest {
                 NativeUtil.removeEnclosingQuotes(config.preSharedKey));
     }
 
+    /**
+     * Tests that updating a saved network only sends the fields which changed.
+     */
+    @Test
+    public void testPskNetworkWifiConfigurationUpdateOnlySetsChangedFields() throws Exception {
+        WifiConfiguration config = WifiConfigurationTestUtil.createPskNetwork();
+        assertTrue(mSupplicantNetwork.saveWifiConfiguration(config));
+        reset(mISupplicantStaNetworkMock);
+        setupISupplicantNetworkMock();
+
+        WifiConfiguration newConfig = new WifiConfiguration(config);
+        newConfig.preSharedKey = "\"new_passphrase\"";
+        assertTrue(mSupplicantNetwork.updateWifiConfiguration(config, newConfig));
+        assertEquals("new_passphrase", mSupplicantVariables.pskPassphrase);
+        verify(mISupplicantStaNetworkMock).setPskPassphrase(anyString());
+        verify(mISupplicantStaNetworkMock, never()).setSsid(any(ArrayList.class));
+        verify(mISupplicantStaNetworkMock, never()).setKeyMgmt(anyInt());
+        verify(mISupplicantStaNetworkMock, never()).setIdStr(anyString());
+    }
+
+    /**
+     * Tests that updating an enterprise network only sends the EAP fields which changed.
+     */
+    @Test
+    public void testEapNetworkWifiConfigurationUpdateOnlySetsChangedFields() throws Exception {
+        WifiConfiguration config = WifiConfigurationTestUtil.createEapNetwork();
+        config.enterpriseConfig =
+                WifiConfigurationTestUtil.createPEAPWifiEnterpriseConfigWithGTCPhase2();
+        assertTrue(mSupplicantNetwork.saveWifiConfiguration(config));
+        reset(mISupplicantStaNetworkMock);
+        setupISupplicantNetworkMock();
+
+        WifiConfiguration newConfig = new WifiConfiguration(config);
+        newConfig.enterpriseConfig.setPassword("new_password");
+        assertTrue(mSupplicantNetwork.updateWifiConfiguration(config, newConfig));
+        verify(mISupplicantStaNetworkMock).setEapPassword(any(ArrayList.class));
+        verify(mISupplicantStaNetworkMock, never()).setEapMethod(anyInt());
+        verify(mISupplicantStaNetworkMock, never()).setEapIdentity(any(ArrayList.class));
+        verify(mISupplicantStaNetworkMock, never()).setEapCACert(anyString());
+    }
+
+    /**
+     * Tests that updates which cannot be applied in place are rejected without any HIDL calls.
+     */
+    @Test
+    public void testWifiConfigurationUpdateRejectsSecurityChange() throws Exception {
+        WifiConfiguration config = WifiConfigurationTestUtil.createPskNetwork();
+        assertTrue(mSupplicantNetwork.saveWifiConfiguration(config));
+        reset(mISupplicantStaNetworkMock);
+        setupISupplicantNetworkMock();
+
+        WifiConfiguration newConfig = new WifiConfiguration(config);
+        newConfig.allowedKeyManagement.set(WifiConfiguration.KeyMgmt.WPA_EAP);
+        assertFalse(mSupplicantNetwork.updateWifiConfiguration(config, newConfig));
+
+        newConfig = new WifiConfiguration(config);
+        newConfig.preSharedKey = null;
+        assertFalse(mSupplicantNetwork.updateWifiConfiguration(config, newConfig));
+        verifyNoMoreInteractions(mISupplicantStaNetworkMock);
+    }
+
     /**
      * Tests the saving/loading of WifiConfiguration to wpa_supplicant.
      */
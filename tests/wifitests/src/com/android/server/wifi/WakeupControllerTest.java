@@ -72,9 +72,11 @@ public class WakeupControllerTest {
     @Mock private WifiSettingsStore mWifiSettingsStore;
     @Mock private WifiWakeMetrics mWifiWakeMetrics;
     @Mock private WifiController mWifiController;
-    @Mock private WifiNative mWifiNative;
+    @Mock private Clock mClock;
 
     private TestLooper mLooper;
+    private MergedScanResultTable mMergedScanResultTable;
+    private int mNextBssidIndex = 0;
     private WakeupController mWakeupController;
     private WakeupConfigStoreData mWakeupConfigStoreData;
     private WifiScanner.ScanData[] mTestScanDatas;
@@ -88,9 +90,9 @@ public class WakeupControllerTest {
         when(mWifiInjector.getWifiScanner()).thenReturn(mWifiScanner);
         when(mWifiInjector.getWifiSettingsStore()).thenReturn(mWifiSettingsStore);
         when(mWifiInjector.getWifiController()).thenReturn(mWifiController);
-        when(mWifiInjector.getWifiNative()).thenReturn(mWifiNative);
-        when(mWifiNative.getChannelsForBand(WifiScanner.WIFI_BAND_5_GHZ_DFS_ONLY))
-                .thenReturn(new int[]{DFS_CHANNEL_FREQ});
+        mMergedScanResultTable = new MergedScanResultTable(mClock);
+        mMergedScanResultTable.setDfsFrequencies(Collections.singleton(DFS_CHANNEL_FREQ));
+        when(mWifiInjector.getMergedScanResultTable()).thenReturn(mMergedScanResultTable);
 
         when(mWifiSettingsStore.handleWifiToggled(anyBoolean())).thenReturn(true);
 
@@ -149,6 +151,7 @@ public class WakeupControllerTest {
     private ScanResult createOpenScanResult(String ssid, int frequency) {
         ScanResult scanResult = new ScanResult();
         scanResult.SSID = ssid;
+        scanResult.BSSID = String.format("00:00:00:00:00:%02x", mNextBssidIndex++);
         scanResult.capabilities = "";
         scanResult.frequency = frequency;
         return scanResult;
@@ -320,8 +323,7 @@ public class WakeupControllerTest {
         ScanResult savedScanResult = createOpenScanResult(ssid1, 2412 /* frequency */);
         ScanResult unsavedScanResult = createOpenScanResult(ssid2, 2412 /* frequency */);
 
-        when(mWifiScanner.getSingleScanResults())
-                .thenReturn(Arrays.asList(savedScanResult, unsavedScanResult));
+        mMergedScanResultTable.update(new ScanResult[] {savedScanResult, unsavedScanResult});
 
         // intersection of most recent scan + saved configs
         Set<ScanResultMatchInfo> expectedMatchInfos =
@@ -356,8 +358,7 @@ public class WakeupControllerTest {
         ScanResult scanResultDfs = createOpenScanResult(ssidDfs, DFS_CHANNEL_FREQ);
         ScanResult scanResult24 = createOpenScanResult(ssid24, 2412 /* frequency */);
 
-        when(mWifiScanner.getSingleScanResults())
-                .thenReturn(Arrays.asList(scanResultDfs, scanResult24));
+        mMergedScanResultTable.update(new ScanResult[] {scanResultDfs, scanResult24});
 
         // should filter out scanResultDfs
         Set<ScanResultMatchInfo> expectedMatchInfos =
@@ -39,6 +39,7 @@ import android.net.wifi.WifiScanner;
 import android.os.Process;
 import android.os.UserHandle;
 import android.os.UserManager;
+import android.os.test.TestLooper;
 import android.support.test.filters.SmallTest;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
@@ -111,12 +112,14 @@ public class WifiConfigManagerTest {
     @Mock private WifiPermissionsWrapper mWifiPermissionsWrapper;
     @Mock private NetworkListStoreData mNetworkListStoreData;
     @Mock private DeletedEphemeralSsidsStoreData mDeletedEphemeralSsidsStoreData;
+    @Mock private NetworkChannelHistoryStoreData mNetworkChannelHistoryStoreData;
     @Mock private WifiConfigManager.OnSavedNetworkUpdateListener mWcmListener;
 
     private MockResources mResources;
     private InOrder mContextConfigStoreMockOrder;
     private InOrder mNetworkListStoreDataMockOrder;
     private WifiConfigManager mWifiConfigManager;
+    private TestLooper mLooper;
     private boolean mStoreReadTriggered = false;
 
     /**
@@ -125,6 +128,7 @@ public class WifiConfigManagerTest {
     @Before
     public void setUp() throws Exception {
         MockitoAnnotations.initMocks(this);
+        mLooper = new TestLooper();
 
         // Set up the inorder for verifications. This is needed to verify that the broadcasts,
         // store writes for network updates followed by network additions are in the expected order.
@@ -1546,6 +1550,77 @@ public class WifiConfigManagerTest {
                 retrievedNetworkWithPassword.enterpriseConfig.getPassword());
     }
 
+    /**
+     * Verifies that the snapshot of the configured networks is invalidated by changes to the
+     * configured networks, and that the snapshot contains both the masked & unmasked copies.
+     */
+    @Test
+    public void testConfiguredNetworksSnapshot() {
+        WifiConfiguration networkWithPasswords = WifiConfigurationTestUtil.createPskNetwork();
+        NetworkUpdateResult result = verifyAddNetworkToWifiConfigManager(networkWithPasswords);
+
+        // Snapshot is stale until it is updated.
+        assertNull(mWifiConfigManager.getConfiguredNetworksSnapshot());
+        WifiConfigManager.ConfiguredNetworksSnapshot snapshot =
+                mWifiConfigManager.updateConfiguredNetworksSnapshot();
+        assertSame(snapshot, mWifiConfigManager.getConfiguredNetworksSnapshot());
+        assertSame(snapshot, mWifiConfigManager.updateConfiguredNetworksSnapshot());
+
+        List<WifiConfiguration> savedNetworks = snapshot.getSavedNetworks();
+        assertEquals(1, savedNetworks.size());
+        assertPasswordsMaskedInWifiConfiguration(savedNetworks.get(0));
+        List<WifiConfiguration> networksWithPasswords =
+                snapshot.getConfiguredNetworksWithPasswords();
+        assertEquals(1, networksWithPasswords.size());
+        assertEquals(networkWithPasswords.preSharedKey, networksWithPasswords.get(0).preSharedKey);
+
+        // Modifying the returned copies must not affect the snapshot.
+        savedNetworks.get(0).SSID = "\"modified\"";
+        assertEquals(networkWithPasswords.SSID, snapshot.getSavedNetworks().get(0).SSID);
+
+        // Any change to the configured networks invalidates the snapshot.
+        assertTrue(mWifiConfigManager.updateNetworkAfterConnect(result.getNetworkId()));
+        assertNull(mWifiConfigManager.getConfiguredNetworksSnapshot());
+        snapshot = mWifiConfigManager.updateConfiguredNetworksSnapshot();
+        assertEquals(WifiConfiguration.Status.CURRENT, snapshot.getSavedNetworks().get(0).status);
+
+        assertTrue(mWifiConfigManager.removeNetwork(result.getNetworkId(), TEST_CREATOR_UID));
+        assertNull(mWifiConfigManager.getConfiguredNetworksSnapshot());
+        assertTrue(mWifiConfigManager.updateConfiguredNetworksSnapshot()
+                .getSavedNetworks().isEmpty());
+    }
+
+    /**
+     * Verifies that a new snapshot of the configured networks is published on the handler thread
+     * right after each change, so that the configured networks can be read right after a change
+     * without going through {@link WifiConfigManager#updateConfiguredNetworksSnapshot()}.
+     */
+    @Test
+    public void testConfiguredNetworksSnapshotPublishedAfterChange() {
+        WifiConfiguration network = WifiConfigurationTestUtil.createPskNetwork();
+        NetworkUpdateResult result = verifyAddNetworkToWifiConfigManager(network);
+        mLooper.dispatchAll();
+
+        WifiConfigManager.ConfiguredNetworksSnapshot snapshot =
+                mWifiConfigManager.getConfiguredNetworksSnapshot();
+        assertNotNull(snapshot);
+        assertEquals(1, snapshot.getSavedNetworks().size());
+
+        // Network selection followed by a connection.
+        ScanDetail scanDetail = createScanDetailForNetwork(network, TEST_BSSID, -40, 2412);
+        assertTrue(mWifiConfigManager.setNetworkCandidateScanResult(
+                result.getNetworkId(), scanDetail.getScanResult(), 54));
+        assertTrue(mWifiConfigManager.updateNetworkAfterConnect(result.getNetworkId()));
+        assertNull(mWifiConfigManager.getConfiguredNetworksSnapshot());
+        // All the changes made while processing a message are published in a single snapshot.
+        assertEquals(1, mLooper.dispatchAll());
+
+        snapshot = mWifiConfigManager.getConfiguredNetworksSnapshot();
+        assertNotNull(snapshot);
+        WifiConfiguration retrievedNetwork = snapshot.getSavedNetworks().get(0);
+        assertEquals(WifiConfiguration.Status.CURRENT, retrievedNetwork.status);
+    }
+
     /**
      * Verifies the ordering of network list generated using
      * {@link WifiConfigManager#retrievePnoNetworkList()}.
@@ -1594,6 +1669,19 @@ public class WifiConfigManagerTest {
         assertEquals(network2.SSID, pnoNetworks.get(1).ssid);
     }
 
+    /**
+     * Verifies that the list of PNO networks generated using
+     * {@link WifiConfigManager#retrievePnoNetworkList()} is not truncated, the number of PNO
+     * networks supported by the driver being unknown.
+     */
+    @Test
+    public void testRetrievePnoListNotTruncated() {
+        for (int i = 0; i < 20; i++) {
+            verifyAddNetworkToWifiConfigManager(WifiConfigurationTestUtil.createPskNetwork());
+        }
+        assertEquals(20, mWifiConfigManager.retrievePnoNetworkList().size());
+    }
+
     /**
      * Verifies that the list of PNO networks does not contain ephemeral or passpoint networks
      * {@link WifiConfigManager#retrievePnoNetworkList()}.
@@ -1965,6 +2053,55 @@ public class WifiConfigManagerTest {
                         network.networkId, ageInMillis, TEST_FREQ_LIST[4]));
     }
 
+    /**
+     * Verifies that the channel history store data is bound to the channel history of
+     * WifiConfigManager and registered with the config store.
+     */
+    @Test
+    public void testNetworkChannelHistoryStoreDataRegistered() {
+        verify(mNetworkChannelHistoryStoreData).setHistory(notNull());
+        verify(mWifiConfigStore).registerStoreData(mNetworkChannelHistoryStoreData);
+    }
+
+    /**
+     * Verifies the creation of channel list using
+     * {@link WifiConfigManager#fetchChannelSetForNetworkForPartialScan(int, long, int)} and
+     * ensures that the channel history of the network is used when the scan detail cache holds
+     * no recent scan results, most likely channels first.
+     */
+    @Test
+    public void testFetchChannelSetForNetworkFallsBackToChannelHistory() {
+        WifiConfiguration network = WifiConfigurationTestUtil.createPskNetwork();
+        verifyAddNetworkToWifiConfigManager(network);
+
+        // Create scan results for each frequency, the last frequency being seen most often.
+        String test_bssid_base = "af:89:56:34:56:6";
+        long wallClockMillis = 0;
+        for (int i = 0; i < TEST_FREQ_LIST.length; i++) {
+            for (int j = 0; j <= i; j++) {
+                when(mClock.getWallClockMillis()).thenReturn(wallClockMillis);
+                ScanDetail networkScanDetail =
+                        createScanDetailForNetwork(
+                                network, test_bssid_base + Integer.toString(i), 0,
+                                TEST_FREQ_LIST[i]);
+                assertNotNull(
+                        mWifiConfigManager.getConfiguredNetworkForScanDetailAndCache(
+                                networkScanDetail));
+                wallClockMillis += NetworkChannelHistory.SIGHTING_MERGE_WINDOW_MS;
+            }
+        }
+        // All the scan results in the cache are now stale.
+        when(mClock.getWallClockMillis()).thenReturn(wallClockMillis + 1000);
+
+        List<Integer> expectedFreqs = new ArrayList<>();
+        for (int i = TEST_FREQ_LIST.length - 1; i >= 0; i--) {
+            expectedFreqs.add(TEST_FREQ_LIST[i]);
+        }
+        assertEquals(expectedFreqs, new ArrayList<>(
+                mWifiConfigManager.fetchChannelSetForNetworkForPartialScan(
+                        network.networkId, 1, 0)));
+    }
+
     /**
      * Verifies the creation of channel list using
      * {@link WifiConfigManager#fetchChannelSetForNetworkForPartialScan(int, long, int)} and
@@ -3056,10 +3193,10 @@ public class WifiConfigManagerTest {
 
     /**
      * Verifies the ordering of network list generated using
-     * {@link WifiConfigManager#retrieveHiddenNetworkList()}.
+     * {@link WifiConfigManager#planHiddenNetworksForScan()}.
      */
     @Test
-    public void testRetrieveHiddenList() {
+    public void testPlanHiddenNetworksForScan() {
         // Create and add 3 networks.
         WifiConfiguration network1 = WifiConfigurationTestUtil.createWepHiddenNetwork();
         WifiConfiguration network2 = WifiConfigurationTestUtil.createPskHiddenNetwork();
@@ -3081,7 +3218,7 @@ public class WifiConfigManagerTest {
 
         // Retrieve the hidden network list & verify the order of the networks returned.
         List<WifiScanner.ScanSettings.HiddenNetwork> hiddenNetworks =
-                mWifiConfigManager.retrieveHiddenNetworkList();
+                mWifiConfigManager.planHiddenNetworksForScan();
         assertEquals(3, hiddenNetworks.size());
         assertEquals(network3.SSID, hiddenNetworks.get(0).ssid);
         assertEquals(network1.SSID, hiddenNetworks.get(1).ssid);
@@ -3597,7 +3734,8 @@ public class WifiConfigManagerTest {
                         mContext, mClock, mUserManager, mTelephonyManager,
                         mWifiKeyStore, mWifiConfigStore, mWifiConfigStoreLegacy,
                         mWifiPermissionsUtil, mWifiPermissionsWrapper, mNetworkListStoreData,
-                        mDeletedEphemeralSsidsStoreData);
+                        mDeletedEphemeralSsidsStoreData, mNetworkChannelHistoryStoreData,
+                        mLooper.getLooper());
         mWifiConfigManager.enableVerboseLogging(1);
     }
 
@@ -66,6 +66,7 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.stream.Collectors;
@@ -1409,6 +1410,71 @@ public class WifiConnectivityManagerTest {
                 CANDIDATE_NETWORK_ID, Process.WIFI_UID, CANDIDATE_BSSID);
     }
 
+    /**
+     * When disconnected with the screen on and DFS channels available, a strong candidate found
+     * on the non-DFS channels is connected to without scanning the DFS channels.
+     *
+     * Expected behavior: WifiConnectivityManager scans the non-DFS channels only and calls
+     * WifiStateMachine.startConnectToNetwork().
+     */
+    @Test
+    public void stagedFullBandScanConnectsToStrongCandidateBeforeDfsChannels() {
+        when(mWifiScanner.getAvailableChannels(WifiScanner.WIFI_BAND_5_GHZ_DFS_ONLY))
+                .thenReturn(Arrays.asList(5260, 5280));
+        ArgumentCaptor<ScanSettings> settingsCaptor = ArgumentCaptor.forClass(ScanSettings.class);
+
+        mWifiConnectivityManager.handleScreenStateChanged(true);
+        mWifiConnectivityManager.handleConnectionStateChanged(
+                WifiConnectivityManager.WIFI_STATE_DISCONNECTED);
+
+        verify(mWifiScanner).startScan(settingsCaptor.capture(), anyObject(), anyObject());
+        assertEquals(WifiScanner.WIFI_BAND_BOTH, settingsCaptor.getValue().band);
+        verify(mWifiLastResortWatchdog).updateAvailableNetworks(anyObject());
+        verify(mWifiMetrics).countScanResults(anyObject());
+        verify(mWifiStateMachine).startConnectToNetwork(
+                CANDIDATE_NETWORK_ID, Process.WIFI_UID, CANDIDATE_BSSID);
+    }
+
+    /**
+     * When disconnected with the screen on and DFS channels available, the DFS channels are
+     * scanned if the candidate found on the non-DFS channels is weak, and the network selection
+     * runs again on the results of both stages.
+     *
+     * Expected behavior: WifiConnectivityManager scans the non-DFS channels then the DFS channels
+     * and calls WifiStateMachine.startConnectToNetwork() once.
+     */
+    @Test
+    public void stagedFullBandScanScansDfsChannelsForWeakCandidate() {
+        when(mWifiScanner.getAvailableChannels(WifiScanner.WIFI_BAND_5_GHZ_DFS_ONLY))
+                .thenReturn(Arrays.asList(5260, 5280));
+        WifiConfiguration candidate = generateWifiConfig(
+                0, CANDIDATE_NETWORK_ID, CANDIDATE_SSID, false, true, null, null);
+        candidate.BSSID = WifiStateMachine.SUPPLICANT_BSSID_ANY;
+        ScanResult candidateScanResult = new ScanResult();
+        candidateScanResult.SSID = CANDIDATE_SSID;
+        candidateScanResult.BSSID = CANDIDATE_BSSID;
+        candidateScanResult.frequency = 2437;
+        candidateScanResult.level = -85;
+        candidate.getNetworkSelectionStatus().setCandidate(candidateScanResult);
+        when(mWifiNS.selectNetwork(anyObject(), anyObject(), anyObject(), anyBoolean(),
+                anyBoolean(), anyBoolean())).thenReturn(candidate);
+        ArgumentCaptor<ScanSettings> settingsCaptor = ArgumentCaptor.forClass(ScanSettings.class);
+
+        mWifiConnectivityManager.handleScreenStateChanged(true);
+        mWifiConnectivityManager.handleConnectionStateChanged(
+                WifiConnectivityManager.WIFI_STATE_DISCONNECTED);
+
+        verify(mWifiScanner, times(2)).startScan(
+                settingsCaptor.capture(), anyObject(), anyObject());
+        assertEquals(WifiScanner.WIFI_BAND_BOTH, settingsCaptor.getAllValues().get(0).band);
+        assertEquals(WifiScanner.WIFI_BAND_5_GHZ_DFS_ONLY,
+                settingsCaptor.getAllValues().get(1).band);
+        verify(mWifiNS, times(2)).selectNetwork(anyObject(), anyObject(), anyObject(),
+                anyBoolean(), anyBoolean(), anyBoolean());
+        verify(mWifiStateMachine).startConnectToNetwork(
+                CANDIDATE_NETWORK_ID, Process.WIFI_UID, CANDIDATE_BSSID);
+    }
+
     /**
      *  Verify the BSSID blacklist implementation.
      *
@@ -244,6 +244,32 @@ public class WifiLockManagerTest {
         assertEquals(1, merged.getWorkChains().size());
     }
 
+    /**
+     * Verifies that the merged WorkSource keeps an attribution entry shared by several locks until
+     * the last of these locks is released, and follows WorkSource updates.
+     */
+    @Test
+    public void mergedWorkSourceTracksSharedEntriesAcrossReleases() throws Exception {
+        acquireWifiLockSuccessful(WifiManager.WIFI_MODE_FULL_HIGH_PERF, "", mBinder, mWorkSource);
+        acquireWifiLockSuccessful(WifiManager.WIFI_MODE_FULL, "", mBinder2,
+                new WorkSource(DEFAULT_TEST_UID_1));
+
+        releaseWifiLockSuccessful(mBinder);
+        assertEquals(WifiManager.WIFI_MODE_FULL, mWifiLockManager.getStrongestLockMode());
+        WorkSource merged = mWifiLockManager.createMergedWorkSource();
+        assertEquals(1, merged.size());
+        assertEquals(DEFAULT_TEST_UID_1, merged.get(0));
+
+        mWifiLockManager.updateWifiLockWorkSource(mBinder2, new WorkSource(DEFAULT_TEST_UID_2));
+        merged = mWifiLockManager.createMergedWorkSource();
+        assertEquals(1, merged.size());
+        assertEquals(DEFAULT_TEST_UID_2, merged.get(0));
+
+        releaseWifiLockSuccessful(mBinder2);
+        assertEquals(0, mWifiLockManager.createMergedWorkSource().size());
+        assertEquals(WifiManager.WIFI_MODE_NO_LOCKS_HELD, mWifiLockManager.getStrongestLockMode());
+    }
+
     /**
      * A smoke test for acquiring, updating and releasing WifiLocks with chained WorkSources.
      */
@@ -328,7 +354,8 @@ public class WifiLockManagerTest {
                 "Locks acquired: 0 full, 0 full high perf, 0 scan"));
         assertTrue(wifiLockManagerDumpString.contains(
                 "Locks released: 0 full, 0 full high perf, 0 scan"));
-        assertTrue(wifiLockManagerDumpString.contains("Locks held:"));
+        assertTrue(wifiLockManagerDumpString.contains(
+                "Locks held: 0 full, 0 full high perf, 0 scan"));
         assertFalse(wifiLockManagerDumpString.contains("WifiLock{"));
     }
 
@@ -352,7 +379,8 @@ public class WifiLockManagerTest {
                 "Locks acquired: 1 full, 1 full high perf, 0 scan"));
         assertTrue(wifiLockManagerDumpString.contains(
                 "Locks released: 0 full, 1 full high perf, 0 scan"));
-        assertTrue(wifiLockManagerDumpString.contains("Locks held:"));
+        assertTrue(wifiLockManagerDumpString.contains(
+                "Locks held: 1 full, 0 full high perf, 0 scan"));
         assertTrue(wifiLockManagerDumpString.contains(
                 "WifiLock{" + TEST_WIFI_LOCK_TAG + " type=" + WifiManager.WIFI_MODE_FULL
                 + " uid=" + Binder.getCallingUid() + " workSource=WorkSource{"
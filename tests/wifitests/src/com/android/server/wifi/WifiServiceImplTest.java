@@ -63,6 +63,7 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
+import android.content.pm.ParceledListSlice;
 import android.content.res.Resources;
 import android.net.Uri;
 import android.net.wifi.ISoftApCallback;
@@ -98,6 +99,7 @@ import com.android.internal.telephony.TelephonyIntents;
 import com.android.internal.util.AsyncChannel;
 import com.android.server.wifi.WifiServiceImpl.LocalOnlyRequestorCallback;
 import com.android.server.wifi.hotspot2.PasspointProvisioningTestUtil;
+import com.android.server.wifi.util.StateMachineProfiler;
 import com.android.server.wifi.util.WifiAsyncChannel;
 import com.android.server.wifi.util.WifiPermissionsUtil;
 import com.android.server.wifi.util.WifiPermissionsWrapper;
@@ -116,6 +118,7 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -197,6 +200,8 @@ public class WifiServiceImplTest {
     @Mock PowerProfile mPowerProfile;
     @Mock WifiTrafficPoller mWifiTrafficPolller;
     @Mock ScanRequestProxy mScanRequestProxy;
+    @Mock WifiConfigManager mWifiConfigManager;
+    @Mock StateMachineProfiler mStateMachineProfiler;
 
     @Spy FakeWifiLog mLog;
 
@@ -306,6 +311,8 @@ public class WifiServiceImplTest {
         when(mWifiInjector.getWifiSettingsStore()).thenReturn(mSettingsStore);
         when(mWifiInjector.getClock()).thenReturn(mClock);
         when(mWifiInjector.getScanRequestProxy()).thenReturn(mScanRequestProxy);
+        when(mWifiInjector.getWifiConfigManager()).thenReturn(mWifiConfigManager);
+        when(mWifiInjector.getStateMachineProfiler()).thenReturn(mStateMachineProfiler);
         when(mWifiStateMachine.syncStartSubscriptionProvisioning(anyInt(),
                 any(OsuProvider.class), any(IProvisioningCallback.class), any())).thenReturn(true);
         when(mPackageManager.hasSystemFeature(
@@ -1157,27 +1164,61 @@ public class WifiServiceImplTest {
     }
 
     /**
-     * Ensure that we handle scan results failure when posting the runnable to handler fails.
+     * Verify that the configured networks are served from the WifiConfigManager snapshot when it
+     * is up to date, without a round trip to WifiStateMachine.
      */
-    @Ignore
     @Test
-    public void testGetScanResultsFailureInRunWithScissors() {
+    public void testGetConfiguredNetworksUsesSnapshot() {
+        WifiConfiguration network = WifiConfigurationTestUtil.createOpenNetwork();
+        List<WifiConfiguration> networks = Arrays.asList(network);
+        when(mWifiConfigManager.getConfiguredNetworksSnapshot()).thenReturn(
+                new WifiConfigManager.ConfiguredNetworksSnapshot(1, networks, networks));
+
+        ParceledListSlice<WifiConfiguration> configs = mWifiServiceImpl.getConfiguredNetworks();
+        assertEquals(1, configs.getList().size());
+        assertEquals(network.SSID, configs.getList().get(0).SSID);
+
+        configs = mWifiServiceImpl.getPrivilegedConfiguredNetworks();
+        assertEquals(1, configs.getList().size());
+        verify(mWifiStateMachine, never()).syncGetConfiguredNetworks(anyInt(), any());
+        verify(mWifiStateMachine, never()).syncGetPrivilegedConfiguredNetwork(any());
+    }
+
+    /**
+     * Verify that the configured networks are retrieved through WifiStateMachine when the
+     * WifiConfigManager snapshot is stale.
+     */
+    @Test
+    public void testGetConfiguredNetworksWithStaleSnapshot() {
+        WifiConfiguration network = WifiConfigurationTestUtil.createOpenNetwork();
+        when(mWifiConfigManager.getConfiguredNetworksSnapshot()).thenReturn(null);
+        when(mWifiStateMachine.syncGetConfiguredNetworks(anyInt(), any()))
+                .thenReturn(Arrays.asList(network));
+
+        ParceledListSlice<WifiConfiguration> configs = mWifiServiceImpl.getConfiguredNetworks();
+        assertEquals(1, configs.getList().size());
+        verify(mWifiStateMachine).syncGetConfiguredNetworks(anyInt(), any());
+    }
+
+    /**
+     * Ensure that fetching scan results does not block on the WifiStateMachine thread.
+     */
+    @Test
+    public void testGetScanResultsDoesNotUseWifiStateMachineThread() {
         setupWifiStateMachineHandlerForRunWithScissors();
-        doReturn(false).when(mHandlerSpyForWsmRunWithScissors)
-                .runWithScissors(any(), anyLong());
 
         ScanResult[] scanResults =
                 ScanTestUtil.createScanDatas(new int[][]{{2417, 2427, 5180, 5170}})[0]
                         .getResults();
-        List<ScanResult> scanResultList =
-                new ArrayList<>(Arrays.asList(scanResults));
-        when(mScanRequestProxy.getScanResults()).thenReturn(scanResultList);
+        when(mScanRequestProxy.getScanResults()).thenReturn(
+                Collections.unmodifiableList(Arrays.asList(scanResults)));
 
         String packageName = "test.com";
         List<ScanResult> retrievedScanResultList = mWifiServiceImpl.getScanResults(packageName);
-        verify(mScanRequestProxy, never()).getScanResults();
+        verify(mHandlerSpyForWsmRunWithScissors, never()).runWithScissors(any(), anyLong());
 
-        assertTrue(retrievedScanResultList.isEmpty());
+        ScanTestUtil.assertScanResultsEquals(scanResults,
+                retrievedScanResultList.toArray(new ScanResult[retrievedScanResultList.size()]));
     }
 
     private void registerLOHSRequestFull() {
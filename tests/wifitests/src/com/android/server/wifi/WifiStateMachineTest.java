@@ -809,7 +809,9 @@ public class WifiStateMachineTest {
 
         when(mWifiConfigManager.addOrUpdateNetwork(any(WifiConfiguration.class), anyInt()))
                 .thenReturn(new NetworkUpdateResult(0));
-        when(mWifiConfigManager.getSavedNetworks()).thenReturn(Arrays.asList(config));
+        when(mWifiConfigManager.updateConfiguredNetworksSnapshot()).thenReturn(
+                new WifiConfigManager.ConfiguredNetworksSnapshot(
+                        0, Arrays.asList(config), Arrays.asList(config)));
         when(mWifiConfigManager.getConfiguredNetwork(0)).thenReturn(config);
         when(mWifiConfigManager.getConfiguredNetworkWithoutMasking(0)).thenReturn(config);
 
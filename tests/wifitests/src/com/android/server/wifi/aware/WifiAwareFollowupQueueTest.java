@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi.aware;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.support.test.filters.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test harness for WifiAwareFollowupQueue.
+ */
+@SmallTest
+public class WifiAwareFollowupQueueTest {
+    private static final int CLIENT_ID = 10;
+    private static final int SESSION_ID_A = 1;
+    private static final int SESSION_ID_B = 2;
+
+    private WifiAwareFollowupQueue mDut;
+
+    @Before
+    public void setUp() throws Exception {
+        mDut = new WifiAwareFollowupQueue();
+    }
+
+    private static WifiAwareFollowupQueue.FollowupMessage createMessage(int sessionId,
+            int messageId) {
+        return new WifiAwareFollowupQueue.FollowupMessage(CLIENT_ID, sessionId, 0, null,
+                messageId, 0, 0);
+    }
+
+    /**
+     * Validate that the messages of a session are dequeued in order and that a session with a
+     * burst of messages doesn't starve another session.
+     */
+    @Test
+    public void testRoundRobinAcrossSessions() {
+        assertTrue(mDut.enqueue(createMessage(SESSION_ID_A, 100), 0));
+        assertTrue(mDut.enqueue(createMessage(SESSION_ID_A, 101), 0));
+        assertTrue(mDut.enqueue(createMessage(SESSION_ID_A, 102), 0));
+        assertTrue(mDut.enqueue(createMessage(SESSION_ID_B, 200), 0));
+        assertEquals(4, mDut.size());
+        assertEquals(3, mDut.getQueuedCount(CLIENT_ID, SESSION_ID_A));
+
+        assertEquals(100, mDut.poll().messageId);
+        assertEquals(200, mDut.poll().messageId);
+        assertEquals(101, mDut.poll().messageId);
+        assertEquals(102, mDut.poll().messageId);
+        assertNull(mDut.poll());
+        assertEquals(0, mDut.size());
+    }
+
+    /**
+     * Validate that a session can't queue more than the maximum number of messages, and that
+     * re-queued messages bypass the limit and are dequeued first within their session.
+     */
+    @Test
+    public void testPerSessionLimitAndRequeue() {
+        assertTrue(mDut.enqueue(createMessage(SESSION_ID_A, 100), 2));
+        assertTrue(mDut.enqueue(createMessage(SESSION_ID_A, 101), 2));
+        assertFalse(mDut.enqueue(createMessage(SESSION_ID_A, 102), 2));
+        assertTrue(mDut.enqueue(createMessage(SESSION_ID_B, 200), 2));
+
+        WifiAwareFollowupQueue.FollowupMessage message = mDut.poll();
+        assertEquals(100, message.messageId);
+        mDut.requeue(message);
+        assertEquals(3, mDut.size());
+
+        // session A keeps its place in the round: behind session B
+        assertEquals(200, mDut.poll().messageId);
+        assertEquals(100, mDut.poll().messageId);
+        assertEquals(101, mDut.poll().messageId);
+
+        mDut.enqueue(createMessage(SESSION_ID_B, 201), 2);
+        mDut.clear();
+        assertEquals(0, mDut.size());
+        assertNull(mDut.poll());
+    }
+}
@@ -63,7 +63,6 @@ import android.net.wifi.aware.WifiAwareManager;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.IPowerManager;
-import android.os.Message;
 import android.os.PowerManager;
 import android.os.RemoteException;
 import android.os.UserHandle;
@@ -91,6 +90,7 @@ import org.mockito.Spy;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.lang.reflect.Field;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -1040,6 +1040,85 @@ public class WifiAwareStateManagerTest {
         verifyNoMoreInteractions(mockCallback, mockSessionCallback, mMockNative, mAwareMetricsMock);
     }
 
+    /**
+     * Validate that independent discovery commands are dispatched to the HAL without waiting for
+     * the responses to the previous ones, that their (out of order) responses are routed by
+     * transaction ID, and that a disconnect is only executed once they have all completed.
+     */
+    @Test
+    public void testPipelinedDiscoveryCommands() throws Exception {
+        final int clientId = 2006;
+        final int uid = 1000;
+        final int pid = 2000;
+        final String callingPackage = "com.google.somePackage";
+        final byte publishId = 15;
+        final byte subscribeId = 16;
+
+        ConfigRequest configRequest = new ConfigRequest.Builder().build();
+        PublishConfig publishConfig = new PublishConfig.Builder().build();
+        SubscribeConfig subscribeConfig = new SubscribeConfig.Builder().build();
+
+        IWifiAwareEventCallback mockCallback = mock(IWifiAwareEventCallback.class);
+        IWifiAwareDiscoverySessionCallback mockPublishSessionCallback = mock(
+                IWifiAwareDiscoverySessionCallback.class);
+        IWifiAwareDiscoverySessionCallback mockSubscribeSessionCallback = mock(
+                IWifiAwareDiscoverySessionCallback.class);
+        ArgumentCaptor<Short> transactionId = ArgumentCaptor.forClass(Short.class);
+        ArgumentCaptor<Short> publishTransactionId = ArgumentCaptor.forClass(Short.class);
+        ArgumentCaptor<Short> subscribeTransactionId = ArgumentCaptor.forClass(Short.class);
+        InOrder inOrder = inOrder(mockCallback, mockPublishSessionCallback,
+                mockSubscribeSessionCallback, mMockNative);
+
+        mDut.enableUsage();
+        mMockLooper.dispatchAll();
+        inOrder.verify(mMockNative).getCapabilities(transactionId.capture());
+        mDut.onCapabilitiesUpdateResponse(transactionId.getValue(), getCapabilities());
+        mMockLooper.dispatchAll();
+
+        // (0) connect
+        mDut.connect(clientId, uid, pid, callingPackage, mockCallback, configRequest, false);
+        mMockLooper.dispatchAll();
+        inOrder.verify(mMockNative).enableAndConfigure(transactionId.capture(), eq(configRequest),
+                eq(false), eq(true), eq(true), eq(false));
+        mDut.onConfigSuccessResponse(transactionId.getValue());
+        mMockLooper.dispatchAll();
+        inOrder.verify(mockCallback).onConnectSuccess(clientId);
+
+        // (1) publish + subscribe: both dispatched before any response
+        mDut.publish(clientId, publishConfig, mockPublishSessionCallback);
+        mDut.subscribe(clientId, subscribeConfig, mockSubscribeSessionCallback);
+        mMockLooper.dispatchAll();
+        inOrder.verify(mMockNative).publish(publishTransactionId.capture(), eq((byte) 0),
+                eq(publishConfig));
+        inOrder.verify(mMockNative).subscribe(subscribeTransactionId.capture(), eq((byte) 0),
+                eq(subscribeConfig));
+        assertNotEquals(publishTransactionId.getValue(), subscribeTransactionId.getValue());
+
+        // (2) disconnect: serialized behind the pending commands
+        mDut.disconnect(clientId);
+        mMockLooper.dispatchAll();
+        verifyNoMoreInteractions(mMockNative);
+
+        // (3) subscribe success (out of order): disconnect still waits for the publish
+        mDut.onSessionConfigSuccessResponse(subscribeTransactionId.getValue(), false, subscribeId);
+        mMockLooper.dispatchAll();
+        inOrder.verify(mockSubscribeSessionCallback).onSessionStarted(anyInt());
+        verifyNoMoreInteractions(mMockNative);
+
+        // (4) publish success: disconnect is executed
+        mDut.onSessionConfigSuccessResponse(publishTransactionId.getValue(), true, publishId);
+        mMockLooper.dispatchAll();
+        inOrder.verify(mockPublishSessionCallback).onSessionStarted(anyInt());
+        verify(mMockNative).stopPublish(anyShort(), eq(publishId));
+        verify(mMockNative).stopSubscribe(anyShort(), eq(subscribeId));
+        verify(mMockNative).disable(anyShort());
+
+        validateInternalClientInfoCleanedUp(clientId);
+
+        verifyNoMoreInteractions(mockCallback, mockPublishSessionCallback,
+                mockSubscribeSessionCallback, mMockNative);
+    }
+
     /**
      * Validates subscribe flow: (1) initial subscribe (2) fail (callback from firmware), (3) fail
      * due to immeidate HAL failure. Expected: get a failure callback.
@@ -1463,13 +1542,100 @@ public class WifiAwareStateManagerTest {
         mDut.onMessageSendSuccessNotification(tid2);
         mMockLooper.dispatchAll();
         inOrder.verify(mockSessionCallback).onMessageSendFail(messageId, reasonFail);
+        inOrderM.verify(mAwareMetricsMock).recordFollowupMessageStatus(eq(uid), eq(reasonFail),
+                anyLong());
         inOrder.verify(mockSessionCallback).onMessageSendSuccess(messageId2);
+        inOrderM.verify(mAwareMetricsMock).recordFollowupMessageStatus(eq(uid),
+                eq(NanStatusType.SUCCESS), anyLong());
         validateInternalSendMessageQueuesCleanedUp(messageId);
         validateInternalSendMessageQueuesCleanedUp(messageId2);
 
         verifyNoMoreInteractions(mockCallback, mockSessionCallback, mMockNative, mAwareMetricsMock);
     }
 
+    /**
+     * Validate that a match repeating a recently delivered match (same peer, SSI and match filter)
+     * is suppressed while a match with new content is delivered - and that de-duplication can be
+     * disabled.
+     */
+    @Test
+    public void testDuplicateMatchesSuppressed() throws Exception {
+        final int clientId = 1005;
+        final int uid = 1000;
+        final int pid = 2000;
+        final String callingPackage = "com.google.somePackage";
+        final String serviceName = "some-service-name";
+        final byte subscribeId = 15;
+        final int requestorId = 22;
+        final byte[] peerMac = HexEncoding.decode("060708090A0B".toCharArray(), false);
+        final String peerSsi = "some peer ssi data";
+        final String peerSsi2 = "some updated peer ssi data";
+        final String peerMatchFilter = "filter binary array represented as string";
+
+        ConfigRequest configRequest = new ConfigRequest.Builder().build();
+        SubscribeConfig subscribeConfig = new SubscribeConfig.Builder().setServiceName(serviceName)
+                .build();
+
+        IWifiAwareEventCallback mockCallback = mock(IWifiAwareEventCallback.class);
+        IWifiAwareDiscoverySessionCallback mockSessionCallback = mock(
+                IWifiAwareDiscoverySessionCallback.class);
+        ArgumentCaptor<Short> transactionId = ArgumentCaptor.forClass(Short.class);
+        ArgumentCaptor<Integer> sessionId = ArgumentCaptor.forClass(Integer.class);
+        InOrder inOrder = inOrder(mockCallback, mockSessionCallback, mMockNative);
+
+        mDut.enableUsage();
+        mMockLooper.dispatchAll();
+        inOrder.verify(mMockNative).getCapabilities(transactionId.capture());
+        mDut.onCapabilitiesUpdateResponse(transactionId.getValue(), getCapabilities());
+        mMockLooper.dispatchAll();
+
+        // (0) connect + subscribe
+        mDut.connect(clientId, uid, pid, callingPackage, mockCallback, configRequest, false);
+        mMockLooper.dispatchAll();
+        inOrder.verify(mMockNative).enableAndConfigure(transactionId.capture(),
+                eq(configRequest), eq(false), eq(true), eq(true), eq(false));
+        mDut.onConfigSuccessResponse(transactionId.getValue());
+        mMockLooper.dispatchAll();
+        inOrder.verify(mockCallback).onConnectSuccess(clientId);
+
+        mDut.subscribe(clientId, subscribeConfig, mockSessionCallback);
+        mMockLooper.dispatchAll();
+        inOrder.verify(mMockNative).subscribe(transactionId.capture(), eq((byte) 0),
+                eq(subscribeConfig));
+        mDut.onSessionConfigSuccessResponse(transactionId.getValue(), false, subscribeId);
+        mMockLooper.dispatchAll();
+        inOrder.verify(mockSessionCallback).onSessionStarted(sessionId.capture());
+
+        // (1) match + identical match: only the first is delivered
+        mDut.onMatchNotification(subscribeId, requestorId, peerMac, peerSsi.getBytes(),
+                peerMatchFilter.getBytes(), 0, 0);
+        mDut.onMatchNotification(subscribeId, requestorId, peerMac, peerSsi.getBytes(),
+                peerMatchFilter.getBytes(), 0, 0);
+        mMockLooper.dispatchAll();
+        inOrder.verify(mockSessionCallback).onMatch(anyInt(), eq(peerSsi.getBytes()),
+                eq(peerMatchFilter.getBytes()));
+        verify(mAwareMetricsMock).recordMatchIndicationSuppressed();
+
+        // (2) match with an updated SSI: delivered
+        mDut.onMatchNotification(subscribeId, requestorId, peerMac, peerSsi2.getBytes(),
+                peerMatchFilter.getBytes(), 0, 0);
+        mMockLooper.dispatchAll();
+        inOrder.verify(mockSessionCallback).onMatch(anyInt(), eq(peerSsi2.getBytes()),
+                eq(peerMatchFilter.getBytes()));
+
+        // (3) disable de-duplication: identical match delivered
+        setSettableParam(WifiAwareStateManager.PARAM_MATCH_DEDUP_WINDOW_MS, Integer.toString(0),
+                true);
+        mDut.onMatchNotification(subscribeId, requestorId, peerMac, peerSsi2.getBytes(),
+                peerMatchFilter.getBytes(), 0, 0);
+        mMockLooper.dispatchAll();
+        inOrder.verify(mockSessionCallback).onMatch(anyInt(), eq(peerSsi2.getBytes()),
+                eq(peerMatchFilter.getBytes()));
+        verify(mAwareMetricsMock).recordMatchIndicationSuppressed();
+
+        verifyNoMoreInteractions(mockCallback, mockSessionCallback, mMockNative);
+    }
+
     /**
      * Summary: in a single publish session interact with multiple peers
      * (different MAC addresses).
@@ -3426,24 +3592,32 @@ public class WifiAwareStateManagerTest {
         field = WifiAwareStateManager.WifiAwareStateMachine.class.getDeclaredField(
                 "mHostQueuedSendMessages");
         field.setAccessible(true);
-        SparseArray<Message> hostQueuedSendMessages = (SparseArray<Message>) field.get(sm);
+        WifiAwareFollowupQueue hostQueue = (WifiAwareFollowupQueue) field.get(sm);
+        field = WifiAwareFollowupQueue.class.getDeclaredField("mSessionQueues");
+        field.setAccessible(true);
+        Map<Long, ArrayDeque<WifiAwareFollowupQueue.FollowupMessage>> hostQueuedSendMessages =
+                (Map<Long, ArrayDeque<WifiAwareFollowupQueue.FollowupMessage>>) field.get(
+                        hostQueue);
 
         field = WifiAwareStateManager.WifiAwareStateMachine.class.getDeclaredField(
                 "mFwQueuedSendMessages");
         field.setAccessible(true);
-        Map<Short, Message> fwQueuedSendMessages = (Map<Short, Message>) field.get(sm);
-
-        for (int i = 0; i < hostQueuedSendMessages.size(); ++i) {
-            Message msg = hostQueuedSendMessages.valueAt(i);
-            if (msg.getData().getInt("message_id") == messageId) {
-                collector.checkThat(
-                        "Message not cleared-up from host queue. Message ID=" + messageId, msg,
-                        nullValue());
+        Map<Short, WifiAwareFollowupQueue.FollowupMessage> fwQueuedSendMessages =
+                (Map<Short, WifiAwareFollowupQueue.FollowupMessage>) field.get(sm);
+
+        for (ArrayDeque<WifiAwareFollowupQueue.FollowupMessage> queue
+                : hostQueuedSendMessages.values()) {
+            for (WifiAwareFollowupQueue.FollowupMessage msg : queue) {
+                if (msg.messageId == messageId) {
+                    collector.checkThat(
+                            "Message not cleared-up from host queue. Message ID=" + messageId,
+                            msg, nullValue());
+                }
             }
         }
 
-        for (Message msg: fwQueuedSendMessages.values()) {
-            if (msg.getData().getInt("message_id") == messageId) {
+        for (WifiAwareFollowupQueue.FollowupMessage msg : fwQueuedSendMessages.values()) {
+            if (msg.messageId == messageId) {
                 collector.checkThat(
                         "Message not cleared-up from firmware queue. Message ID=" + messageId, msg,
                         nullValue());
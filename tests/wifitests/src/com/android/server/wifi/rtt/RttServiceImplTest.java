@@ -251,6 +251,8 @@ public class RttServiceImplTest {
      */
     @Test
     public void testRangingFlow() throws Exception {
+        // validates one HAL command per request
+        mDut.enableRequestMerging(false);
         int numIter = 10;
         RangingRequest[] requests = new RangingRequest[numIter];
         List<Pair<List<RttResult>, List<RangingResult>>> results = new ArrayList<>();
@@ -297,6 +299,194 @@ public class RttServiceImplTest {
                 mAlarmManager.getAlarmManager());
     }
 
+    /**
+     * Validate that requests queued while a ranging command is in progress are merged into a
+     * single HAL command (with shared peers de-duplicated) and that the results are dispatched to
+     * each client based on its own peers.
+     */
+    @Test
+    public void testRangingFlowMergedRequests() throws Exception {
+        IRttCallback mockCallback1 = mock(IRttCallback.class);
+        IRttCallback mockCallback2 = mock(IRttCallback.class);
+        RangingRequest request0 = RttTestUtils.getDummyRangingRequest((byte) 0);
+        RangingRequest request1 = RttTestUtils.getDummyRangingRequest((byte) 1);
+        RangingRequest request2 = RttTestUtils.getDummyRangingRequest((byte) 2);
+        Pair<List<RttResult>, List<RangingResult>> results0 =
+                RttTestUtils.getDummyRangingResults(request0);
+
+        // (1) request 3 ranging operations from different apps
+        mDut.startRanging(mockIbinder, mPackageName, null, request0, mockCallback);
+        mDut.fakeUid = mDefaultUid + 1;
+        mDut.startRanging(mockIbinder, mPackageName, null, request1, mockCallback1);
+        mDut.fakeUid = mDefaultUid + 2;
+        mDut.startRanging(mockIbinder, mPackageName, null, request2, mockCallback2);
+        mMockLooper.dispatchAll();
+
+        // (2) verify that first request issued to native on its own
+        verify(mockNative).rangeRequest(mIntCaptor.capture(), eq(request0), eq(true));
+        mDut.onRangingResults(mIntCaptor.getValue(), results0.first);
+        mMockLooper.dispatchAll();
+        verify(mockCallback).onRangingResults(results0.second);
+
+        // (3) verify that the other 2 requests are merged: the shared Aware peer only once
+        verify(mockNative, times(2)).rangeRequest(mIntCaptor.capture(), mRequestCaptor.capture(),
+                eq(true));
+        RangingRequest mergedRequest = mRequestCaptor.getValue();
+        assertEquals(request1.mRttPeers.size() + request2.mRttPeers.size() - 1,
+                mergedRequest.mRttPeers.size());
+        assertTrue(mergedRequest.mRttPeers.containsAll(request1.mRttPeers));
+        assertTrue(mergedRequest.mRttPeers.containsAll(request2.mRttPeers));
+
+        // (4) native calls back with results for all peers: each app gets its own results
+        mDut.onRangingResults(mIntCaptor.getValue(),
+                RttTestUtils.getDummyRangingResults(mergedRequest).first);
+        mMockLooper.dispatchAll();
+
+        validateResultsForRequest(mockCallback1, request1);
+        validateResultsForRequest(mockCallback2, request2);
+        verify(mockMetrics).recordMergedRangingCommand(2, 1);
+        verify(mockMetrics, times(3)).recordOverallStatus(
+                WifiMetricsProto.WifiRttLog.OVERALL_SUCCESS);
+        verifyNoMoreInteractions(mockCallback, mockCallback1, mockCallback2);
+    }
+
+    /**
+     * Validate that the death of one of the apps whose request was merged into a HAL command does
+     * not cancel the command: the other app still gets its results.
+     */
+    @Test
+    public void testBinderDeathOfMergedRangingApp() throws Exception {
+        IRttCallback mockCallback1 = mock(IRttCallback.class);
+        IRttCallback mockCallback2 = mock(IRttCallback.class);
+        RangingRequest request0 = RttTestUtils.getDummyRangingRequest((byte) 0);
+        RangingRequest request1 = RttTestUtils.getDummyRangingRequest((byte) 1);
+        RangingRequest request2 = RttTestUtils.getDummyRangingRequest((byte) 2);
+
+        // (1) request 3 ranging operations from different apps, merge the last 2
+        mDut.startRanging(mockIbinder, mPackageName, null, request0, mockCallback);
+        mDut.fakeUid = mDefaultUid + 1;
+        mDut.startRanging(mockIbinder, mPackageName, null, request1, mockCallback1);
+        mDut.fakeUid = mDefaultUid + 2;
+        mDut.startRanging(mockIbinder, mPackageName, null, request2, mockCallback2);
+        mMockLooper.dispatchAll();
+        verify(mockIbinder, times(3)).linkToDeath(mDeathRecipientCaptor.capture(), anyInt());
+
+        verify(mockNative).rangeRequest(mIntCaptor.capture(), eq(request0), eq(true));
+        mDut.onRangingResults(mIntCaptor.getValue(),
+                RttTestUtils.getDummyRangingResults(request0).first);
+        mMockLooper.dispatchAll();
+        verify(mockNative, times(2)).rangeRequest(mIntCaptor.capture(), mRequestCaptor.capture(),
+                eq(true));
+
+        // (2) second app dies: the merged HAL command is not cancelled
+        mDeathRecipientCaptor.getAllValues().get(1).binderDied();
+        mMockLooper.dispatchAll();
+        verify(mockNative, times(0)).rangeCancel(anyInt(), any());
+
+        // (3) native calls back with results: only the remaining app gets results
+        mDut.onRangingResults(mIntCaptor.getValue(),
+                RttTestUtils.getDummyRangingResults(mRequestCaptor.getValue()).first);
+        mMockLooper.dispatchAll();
+
+        validateResultsForRequest(mockCallback2, request2);
+        verifyNoMoreInteractions(mockCallback1, mockCallback2);
+    }
+
+    /**
+     * Validate that merging is transparent to the clients: each client gets the same results
+     * whether its request is executed on its own or merged with the requests of other clients.
+     */
+    @Test
+    public void testMergedRangingResultsParity() throws Exception {
+        mDut.enableRequestMerging(false);
+        List<List<RangingResult>> unmergedResults = runRangingFlowForMergeParity(3);
+
+        mDut.enableRequestMerging(true);
+        List<List<RangingResult>> mergedResults = runRangingFlowForMergeParity(2);
+
+        assertEquals(unmergedResults, mergedResults);
+    }
+
+    /**
+     * Validate that merging is transparent to the clients when the HAL doesn't return results for
+     * some of the peers: each client gets the same (failed) results for them either way.
+     */
+    @Test
+    public void testMergedRangingResultsParityWithMissingResults() throws Exception {
+        Set<MacAddress> missingPeers = new HashSet<>();
+        missingPeers.add(MacAddress.fromString("08:09:08:07:06:05")); // peer shared by all
+        missingPeers.add(MacAddress.fromString("0A:0B:0C:0D:0E:02"));
+
+        mDut.enableRequestMerging(false);
+        List<List<RangingResult>> unmergedResults = runRangingFlowForMergeParity(3, missingPeers);
+
+        mDut.enableRequestMerging(true);
+        List<List<RangingResult>> mergedResults = runRangingFlowForMergeParity(2, missingPeers);
+
+        assertEquals(unmergedResults, mergedResults);
+    }
+
+    /**
+     * Validate that when the result cache is enabled a repeated request is answered from the cache
+     * while its results are fresh, and is executed by the HAL again once they are stale.
+     */
+    @Test
+    public void testRangingFlowResultCache() throws Exception {
+        mDut.setResultCacheFreshnessMs(1000);
+        RangingRequest request = RttTestUtils.getDummyRangingRequest((byte) 0);
+        Pair<List<RttResult>, List<RangingResult>> results =
+                RttTestUtils.getDummyRangingResults(request);
+        int numPeers = request.mRttPeers.size();
+
+        // (1) first request is executed by the HAL
+        when(mockClock.getElapsedSinceBootMillis()).thenReturn(1000L);
+        mDut.startRanging(mockIbinder, mPackageName, null, request, mockCallback);
+        mMockLooper.dispatchAll();
+
+        verify(mockMetrics).recordResultCacheLookup(numPeers, 0);
+        verify(mockNative).rangeRequest(mIntCaptor.capture(), eq(request), eq(true));
+        verifyWakeupSet();
+
+        mDut.onRangingResults(mIntCaptor.getValue(), results.first);
+        mMockLooper.dispatchAll();
+
+        verify(mockCallback).onRangingResults(results.second);
+        verifyWakeupCancelled();
+
+        // (2) repeated request within the freshness window: answered from the cache
+        when(mockClock.getElapsedSinceBootMillis()).thenReturn(1500L);
+        mDut.startRanging(mockIbinder, mPackageName, null, request, mockCallback);
+        mMockLooper.dispatchAll();
+
+        verify(mockMetrics).recordResultCacheLookup(numPeers, numPeers);
+        verify(mockCallback, times(2)).onRangingResults(results.second);
+
+        // (3) repeated request after the freshness window: executed by the HAL
+        when(mockClock.getElapsedSinceBootMillis()).thenReturn(2001L);
+        mDut.startRanging(mockIbinder, mPackageName, null, request, mockCallback);
+        mMockLooper.dispatchAll();
+
+        verify(mockMetrics, times(2)).recordResultCacheLookup(numPeers, 0);
+        verify(mockNative, times(2)).rangeRequest(mIntCaptor.capture(), eq(request), eq(true));
+        verifyWakeupSet();
+
+        mDut.onRangingResults(mIntCaptor.getValue(), results.first);
+        mMockLooper.dispatchAll();
+
+        verify(mockCallback, times(3)).onRangingResults(results.second);
+        verifyWakeupCancelled();
+
+        // verify metrics: cached results are not recorded as HAL results
+        verify(mockMetrics, times(3)).recordRequest(eq(mDefaultWs), eq(request));
+        verify(mockMetrics, times(2)).recordResult(eq(request), eq(results.first));
+        verify(mockMetrics, times(3)).recordOverallStatus(
+                WifiMetricsProto.WifiRttLog.OVERALL_SUCCESS);
+
+        verify(mockNative, atLeastOnce()).isReady();
+        verifyNoMoreInteractions(mockNative, mockMetrics, mockCallback,
+                mAlarmManager.getAlarmManager());
+    }
+
     /**
      * Validate a successful ranging flow with PeerHandles (i.e. verify translations)
      */
@@ -370,6 +560,8 @@ public class RttServiceImplTest {
      */
     @Test
     public void testRangingFlowNativeFailure() throws Exception {
+        // validates one HAL command per request
+        mDut.enableRequestMerging(false);
         int numIter = 10;
         RangingRequest[] requests = new RangingRequest[numIter];
         List<Pair<List<RttResult>, List<RangingResult>>> results = new ArrayList<>();
@@ -473,6 +665,8 @@ public class RttServiceImplTest {
      */
     @Test
     public void testBinderDeathOfRangingApp() throws Exception {
+        // validates one HAL command per request
+        mDut.enableRequestMerging(false);
         int numIter = 10;
         RangingRequest[] requests = new RangingRequest[numIter];
         List<Pair<List<RttResult>, List<RangingResult>>> results = new ArrayList<>();
@@ -1258,6 +1452,7 @@ public class RttServiceImplTest {
         cbInorder.verify(mockCallback).onRangingResults(result.second);
         verifyWakeupCancelled();
 
+        // the queued (identical) requests are merged into a single HAL command
         nativeInorder.verify(mockNative).rangeRequest(mIntCaptor.capture(), eq(request), eq(true));
         verifyWakeupSet();
 
@@ -1278,6 +1473,8 @@ public class RttServiceImplTest {
         verify(mockMetrics, times(RttServiceImpl.MAX_QUEUED_PER_UID + 12)).recordRequest(
                 eq(useUids ? mDefaultWs : ws), eq(request));
         verify(mockMetrics).recordResult(eq(request), eq(result.first));
+        verify(mockMetrics).recordMergedRangingCommand(RttServiceImpl.MAX_QUEUED_PER_UID - 1,
+                (RttServiceImpl.MAX_QUEUED_PER_UID - 2) * request.mRttPeers.size());
         verify(mockMetrics, times(11)).recordOverallStatus(
                 WifiMetricsProto.WifiRttLog.OVERALL_THROTTLE);
         verify(mockMetrics, times(RttServiceImpl.MAX_QUEUED_PER_UID)).recordOverallStatus(
@@ -1418,6 +1615,87 @@ public class RttServiceImplTest {
         mLocationModeReceiver.onReceive(mockContext, intent);
     }
 
+    private List<List<RangingResult>> runRangingFlowForMergeParity(int expectedNumHalCommands)
+            throws Exception {
+        return runRangingFlowForMergeParity(expectedNumHalCommands, new HashSet<>());
+    }
+
+    /**
+     * Execute the ranging requests of 3 apps: the first one while the HAL is idle, the other 2
+     * while the first one is in progress. The HAL returns the same result for a peer whichever
+     * command ranges it.
+     *
+     * @param expectedNumHalCommands Number of HAL commands expected to execute the requests.
+     * @param missingPeers Peers for which the HAL doesn't return any result.
+     * @return The results received by each of the apps.
+     */
+    private List<List<RangingResult>> runRangingFlowForMergeParity(int expectedNumHalCommands,
+            Set<MacAddress> missingPeers) throws Exception {
+        RangingRequest[] requests = new RangingRequest[3];
+        IRttCallback[] callbacks = new IRttCallback[3];
+        Map<MacAddress, RttResult> halResultsByPeer = new HashMap<>();
+        for (int i = 0; i < requests.length; ++i) {
+            requests[i] = RttTestUtils.getDummyRangingRequest((byte) i);
+            callbacks[i] = mock(IRttCallback.class);
+            for (RttResult halResult : RttTestUtils.getDummyRangingResults(requests[i]).first) {
+                MacAddress peer = MacAddress.fromBytes(halResult.addr);
+                if (!halResultsByPeer.containsKey(peer) && !missingPeers.contains(peer)) {
+                    halResultsByPeer.put(peer, halResult);
+                }
+            }
+        }
+        List<Pair<Integer, RangingRequest>> halCommands = new ArrayList<>();
+        doAnswer(invocation -> {
+            Object[] args = invocation.getArguments();
+            halCommands.add(new Pair<>((Integer) args[0], (RangingRequest) args[1]));
+            return true;
+        }).when(mockNative).rangeRequest(anyInt(), any(RangingRequest.class), anyBoolean());
+
+        // (1) request ranging operations from 3 different apps
+        for (int i = 0; i < requests.length; ++i) {
+            mDut.fakeUid = mDefaultUid + i;
+            mDut.startRanging(mockIbinder, mPackageName, null, requests[i], callbacks[i]);
+        }
+        mDut.fakeUid = mDefaultUid;
+        mMockLooper.dispatchAll();
+
+        // (2) native calls back with the results of the peers of each command
+        for (int i = 0; i < halCommands.size(); ++i) {
+            List<RttResult> halResults = new ArrayList<>();
+            for (ResponderConfig peer : halCommands.get(i).second.mRttPeers) {
+                if (halResultsByPeer.containsKey(peer.macAddress)) {
+                    halResults.add(halResultsByPeer.get(peer.macAddress));
+                }
+            }
+            mDut.onRangingResults(halCommands.get(i).first, halResults);
+            mMockLooper.dispatchAll();
+        }
+        assertEquals(expectedNumHalCommands, halCommands.size());
+
+        // (3) collect the results dispatched to each app
+        List<List<RangingResult>> results = new ArrayList<>();
+        for (IRttCallback callback : callbacks) {
+            verify(callback).onRangingResults(mListCaptor.capture());
+            results.add(mListCaptor.getValue());
+        }
+        return results;
+    }
+
+    /**
+     * Verify that the callback received a (successful) result for each of the peers of the
+     * request - and only for them.
+     */
+    private void validateResultsForRequest(IRttCallback callback, RangingRequest request)
+            throws Exception {
+        verify(callback).onRangingResults(mListCaptor.capture());
+        List<RangingResult> results = mListCaptor.getValue();
+        assertEquals(request.mRttPeers.size(), results.size());
+        for (int i = 0; i < results.size(); ++i) {
+            assertEquals(RangingResult.STATUS_SUCCESS, results.get(i).getStatus());
+            assertEquals(request.mRttPeers.get(i).macAddress, results.get(i).getMacAddress());
+        }
+    }
+
     private void verifyWakeupSet() {
         mInOrder.verify(mAlarmManager.getAlarmManager()).setExact(anyInt(), anyLong(),
                 eq(RttServiceImpl.HAL_RANGING_TIMEOUT_TAG), any(AlarmManager.OnAlarmListener.class),
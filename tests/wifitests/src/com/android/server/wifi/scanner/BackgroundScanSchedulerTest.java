@@ -41,8 +41,10 @@ import org.junit.Test;
 
 import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Set;
 
 /**
@@ -650,6 +652,93 @@ public class BackgroundScanSchedulerTest {
         assertChannels(combinedBucketChannelSet, expectedBucketChannelSet);
     }
 
+    /**
+     * In airtime optimized mode, ensure that when there are too many buckets the merge which adds
+     * the least scan airtime is picked, and that requests are only merged into faster buckets.
+     * Here the 120s channel is moved to the 30s bucket rather than the 30s channel to the 10s
+     * bucket.
+     */
+    @Test
+    public void airtimeOptimizedScheduleMergesIntoFasterBucket() {
+        ArrayList<ScanSettings> requests = new ArrayList<>();
+        requests.add(createRequest(channelsToSpec(2400), 30000, 0, 20,
+                WifiScanner.REPORT_EVENT_AFTER_EACH_SCAN));
+        requests.add(createRequest(channelsToSpec(2450), 10000, 0, 20,
+                WifiScanner.REPORT_EVENT_AFTER_EACH_SCAN));
+        requests.add(createRequest(channelsToSpec(5150), 120000, 0, 20,
+                WifiScanner.REPORT_EVENT_AFTER_EACH_SCAN));
+
+        mScheduler.setAirtimeOptimized(true);
+        mScheduler.setMaxBuckets(2);
+        mScheduler.updateSchedule(requests);
+        WifiNative.ScanSettings schedule = mScheduler.getSchedule();
+
+        assertEquals("base_period_ms", 10000, schedule.base_period_ms);
+        assertBuckets(schedule, 2);
+        assertEquals(10000, schedule.buckets[0].period_ms);
+        assertBucketChannels(schedule.buckets[0], new HashSet<>(Arrays.asList(2450)));
+        assertEquals(30000, schedule.buckets[1].period_ms);
+        assertBucketChannels(schedule.buckets[1], new HashSet<>(Arrays.asList(2400, 5150)));
+        for (ScanSettings request : requests) {
+            assertSettingsSatisfied(schedule, request, true, false);
+        }
+    }
+
+    /**
+     * In airtime optimized mode, ensure that a request whose channels are all scanned by a faster
+     * bucket is merged into it at no cost, rather than moving a faster request to a slower bucket,
+     * and that the duty cycle counts the channels once per scan of their fastest bucket.
+     */
+    @Test
+    public void airtimeOptimizedScheduleAccountsForOverlappingChannels() {
+        ArrayList<ScanSettings> requests = new ArrayList<>();
+        requests.add(createRequest(channelsToSpec(2400, 2450), 10000, 0, 20,
+                WifiScanner.REPORT_EVENT_AFTER_EACH_SCAN));
+        requests.add(createRequest(channelsToSpec(2400, 5150), 30000, 0, 20,
+                WifiScanner.REPORT_EVENT_AFTER_EACH_SCAN));
+        requests.add(createRequest(channelsToSpec(2450), 120000, 0, 20,
+                WifiScanner.REPORT_EVENT_AFTER_EACH_SCAN));
+
+        mScheduler.setAirtimeOptimized(true);
+        mScheduler.setMaxBuckets(2);
+        mScheduler.updateSchedule(requests);
+        WifiNative.ScanSettings schedule = mScheduler.getSchedule();
+
+        assertBuckets(schedule, 2);
+        assertEquals(10000, schedule.buckets[0].period_ms);
+        assertBucketChannels(schedule.buckets[0], new HashSet<>(Arrays.asList(2400, 2450)));
+        assertEquals(30000, schedule.buckets[1].period_ms);
+        assertBucketChannels(schedule.buckets[1], new HashSet<>(Arrays.asList(5150)));
+
+        // 2 channels every 10s and 1 channel every 30s
+        double expectedAirtimeMsPerHour = ChannelHelper.ACTIVE_SCAN_DWELL_TIME_PER_CHANNEL_MS
+                * (2 * 360 + 1 * 120);
+        assertEquals(expectedAirtimeMsPerHour / (3600 * 1000),
+                mScheduler.getEstimatedDutyCycle(), 1e-9);
+    }
+
+    /**
+     * Ensure that the duty cycle accounts for the DFS channels with the passive scan dwell time.
+     */
+    @Test
+    public void dutyCycleAccountsForPassiveDfsChannels() {
+        ArrayList<ScanSettings> requests = new ArrayList<>();
+        requests.add(createRequest(channelsToSpec(2400, 5600), 10000, 0, 20,
+                WifiScanner.REPORT_EVENT_AFTER_EACH_SCAN));
+        requests.add(createRequest(WifiScanner.WIFI_BAND_5_GHZ_DFS_ONLY, 30000, 0, 20,
+                WifiScanner.REPORT_EVENT_AFTER_EACH_SCAN));
+
+        mScheduler.setAirtimeOptimized(true);
+        mScheduler.updateSchedule(requests);
+
+        // 1 active & 1 DFS channel every 10s and the 2 other DFS channels every 30s
+        double expectedAirtimeMsPerHour =
+                ChannelHelper.ACTIVE_SCAN_DWELL_TIME_PER_CHANNEL_MS * 360
+                + ChannelHelper.PASSIVE_SCAN_DWELL_TIME_PER_CHANNEL_MS * (1 * 360 + 2 * 120);
+        assertEquals(expectedAirtimeMsPerHour / (3600 * 1000),
+                mScheduler.getEstimatedDutyCycle(), 1e-9);
+    }
+
     protected Set<Integer> getAllChannels(BucketSettings bucket) {
         KnownBandsChannelCollection collection = mChannelHelper.createChannelCollection();
         collection.addChannels(bucket);
@@ -40,6 +40,7 @@ import org.junit.runner.RunWith;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.Random;
 
 /**
  * Unit tests for {@link com.android.server.wifi.scanner.KnownBandsChannelHelper}.
@@ -94,6 +95,17 @@ public class KnownBandsChannelHelperTest {
             assertEquals(ChannelHelper.SCAN_PERIOD_PER_CHANNEL_MS * CHANNELS_24_GHZ.length,
                     mChannelHelper.estimateScanDuration(testSettings));
         }
+
+        /**
+         * check the airtime of a few channels: the DFS channels are scanned passively
+         */
+        @Test
+        public void channelsScanAirtime() {
+            assertEquals(ChannelHelper.ACTIVE_SCAN_DWELL_TIME_PER_CHANNEL_MS * 2
+                    + ChannelHelper.PASSIVE_SCAN_DWELL_TIME_PER_CHANNEL_MS * 2,
+                    mChannelHelper.estimateChannelsScanAirtime(
+                            new HashSet<>(Arrays.asList(2400, 5150, 5600, 5650))));
+        }
     }
 
     /**
@@ -487,5 +499,116 @@ public class KnownBandsChannelHelperTest {
             assertThat(bucketSettings, channelsAre(2400, 2450, 5150, 5175, 5600, 5650, 5660));
             assertTrue(mChannelCollection.isAllChannels());
         }
+
+        /**
+         * Add a channel that is not a known channel
+         */
+        @Test
+        public void addChannel_unknownChannel() {
+            mChannelCollection.addBand(WifiScanner.WIFI_BAND_24_GHZ);
+            mChannelCollection.addChannel(5700);
+
+            WifiNative.BucketSettings bucketSettings = new WifiNative.BucketSettings();
+            mChannelCollection.fillBucketSettings(bucketSettings, Integer.MAX_VALUE);
+            assertThat(bucketSettings, channelsAre(2400, 2450, 5700));
+
+            assertTrue(mChannelCollection.containsChannel(5700));
+            assertTrue(mChannelCollection.containsBand(WifiScanner.WIFI_BAND_24_GHZ));
+            assertFalse(mChannelCollection.partiallyContainsBand(WifiScanner.WIFI_BAND_5_GHZ));
+            assertEquals(new HashSet<Integer>(Arrays.asList(2400, 2450, 5700)),
+                    mChannelCollection.getChannelSet());
+        }
+    }
+
+    /**
+     * Checks {@link KnownBandsChannelHelper.KnownBandsChannelCollection} against a plain set of
+     * channels, with more channels than fit in one word of the channel bitmask.
+     */
+    @SmallTest
+    public static class KnownBandsChannelCollectionManyChannelsTest {
+        private static final int[] BANDS = new int[]{
+                WifiScanner.WIFI_BAND_24_GHZ,
+                WifiScanner.WIFI_BAND_5_GHZ,
+                WifiScanner.WIFI_BAND_5_GHZ_DFS_ONLY,
+                WifiScanner.WIFI_BAND_5_GHZ_WITH_DFS,
+                WifiScanner.WIFI_BAND_BOTH,
+                WifiScanner.WIFI_BAND_BOTH_WITH_DFS};
+
+        KnownBandsChannelHelper mChannelHelper;
+
+        private static int[] frequencies(int start, int count) {
+            int[] frequencies = new int[count];
+            for (int i = 0; i < count; i++) {
+                frequencies[i] = start + 5 * i;
+            }
+            return frequencies;
+        }
+
+        /**
+         * Called before each test
+         * Create a channel helper with 140 channels
+         */
+        @Before
+        public void setUp() throws Exception {
+            mChannelHelper = new PresetKnownBandsChannelHelper(
+                    frequencies(2400, 20),
+                    frequencies(5150, 60),
+                    frequencies(5500, 60));
+        }
+
+        private HashSet<Integer> bandChannels(int band) {
+            HashSet<Integer> channels = new HashSet<>();
+            for (WifiScanner.ChannelSpec channel : mChannelHelper.getAvailableScanChannels(band)) {
+                channels.add(channel.frequency);
+            }
+            return channels;
+        }
+
+        /**
+         * Apply random channel and band additions and check that the collection agrees with a
+         * plain set of channels after each of them.
+         */
+        @Test
+        public void matchesPlainSet() {
+            Random random = new Random(4242);
+            HashSet<Integer> allChannels = bandChannels(WifiScanner.WIFI_BAND_BOTH_WITH_DFS);
+            KnownBandsChannelHelper.KnownBandsChannelCollection collection =
+                    mChannelHelper.createChannelCollection();
+            for (int round = 0; round < 20; round++) {
+                collection.clear();
+                HashSet<Integer> expected = new HashSet<>();
+                for (int op = 0; op < 10; op++) {
+                    if (random.nextInt(4) == 0) {
+                        int band = BANDS[random.nextInt(BANDS.length)];
+                        collection.addBand(band);
+                        expected.addAll(bandChannels(band));
+                    } else {
+                        // includes some frequencies which are not known channels
+                        int frequency = random.nextBoolean() ? 2400 + 5 * random.nextInt(20)
+                                : 5150 + 5 * random.nextInt(130);
+                        collection.addChannel(frequency);
+                        expected.add(frequency);
+                    }
+
+                    assertEquals(expected, collection.getAllChannels());
+                    assertEquals(expected.isEmpty(), collection.isEmpty());
+                    for (int band : BANDS) {
+                        HashSet<Integer> missing = bandChannels(band);
+                        missing.removeAll(expected);
+                        HashSet<Integer> containing = bandChannels(band);
+                        containing.retainAll(expected);
+                        assertEquals(missing, collection.getMissingChannelsFromBand(band));
+                        assertEquals(containing, collection.getContainingChannelsFromBand(band));
+                        assertEquals(missing.isEmpty(), collection.containsBand(band));
+                        assertEquals(!containing.isEmpty(),
+                                collection.partiallyContainsBand(band));
+                    }
+                    for (int frequency : allChannels) {
+                        assertEquals(expected.contains(frequency),
+                                collection.containsChannel(frequency));
+                    }
+                }
+            }
+        }
     }
 }
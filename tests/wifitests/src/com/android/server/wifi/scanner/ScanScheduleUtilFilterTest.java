@@ -307,6 +307,40 @@ public class ScanScheduleUtilFilterTest {
     }
 
 
+    /**
+     * Verify that settings which differ only in what does not affect the filtering of results
+     * (order of channels, period, report events) have equal result filter keys, and others don't.
+     */
+    @Test
+    public void resultFilterKeyEquality() {
+        ScanScheduleUtil.ResultFilterKey channels = new ScanScheduleUtil.ResultFilterKey(
+                createRequest(channelsToSpec(2400, 5150), 30000, 0, 20,
+                        WifiScanner.REPORT_EVENT_AFTER_EACH_SCAN));
+        ScanScheduleUtil.ResultFilterKey sameChannels = new ScanScheduleUtil.ResultFilterKey(
+                createRequest(channelsToSpec(5150, 2400), 10000, 0, 20,
+                        WifiScanner.REPORT_EVENT_FULL_SCAN_RESULT));
+        assertEquals(channels, sameChannels);
+        assertEquals(channels.hashCode(), sameChannels.hashCode());
+
+        assertFalse(channels.equals(new ScanScheduleUtil.ResultFilterKey(
+                createRequest(channelsToSpec(2400), 30000, 0, 20,
+                        WifiScanner.REPORT_EVENT_AFTER_EACH_SCAN))));
+        assertFalse(channels.equals(new ScanScheduleUtil.ResultFilterKey(
+                createRequest(channelsToSpec(2400, 5150), 30000, 0, 10,
+                        WifiScanner.REPORT_EVENT_AFTER_EACH_SCAN))));
+
+        ScanScheduleUtil.ResultFilterKey band = new ScanScheduleUtil.ResultFilterKey(
+                createRequest(WifiScanner.WIFI_BAND_24_GHZ, 30000, 0, 20,
+                        WifiScanner.REPORT_EVENT_AFTER_EACH_SCAN));
+        assertEquals(band, new ScanScheduleUtil.ResultFilterKey(
+                createRequest(WifiScanner.WIFI_BAND_24_GHZ, 60000, 0, 20,
+                        WifiScanner.REPORT_EVENT_FULL_SCAN_RESULT)));
+        assertFalse(band.equals(new ScanScheduleUtil.ResultFilterKey(
+                createRequest(WifiScanner.WIFI_BAND_BOTH, 30000, 0, 20,
+                        WifiScanner.REPORT_EVENT_AFTER_EACH_SCAN))));
+    }
+
+
     private static void assertScanDataFreqsEquals(int[][] expected, ScanData[] results) {
         if (expected == null) {
             assertNull("Expected no results", results);
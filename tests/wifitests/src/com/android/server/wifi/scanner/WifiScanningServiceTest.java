@@ -75,6 +75,7 @@ import com.android.internal.util.test.BidirectionalAsyncChannel;
 import com.android.server.wifi.Clock;
 import com.android.server.wifi.FakeWifiLog;
 import com.android.server.wifi.FrameworkFacade;
+import com.android.server.wifi.MergedScanResultTable;
 import com.android.server.wifi.ScanResults;
 import com.android.server.wifi.TestUtil;
 import com.android.server.wifi.WifiInjector;
@@ -100,6 +101,7 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.regex.Pattern;
 
@@ -120,6 +122,7 @@ public class WifiScanningServiceTest {
     @Mock WifiInjector mWifiInjector;
     @Mock FrameworkFacade mFrameworkFacade;
     @Mock Clock mClock;
+    @Mock MergedScanResultTable mMergedScanResultTable;
     @Spy FakeWifiLog mLog;
     WifiMetrics mWifiMetrics;
     TestLooper mLooper;
@@ -153,6 +156,7 @@ public class WifiScanningServiceTest {
         when(mFrameworkFacade.makeWifiAsyncChannel(anyString())).thenReturn(mWifiAsyncChannel);
         when(mWifiInjector.getFrameworkFacade()).thenReturn(mFrameworkFacade);
         when(mWifiInjector.getClock()).thenReturn(mClock);
+        when(mWifiInjector.getMergedScanResultTable()).thenReturn(mMergedScanResultTable);
         mWifiScanningServiceImpl = new WifiScanningServiceImpl(mContext, mLooper.getLooper(),
                 mWifiScannerImplFactory, mBatteryStats, mWifiInjector);
     }
@@ -652,6 +656,62 @@ public class WifiScanningServiceTest {
                 ScanResults.create(0, true, 2400, 5150, 5175));
     }
 
+    /**
+     * Verify that the directed probes of the hidden networks are only counted on the channels
+     * scanned actively, not on the passive DFS channels.
+     */
+    @Test
+    public void sendSingleScanRequestWithHiddenNetworksCountsProbesOnActiveChannels()
+            throws Exception {
+        startServiceAndLoadDriver();
+        mWifiScanningServiceImpl.setWifiHandlerLogForTest(mLog);
+        Handler handler = mock(Handler.class);
+        BidirectionalAsyncChannel controlChannel = connectChannel(handler);
+        when(mWifiScannerImpl.startSingleScan(any(WifiNative.ScanSettings.class),
+                any(WifiNative.ScanEventHandler.class))).thenReturn(true);
+        ArgumentCaptor<WifiNative.ScanEventHandler> eventHandlerCaptor =
+                ArgumentCaptor.forClass(WifiNative.ScanEventHandler.class);
+        when(mWifiScannerImpl.getLatestSingleScanResults())
+                .thenReturn(ScanResults.create(0, 2400).getRawScanData());
+
+        // 2 hidden networks on 2 active channels and 1 DFS channel: 4 probes.
+        WifiScanner.ScanSettings requestSettings = createRequest(channelsToSpec(2400, 5150, 5600),
+                0, 0, 20, WifiScanner.REPORT_EVENT_AFTER_EACH_SCAN);
+        requestSettings.hiddenNetworks = new WifiScanner.ScanSettings.HiddenNetwork[] {
+                new WifiScanner.ScanSettings.HiddenNetwork("Test1"),
+                new WifiScanner.ScanSettings.HiddenNetwork("Test2")
+        };
+        sendSingleScanRequest(controlChannel, 12, requestSettings, null);
+        mLooper.dispatchAll();
+        verify(mWifiScannerImpl).startSingleScan(any(WifiNative.ScanSettings.class),
+                eventHandlerCaptor.capture());
+        eventHandlerCaptor.getValue().onScanStatus(WifiNative.WIFI_SCAN_RESULTS_AVAILABLE);
+        mLooper.dispatchAll();
+
+        StringWriter sw = new StringWriter();
+        mWifiMetrics.dump(new FileDescriptor(), new PrintWriter(sw), new String[0]);
+        assertTrue(sw.toString().contains(
+                "mNumSingleScansWithHiddenNetworks=1 hiddenNetworkProbes=4 "));
+
+        // All the channels: 4 active channels, the 3 DFS channels are not probed.
+        requestSettings = createRequest(WifiScanner.WIFI_BAND_BOTH_WITH_DFS,
+                0, 0, 20, WifiScanner.REPORT_EVENT_AFTER_EACH_SCAN);
+        requestSettings.hiddenNetworks = new WifiScanner.ScanSettings.HiddenNetwork[] {
+                new WifiScanner.ScanSettings.HiddenNetwork("Test1")
+        };
+        sendSingleScanRequest(controlChannel, 13, requestSettings, null);
+        mLooper.dispatchAll();
+        verify(mWifiScannerImpl, times(2)).startSingleScan(any(WifiNative.ScanSettings.class),
+                eventHandlerCaptor.capture());
+        eventHandlerCaptor.getValue().onScanStatus(WifiNative.WIFI_SCAN_RESULTS_AVAILABLE);
+        mLooper.dispatchAll();
+
+        sw = new StringWriter();
+        mWifiMetrics.dump(new FileDescriptor(), new PrintWriter(sw), new String[0]);
+        assertTrue(sw.toString().contains(
+                "mNumSingleScansWithHiddenNetworks=2 hiddenNetworkProbes=8 "));
+    }
+
     /**
      * Do a single scan with no results and verify that it is successful.
      */
@@ -1692,6 +1752,33 @@ public class WifiScanningServiceTest {
         assertEquals(results2.size(), expectedFullResults.getRawScanResults().length);
     }
 
+    /**
+     * Verify that the results of both full and partial scans are applied to the merged scan
+     * result table, which is cleared after the driver is unloaded, and that the table is given
+     * the DFS channels of the channel helper.
+     */
+    @Test
+    public void partialAndFullSingleScanResultsMerged() throws Exception {
+        WifiScanner.ScanSettings requestSettings = createRequest(WifiScanner.WIFI_BAND_BOTH, 0,
+                0, 20, WifiScanner.REPORT_EVENT_AFTER_EACH_SCAN);
+        ScanResults fullResults = ScanResults.create(0, true, 2400, 5150, 5175);
+        doSuccessfulSingleScan(requestSettings,
+                computeSingleScanNativeSettings(requestSettings), fullResults);
+        verify(mMergedScanResultTable).update(fullResults.getRawScanResults());
+
+        ScanResults partialResults = ScanResults.create(0, false, 5150);
+        doSuccessfulSingleScan(requestSettings,
+                computeSingleScanNativeSettings(requestSettings), partialResults);
+        verify(mMergedScanResultTable).update(partialResults.getRawScanResults());
+        verify(mMergedScanResultTable, times(2)).setDfsFrequencies(
+                new HashSet<>(Arrays.asList(5600, 5650, 5660)));
+
+        TestUtil.sendWifiScanAvailable(mBroadcastReceiver, mContext,
+                WifiManager.WIFI_STATE_DISABLED);
+        mLooper.dispatchAll();
+        verify(mMergedScanResultTable).clear();
+    }
+
     /**
      * Verify that the scan results returned by WifiService.getSingleScanResults are not older
      * than {@link com.android.server.wifi.scanner.WifiScanningServiceImpl
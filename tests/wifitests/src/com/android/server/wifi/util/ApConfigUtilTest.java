@@ -25,6 +25,7 @@ import android.net.wifi.WifiScanner;
 import android.support.test.filters.SmallTest;
 
 import com.android.internal.util.ArrayUtils;
+import com.android.server.wifi.SoftApChannelSelector;
 import com.android.server.wifi.WifiNative;
 
 import org.junit.Before;
@@ -105,6 +106,7 @@ public class ApConfigUtilTest {
     private static final int[] ALLOWED_5G_CHANNELS = {36, 38, 40};
 
     @Mock WifiNative mWifiNative;
+    @Mock SoftApChannelSelector mSoftApChannelSelector;
     private final ArrayList<Integer> mAllowed2GChannels =
             new ArrayList<Integer>(Arrays.asList(ALLOWED_2G_CHANNELS));
 
@@ -239,4 +241,33 @@ public class ApConfigUtilTest {
                 ApConfigUtil.updateApChannelConfig(
                         mWifiNative, TEST_COUNTRY_CODE, mAllowed2GChannels, config));
     }
+
+    /**
+     * Verify updateApChannelConfig uses the channel chosen by the channel selector if any, and
+     * falls back to a random allowed channel otherwise.
+     */
+    @Test
+    public void updateApChannelConfigWithChannelSelector() throws Exception {
+        when(mWifiNative.isHalStarted()).thenReturn(true);
+        when(mWifiNative.getChannelsForBand(WifiScanner.WIFI_BAND_5_GHZ))
+                .thenReturn(ALLOWED_5G_FREQS);
+
+        WifiConfiguration config = new WifiConfiguration();
+        config.apBand = WifiConfiguration.AP_BAND_2GHZ;
+        when(mSoftApChannelSelector.chooseChannel(WifiConfiguration.AP_BAND_2GHZ,
+                mAllowed2GChannels, ALLOWED_5G_FREQS)).thenReturn(11);
+        assertEquals(ApConfigUtil.SUCCESS,
+                ApConfigUtil.updateApChannelConfig(mWifiNative, TEST_COUNTRY_CODE,
+                        mAllowed2GChannels, mSoftApChannelSelector, config));
+        assertEquals(11, config.apChannel);
+
+        config = new WifiConfiguration();
+        config.apBand = WifiConfiguration.AP_BAND_2GHZ;
+        when(mSoftApChannelSelector.chooseChannel(WifiConfiguration.AP_BAND_2GHZ,
+                mAllowed2GChannels, ALLOWED_5G_FREQS)).thenReturn(-1);
+        assertEquals(ApConfigUtil.SUCCESS,
+                ApConfigUtil.updateApChannelConfig(mWifiNative, TEST_COUNTRY_CODE,
+                        mAllowed2GChannels, mSoftApChannelSelector, config));
+        assertTrue(mAllowed2GChannels.contains(config.apChannel));
+    }
 }
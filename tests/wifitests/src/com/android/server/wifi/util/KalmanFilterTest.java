@@ -16,7 +16,9 @@
 
 package com.android.server.wifi.util;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import org.junit.Test;
@@ -126,6 +128,38 @@ public class KalmanFilterTest {
         assertNotNull(kf.toString());
     }
 
+    /**
+     * Test that the filter updates its state in place, giving exactly the results of the
+     * textbook formulation that allocates a matrix per operation.
+     */
+    @Test
+    public void testInPlaceUpdateMatchesAllocatingFormulation() throws Exception {
+        Random random = new Random(mSeed);
+        KalmanFilter kf = initializePll(mStepSizeRadians, 0.5, mNoiseAmplitude);
+        KalmanFilter ref = initializePll(mStepSizeRadians, 0.5, mNoiseAmplitude);
+        Matrix x = kf.mx;
+        Matrix p = kf.mP;
+        Matrix z = new Matrix(1, 1);
+        for (int i = 0; i < mSteps; i++) {
+            z.put(0, 0, idealSignal(i) + random.nextGaussian() * mNoiseAmplitude);
+            kf.predict();
+            kf.update(z);
+
+            ref.mx = ref.mF.dot(ref.mx);
+            ref.mP = ref.mF.dot(ref.mP).dotTranspose(ref.mF).plus(ref.mQ);
+            Matrix y = z.minus(ref.mH.dot(ref.mx));
+            Matrix tS = ref.mH.dot(ref.mP).dotTranspose(ref.mH).plus(ref.mR);
+            Matrix tK = ref.mP.dotTranspose(ref.mH).dot(tS.inverse());
+            ref.mx = ref.mx.plus(tK.dot(y));
+            ref.mP = ref.mP.minus(tK.dot(ref.mH).dot(ref.mP));
+
+            assertEquals(ref.mx, kf.mx);
+            assertEquals(ref.mP, kf.mP);
+        }
+        assertSame(x, kf.mx);
+        assertSame(p, kf.mP);
+    }
+
     /**
      * Test that the toString method works even if the matrices have not been set.
      */
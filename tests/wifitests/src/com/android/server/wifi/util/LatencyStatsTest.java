@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi.util;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Unit tests for {@link com.android.server.wifi.util.LatencyStats}.
+ */
+public class LatencyStatsTest {
+    /**
+     * Verifies the count, average, maximum and histogram buckets of the recorded latencies.
+     */
+    @Test
+    public void testLatenciesAreRecorded() throws Exception {
+        LatencyStats stats = new LatencyStats();
+        stats.add(0);
+        stats.add(7);
+        stats.add(5000);
+
+        assertEquals(3, stats.getCount());
+        assertEquals(1669, stats.getAverageMs());
+        assertEquals(5000, stats.getMaxMs());
+        int[] histogram = stats.getHistogram();
+        assertEquals(LatencyStats.BUCKET_BOUNDS_MS.length + 1, histogram.length);
+        assertEquals(1, histogram[0]);
+        // 7ms falls in the [5, 10) bucket.
+        assertEquals(1, histogram[3]);
+        assertEquals(1, histogram[histogram.length - 1]);
+        assertEquals("count=3 avgMs=1669 maxMs=5000 histogram=[1,0,0,1,0,0,0,0,0,0,1]",
+                stats.toString());
+    }
+
+    /**
+     * Verifies that a copy is not affected by later samples.
+     */
+    @Test
+    public void testCopyIsIndependent() throws Exception {
+        LatencyStats stats = new LatencyStats();
+        stats.add(7);
+        LatencyStats copy = stats.copy();
+        stats.add(70);
+
+        assertEquals(1, copy.getCount());
+        assertEquals(7, copy.getMaxMs());
+        assertEquals(0, copy.getHistogram()[6]);
+    }
+
+    /**
+     * Verifies that the slow log drops its oldest entries and dumps the most recent first.
+     */
+    @Test
+    public void testSlowLogKeepsMostRecentEntries() throws Exception {
+        LatencyStats.SlowLog<String> log = new LatencyStats.SlowLog<>(2);
+        log.add("first");
+        log.add("second");
+        log.add("third");
+
+        assertEquals(2, log.size());
+        StringWriter sw = new StringWriter();
+        log.dump(new PrintWriter(sw, true), "  ");
+        String[] lines = sw.toString().split("\n");
+        assertEquals(2, lines.length);
+        assertEquals("  third", lines[0]);
+        assertEquals("  second", lines[1]);
+    }
+}
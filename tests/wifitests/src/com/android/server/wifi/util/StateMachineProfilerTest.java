@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi.util;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import android.os.Looper;
+import android.os.Message;
+import android.os.test.TestLooper;
+
+import com.android.internal.util.State;
+import com.android.internal.util.StateMachine;
+import com.android.server.wifi.Clock;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Unit tests for {@link com.android.server.wifi.util.StateMachineProfiler}.
+ */
+public class StateMachineProfilerTest {
+    private static final String MACHINE_NAME = "TestStateMachine";
+    private static final String STATE_NAME = "DefaultState";
+    private static final int CMD_TEST = 1;
+
+    @Mock private Clock mClock;
+
+    private TestLooper mLooper;
+    private StateMachineProfiler mDut;
+    private TestStateMachine mStateMachine;
+
+    /**
+     * State machine reporting every message to the profiler under test.
+     */
+    private class TestStateMachine extends StateMachine {
+        TestStateMachine(Looper looper) {
+            super(MACHINE_NAME, looper);
+            State defaultState = new DefaultState();
+            addState(defaultState);
+            setInitialState(defaultState);
+        }
+
+        class DefaultState extends State {
+            @Override
+            public boolean processMessage(Message msg) {
+                return HANDLED;
+            }
+        }
+
+        @Override
+        protected void onPreHandleMessage(Message msg) {
+            mDut.onPreHandleMessage(this, msg);
+        }
+
+        @Override
+        protected void onPostHandleMessage(Message msg) {
+            mDut.onPostHandleMessage(this, msg, msg.what == CMD_TEST ? "CMD_TEST" : null);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        mLooper = new TestLooper();
+        mDut = new StateMachineProfiler(mClock);
+        mStateMachine = new TestStateMachine(mLooper.getLooper());
+        mStateMachine.start();
+        mLooper.dispatchAll();
+        mDut.setEnabled(true);
+    }
+
+    /**
+     * Verifies that the handling time of a message is recorded in the histogram.
+     */
+    @Test
+    public void testHandlingTimeIsRecorded() throws Exception {
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(1000L, 1007L);
+
+        mStateMachine.sendMessage(CMD_TEST);
+        mLooper.dispatchAll();
+
+        StateMachineProfiler.MessageStats stats =
+                mDut.getMessageStats(MACHINE_NAME, STATE_NAME, "CMD_TEST");
+        assertEquals(1, stats.handlingTime.getCount());
+        assertEquals(0, stats.slowCount);
+        assertEquals(7, stats.handlingTime.getMaxMs());
+        // 7ms falls in the [5, 10) bucket.
+        assertEquals(1, stats.handlingTime.getHistogram()[3]);
+    }
+
+    /**
+     * Verifies that messages without a name are recorded by their numeric value.
+     */
+    @Test
+    public void testUnnamedMessageIsRecordedByValue() throws Exception {
+        mStateMachine.sendMessage(42);
+        mLooper.dispatchAll();
+
+        assertEquals(1, mDut.getMessageStats(MACHINE_NAME, STATE_NAME, "42")
+                .handlingTime.getCount());
+    }
+
+    /**
+     * Verifies that nothing is recorded while the profiler is disabled.
+     */
+    @Test
+    public void testNothingRecordedWhenDisabled() throws Exception {
+        mDut.setEnabled(false);
+
+        mStateMachine.sendMessage(CMD_TEST);
+        mLooper.dispatchAll();
+
+        assertNull(mDut.getMessageStats(MACHINE_NAME, STATE_NAME, "CMD_TEST"));
+        verify(mClock, never()).getElapsedSinceBootMillis();
+    }
+
+    /**
+     * Verifies that messages slower than the threshold are recorded without the contents of their
+     * object.
+     */
+    @Test
+    public void testSlowMessageIsRecorded() throws Exception {
+        mDut.setSlowMessageThresholdMs(50);
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(1000L, 1200L);
+
+        mStateMachine.sendMessage(CMD_TEST, 3, 4, "secret");
+        mLooper.dispatchAll();
+
+        assertEquals(1, mDut.getMessageStats(MACHINE_NAME, STATE_NAME, "CMD_TEST").slowCount);
+        StringWriter sw = new StringWriter();
+        mDut.dump(new PrintWriter(sw));
+        String dump = sw.toString();
+        assertTrue(dump.contains(MACHINE_NAME + " " + STATE_NAME
+                + " CMD_TEST arg1=3 arg2=4 obj=String"));
+        assertTrue(dump.contains("handlingTimeMs=200"));
+        assertFalse(dump.contains("secret"));
+    }
+
+    /**
+     * Verifies that messages handled back to back are counted as a backlog.
+     */
+    @Test
+    public void testBacklogIsRecorded() throws Exception {
+        mStateMachine.sendMessage(CMD_TEST);
+        mStateMachine.sendMessage(CMD_TEST);
+        mStateMachine.sendMessage(CMD_TEST);
+        mLooper.dispatchAll();
+
+        assertEquals(3, mDut.getMessageStats(MACHINE_NAME, STATE_NAME, "CMD_TEST")
+                .handlingTime.getCount());
+        assertEquals(2, mDut.getMaxBacklog(MACHINE_NAME));
+    }
+
+    /**
+     * Verifies that clearing the profiler drops all the recorded statistics.
+     */
+    @Test
+    public void testClear() throws Exception {
+        mStateMachine.sendMessage(CMD_TEST);
+        mLooper.dispatchAll();
+
+        mDut.clear();
+
+        assertNull(mDut.getMessageStats(MACHINE_NAME, STATE_NAME, "CMD_TEST"));
+        assertEquals(0, mDut.getMaxBacklog(MACHINE_NAME));
+    }
+}